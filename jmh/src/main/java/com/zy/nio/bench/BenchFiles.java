@@ -0,0 +1,55 @@
+package com.zy.nio.bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * 基准测试用的临时文件：在系统临时目录下生成随机内容，测试结束后整个目录删除
+ */
+final class BenchFiles {
+
+    private BenchFiles() {
+    }
+
+    static Path createDir(String prefix) throws IOException {
+        return Files.createTempDirectory(prefix);
+    }
+
+    /**
+     * 生成指定大小的随机内容文件(固定种子，每次运行内容相同)
+     */
+    static Path createRandomFile(Path dir, String name, long size) throws IOException {
+        Path path = dir.resolve(name);
+        byte[] block = new byte[1 << 20];
+        new Random(42).nextBytes(block);
+        try (FileChannel outChannel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+            ByteBuffer buf = ByteBuffer.wrap(block);
+            for (long written = 0; written < size; ) {
+                buf.clear();
+                buf.limit((int) Math.min(block.length, size - written));
+                while (buf.hasRemaining()) {
+                    written += outChannel.write(buf);
+                }
+            }
+        }
+        return path;
+    }
+
+    static void deleteDir(Path dir) throws IOException {
+        if (dir == null || !Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Object p : files.toArray()) {
+                Files.delete((Path) p);
+            }
+        }
+        Files.delete(dir);
+    }
+}
@@ -0,0 +1,104 @@
+package com.zy.nio.bench;
+
+import com.zy.nio.buffer.BufferPool;
+import com.zy.nio.buffer.PooledBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 堆缓冲区与直接缓冲区(TestBuffer.test3)：分配代价、池化借还、读文件到缓冲区的吞吐
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BufferBenchmark {
+
+    @Param({"1024", "65536", "1048576"})
+    public int bufferSize;
+
+    //读文件基准使用的文件大小
+    private static final long FILE_SIZE = 64L * 1024 * 1024;
+
+    private Path dir;
+    private FileChannel inChannel;
+    private ByteBuffer heap;
+    private ByteBuffer direct;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = BenchFiles.createDir("nio-bench-buffer");
+        inChannel = FileChannel.open(BenchFiles.createRandomFile(dir, "in.bin", FILE_SIZE), StandardOpenOption.READ);
+        heap = ByteBuffer.allocate(bufferSize);
+        direct = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        inChannel.close();
+        BenchFiles.deleteDir(dir);
+    }
+
+    @Benchmark
+    public ByteBuffer allocateHeap() {
+        return ByteBuffer.allocate(bufferSize);
+    }
+
+    @Benchmark
+    public ByteBuffer allocateDirect() {
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    @Benchmark
+    public int pooledDirect() {
+        PooledBuffer pooled = BufferPool.getDefault().acquire(bufferSize);
+        int capacity = pooled.capacity();
+        pooled.release();
+        return capacity;
+    }
+
+    //堆缓冲区读文件：JDK内部先读到临时直接缓冲区再拷贝到堆
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long readFileHeap() throws IOException {
+        return readAll(heap);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long readFileDirect() throws IOException {
+        return readAll(direct);
+    }
+
+    private long readAll(ByteBuffer buf) throws IOException {
+        long total = 0;
+        long position = 0;
+        int n;
+        while ((n = inChannel.read(buf, position)) > 0) {
+            position += n;
+            total += buf.get(0);
+            buf.clear();
+        }
+        return total + position;
+    }
+}
@@ -0,0 +1,130 @@
+package com.zy.nio.bench;
+
+import com.zy.nio.buffer.BufferPool;
+import com.zy.nio.buffer.PooledBuffer;
+import com.zy.nio.channel.ChannelTransfer;
+import com.zy.nio.channel.MappedCopy;
+import com.zy.nio.channel.ParallelCopy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 文件复制策略对比：
+ * streamChannel - TestChannel.test1，流获取通道+缓冲区循环读写
+ * mapWhole      - TestChannel.test2，整体映射再经过byte[]
+ * transferTo    - TestChannel.test3，分块transferTo
+ * mapWindowed   - 分窗口映射，映射到映射直接复制
+ * parallel      - 分段并行定位读写
+ * 每次调用复制到新文件，调用结束后删除目标文件
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CopyBenchmark {
+
+    @Param({"16777216", "268435456"})
+    public long fileSize;
+
+    @Param({"8192", "1048576"})
+    public int bufferSize;
+
+    private Path dir;
+    private Path src;
+    private Path dst;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = BenchFiles.createDir("nio-bench-copy");
+        src = BenchFiles.createRandomFile(dir, "src.bin", fileSize);
+        dst = dir.resolve("dst.bin");
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteTarget() throws IOException {
+        Files.deleteIfExists(dst);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchFiles.deleteDir(dir);
+    }
+
+    @Benchmark
+    public long streamChannel() throws IOException {
+        try (FileInputStream fis = new FileInputStream(src.toFile());
+             FileOutputStream fos = new FileOutputStream(dst.toFile())) {
+            FileChannel inChannel = fis.getChannel();
+            FileChannel outChannel = fos.getChannel();
+            PooledBuffer pooled = BufferPool.getDefault().acquire(bufferSize);
+            ByteBuffer buf = pooled.buffer();
+            long total = 0;
+            while (inChannel.read(buf) != -1) {
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    total += outChannel.write(buf);
+                }
+                buf.clear();
+            }
+            pooled.release();
+            return total;
+        }
+    }
+
+    @Benchmark
+    public long mapWhole() throws IOException {
+        try (FileChannel inChannel = FileChannel.open(src, StandardOpenOption.READ);
+             FileChannel outChannel = FileChannel.open(dst, StandardOpenOption.WRITE, StandardOpenOption.READ, StandardOpenOption.CREATE_NEW)) {
+            MappedByteBuffer inMappedBuf = inChannel.map(FileChannel.MapMode.READ_ONLY, 0, inChannel.size());
+            MappedByteBuffer outMappedBuf = outChannel.map(FileChannel.MapMode.READ_WRITE, 0, inChannel.size());
+            byte[] bytes = new byte[inMappedBuf.limit()];
+            inMappedBuf.get(bytes);
+            outMappedBuf.put(bytes);
+            MappedCopy.unmap(inMappedBuf);
+            MappedCopy.unmap(outMappedBuf);
+            return bytes.length;
+        }
+    }
+
+    @Benchmark
+    public long transferTo() throws IOException {
+        try (FileChannel inChannel = FileChannel.open(src, StandardOpenOption.READ);
+             FileChannel outChannel = FileChannel.open(dst, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+            return new ChannelTransfer().transfer(inChannel, outChannel).getBytes();
+        }
+    }
+
+    @Benchmark
+    public long mapWindowed() throws IOException {
+        return new MappedCopy(64L * 1024 * 1024).copy(src, dst).getBytes();
+    }
+
+    @Benchmark
+    public long parallel() throws IOException {
+        return new ParallelCopy().copy(src, dst).getBytes();
+    }
+}
@@ -0,0 +1,65 @@
+package com.zy.nio.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pipe往返(TestPipe)：同一线程写入sink再从source读出，测量每条消息的延迟
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipeBenchmark {
+
+    @Param({"64", "1024", "16384"})
+    public int messageSize;
+
+    private Pipe pipe;
+    private ByteBuffer out;
+    private ByteBuffer in;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        pipe = Pipe.open();
+        out = ByteBuffer.allocateDirect(messageSize);
+        in = ByteBuffer.allocateDirect(messageSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        pipe.sink().close();
+        pipe.source().close();
+    }
+
+    @Benchmark
+    public int roundTrip() throws IOException {
+        out.clear();
+        while (out.hasRemaining()) {
+            pipe.sink().write(out);
+        }
+        in.clear();
+        while (in.hasRemaining()) {
+            pipe.source().read(in);
+        }
+        return in.get(0);
+    }
+}
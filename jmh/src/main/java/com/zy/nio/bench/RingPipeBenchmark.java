@@ -0,0 +1,123 @@
+package com.zy.nio.bench;
+
+import com.zy.nio.channel.RingPipe;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RingPipe与Pipe对比
+ * roundTrip：同一线程写入再读出，只有拷贝与同步的开销(对应PipeBenchmark.roundTrip)
+ * pipe/ring组：一个线程不停写、一个线程不停读(非阻塞)，吞吐量看两个方法的ops/us
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RingPipeBenchmark {
+
+    @Param({"64", "1024", "16384"})
+    public int messageSize;
+
+    private Pipe pipe;
+    private RingPipe ring;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        pipe = Pipe.open();
+        pipe.sink().configureBlocking(false);
+        pipe.source().configureBlocking(false);
+        ring = RingPipe.open(1 << 20);
+        ring.sink().configureBlocking(false);
+        ring.source().configureBlocking(false);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        pipe.sink().close();
+        pipe.source().close();
+        ring.sink().close();
+        ring.source().close();
+    }
+
+    /**
+     * 每个线程自己的缓冲区
+     */
+    @State(Scope.Thread)
+    public static class Buffers {
+        ByteBuffer buf;
+
+        @Setup(Level.Trial)
+        public void setup(RingPipeBenchmark bench) {
+            buf = ByteBuffer.allocateDirect(bench.messageSize);
+        }
+    }
+
+    @Benchmark
+    @Group("pipeRoundTrip")
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int pipeRoundTrip(Buffers b) throws IOException {
+        b.buf.clear();
+        pipe.sink().write(b.buf);
+        b.buf.clear();
+        return pipe.source().read(b.buf);
+    }
+
+    @Benchmark
+    @Group("ringRoundTrip")
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int ringRoundTrip(Buffers b) throws IOException {
+        b.buf.clear();
+        ring.sink().write(b.buf);
+        b.buf.clear();
+        return ring.source().read(b.buf);
+    }
+
+    @Benchmark
+    @Group("pipe")
+    public int pipeWrite(Buffers b) throws IOException {
+        b.buf.clear();
+        return pipe.sink().write(b.buf);
+    }
+
+    @Benchmark
+    @Group("pipe")
+    public int pipeRead(Buffers b) throws IOException {
+        b.buf.clear();
+        return pipe.source().read(b.buf);
+    }
+
+    @Benchmark
+    @Group("ring")
+    public int ringWrite(Buffers b) throws IOException {
+        b.buf.clear();
+        return ring.sink().write(b.buf);
+    }
+
+    @Benchmark
+    @Group("ring")
+    public int ringRead(Buffers b) throws IOException {
+        b.buf.clear();
+        return ring.source().read(b.buf);
+    }
+}
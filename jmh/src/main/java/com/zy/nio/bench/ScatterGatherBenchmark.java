@@ -0,0 +1,116 @@
+package com.zy.nio.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分散读取/聚集写入(TestChannel.test4)与单缓冲区多次读写的对比
+ * 模拟"固定长度头部+数据体"的记录：分散/聚集一次系统调用完成，单缓冲区方式头部和数据体各一次调用
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScatterGatherBenchmark {
+
+    @Param({"100"})
+    public int headerSize;
+
+    @Param({"1024", "65536"})
+    public int bodySize;
+
+    //每轮写/读的记录数
+    private static final int RECORDS = 256;
+
+    private Path dir;
+    private FileChannel channel;
+    private ByteBuffer header;
+    private ByteBuffer body;
+    private ByteBuffer[] bufs;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = BenchFiles.createDir("nio-bench-sg");
+        Path path = BenchFiles.createRandomFile(dir, "data.bin", (long) (headerSize + bodySize) * RECORDS);
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        header = ByteBuffer.allocateDirect(headerSize);
+        body = ByteBuffer.allocateDirect(bodySize);
+        bufs = new ByteBuffer[]{header, body};
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        channel.close();
+        BenchFiles.deleteDir(dir);
+    }
+
+    @Benchmark
+    public long scatterRead() throws IOException {
+        channel.position(0);
+        long total = 0;
+        for (int i = 0; i < RECORDS; i++) {
+            header.clear();
+            body.clear();
+            total += channel.read(bufs);
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long singleRead() throws IOException {
+        channel.position(0);
+        long total = 0;
+        for (int i = 0; i < RECORDS; i++) {
+            header.clear();
+            body.clear();
+            total += channel.read(header);
+            total += channel.read(body);
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long gatherWrite() throws IOException {
+        channel.position(0);
+        long total = 0;
+        for (int i = 0; i < RECORDS; i++) {
+            header.clear();
+            body.clear();
+            total += channel.write(bufs);
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long singleWrite() throws IOException {
+        channel.position(0);
+        long total = 0;
+        for (int i = 0; i < RECORDS; i++) {
+            header.clear();
+            body.clear();
+            total += channel.write(header);
+            total += channel.write(body);
+        }
+        return total;
+    }
+}
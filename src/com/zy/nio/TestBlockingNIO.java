@@ -1,5 +1,11 @@
 package com.zy.nio;
 
+import com.zy.nio.buffer.BufferPool;
+import com.zy.nio.buffer.PooledBuffer;
+import com.zy.nio.channel.Compression;
+import com.zy.nio.protocol.RawUpload;
+import com.zy.nio.protocol.RawUploadBlockingHandler;
+import com.zy.nio.server.BlockingServer;
 import org.junit.Test;
 
 import java.net.InetSocketAddress;
@@ -34,8 +40,9 @@ public class TestBlockingNIO {
         //1.获取通道
         SocketChannel sChannel = SocketChannel.open(new InetSocketAddress("127.0.0.1",9898));
 
-        //2.分配缓冲区
-        ByteBuffer buf = ByteBuffer.allocate(1024);
+        //2.从缓冲区池借一个直接缓冲区
+        PooledBuffer pooled = BufferPool.getDefault().acquire(1024);
+        ByteBuffer buf = pooled.buffer();
 
         //3.读取本地文件并发送到服务端
         FileChannel inChannel = FileChannel.open(Paths.get("1.jpg"), StandardOpenOption.READ);
@@ -45,9 +52,10 @@ public class TestBlockingNIO {
             buf.clear();
         }
 
-        //4.关闭通道
+        //4.关闭通道，归还缓冲区
         inChannel.close();
         sChannel.close();
+        pooled.release();
     }
 
     /**
@@ -65,8 +73,9 @@ public class TestBlockingNIO {
         //3.获取客户端连接的通道
         SocketChannel socketChannel = ssChannel.accept()
                 ;
-        //4.分配指定大小的缓冲区
-        ByteBuffer buf = ByteBuffer.allocate(1024);
+        //4.从缓冲区池借指定大小的缓冲区
+        PooledBuffer pooled = BufferPool.getDefault().acquire(1024);
+        ByteBuffer buf = pooled.buffer();
 
         //5.接收客户端的数据并保存到本地
         FileChannel outChannel = FileChannel.open(Paths.get("4.jpg"), StandardOpenOption.WRITE,StandardOpenOption.READ,StandardOpenOption.CREATE_NEW);
@@ -77,10 +86,11 @@ public class TestBlockingNIO {
             buf.clear();
         }
 
-        //关闭通道
+        //关闭通道，归还缓冲区
         outChannel.close();
         socketChannel.close();
         ssChannel.close();
+        pooled.release();
     }
 
     /**
@@ -90,7 +100,8 @@ public class TestBlockingNIO {
     @Test
     public void client2() throws Exception {
         SocketChannel sChannel = SocketChannel.open(new InetSocketAddress("127.0.0.1",9797));
-        ByteBuffer buf = ByteBuffer.allocate(1024);
+        PooledBuffer pooled = BufferPool.getDefault().acquire(1024);
+        ByteBuffer buf = pooled.buffer();
 
         FileChannel inChannel = FileChannel.open(Paths.get("1.jpg"), StandardOpenOption.READ);
         while(inChannel.read(buf) != -1){
@@ -103,12 +114,15 @@ public class TestBlockingNIO {
         int len = 0;
         while((len = sChannel.read(buf)) != -1){
             buf.flip();
-            System.out.println(new String(buf.array(),0,len));
+            byte[] dst = new byte[len];
+            buf.get(dst);
+            System.out.println(new String(dst,0,len));
             buf.clear();
         }
 
         inChannel.close();
         sChannel.close();
+        pooled.release();
     }
 
     /**
@@ -120,7 +134,8 @@ public class TestBlockingNIO {
         ServerSocketChannel ssChannel = ServerSocketChannel.open();
         ssChannel.bind(new InetSocketAddress(9797));
         SocketChannel socketChannel = ssChannel.accept();
-        ByteBuffer buf = ByteBuffer.allocate(1024);
+        PooledBuffer pooled = BufferPool.getDefault().acquire(1024);
+        ByteBuffer buf = pooled.buffer();
 
         FileChannel outChannel = FileChannel.open(Paths.get("5.jpg"), StandardOpenOption.WRITE,StandardOpenOption.READ,StandardOpenOption.CREATE_NEW);
         while(socketChannel.read(buf) != -1){
@@ -136,7 +151,43 @@ public class TestBlockingNIO {
         outChannel.close();
         socketChannel.close();
         ssChannel.close();
+        pooled.release();
     }
 
+    /**
+     * 阻塞式有反馈服务端(循环接收)：与server2()同样的交互，每个连接一个虚拟线程(JDK 21+，否则退回平台线程池)
+     * 可以反复运行client2()
+     * @throws Exception
+     */
+    @Test
+    public void server3() throws Exception{
+        BlockingServer server = new BlockingServer(9797, new RawUploadBlockingHandler(Paths.get("upload")));
+        server.start();
+        System.out.println("线程模式：" + server.getThreadMode());
+        Thread.currentThread().join();
+    }
+
+    /**
+     * 压缩上传：先握手协商DEFLATE，再按块压缩发送，配合server4()使用
+     * @throws Exception
+     */
+    @Test
+    public void client4() throws Exception {
+        Compression.Stats stats = new Compression.Stats();
+        System.out.println(RawUpload.sendCompressed(new InetSocketAddress("127.0.0.1", 9797), Paths.get("1.txt"), stats));
+        System.out.println(stats);
+    }
 
+    /**
+     * 开启压缩的server3()：握手的客户端边收边解压，client2()那样不握手的客户端照常接收
+     * @throws Exception
+     */
+    @Test
+    public void server4() throws Exception{
+        RawUploadBlockingHandler handler = new RawUploadBlockingHandler(Paths.get("upload"));
+        handler.setCompression(Compression.Algorithm.DEFLATE);
+        BlockingServer server = new BlockingServer(9797, handler);
+        server.start();
+        Thread.currentThread().join();
+    }
 }
@@ -1,5 +1,7 @@
 package com.zy.nio;
 
+import com.zy.nio.buffer.BufferPool;
+import com.zy.nio.buffer.PooledBuffer;
 import org.junit.Test;
 
 import java.nio.ByteBuffer;
@@ -31,6 +33,9 @@ import java.nio.ByteBuffer;
  * 四.直接缓冲区与非直接缓冲区
  * 非直接缓冲区：通过allocate()方法分配缓冲区，将缓冲区建立在JVM内存中
  * 直接缓冲区：通过allocateDirect()方法分配直接缓冲区，将缓冲区建立在OS物理内存中，可以提高效率
+ *
+ * 五.缓冲区池
+ * 直接缓冲区分配和回收的代价比较高，BufferPool按容量分级缓存直接缓冲区，acquire()借出，release()归还
  */
 public class TestBuffer {
 
@@ -143,4 +148,35 @@ public class TestBuffer {
         ByteBuffer buf = ByteBuffer.allocateDirect(1024);
         System.out.println(buf.isDirect());
     }
+
+    @Test
+    public void test4(){
+        //缓冲区池：第一次借用需要分配slab(未命中)，归还后再借命中线程本地缓存
+        BufferPool pool = new BufferPool(512, 64 * 1024, 64 * 1024, 8);
+        for (int i = 0; i < 1000; i++) {
+            PooledBuffer pooled = pool.acquire(1024);
+            ByteBuffer buf = pooled.buffer();
+            if (i == 0) {
+                System.out.println("isDirect:" + buf.isDirect() + " capacity:" + buf.capacity());
+            }
+            buf.put("abcde".getBytes());
+            pooled.release();
+        }
+        //超过最大级别的不入池
+        pool.acquire(1024 * 1024).release();
+        System.out.println(pool.stats());
+    }
+
+    @Test
+    public void test5() throws Exception{
+        //泄漏检测：借出后不release，句柄被GC时会记一次泄漏并打印申请位置
+        BufferPool pool = new BufferPool(512, 64 * 1024, 64 * 1024, 8);
+        pool.setLeakDetection(BufferPool.LeakDetection.PARANOID);
+        pool.acquire(2048);
+        for (int i = 0; i < 10 && pool.stats().leaks == 0; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        System.out.println(pool.stats());
+    }
 }
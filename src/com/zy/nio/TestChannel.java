@@ -1,5 +1,9 @@
 package com.zy.nio;
 
+import com.zy.nio.buffer.BufferPool;
+import com.zy.nio.buffer.PooledBuffer;
+import com.zy.nio.channel.ChannelTransfer;
+import com.zy.nio.channel.TransferResult;
 import org.junit.Test;
 
 import java.io.FileInputStream;
@@ -67,8 +71,9 @@ public class TestChannel {
         FileChannel inChannel = fis.getChannel();
         FileChannel outChannel = fos.getChannel();
 
-        //分配缓冲区
-        ByteBuffer buf = ByteBuffer.allocate(1024);
+        //从缓冲区池借一个直接缓冲区
+        PooledBuffer pooled = BufferPool.getDefault().acquire(1024);
+        ByteBuffer buf = pooled.buffer();
 
         //将inChannel通道中的数据存入缓冲区
         while(inChannel.read(buf) != -1){
@@ -81,11 +86,12 @@ public class TestChannel {
         }
         long end = System.currentTimeMillis();
         System.out.println("耗费时间：" + (end - start));
-        //关闭资源
+        //关闭资源，归还缓冲区
         outChannel.close();
         inChannel.close();
         fos.close();
         fis.close();
+        pooled.release();
     }
 
     //1.利用通道完成文件复制(直接缓冲区)
@@ -120,8 +126,11 @@ public class TestChannel {
         FileChannel inChannel = FileChannel.open(Paths.get("d:/1.zip"), StandardOpenOption.READ);
         FileChannel outChannel = FileChannel.open(Paths.get("d:/4.zip"), StandardOpenOption.WRITE,StandardOpenOption.READ,StandardOpenOption.CREATE_NEW);
 
+        //transferTo/transferFrom一次最多传输约2GB，必须检查返回值循环调用，否则大文件会被截断
         //inChannel.transferTo(0,inChannel.size(),outChannel);
-        outChannel.transferFrom(inChannel,0,inChannel.size());
+        //outChannel.transferFrom(inChannel,0,inChannel.size());
+        TransferResult result = new ChannelTransfer().transfer(inChannel, outChannel);
+        System.out.println(result);
         //关闭资源
         inChannel.close();
         outChannel.close();
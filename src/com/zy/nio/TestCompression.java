@@ -0,0 +1,247 @@
+package com.zy.nio;
+
+import com.zy.nio.channel.Compression;
+import com.zy.nio.channel.DeflatingChannel;
+import com.zy.nio.channel.InflatingChannel;
+import com.zy.nio.protocol.RawUpload;
+import com.zy.nio.protocol.RawUploadAsyncServer;
+import com.zy.nio.protocol.RawUploadBlockingHandler;
+import com.zy.nio.protocol.RawUploadSelectorHandler;
+import com.zy.nio.server.BlockingServer;
+import com.zy.nio.server.ReactorServer;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 连接级压缩：握手协商DEFLATE，日志类数据按块压缩，JPEG等已压缩的内容原样发送
+ */
+public class TestCompression {
+
+    //压缩与解压：压缩后的字节按随机大小拆开写入，解压结果与原文一致；JPEG不压缩
+    @Test
+    public void test1() throws Exception {
+        Path dir = Files.createTempDirectory("nio-compress");
+        try {
+            Path log = writeLog(dir.resolve("app.log"), 4 * 1024 * 1024);
+            for (Path file : new Path[]{log, Paths.get("1.txt"), Paths.get("1.jpg")}) {
+                byte[] data = Files.readAllBytes(file);
+                Compression.Stats deflateStats = new Compression.Stats();
+                ByteArrayOutputStream wire = new ByteArrayOutputStream();
+                try (DeflatingChannel deflating = new DeflatingChannel(Channels.newChannel(wire), deflateStats)) {
+                    deflating.write(ByteBuffer.wrap(data));
+                }
+                Compression.Stats inflateStats = new Compression.Stats();
+                ByteArrayOutputStream restored = new ByteArrayOutputStream();
+                InflatingChannel inflating = new InflatingChannel(Channels.newChannel(restored), inflateStats);
+                ByteBuffer in = ByteBuffer.allocateDirect(wire.size());
+                in.put(wire.toByteArray()).flip();
+                Random random = new Random(1);
+                while (in.hasRemaining()) {
+                    ByteBuffer piece = in.slice();
+                    piece.limit(Math.min(piece.limit(), 1 + random.nextInt(8192)));
+                    in.position(in.position() + piece.remaining());
+                    inflating.write(piece);
+                }
+                inflating.close();
+                System.out.println(file.getFileName() + " 压缩: " + deflateStats);
+                System.out.println(file.getFileName() + " 解压: " + inflateStats);
+                assertArrayEquals(data, restored.toByteArray());
+                assertEquals(wire.size(), deflateStats.getWireBytes());
+                assertEquals(data.length, inflateStats.getRawBytes());
+                if (file == log) {
+                    assertTrue(deflateStats.ratio() < 0.5);
+                }
+                if (file.toString().endsWith(".jpg")) {
+                    assertEquals(deflateStats.getBlocks(), deflateStats.getStoredBlocks());
+                }
+            }
+        } finally {
+            TestTransfer.deleteDir(dir);
+        }
+    }
+
+    //开启压缩的两种服务端：握手的客户端压缩发送，不握手的客户端(client2()的方式)照常上传
+    @Test
+    public void test2() throws Exception {
+        Path src = Files.createTempDirectory("nio-compress");
+        Path dir = Files.createTempDirectory("nio-compress");
+        try {
+            Path log = writeLog(src.resolve("app.log"), 16 * 1024 * 1024);
+            RawUploadSelectorHandler selectorHandler = new RawUploadSelectorHandler(dir.resolve("selector"));
+            selectorHandler.setCompression(Compression.Algorithm.DEFLATE);
+            ReactorServer reactor = new ReactorServer(0, 2, ReactorServer.Balance.ROUND_ROBIN, selectorHandler);
+            RawUploadBlockingHandler blockingHandler = new RawUploadBlockingHandler(dir.resolve("blocking"));
+            blockingHandler.setCompression(Compression.Algorithm.DEFLATE);
+            BlockingServer blocking = new BlockingServer(0, BlockingServer.ThreadMode.PLATFORM, 8, blockingHandler);
+            reactor.start();
+            blocking.start();
+            try {
+                for (int port : new int[]{reactor.getLocalPort(), blocking.getLocalPort()}) {
+                    InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+                    for (Path file : new Path[]{log, Paths.get("1.jpg"), Paths.get("2.txt")}) {
+                        Compression.Stats stats = new Compression.Stats();
+                        long start = System.nanoTime();
+                        assertEquals("服务端数据接收成功", RawUpload.sendCompressed(address, file, stats));
+                        long compressed = System.nanoTime() - start;
+                        start = System.nanoTime();
+                        assertEquals("服务端数据接收成功", RawUpload.send(address, file));
+                        long plain = System.nanoTime() - start;
+                        System.out.printf("%s 压缩上传 %.1f ms, 原样上传 %.1f ms, %s%n", file.getFileName(),
+                                compressed / 1e6, plain / 1e6, stats);
+                    }
+                }
+            } finally {
+                reactor.shutdown();
+                blocking.shutdown();
+            }
+            System.out.println("selector解压: " + selectorHandler.getCompressionStats());
+            System.out.println("blocking解压: " + blockingHandler.getCompressionStats());
+            assertEquals(6, selectorHandler.getFilesReceived());
+            assertEquals(6, blockingHandler.getFilesReceived());
+            long expected = Files.size(log) + Files.size(Paths.get("1.jpg")) + Files.size(Paths.get("2.txt"));
+            assertEquals(expected, selectorHandler.getCompressionStats().getRawBytes());
+            assertEquals(expected, blockingHandler.getCompressionStats().getRawBytes());
+            //每个收到的文件都与某个源文件一致
+            for (String server : new String[]{"selector", "blocking"}) {
+                int matched = 0;
+                try (Stream<Path> files = Files.list(dir.resolve(server))) {
+                    for (Path received : (Iterable<Path>) files::iterator) {
+                        byte[] data = Files.readAllBytes(received);
+                        for (Path file : new Path[]{log, Paths.get("1.jpg"), Paths.get("2.txt")}) {
+                            if (Files.size(file) == data.length && Arrays.equals(Files.readAllBytes(file), data)) {
+                                matched++;
+                            }
+                        }
+                    }
+                }
+                assertEquals(6, matched);
+            }
+        } finally {
+            TestTransfer.deleteDir(src);
+            TestTransfer.deleteDir(dir);
+        }
+    }
+
+    //握手后发来的压缩流被截断：服务端不确认
+    @Test
+    public void test3() throws Exception {
+        Path dir = Files.createTempDirectory("nio-compress");
+        RawUploadSelectorHandler handler = new RawUploadSelectorHandler(dir);
+        handler.setCompression(Compression.Algorithm.DEFLATE);
+        ReactorServer server = new ReactorServer(0, 1, ReactorServer.Balance.ROUND_ROBIN, handler);
+        server.start();
+        try (SocketChannel sChannel = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.getLocalPort()))) {
+            ByteBuffer hello = Compression.encodeHello(Compression.Algorithm.DEFLATE);
+            while (hello.hasRemaining()) {
+                sChannel.write(hello);
+            }
+            ByteBuffer reply = ByteBuffer.allocate(1);
+            sChannel.read(reply);
+            assertEquals(Compression.Algorithm.DEFLATE.id(), reply.get(0));
+            ByteArrayOutputStream wire = new ByteArrayOutputStream();
+            try (DeflatingChannel deflating = new DeflatingChannel(Channels.newChannel(wire), null)) {
+                deflating.write(ByteBuffer.wrap(Files.readAllBytes(Paths.get("1.txt"))));
+            }
+            ByteBuffer truncated = ByteBuffer.wrap(wire.toByteArray(), 0, wire.size() - 10);
+            while (truncated.hasRemaining()) {
+                sChannel.write(truncated);
+            }
+            sChannel.shutdownOutput();
+            ByteBuffer ack = ByteBuffer.allocate(64);
+            try {
+                sChannel.read(ack);
+            } catch (IOException ignored) {
+                //连接被重置
+            }
+            ack.flip();
+            assertNotEquals("服务端数据接收成功", StandardCharsets.UTF_8.decode(ack).toString());
+        } finally {
+            server.shutdown();
+            TestTransfer.deleteDir(dir);
+        }
+        assertEquals(0, handler.getFilesReceived());
+    }
+
+    //没开启压缩的服务端不回复握手：客户端等待超时，重置那个连接，在新连接上原样发送；每个服务端只收到一个文件，内容与原文一致
+    @Test(timeout = 60_000)
+    public void test4() throws Exception {
+        Path dir = Files.createTempDirectory("nio-compress");
+        try {
+            RawUploadSelectorHandler selectorHandler = new RawUploadSelectorHandler(dir.resolve("selector"));
+            ReactorServer reactor = new ReactorServer(0, 1, ReactorServer.Balance.ROUND_ROBIN, selectorHandler);
+            RawUploadBlockingHandler blockingHandler = new RawUploadBlockingHandler(dir.resolve("blocking"));
+            BlockingServer blocking = new BlockingServer(0, BlockingServer.ThreadMode.PLATFORM, 2, blockingHandler);
+            RawUploadAsyncServer async = new RawUploadAsyncServer(0, dir.resolve("async"));
+            reactor.start();
+            blocking.start();
+            async.start();
+            Path file = Paths.get("1.txt");
+            try {
+                for (int port : new int[]{reactor.getLocalPort(), blocking.getLocalPort(), async.getLocalPort()}) {
+                    Compression.Stats stats = new Compression.Stats();
+                    assertEquals("服务端数据接收成功",
+                            RawUpload.sendCompressed(new InetSocketAddress("127.0.0.1", port), file, stats, 200));
+                    assertEquals(0, stats.getRawBytes());
+                }
+            } finally {
+                reactor.shutdown();
+                blocking.shutdown();
+                async.shutdown();
+            }
+            assertEquals(1, selectorHandler.getFilesReceived());
+            assertEquals(1, blockingHandler.getFilesReceived());
+            assertEquals(1, async.getFilesReceived());
+            byte[] data = Files.readAllBytes(file);
+            for (String server : new String[]{"selector", "blocking", "async"}) {
+                int matched = 0;
+                try (Stream<Path> files = Files.list(dir.resolve(server))) {
+                    for (Path received : (Iterable<Path>) files::iterator) {
+                        if (Arrays.equals(data, Files.readAllBytes(received))) {
+                            matched++;
+                        }
+                    }
+                }
+                assertEquals(server, 1, matched);
+            }
+        } finally {
+            TestTransfer.deleteDir(dir);
+        }
+    }
+
+    //生成重复度和真实日志差不多的文本
+    private static Path writeLog(Path path, int size) throws Exception {
+        String[] levels = {"INFO", "DEBUG", "WARN"};
+        String[] messages = {"connection accepted from 10.0.%d.%d", "read %d bytes from upload-%d",
+                "ack sent to client %d after %d ms", "segment rolled at lsn %d, sync took %d us"};
+        Random random = new Random(7);
+        StringBuilder text = new StringBuilder(size + 256);
+        long time = 1614902400000L;
+        while (text.length() < size) {
+            time += random.nextInt(50);
+            text.append(time).append(' ').append(levels[random.nextInt(levels.length)])
+                    .append(" [worker-").append(random.nextInt(8)).append("] com.zy.nio.server.SubReactor - ")
+                    .append(String.format(messages[random.nextInt(messages.length)], random.nextInt(100000), random.nextInt(1000)))
+                    .append('\n');
+        }
+        Files.write(path, text.toString().getBytes(StandardCharsets.UTF_8));
+        return path;
+    }
+}
@@ -0,0 +1,178 @@
+package com.zy.nio;
+
+import com.zy.nio.protocol.RawUpload;
+import com.zy.nio.protocol.RawUploadSelectorHandler;
+import com.zy.nio.server.ReactorServer;
+import com.zy.nio.store.ChunkStore;
+import com.zy.nio.store.ChunkWriter;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 去重存储：1.jpg、3.jpg、4.jpg、5.jpg内容完全相同，存四次只应写一份
+ */
+public class TestDedup {
+
+    private static final String[] IMAGES = {"1.jpg", "3.jpg", "4.jpg", "5.jpg"};
+
+    //相同内容只写一次，restore还原出原始内容
+    @Test
+    public void test1() throws Exception {
+        Path dir = Files.createTempDirectory("nio-dedup");
+        try (ChunkStore store = ChunkStore.open(dir)) {
+            for (String image : IMAGES) {
+                store(store, image, Files.readAllBytes(Paths.get(image)));
+            }
+            System.out.println(store);
+            long size = Files.size(Paths.get("1.jpg"));
+            assertEquals(4 * size, store.getLogicalBytes());
+            assertEquals(size, store.getStoredBytes());
+            assertEquals(3 * size, store.getSavedBytes());
+            assertEquals(4.0, store.getDedupRatio(), 1e-9);
+            for (String image : IMAGES) {
+                assertArrayEquals(Files.readAllBytes(Paths.get(image)), restore(store, image));
+            }
+        } finally {
+            TestTransfer.deleteDir(dir);
+        }
+    }
+
+    //中间插入100字节：基于内容的切分点随内容移动，只有插入位置附近的块是新的
+    @Test
+    public void test2() throws Exception {
+        Path dir = Files.createTempDirectory("nio-dedup");
+        try (ChunkStore store = ChunkStore.open(dir)) {
+            byte[] original = Files.readAllBytes(Paths.get("1.jpg"));
+            byte[] inserted = new byte[100];
+            new Random(7).nextBytes(inserted);
+            int at = original.length / 3;
+            byte[] edited = new byte[original.length + inserted.length];
+            System.arraycopy(original, 0, edited, 0, at);
+            System.arraycopy(inserted, 0, edited, at, inserted.length);
+            System.arraycopy(original, at, edited, at + inserted.length, original.length - at);
+
+            store(store, "original", original);
+            long before = store.getStoredBytes();
+            ChunkWriter writer = store(store, "edited", edited);
+            System.out.println(store + " 修改后新写入=" + writer.getNewBytes());
+            assertEquals(before + writer.getNewBytes(), store.getStoredBytes());
+            assertTrue(writer.getNewBytes() < 64 * 1024 * 2);
+            assertArrayEquals(edited, restore(store, "edited"));
+        } finally {
+            TestTransfer.deleteDir(dir);
+        }
+    }
+
+    //重新打开后索引仍然有效；pack末尾没有索引的数据(崩溃时写了一半)被截掉
+    @Test
+    public void test3() throws Exception {
+        Path dir = Files.createTempDirectory("nio-dedup");
+        try {
+            byte[] data = Files.readAllBytes(Paths.get("1.txt"));
+            long packSize;
+            try (ChunkStore store = ChunkStore.open(dir)) {
+                store(store, "a", data);
+                packSize = store.getPackSize();
+            }
+            try (FileChannel pack = FileChannel.open(dir.resolve("chunks.pack"), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                pack.write(ByteBuffer.wrap(new byte[1000]));
+            }
+            try (ChunkStore store = ChunkStore.open(dir)) {
+                assertEquals(packSize, Files.size(dir.resolve("chunks.pack")));
+                ChunkWriter writer = store(store, "b", data);
+                assertEquals(0, writer.getNewBytes());
+                assertArrayEquals(data, restore(store, "a"));
+                assertEquals(data.length, store.size("b"));
+            }
+        } finally {
+            TestTransfer.deleteDir(dir);
+        }
+    }
+
+    //接收路径：ReactorServer的上传处理器写入去重存储，配方在后台线程落盘后才确认
+    @Test
+    public void test4() throws Exception {
+        Path dir = Files.createTempDirectory("nio-dedup");
+        try (ChunkStore store = ChunkStore.open(dir)) {
+            RawUploadSelectorHandler handler = new RawUploadSelectorHandler(store);
+            ReactorServer server = new ReactorServer(0, handler);
+            server.start();
+            InetSocketAddress address = new InetSocketAddress("127.0.0.1", server.getLocalPort());
+            int uploaded = 0;
+            for (String image : IMAGES) {
+                System.out.println(RawUpload.send(address, Paths.get(image)));
+                uploaded++;
+                try (Stream<Path> recipes = Files.list(dir.resolve("recipes"))) {
+                    assertEquals(uploaded, recipes.count());
+                }
+            }
+            server.shutdown();
+            assertTrue(store.getCommitBatches() > 0);
+            System.out.printf("去重比=%.2f 节省写入=%d字节%n", store.getDedupRatio(), store.getSavedBytes());
+            assertEquals(4, handler.getFilesReceived());
+            assertEquals(4.0, store.getDedupRatio(), 1e-9);
+        } finally {
+            TestTransfer.deleteDir(dir);
+        }
+    }
+
+    //索引先于pack落盘后崩溃：指向pack末尾之外的索引记录被丢掉，存储照常打开，这些块重新写入
+    @Test
+    public void test5() throws Exception {
+        Path dir = Files.createTempDirectory("nio-dedup");
+        try {
+            byte[] data = Files.readAllBytes(Paths.get("1.txt"));
+            byte[] image = Files.readAllBytes(Paths.get("1.jpg"));
+            long packSize;
+            try (ChunkStore store = ChunkStore.open(dir)) {
+                store(store, "a", data);
+                packSize = store.getPackSize();
+                store(store, "b", image);
+            }
+            //b的块数据没有写到磁盘
+            try (FileChannel pack = FileChannel.open(dir.resolve("chunks.pack"), StandardOpenOption.WRITE)) {
+                pack.truncate(packSize + 100);
+            }
+            try (ChunkStore store = ChunkStore.open(dir)) {
+                assertEquals(packSize, store.getPackSize());
+                assertArrayEquals(data, restore(store, "a"));
+                ChunkWriter writer = store(store, "c", image);
+                assertEquals(image.length, writer.getNewBytes());
+                assertArrayEquals(image, restore(store, "c"));
+            }
+        } finally {
+            TestTransfer.deleteDir(dir);
+        }
+    }
+
+    //分段写入，模拟从网络陆续收到数据
+    private static ChunkWriter store(ChunkStore store, String name, byte[] data) throws Exception {
+        ChunkWriter writer = store.create(name);
+        for (int p = 0; p < data.length; p += 1000) {
+            writer.write(ByteBuffer.wrap(data, p, Math.min(1000, data.length - p)));
+        }
+        writer.close();
+        return writer;
+    }
+
+    private static byte[] restore(ChunkStore store, String name) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        store.restore(name, Channels.newChannel(out));
+        return out.toByteArray();
+    }
+}
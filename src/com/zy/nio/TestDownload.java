@@ -0,0 +1,241 @@
+package com.zy.nio;
+
+import com.zy.nio.protocol.DownloadClient;
+import com.zy.nio.protocol.DownloadHandler;
+import com.zy.nio.protocol.UploadProtocol;
+import com.zy.nio.server.ReactorServer;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 零拷贝下载：ReactorServer + DownloadHandler用transferTo把文件发回客户端，支持按区间下载
+ */
+public class TestDownload {
+
+    //整个文件、中间一段、到末尾、越界与不存在的文件
+    @Test
+    public void test1() throws Exception {
+        Path dir = Files.createTempDirectory("nio-download");
+        Files.copy(Paths.get("1.jpg"), dir.resolve("1.jpg"));
+        byte[] data = Files.readAllBytes(Paths.get("1.jpg"));
+        DownloadHandler handler = new DownloadHandler(dir);
+        ReactorServer server = new ReactorServer(0, 1, ReactorServer.Balance.ROUND_ROBIN, handler);
+        server.start();
+        Path target = Files.createTempFile("nio-download", ".jpg");
+        try (DownloadClient client = new DownloadClient(new InetSocketAddress("127.0.0.1", server.getLocalPort()))) {
+            UploadProtocol.DataHeader header = client.download("1.jpg", target);
+            assertTrue(header.toString(), header.isOk());
+            assertArrayEquals(data, Files.readAllBytes(target));
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            header = client.get("1.jpg", 1000, 5000, Channels.newChannel(out));
+            assertEquals(data.length, header.getSize());
+            assertArrayEquals(Arrays.copyOfRange(data, 1000, 6000), out.toByteArray());
+
+            out.reset();
+            client.get("1.jpg", data.length - 100, -1, Channels.newChannel(out));
+            assertArrayEquals(Arrays.copyOfRange(data, data.length - 100, data.length), out.toByteArray());
+
+            assertEquals(UploadProtocol.STATUS_BAD_RANGE, client.get("1.jpg", data.length + 1, 10, Channels.newChannel(out)).getStatus());
+            assertEquals(UploadProtocol.STATUS_NOT_FOUND, client.get("missing.jpg", 0, -1, Channels.newChannel(out)).getStatus());
+            //连接仍然可用
+            out.reset();
+            assertTrue(client.get("1.jpg", 0, 10, Channels.newChannel(out)).isOk());
+            assertEquals(10, out.size());
+        } finally {
+            server.shutdown();
+            handler.getCache().close();
+            Files.delete(target);
+            TestTransfer.deleteDir(dir);
+        }
+        System.out.println("文件通道缓存 " + handler.getCache());
+        assertEquals(1, handler.getCache().getMisses());
+    }
+
+    //接收缓冲区很小、读得很慢的客户端：服务端transferTo频繁只写出一部分，要从断点续传
+    @Test
+    public void test2() throws Exception {
+        Path dir = Files.createTempDirectory("nio-download");
+        Path big = dir.resolve("big.bin");
+        TestTransfer.writeRandomFile(big, 8L * 1024 * 1024);
+        DownloadHandler handler = new DownloadHandler(dir);
+        ReactorServer server = new ReactorServer(0, 1, ReactorServer.Balance.ROUND_ROBIN, handler);
+        server.start();
+        try (SocketChannel sChannel = SocketChannel.open()) {
+            sChannel.setOption(StandardSocketOptions.SO_RCVBUF, 8 * 1024);
+            sChannel.connect(new InetSocketAddress("127.0.0.1", server.getLocalPort()));
+            ByteBuffer get = UploadProtocol.encodeGet(new UploadProtocol.GetRequest("big.bin", 0, -1));
+            while (get.hasRemaining()) {
+                sChannel.write(get);
+            }
+            UploadProtocol.DataHeader header = UploadProtocol.decodeDataHeader(UploadProtocol.readHeader(sChannel));
+            ByteBuffer body = ByteBuffer.allocate((int) header.getLength());
+            while (body.hasRemaining()) {
+                if (sChannel.read(body) == -1) {
+                    break;
+                }
+                if (body.position() % 7 == 0) {
+                    Thread.sleep(1);
+                }
+            }
+            System.out.println("部分写续传次数=" + handler.getPartialWrites());
+            assertArrayEquals(Files.readAllBytes(big), body.array());
+            assertTrue(handler.getPartialWrites() > 0);
+        } finally {
+            server.shutdown();
+            handler.getCache().close();
+            TestTransfer.deleteDir(dir);
+        }
+    }
+
+    //发送过程中文件被截断：头部声明的长度发不完，服务端关闭连接，而不是在可写的通道上反复空转
+    @Test(timeout = 30_000)
+    public void test4() throws Exception {
+        Path dir = Files.createTempDirectory("nio-download");
+        Path big = dir.resolve("big.bin");
+        TestTransfer.writeRandomFile(big, 8L * 1024 * 1024);
+        DownloadHandler handler = new DownloadHandler(dir);
+        ReactorServer server = new ReactorServer(0, 1, ReactorServer.Balance.ROUND_ROBIN, handler);
+        server.start();
+        try (SocketChannel sChannel = SocketChannel.open()) {
+            sChannel.setOption(StandardSocketOptions.SO_RCVBUF, 8 * 1024);
+            sChannel.connect(new InetSocketAddress("127.0.0.1", server.getLocalPort()));
+            ByteBuffer get = UploadProtocol.encodeGet(new UploadProtocol.GetRequest("big.bin", 0, -1));
+            while (get.hasRemaining()) {
+                sChannel.write(get);
+            }
+            UploadProtocol.DataHeader header = UploadProtocol.decodeDataHeader(UploadProtocol.readHeader(sChannel));
+            try (FileChannel ch = FileChannel.open(big, StandardOpenOption.WRITE)) {
+                ch.truncate(0);
+            }
+            ByteBuffer body = ByteBuffer.allocate(64 * 1024);
+            long received = 0;
+            try {
+                int n;
+                while ((n = sChannel.read(body)) != -1) {
+                    received += n;
+                    body.clear();
+                }
+            } catch (IOException ignored) {
+                //连接被重置也说明服务端关闭了
+            }
+            System.out.println("截断后收到 " + received + " / " + header.getLength());
+            assertTrue(received < header.getLength());
+        } finally {
+            server.shutdown();
+            handler.getCache().close();
+            TestTransfer.deleteDir(dir);
+        }
+    }
+
+    //100个连接同时下载几个热点文件，文件通道缓存上限为2
+    @Test
+    public void test3() throws Exception {
+        Path dir = Files.createTempDirectory("nio-download");
+        String[] names = {"1.jpg", "1.txt", "2.txt"};
+        for (String name : names) {
+            Files.copy(Paths.get(name), dir.resolve(name));
+        }
+        DownloadHandler handler = new DownloadHandler(dir, 2);
+        ReactorServer server = new ReactorServer(0, 2, ReactorServer.Balance.ROUND_ROBIN, handler);
+        server.start();
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", server.getLocalPort());
+        int clients = 100;
+        int rounds = 20;
+        AtomicInteger failures = new AtomicInteger();
+        long start = System.nanoTime();
+        try {
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int id = t;
+                Thread thread = new Thread(() -> {
+                    try {
+                        for (int c = id; c < clients; c += 8) {
+                            try (DownloadClient client = new DownloadClient(address)) {
+                                for (int r = 0; r < rounds; r++) {
+                                    String name = names[(c + r) % names.length];
+                                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                                    client.get(name, 0, -1, Channels.newChannel(out));
+                                    if (out.size() != Files.size(dir.resolve(name))) {
+                                        failures.incrementAndGet();
+                                    }
+                                }
+                            }
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        failures.incrementAndGet();
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } finally {
+            server.shutdown();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d次下载 %.1f 次/秒 %.1f MB/s, 缓存 %s%n", handler.getFilesSent(), handler.getFilesSent() / seconds,
+                handler.getBytesSent() / seconds / 1048576, handler.getCache());
+        assertEquals(0, failures.get());
+        assertEquals(clients * rounds, handler.getFilesSent());
+        assertTrue(handler.getCache().size() <= 2);
+        handler.getCache().close();
+        TestTransfer.deleteDir(dir);
+    }
+
+    //头部不完整的GET：长度为0，或者文件名占满了头部，都只关闭发送它的连接
+    @Test(timeout = 60_000)
+    public void test5() throws Exception {
+        Path dir = Files.createTempDirectory("nio-download");
+        Files.copy(Paths.get("1.txt"), dir.resolve("1.txt"));
+        ReactorServer server = new ReactorServer(0, 1, ReactorServer.Balance.ROUND_ROBIN, new DownloadHandler(dir, 2));
+        server.start();
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", server.getLocalPort());
+        try (DownloadClient client = new DownloadClient(address)) {
+            for (int headerLen : new int[]{0, 18}) {
+                try (SocketChannel sChannel = SocketChannel.open(address)) {
+                    ByteBuffer frame = ByteBuffer.allocate(UploadProtocol.PREFIX_LENGTH + headerLen);
+                    frame.putInt(UploadProtocol.MAGIC).put(UploadProtocol.TYPE_GET).putShort((short) headerLen);
+                    if (headerLen > 0) {
+                        //nameLen=16，后面的offset和length没有位置了
+                        frame.putShort((short) 16).put("1.txt".getBytes());
+                    }
+                    frame.position(frame.limit()).flip();
+                    while (frame.hasRemaining()) {
+                        sChannel.write(frame);
+                    }
+                    TestUpload.assertClosed(sChannel);
+                }
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertTrue(client.get("1.txt", 0, -1, Channels.newChannel(out)).isOk());
+            assertArrayEquals(Files.readAllBytes(Paths.get("1.txt")), out.toByteArray());
+        } finally {
+            server.shutdown();
+            TestTransfer.deleteDir(dir);
+        }
+    }
+}
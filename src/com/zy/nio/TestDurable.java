@@ -0,0 +1,183 @@
+package com.zy.nio;
+
+import com.zy.nio.protocol.RawUpload;
+import com.zy.nio.protocol.RawUploadBlockingHandler;
+import com.zy.nio.protocol.RawUploadSelectorHandler;
+import com.zy.nio.server.BlockingServer;
+import com.zy.nio.server.ReactorServer;
+import com.zy.nio.store.SegmentLog;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 持久化接收：数据追加到SegmentLog，组提交force后才回复"服务端数据接收成功"
+ */
+public class TestDurable {
+
+    private static final String[] FILES = {"1.jpg", "1.txt", "2.txt"};
+
+    //ReactorServer上64个并发上传：全部确认，force次数远少于上传数，replay还原出每个上传的内容
+    @Test
+    public void test1() throws Exception {
+        Path dir = Files.createTempDirectory("nio-durable");
+        try (SegmentLog log = SegmentLog.open(dir, 4 * 1024 * 1024, 5, TimeUnit.MILLISECONDS, 8 * 1024 * 1024)) {
+            RawUploadSelectorHandler handler = new RawUploadSelectorHandler(log);
+            ReactorServer server = new ReactorServer(0, 2, ReactorServer.Balance.ROUND_ROBIN, handler);
+            server.start();
+            int uploads = 64;
+            long start = System.nanoTime();
+            try {
+                assertEquals(0, upload(new InetSocketAddress("127.0.0.1", server.getLocalPort()), uploads));
+            } finally {
+                server.shutdown();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%d个上传 %.1f 个/秒 %s%n", uploads, uploads / seconds, log);
+            assertEquals(uploads, handler.getFilesReceived());
+            assertTrue(log.getSyncCount() < uploads);
+            Map<String, byte[]> committed = replay(log);
+            assertEquals(uploads, committed.size());
+            for (byte[] data : committed.values()) {
+                assertTrue(matchesSample(data));
+            }
+        } finally {
+            TestTransfer.deleteDir(dir);
+        }
+    }
+
+    //每个线程一个连接的BlockingServer：等待durable()的线程在同一次force后一起返回
+    @Test
+    public void test2() throws Exception {
+        Path dir = Files.createTempDirectory("nio-durable");
+        try (SegmentLog log = SegmentLog.open(dir)) {
+            RawUploadBlockingHandler handler = new RawUploadBlockingHandler(log);
+            BlockingServer server = new BlockingServer(0, BlockingServer.ThreadMode.PLATFORM, 64, handler);
+            server.start();
+            int uploads = 64;
+            try {
+                assertEquals(0, upload(new InetSocketAddress("127.0.0.1", server.getLocalPort()), uploads));
+            } finally {
+                server.shutdown();
+            }
+            System.out.println(log);
+            assertEquals(uploads, handler.getFilesReceived());
+            assertTrue(log.getSyncCount() < uploads);
+            assertEquals(uploads, replay(log).size());
+        } finally {
+            TestTransfer.deleteDir(dir);
+        }
+    }
+
+    //崩溃恢复：最后一条记录写了一半、没有COMMIT的流被忽略，重新打开后从有效记录末尾继续追加
+    @Test
+    public void test3() throws Exception {
+        Path dir = Files.createTempDirectory("nio-durable");
+        try {
+            byte[] data = Files.readAllBytes(Paths.get("1.txt"));
+            long end;
+            try (SegmentLog log = SegmentLog.open(dir)) {
+                SegmentLog.Stream a = log.openStream("a");
+                a.write(ByteBuffer.wrap(data));
+                a.close();
+                log.durable(a.getCommitLsn()).get();
+                SegmentLog.Stream b = log.openStream("b");
+                b.write(ByteBuffer.wrap(data));
+                b.abort();
+                end = log.getDurableLsn();
+            }
+            //模拟崩溃时写了一半的记录：b的DATA记录被一段看起来像头部的垃圾覆盖
+            Path segment = dir.resolve("segment-00000000.log");
+            try (FileChannel ch = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                ByteBuffer torn = ByteBuffer.allocate(64);
+                torn.putInt(1000).put(SegmentLog.TYPE_DATA).putLong(9).putInt(12345).flip();
+                ch.write(torn, end);
+            }
+            try (SegmentLog log = SegmentLog.open(dir)) {
+                SegmentLog.Stream c = log.openStream("c");
+                assertTrue(c.getId() > 1);
+                c.write(ByteBuffer.wrap(data));
+                c.close();
+                log.durable(c.getCommitLsn()).get();
+                Map<String, byte[]> committed = replay(log);
+                assertEquals(2, committed.size());
+                assertArrayEquals(data, committed.get("a"));
+                assertArrayEquals(data, committed.get("c"));
+            }
+        } finally {
+            TestTransfer.deleteDir(dir);
+        }
+    }
+
+    //8个线程各自发送uploads/8个上传，返回没收到确认的个数
+    private static int upload(InetSocketAddress address, int uploads) throws InterruptedException {
+        AtomicInteger failures = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            int id = t;
+            Thread thread = new Thread(() -> {
+                for (int i = id; i < uploads; i += 8) {
+                    try {
+                        if (!"服务端数据接收成功".equals(RawUpload.send(address, Paths.get(FILES[i % FILES.length])))) {
+                            failures.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return failures.get();
+    }
+
+    //按流拼接DATA记录，只保留有COMMIT的流
+    private static Map<String, byte[]> replay(SegmentLog log) throws Exception {
+        Map<Long, ByteArrayOutputStream> streams = new HashMap<>();
+        Map<String, byte[]> committed = new HashMap<>();
+        log.replay((type, streamId, payload) -> {
+            byte[] bytes = new byte[payload.remaining()];
+            payload.get(bytes);
+            if (type == SegmentLog.TYPE_DATA) {
+                streams.computeIfAbsent(streamId, id -> new ByteArrayOutputStream()).write(bytes, 0, bytes.length);
+            } else {
+                ByteArrayOutputStream out = streams.remove(streamId);
+                committed.put(new String(bytes, StandardCharsets.UTF_8), out == null ? new byte[0] : out.toByteArray());
+            }
+        });
+        return committed;
+    }
+
+    private static boolean matchesSample(byte[] data) throws Exception {
+        for (String file : FILES) {
+            if (Arrays.equals(Files.readAllBytes(Paths.get(file)), data)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,205 @@
+package com.zy.nio;
+
+import com.zy.nio.buffer.BufferPool;
+import com.zy.nio.buffer.CompositeBuffer;
+import com.zy.nio.buffer.PooledBuffer;
+import com.zy.nio.protocol.FrameDecoder;
+import com.zy.nio.protocol.FrameHandler;
+import com.zy.nio.server.ReactorServer;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 消息解码：读取被任意拆分时仍能切出完整的消息，完整落在一次读取中的消息不复制
+ */
+public class TestFrameDecoder {
+
+    //组合缓冲区：借来的分量不复制，retain()只复制没消费的尾部，跨分量的读取拼接到assembly
+    @Test
+    public void test1() {
+        CompositeBuffer in = new CompositeBuffer();
+        ByteBuffer read = ByteBuffer.wrap("你好\n世".getBytes(StandardCharsets.UTF_8));
+        in.addComponent(read);
+        byte[] newline = {'\n'};
+        int index = in.indexOf(newline, 0);
+        assertEquals(6, index);
+        ByteBuffer frame = in.readSlice(index, null);
+        assertEquals("你好", StandardCharsets.UTF_8.decode(frame).toString());
+        in.skip(1);
+        //"世"的3个字节只到了一个，复制出来后原缓冲区可以重用
+        in.retain();
+        assertEquals(3, in.copiedBytes());
+        read.clear();
+        in.addComponent(ByteBuffer.wrap("界\n".getBytes(StandardCharsets.UTF_8)));
+        index = in.indexOf(newline, 0);
+        assertEquals(6, index);
+        assertFalse(in.isContiguous(index));
+        frame = in.readSlice(index, ByteBuffer.allocate(16));
+        assertEquals("世界", StandardCharsets.UTF_8.decode(frame).toString());
+        in.skip(1);
+        assertEquals(0, in.readableBytes());
+        in.release();
+    }
+
+    //按行切分的中文消息，客户端每次只写几个字节(常常拆开一个汉字)，服务端收到的每一行都完整
+    @Test
+    public void test2() throws Exception {
+        List<String> received = Collections.synchronizedList(new ArrayList<>());
+        FrameDecoder decoder = FrameDecoder.delimited(new byte[]{'\n'}, 1024, (conn, frame) ->
+                received.add(StandardCharsets.UTF_8.decode(frame).toString()));
+        ReactorServer server = new ReactorServer(0, 1, ReactorServer.Balance.ROUND_ROBIN, decoder);
+        server.start();
+        List<String> sent = new ArrayList<>();
+        try (SocketChannel sChannel = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.getLocalPort()))) {
+            sChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < 200; i++) {
+                String line = "第" + i + "条消息：服务端数据接收成功";
+                sent.add(line);
+                text.append(line).append('\n');
+            }
+            ByteBuffer data = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+            Random random = new Random(1);
+            while (data.hasRemaining()) {
+                ByteBuffer piece = data.slice();
+                piece.limit(Math.min(piece.limit(), 1 + random.nextInt(7)));
+                data.position(data.position() + piece.remaining());
+                while (piece.hasRemaining()) {
+                    sChannel.write(piece);
+                }
+                if (random.nextInt(10) == 0) {
+                    Thread.sleep(1);
+                }
+            }
+            sChannel.shutdownOutput();
+            ByteBuffer eof = ByteBuffer.allocate(1);
+            assertEquals(-1, sChannel.read(eof));
+        } finally {
+            server.shutdown();
+        }
+        System.out.printf("读到%d字节 切出%d条消息 复制%d字节%n", decoder.getBytesRead(), decoder.getFrames(), decoder.getBytesCopied());
+        assertEquals(sent, received);
+    }
+
+    //4字节长度字段，消息从几字节到200KB，大的跨越多次读取，攒在按长度借的一个分量里；小消息大多不复制
+    @Test
+    public void test3() throws Exception {
+        List<Long> checksums = Collections.synchronizedList(new ArrayList<>());
+        FrameDecoder decoder = FrameDecoder.lengthPrefixed(4, 256 * 1024, (conn, frame) -> {
+            CRC32 crc = new CRC32();
+            crc.update(frame);
+            checksums.add(crc.getValue());
+        });
+        ReactorServer server = new ReactorServer(0, 1, ReactorServer.Balance.ROUND_ROBIN, decoder);
+        server.start();
+        List<Long> expected = new ArrayList<>();
+        long total = 0;
+        try (SocketChannel sChannel = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.getLocalPort()))) {
+            Random random = new Random(2);
+            ByteBuffer out = ByteBuffer.allocate(1024 * 1024);
+            for (int i = 0; i < 2000; i++) {
+                int size = i % 100 == 0 ? 100 * 1024 + random.nextInt(100 * 1024) : random.nextInt(200);
+                byte[] payload = new byte[size];
+                random.nextBytes(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                expected.add(crc.getValue());
+                total += size;
+                if (out.remaining() < size + 4) {
+                    flush(sChannel, out);
+                }
+                out.putInt(size).put(payload);
+            }
+            flush(sChannel, out);
+            sChannel.shutdownOutput();
+            assertEquals(-1, sChannel.read(ByteBuffer.allocate(1)));
+        } finally {
+            server.shutdown();
+        }
+        System.out.printf("消息%d条 %d字节 复制%d字节(%.1f%%)%n", decoder.getFrames(), total, decoder.getBytesCopied(),
+                decoder.getBytesCopied() * 100.0 / decoder.getBytesRead());
+        assertEquals(expected, checksums);
+        //长消息只复制一次，短消息大多直接切片
+        assertTrue(decoder.getBytesCopied() < decoder.getBytesRead());
+    }
+
+    //超过最大长度：没有分隔符的超长数据或长度字段过大都关闭连接，不会无限缓存
+    @Test
+    public void test4() throws Exception {
+        List<Integer> frames = Collections.synchronizedList(new ArrayList<>());
+        FrameHandler handler = (conn, frame) -> frames.add(frame.remaining());
+        for (FrameDecoder decoder : new FrameDecoder[]{FrameDecoder.delimited(new byte[]{'\r', '\n'}, 1024, handler),
+                FrameDecoder.lengthPrefixed(2, 1024, handler)}) {
+            ReactorServer server = new ReactorServer(0, 1, ReactorServer.Balance.ROUND_ROBIN, decoder);
+            server.start();
+            try (SocketChannel sChannel = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.getLocalPort()))) {
+                ByteBuffer data = ByteBuffer.allocate(64 * 1024);
+                //长度字段60000，后面全是0(也没有分隔符)
+                data.putShort((short) 60000);
+                data.clear();
+                try {
+                    while (data.hasRemaining()) {
+                        sChannel.write(data);
+                    }
+                } catch (IOException ignored) {
+                    //服务端已经关闭连接
+                }
+                ByteBuffer buf = ByteBuffer.allocate(16);
+                try {
+                    assertEquals(-1, sChannel.read(buf));
+                } catch (IOException ignored) {
+                    //连接被重置也说明服务端关闭了
+                }
+            } finally {
+                server.shutdown();
+            }
+            assertTrue(frames.isEmpty());
+        }
+    }
+
+    //消息正好在池分量末尾结束：交给处理器的slice在处理完之前不能被同一线程的下一次acquire()覆盖
+    @Test
+    public void test5() {
+        byte[] data = new byte[1000];
+        new Random(5).nextBytes(data);
+        CompositeBuffer in = new CompositeBuffer();
+        //和攒齐一条长度已知的消息一样：池分量里正好是这条消息
+        in.copyFrom(ByteBuffer.wrap(data), data.length, data.length);
+        ByteBuffer frame = in.readSlice(data.length, null);
+        assertEquals(0, in.readableBytes());
+        //处理器里借同样大小的缓冲区
+        PooledBuffer other = BufferPool.getDefault().acquire(16 * 1024);
+        ByteBuffer buf = other.buffer();
+        buf.clear();
+        while (buf.hasRemaining()) {
+            buf.put((byte) -1);
+        }
+        other.release();
+        assertEquals(ByteBuffer.wrap(data), frame);
+        in.releaseDrained();
+        in.release();
+    }
+
+    private static void flush(SocketChannel sChannel, ByteBuffer out) throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            sChannel.write(out);
+        }
+        out.clear();
+    }
+}
@@ -0,0 +1,154 @@
+package com.zy.nio;
+
+import com.zy.nio.load.LoadGenerator;
+import com.zy.nio.load.LoadReport;
+import com.zy.nio.load.UdpLoadGenerator;
+import com.zy.nio.protocol.RawUploadSelectorHandler;
+import com.zy.nio.server.EchoHandler;
+import com.zy.nio.server.ReactorServer;
+import com.zy.nio.udp.UdpReceiver;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 本机压测：LoadGenerator/UdpLoadGenerator对ReactorServer与UdpReceiver施加负载，输出吞吐量与p50/p99/p999延迟
+ */
+public class TestLoad {
+
+    //闭环：2000条长连接回显，每个连接收到完整回显后立即发下一个请求
+    @Test
+    public void test1() throws Exception {
+        ReactorServer server = new ReactorServer(0, new EchoHandler());
+        server.start();
+        LoadReport report = new LoadGenerator(server.getLocalPort())
+                .exchange(LoadGenerator.Exchange.ECHO)
+                .mode(LoadGenerator.Mode.CLOSED_LOOP)
+                .connections(2000)
+                .threads(2)
+                .payload(Paths.get("1.txt"))
+                .duration(3, TimeUnit.SECONDS)
+                .run();
+        System.out.println(report);
+        System.out.println(server.getMetrics().dump());
+        server.shutdown();
+
+        assertEquals(0, report.getErrors());
+        assertEquals(0, report.getTimeouts());
+        assertTrue(report.getRequests() > 2000);
+        assertEquals(report.getBytesSent(), report.getBytesReceived());
+    }
+
+    //开环：按固定速率发请求，服务端跟得上时实际吞吐量接近目标速率
+    @Test
+    public void test2() throws Exception {
+        ReactorServer server = new ReactorServer(0, new EchoHandler());
+        server.start();
+        double rate = 5000;
+        LoadReport report = new LoadGenerator(server.getLocalPort())
+                .mode(LoadGenerator.Mode.OPEN_LOOP)
+                .rate(rate)
+                .connections(500)
+                .payload(256)
+                .duration(3, TimeUnit.SECONDS)
+                .run();
+        System.out.println(report);
+        server.shutdown();
+
+        assertEquals(0, report.getErrors());
+        assertEquals(0, report.getTimeouts());
+        //3秒内计划发出15000个请求
+        assertEquals(15000, report.getRequests(), 15);
+    }
+
+    //闭环上传：每次请求新建连接，轮换多个请求体文件
+    @Test
+    public void test3() throws Exception {
+        Path dir = Files.createTempDirectory("nio-load");
+        try {
+            RawUploadSelectorHandler handler = new RawUploadSelectorHandler(dir);
+            ReactorServer server = new ReactorServer(0, handler);
+            server.start();
+            LoadReport report = new LoadGenerator(server.getLocalPort())
+                    .exchange(LoadGenerator.Exchange.UPLOAD)
+                    .connections(50)
+                    .payload(Paths.get("1.txt"), Paths.get("2.txt"), Paths.get("1.jpg"))
+                    .duration(2, TimeUnit.SECONDS)
+                    .run();
+            System.out.println(report);
+            server.shutdown();
+
+            assertEquals(0, report.getErrors());
+            assertEquals(handler.getFilesReceived(), report.getRequests());
+        } finally {
+            TestTransfer.deleteDir(dir);
+        }
+    }
+
+    //UDP：4个通道按目标速率发送，接收端统计收到的包数
+    @Test
+    public void test4() throws Exception {
+        UdpReceiver receiver = new UdpReceiver(0, batch -> {
+        });
+        receiver.setReceiveBufferSize(4 * 1024 * 1024);
+        receiver.start();
+        LoadReport report = new UdpLoadGenerator(new InetSocketAddress("127.0.0.1", receiver.getLocalPort()))
+                .channels(4)
+                .rate(20000)
+                .payload(512)
+                .duration(2, TimeUnit.SECONDS)
+                .run();
+        Thread.sleep(200);
+        receiver.shutdown();
+        System.out.println(report);
+        System.out.println("接收端 收到=" + receiver.getPackets() + " 内核丢弃=" + receiver.getKernelDrops());
+
+        assertEquals(40000, report.getRequests() + report.getErrors(), 40);
+        assertEquals(report.getRequests(), receiver.getPackets() + Math.max(0, receiver.getKernelDrops()));
+    }
+
+    //服务端接受连接后立即重置：闭环开始时写已重置的连接出错，只作废那个连接位置，不中断整个线程，每个连接都记一次错误
+    @Test
+    public void test5() throws Exception {
+        ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    SocketChannel channel = server.accept();
+                    channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+                    channel.close();
+                }
+            } catch (IOException ignored) {
+                //测试结束关闭了监听通道
+            }
+        });
+        acceptor.start();
+        try {
+            LoadReport report = new LoadGenerator(((InetSocketAddress) server.getLocalAddress()).getPort())
+                    .exchange(LoadGenerator.Exchange.ECHO)
+                    .mode(LoadGenerator.Mode.CLOSED_LOOP)
+                    .connections(50)
+                    .threads(1)
+                    .payload(256)
+                    .duration(1, TimeUnit.SECONDS)
+                    .run();
+            System.out.println(report);
+            assertEquals(0, report.getRequests());
+            assertEquals(50, report.getErrors());
+        } finally {
+            server.close();
+            acceptor.join();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.zy.nio;
+
+import com.zy.nio.metrics.Histogram;
+import com.zy.nio.metrics.MetricsReporter;
+import com.zy.nio.metrics.ServerMetrics;
+import com.zy.nio.server.ConnectionHandler;
+import com.zy.nio.server.ReactorServer;
+import com.zy.nio.udp.UdpReceiver;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Random;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 选择器循环指标：直方图精度、记录时不分配内存、ReactorServer/UdpReceiver的指标与JMX导出
+ */
+public class TestMetrics {
+
+    //对数-线性分桶的百分位数与精确值的相对误差不超过1/16
+    @Test
+    public void test1() {
+        Random random = new Random(1);
+        Histogram histogram = new Histogram();
+        long[] values = new long[100_000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) (-Math.log(random.nextDouble()) * 50_000);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        for (double q : new double[]{0.5, 0.9, 0.99, 0.999}) {
+            long exact = values[(int) Math.ceil(q * values.length) - 1];
+            long approx = histogram.percentile(q);
+            System.out.printf("p%s 精确=%d 直方图=%d%n", q * 100, exact, approx);
+            assertTrue(approx >= exact && approx <= exact + exact / 16 + 1);
+        }
+        assertEquals(values[values.length - 1], histogram.max());
+    }
+
+    //热路径上的记录方法不分配对象
+    @Test
+    public void test2() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        ServerMetrics metrics = new ServerMetrics("alloc");
+        long id = Thread.currentThread().getId();
+        record(metrics, 100_000);
+        long before = threads.getThreadAllocatedBytes(id);
+        record(metrics, 1_000_000);
+        long allocated = threads.getThreadAllocatedBytes(id) - before;
+        System.out.println("记录100万次事件分配 " + allocated + " 字节");
+        assertTrue(allocated < 1024);
+    }
+
+    private static void record(ServerMetrics metrics, int n) {
+        ServerMetrics.WakeupTimer wakeupTimer = new ServerMetrics.WakeupTimer();
+        for (int i = 0; i < n; i++) {
+            wakeupTimer.requested();
+            long now = System.nanoTime();
+            metrics.selected(i, 1, now, wakeupTimer.take());
+            metrics.read(100);
+            metrics.event(i & 1023);
+            metrics.loop(i & 4095);
+        }
+    }
+
+    //ReactorServer与UdpReceiver的指标，通过JMX读取
+    @Test
+    public void test3() throws Exception {
+        ConnectionHandler handler = (conn, buf) -> buf.position(buf.limit());
+        ReactorServer server = new ReactorServer(0, 2, ReactorServer.Balance.ROUND_ROBIN, handler);
+        server.start();
+        ObjectName name = server.getMetrics().registerMBean();
+
+        UdpReceiver receiver = new UdpReceiver(0, batch -> {
+        });
+        receiver.start();
+        ObjectName udpName = receiver.getMetrics().registerMBean();
+
+        MetricsReporter reporter = new MetricsReporter(server.getMetrics(), receiver.getMetrics());
+        ByteBuffer buf = ByteBuffer.allocateDirect(16 * 1024);
+        for (int i = 0; i < 200; i++) {
+            try (SocketChannel sChannel = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.getLocalPort()))) {
+                buf.clear();
+                while (buf.hasRemaining()) {
+                    sChannel.write(buf);
+                }
+            }
+        }
+        try (DatagramChannel dc = DatagramChannel.open()) {
+            dc.connect(new InetSocketAddress("127.0.0.1", receiver.getLocalPort()));
+            for (int i = 0; i < 1000; i++) {
+                dc.write(ByteBuffer.allocate(100));
+            }
+        }
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while ((server.getBytesRead() < 200L * buf.capacity() || server.getConnectionCount() > 0
+                || receiver.getPackets() < 1000) && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        reporter.report();
+
+        MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+        assertEquals(200L * buf.capacity(), mbeans.getAttribute(name, "BytesRead"));
+        assertEquals(200L, mbeans.getAttribute(name, "AcceptedConnections"));
+        assertEquals(0L, mbeans.getAttribute(name, "OpenConnections"));
+        assertTrue((Long) mbeans.getAttribute(name, "HandlerP99Nanos") > 0);
+        assertTrue((Long) mbeans.getAttribute(name, "DirectMemoryUsed") > 0);
+        assertEquals(100_000L, mbeans.getAttribute(udpName, "BytesRead"));
+        assertEquals(200L, server.getMetrics().connectionBytes().count());
+        //reset()同时清零计数器和直方图
+        mbeans.invoke(name, "reset", null, null);
+        assertEquals(0L, mbeans.getAttribute(name, "BytesRead"));
+        assertEquals(0L, mbeans.getAttribute(name, "AcceptedConnections"));
+        assertEquals(0L, server.getMetrics().connectionBytes().count());
+
+        server.getMetrics().unregisterMBean();
+        receiver.getMetrics().unregisterMBean();
+        server.shutdown();
+        receiver.shutdown();
+    }
+}
@@ -1,5 +1,9 @@
 package com.zy.nio;
 
+import com.zy.nio.buffer.BufferPool;
+import com.zy.nio.buffer.PooledBuffer;
+import com.zy.nio.metrics.MetricsReporter;
+import com.zy.nio.metrics.ServerMetrics;
 import org.junit.Test;
 
 import java.net.InetSocketAddress;
@@ -8,6 +12,7 @@ import java.nio.channels.*;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 一.使用NIO完成网络通信的三个核心
@@ -35,9 +40,18 @@ public class TestNonBlockingNIO {
         ByteBuffer buf = ByteBuffer.allocate(1024);
         buf.put((new Date().toString()).getBytes());
         buf.flip();
-        socketChannel.write(buf);
+        //非阻塞通道的write()可能只写出一部分甚至返回0，没写完就等OP_WRITE再写
+        Selector selector = Selector.open();
+        socketChannel.register(selector, SelectionKey.OP_WRITE);
+        while(buf.hasRemaining()){
+            if(socketChannel.write(buf) == 0){
+                selector.select();
+                selector.selectedKeys().clear();
+            }
+        }
         buf.clear();
         //关闭通道
+        selector.close();
         socketChannel.close();
     }
 
@@ -55,38 +69,70 @@ public class TestNonBlockingNIO {
         Selector selector = Selector.open();
         //将通道注册到选择器上,指定监听接收事件
         serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+        //指标：导出到JMX(jconsole查看com.zy.nio)，每5秒输出一次
+        ServerMetrics metrics = new ServerMetrics("server");
+        metrics.registerMBean();
+        new MetricsReporter(metrics).start(5, TimeUnit.SECONDS);
 
         //轮询获取选择器上已经准备就绪的事件
-        while(selector.select() > 0){
+        long selectStart = System.nanoTime();
+        int selected;
+        while((selected = selector.select()) > 0){
+            long woke = System.nanoTime();
+            metrics.selected(woke - selectStart, selected, woke);
             //获取当前选择器中所有注册的选择键（已就绪的监听事件）
             Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
             //迭代
             while(iterator.hasNext()){
                 //获取准备就绪的事件
                 SelectionKey sk = iterator.next();
+                long eventStart = System.nanoTime();
                 //判断具体是什么事件准备就绪
                 if(sk.isAcceptable()){
                     //若接收就绪，获取客户端通道
                     SocketChannel socketChannel = serverSocketChannel.accept();
                     //切换非阻塞模式
                     socketChannel.configureBlocking(false);
-                    //将该通道注册到选择器上
-                    socketChannel.register(selector,SelectionKey.OP_READ);
+                    //将该通道注册到选择器上，附件记录这个连接累计读到的字节数
+                    socketChannel.register(selector,SelectionKey.OP_READ,new long[1]);
+                    metrics.connectionOpened();
                 }else if (sk.isReadable()){
                     //获取当前选择器上读就绪状态的通道
                     SocketChannel socketChannel = (SocketChannel) sk.channel();
-                    //读取数据
-                    ByteBuffer buf = ByteBuffer.allocate(1024);
-                    int len = 0;
-                    while((len = socketChannel.read(buf)) != -1){
-                        buf.flip();
-                        System.out.println(new String(buf.array(),0,len));
-                        buf.clear();
+                    //读取数据：从缓冲区池借直接缓冲区，用完归还
+                    PooledBuffer pooled = BufferPool.getDefault().acquire(1024);
+                    ByteBuffer buf = pooled.buffer();
+                    try {
+                        int len = 0;
+                        //非阻塞通道没有数据时read返回0，要回到select()等下一次读就绪，否则会空转占满CPU
+                        long[] received = (long[]) sk.attachment();
+                        while((len = socketChannel.read(buf)) > 0){
+                            metrics.read(len);
+                            received[0] += len;
+                            buf.flip();
+                            //直接缓冲区没有array()，需要先取到字节数组
+                            byte[] dst = new byte[len];
+                            buf.get(dst);
+                            //一条消息或一个汉字可能被拆在两次读取中，这样打印会乱码；按消息切分见FrameDecoder(TestFrameDecoder)
+                            System.out.println(new String(dst,0,len));
+                            buf.clear();
+                        }
+                        if(len == -1){
+                            //客户端关闭：取消选择键并关闭通道(空闲连接的超时关闭见ReactorServer.setTimeouts())
+                            sk.cancel();
+                            socketChannel.close();
+                            metrics.connectionClosed(received[0]);
+                        }
+                    } finally {
+                        pooled.release();
                     }
                 }
                 //取消选择键
                 iterator.remove();
+                metrics.event(System.nanoTime() - eventStart);
             }
+            metrics.loop(System.nanoTime() - woke);
+            selectStart = System.nanoTime();
         }
     }
 
@@ -107,6 +153,7 @@ public class TestNonBlockingNIO {
 
     }
 
+    //高速接收见TestUdp/UdpReceiver：多通道SO_REUSEPORT、批量交给消费者、丢包计数
     @Test
     public void server2() throws Exception{
         DatagramChannel dc = DatagramChannel.open();
@@ -114,19 +161,29 @@ public class TestNonBlockingNIO {
         dc.bind(new InetSocketAddress(9898));
         Selector selector = Selector.open();
         dc.register(selector,SelectionKey.OP_READ);
+        //缓冲区只借一次，所有数据报复用
+        PooledBuffer pooled = BufferPool.getDefault().acquire(1024);
+        ByteBuffer buf = pooled.buffer();
+        byte[] dst = new byte[buf.capacity()];
         while(selector.select() > 0){
             Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
             while(iterator.hasNext()){
                 SelectionKey sk = iterator.next();
+                //取消已处理的选择键
+                iterator.remove();
                 if(sk.isReadable()){
-                    ByteBuffer buf = ByteBuffer.allocate(1024);
-                    dc.receive(buf);
-                    buf.flip();
-                    System.out.println(new String(buf.array(),0,buf.limit()));
+                    //一次唤醒把已到达的数据报都收完，receive返回null说明没有了
                     buf.clear();
+                    while(dc.receive(buf) != null){
+                        buf.flip();
+                        int len = buf.remaining();
+                        buf.get(dst,0,len);
+                        System.out.println(new String(dst,0,len));
+                        buf.clear();
+                    }
                 }
             }
-            iterator.remove();
         }
+        pooled.release();
     }
 }
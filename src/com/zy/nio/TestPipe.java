@@ -1,9 +1,19 @@
 package com.zy.nio;
 
+import com.zy.nio.channel.RingPipe;
 import org.junit.Test;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.Selector;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class TestPipe {
     @Test
@@ -26,4 +36,199 @@ public class TestPipe {
         sourceChannel.close();
         sinkChannel.close();
     }
+
+    //同样的数据分别经过Pipe与RingPipe从一个线程传给另一个线程，比较吞吐量并校验内容
+    @Test
+    public void test2() throws Exception {
+        //{每次写入的字节数, 总MB数}
+        for (int[] run : new int[][]{{64, 16}, {4096, 128}, {65536, 256}}) {
+            int size = run[0];
+            long total = (long) run[1] << 20;
+            Pipe pipe = Pipe.open();
+            double pipeSpeed = transfer(pipe.sink(), pipe.source(), total, size);
+            pipe.sink().close();
+            pipe.source().close();
+            RingPipe ring = RingPipe.open(1 << 20);
+            double ringSpeed = transfer(ring.sink(), ring.source(), total, size);
+            System.out.printf("每次写入%d字节: Pipe %.1f MB/s, RingPipe %.1f MB/s%n", size, pipeSpeed, ringSpeed);
+        }
+    }
+
+    //生产者线程写入递增的long，当前线程读出校验，返回MB/s
+    private double transfer(WritableByteChannel sink, ReadableByteChannel source, long total, int chunk) throws Exception {
+        Thread producer = new Thread(() -> {
+            ByteBuffer buf = ByteBuffer.allocateDirect(chunk);
+            long seq = 0;
+            try {
+                for (long sent = 0; sent < total; sent += chunk) {
+                    buf.clear();
+                    while (buf.hasRemaining()) {
+                        buf.putLong(seq++);
+                    }
+                    buf.flip();
+                    while (buf.hasRemaining()) {
+                        sink.write(buf);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        long start = System.nanoTime();
+        producer.start();
+        ByteBuffer buf = ByteBuffer.allocateDirect(64 * 1024);
+        long received = 0;
+        long seq = 0;
+        while (received < total) {
+            int n = source.read(buf);
+            received += n;
+            buf.flip();
+            while (buf.remaining() >= 8) {
+                assertEquals(seq++, buf.getLong());
+            }
+            buf.compact();
+        }
+        producer.join();
+        return total / ((System.nanoTime() - start) / 1e9) / (1 << 20);
+    }
+
+    //多生产者：每个生产者写入8字节的记录(生产者编号, 序号)，记录不会被其他生产者打断，各自的序号保持递增
+    @Test
+    public void test3() throws Exception {
+        int producers = 3;
+        int records = 200_000;
+        RingPipe ring = RingPipe.openMultiProducer(4096);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int id = p;
+            Thread t = new Thread(() -> {
+                ByteBuffer buf = ByteBuffer.allocate(8);
+                try {
+                    for (int i = 0; i < records; i++) {
+                        buf.clear();
+                        buf.putInt(id).putInt(i).flip();
+                        ring.sink().write(buf);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+        int[] next = new int[producers];
+        ByteBuffer buf = ByteBuffer.allocate(1000);
+        for (long read = 0; read < (long) producers * records * 8; ) {
+            read += ring.source().read(buf);
+            buf.flip();
+            while (buf.remaining() >= 8) {
+                int id = buf.getInt();
+                assertEquals(next[id]++, buf.getInt());
+            }
+            buf.compact();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        ring.sink().close();
+        assertEquals(-1, ring.source().read(buf));
+    }
+
+    //往返延迟：64字节的消息发过去再原样发回来
+    @Test
+    public void test4() throws Exception {
+        int rounds = 20_000;
+        Pipe ping = Pipe.open();
+        Pipe pong = Pipe.open();
+        System.out.printf("Pipe 往返 %.1f us%n", pingPong(ping.sink(), ping.source(), pong.sink(), pong.source(), rounds));
+        RingPipe ringPing = RingPipe.open(4096);
+        RingPipe ringPong = RingPipe.open(4096);
+        System.out.printf("RingPipe 往返 %.1f us%n", pingPong(ringPing.sink(), ringPing.source(),
+                ringPong.sink(), ringPong.source(), rounds));
+    }
+
+    private double pingPong(WritableByteChannel pingSink, ReadableByteChannel pingSource,
+                            WritableByteChannel pongSink, ReadableByteChannel pongSource, int rounds) throws Exception {
+        Thread echo = new Thread(() -> {
+            ByteBuffer buf = ByteBuffer.allocateDirect(64);
+            try {
+                for (int i = 0; i < rounds; i++) {
+                    readFully(pingSource, buf);
+                    buf.flip();
+                    while (buf.hasRemaining()) {
+                        pongSink.write(buf);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        echo.start();
+        ByteBuffer buf = ByteBuffer.allocateDirect(64);
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            buf.clear();
+            while (buf.hasRemaining()) {
+                pingSink.write(buf);
+            }
+            readFully(pongSource, buf);
+        }
+        double micros = (System.nanoTime() - start) / 1e3 / rounds;
+        echo.join();
+        return micros;
+    }
+
+    private static void readFully(ReadableByteChannel source, ByteBuffer buf) throws IOException {
+        buf.clear();
+        while (buf.hasRemaining()) {
+            source.read(buf);
+        }
+    }
+
+    //消费者在选择器上等待：只有消费者停在select()里时生产者才调用wakeup()
+    @Test
+    public void test5() throws Exception {
+        RingPipe ring = RingPipe.open(1 << 16);
+        ring.source().configureBlocking(false);
+        Selector selector = Selector.open();
+        ring.setWakeupSelector(selector);
+        int messages = 1000;
+        Thread producer = new Thread(() -> {
+            ByteBuffer buf = ByteBuffer.allocate(100);
+            try {
+                for (int i = 0; i < messages; i++) {
+                    buf.clear();
+                    ring.sink().write(buf);
+                    if (i % 100 == 0) {
+                        Thread.sleep(10);
+                    }
+                }
+                ring.sink().close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        producer.start();
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        long received = 0;
+        int selects = 0;
+        while (true) {
+            if (ring.park()) {
+                selector.select();
+                selects++;
+            }
+            ring.unpark();
+            buf.clear();
+            int n = ring.source().read(buf);
+            if (n == -1) {
+                break;
+            }
+            received += n;
+        }
+        producer.join();
+        selector.close();
+        System.out.printf("收到 %d 字节, select阻塞 %d 次, 生产者wakeup %d 次%n", received, selects, ring.getWakeups());
+        assertEquals(100L * messages, received);
+        assertTrue(ring.getWakeups() <= selects + 1);
+    }
 }
@@ -0,0 +1,282 @@
+package com.zy.nio;
+
+import com.zy.nio.server.Connection;
+import com.zy.nio.server.ConnectionHandler;
+import com.zy.nio.server.OutboundQueue;
+import com.zy.nio.server.ReactorServer;
+import com.zy.nio.server.TimingWheel;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 多Reactor服务端：一个boss选择器负责接收连接，N个worker选择器负责读写
+ * 相比TestNonBlockingNIO.server()的单线程单选择器，可以用上多个CPU核
+ */
+public class TestReactorServer {
+
+    //每个连接发送的数据量
+    private static final int PAYLOAD = 64 * 1024;
+    //客户端线程数与每个线程发起的连接数
+    private static final int CLIENT_THREADS = 8;
+    private static final int CONNECTIONS_PER_THREAD = 200;
+
+    //worker数量从1开始翻倍，观察连接数/秒与字节数/秒的变化
+    @Test
+    public void throughput() throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int workers = 1; workers <= Math.max(4, cores); workers *= 2) {
+            run(workers, ReactorServer.Balance.ROUND_ROBIN);
+        }
+        run(cores, ReactorServer.Balance.LEAST_LOADED);
+    }
+
+    private void run(int workers, ReactorServer.Balance balance) throws Exception {
+        //只统计字节数的处理器
+        ConnectionHandler handler = (conn, buf) -> buf.position(buf.limit());
+        ReactorServer server = new ReactorServer(0, workers, balance, handler);
+        server.start();
+        int port = server.getLocalPort();
+
+        long expected = (long) PAYLOAD * CLIENT_THREADS * CONNECTIONS_PER_THREAD;
+        long start = System.nanoTime();
+        List<Thread> clients = new ArrayList<>();
+        for (int i = 0; i < CLIENT_THREADS; i++) {
+            Thread t = new Thread(() -> {
+                ByteBuffer buf = ByteBuffer.allocateDirect(PAYLOAD);
+                try {
+                    for (int j = 0; j < CONNECTIONS_PER_THREAD; j++) {
+                        SocketChannel sChannel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+                        buf.clear();
+                        while (buf.hasRemaining()) {
+                            sChannel.write(buf);
+                        }
+                        sChannel.close();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            t.start();
+            clients.add(t);
+        }
+        for (Thread t : clients) {
+            t.join();
+        }
+        //等服务端读完所有数据
+        while (server.getBytesRead() < expected && System.nanoTime() - start < 60_000_000_000L) {
+            Thread.sleep(1);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        server.shutdown();
+
+        System.out.printf("workers=%d %s 连接数/秒=%.0f MB/秒=%.1f%n", workers, balance,
+                server.getAcceptedCount() / seconds, server.getBytesRead() / seconds / (1 << 20));
+    }
+
+    //出站队列与高低水位：服务端不停地往一个读得很慢的客户端写数据，超过高水位时暂停生产，
+    //恢复可写后再继续，队列中积压的字节数始终有上界；低水位为0时发空了才恢复
+    @Test(timeout = 120_000)
+    public void backpressure() throws Exception {
+        backpressure(OutboundQueue.DEFAULT_LOW_WATERMARK);
+        backpressure(0);
+    }
+
+    private void backpressure(int lowWatermark) throws Exception {
+        int chunk = 16 * 1024;
+        long total = 32L * 1024 * 1024;
+        AtomicLong produced = new AtomicLong();
+        AtomicLong maxPending = new AtomicLong();
+        ConnectionHandler handler = new ConnectionHandler() {
+            @Override
+            public void onOpen(Connection conn) throws IOException {
+                conn.outbound().setWatermarks(lowWatermark, OutboundQueue.DEFAULT_HIGH_WATERMARK);
+                produce(conn);
+            }
+
+            @Override
+            public void onRead(Connection conn, ByteBuffer buf) {
+                buf.position(buf.limit());
+            }
+
+            @Override
+            public void onWritabilityChanged(Connection conn, boolean writable) throws IOException {
+                if (writable) {
+                    produce(conn);
+                }
+            }
+
+            //可写时一直生产，变为不可写就停下
+            private void produce(Connection conn) throws IOException {
+                while (produced.get() < total) {
+                    produced.addAndGet(chunk);
+                    boolean writable = conn.write(ByteBuffer.allocate(chunk));
+                    maxPending.accumulateAndGet(conn.outbound().pendingBytes(), Math::max);
+                    if (!writable) {
+                        return;
+                    }
+                }
+            }
+        };
+        ReactorServer server = new ReactorServer(0, 1, ReactorServer.Balance.ROUND_ROBIN, handler);
+        server.start();
+        long received = 0;
+        try (SocketChannel sChannel = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.getLocalPort()))) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(4096);
+            long start = System.nanoTime();
+            while (received < total) {
+                buf.clear();
+                received += sChannel.read(buf);
+                //慢速消费者
+                if (received % (1024 * 1024) < 4096) {
+                    Thread.sleep(5);
+                }
+            }
+            System.out.printf("低水位 %d KB, 收到 %d MB, 用时 %.0f ms, 服务端队列最大积压 %d KB%n", lowWatermark >> 10, received >> 20,
+                    (System.nanoTime() - start) / 1e6, maxPending.get() >> 10);
+        }
+        server.shutdown();
+        //积压不超过高水位加一个块
+        assertTrue(maxPending.get() <= 64 * 1024 + chunk);
+    }
+
+    //时间轮：到期执行、取消、跨越多圈的任务、长时间不推进后一次补齐
+    @Test
+    public void timingWheel() {
+        long ms = TimeUnit.MILLISECONDS.toNanos(1);
+        TimingWheel wheel = new TimingWheel(10, TimeUnit.MILLISECONDS, 8, 0);
+        List<String> fired = new ArrayList<>();
+        wheel.schedule(25, TimeUnit.MILLISECONDS, 0, () -> fired.add("a"));
+        TimingWheel.Entry b = wheel.schedule(25, TimeUnit.MILLISECONDS, 0, () -> fired.add("b"));
+        //8个槽一圈80ms，200ms的任务要转好几圈
+        wheel.schedule(200, TimeUnit.MILLISECONDS, 0, () -> fired.add("c"));
+        b.cancel();
+        assertEquals(2, wheel.size());
+        wheel.advance(20 * ms);
+        assertTrue(fired.isEmpty());
+        wheel.advance(30 * ms);
+        assertEquals(List.of("a"), fired);
+        wheel.advance(190 * ms);
+        assertEquals(List.of("a"), fired);
+        wheel.advance(1000 * ms);
+        assertEquals(List.of("a", "c"), fired);
+        assertEquals(0, wheel.size());
+        assertEquals(0, wheel.millisToNextTick(1000 * ms));
+    }
+
+    //读/空闲/写超时：不发数据的连接被关闭，持续发送的连接保留，不读取的客户端让服务端写超时
+    @Test
+    public void timeouts() throws Exception {
+        Map<Connection.Timeout, AtomicInteger> fired = new ConcurrentHashMap<>();
+        ConnectionHandler handler = new ConnectionHandler() {
+            @Override
+            public void onRead(Connection conn, ByteBuffer buf) throws IOException {
+                if (buf.get(buf.position()) == 'w') {
+                    //让服务端一直写，直到超过高水位
+                    while (conn.write(ByteBuffer.allocate(64 * 1024))) {
+                    }
+                }
+                buf.position(buf.limit());
+            }
+
+            @Override
+            public void onWritabilityChanged(Connection conn, boolean writable) {
+                //不可写时暂停读取，这时不再检查读超时，只检查写超时
+                conn.interestRead(writable);
+            }
+
+            @Override
+            public void onTimeout(Connection conn, Connection.Timeout timeout) {
+                fired.computeIfAbsent(timeout, t -> new AtomicInteger()).incrementAndGet();
+                conn.close();
+            }
+        };
+        ReactorServer server = new ReactorServer(0, 2, ReactorServer.Balance.ROUND_ROBIN, handler);
+        server.setTimeouts(300, 300, 0, TimeUnit.MILLISECONDS);
+        server.start();
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", server.getLocalPort());
+        int idle = 1000;
+        List<SocketChannel> channels = new ArrayList<>();
+        try (SocketChannel active = SocketChannel.open(address); SocketChannel stalled = SocketChannel.open(address)) {
+            for (int i = 0; i < idle; i++) {
+                channels.add(SocketChannel.open(address));
+            }
+            stalled.write(ByteBuffer.wrap(new byte[]{'w'}));
+            long start = System.nanoTime();
+            //活跃连接每50ms发一个字节，持续1秒
+            while (System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1)) {
+                active.write(ByteBuffer.wrap(new byte[]{'a'}));
+                Thread.sleep(50);
+            }
+            //被关闭的连接读到EOF
+            ByteBuffer buf = ByteBuffer.allocate(16);
+            for (SocketChannel channel : channels) {
+                assertEquals(-1, channel.read(buf));
+            }
+            System.out.println("超时 " + fired + ", 剩余连接 " + server.getConnectionCount());
+            assertEquals(idle, fired.get(Connection.Timeout.READ).get());
+            assertEquals(1, fired.get(Connection.Timeout.WRITE).get());
+            assertEquals(1, server.getConnectionCount());
+            assertEquals(idle + 1, server.getMetrics().getTimeouts());
+        } finally {
+            for (SocketChannel channel : channels) {
+                channel.close();
+            }
+            server.shutdown();
+        }
+    }
+
+    //处理器抛出RuntimeException：只关闭那个连接，同一个worker上的其他连接和之后的新连接照常处理
+    @Test(timeout = 30_000)
+    public void handlerFailure() throws Exception {
+        ConnectionHandler handler = new ConnectionHandler() {
+            @Override
+            public void onRead(Connection conn, ByteBuffer buf) throws IOException {
+                if (buf.get(buf.position()) == 'x') {
+                    throw new IllegalStateException("handler bug");
+                }
+                ByteBuffer echo = ByteBuffer.allocate(buf.remaining());
+                echo.put(buf).flip();
+                conn.write(echo);
+            }
+        };
+        ReactorServer server = new ReactorServer(0, 1, ReactorServer.Balance.ROUND_ROBIN, handler);
+        server.start();
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", server.getLocalPort());
+        try (SocketChannel healthy = SocketChannel.open(address); SocketChannel failing = SocketChannel.open(address)) {
+            assertEquals('a', echo(healthy, 'a'));
+            failing.write(ByteBuffer.wrap(new byte[]{'x'}));
+            TestUpload.assertClosed(failing);
+            assertEquals('b', echo(healthy, 'b'));
+            try (SocketChannel later = SocketChannel.open(address)) {
+                assertEquals('c', echo(later, 'c'));
+            }
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    private static byte echo(SocketChannel channel, char c) throws IOException {
+        channel.write(ByteBuffer.wrap(new byte[]{(byte) c}));
+        ByteBuffer buf = ByteBuffer.allocate(1);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf) == -1) {
+                throw new IOException("closed");
+            }
+        }
+        return buf.get(0);
+    }
+}
@@ -0,0 +1,193 @@
+package com.zy.nio;
+
+import com.sun.management.UnixOperatingSystemMXBean;
+import com.zy.nio.protocol.RawUpload;
+import com.zy.nio.protocol.RawUploadAsyncServer;
+import com.zy.nio.protocol.RawUploadBlockingHandler;
+import com.zy.nio.protocol.RawUploadSelectorHandler;
+import com.zy.nio.server.BlockingServer;
+import com.zy.nio.server.ReactorServer;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 同一个上传交互(client2()/server2())在不同服务端引擎上的对比：
+ * 阻塞+虚拟线程、阻塞+固定平台线程池、多Reactor选择器、NIO.2异步通道
+ * 先建立好所有连接(同时在线的连接数)，再在每个连接上发送2.txt并关闭输出，最后读回所有确认
+ */
+public class TestServerEngines {
+
+    private static final int MAX_CONNECTIONS = 10_000;
+    private static final int CLIENT_THREADS = 8;
+
+    @Test
+    public void concurrent() throws Exception {
+        int connections = connections();
+        Path dir = Files.createTempDirectory("nio-engines");
+        try {
+            RawUploadBlockingHandler blockingHandler = new RawUploadBlockingHandler(dir);
+            BlockingServer virtual = new BlockingServer(0, BlockingServer.ThreadMode.VIRTUAL, 256, blockingHandler);
+            virtual.start();
+            run("blocking/" + virtual.getThreadMode(), virtual.getLocalPort(), connections);
+            virtual.shutdown();
+
+            BlockingServer platform = new BlockingServer(0, BlockingServer.ThreadMode.PLATFORM, 256, blockingHandler);
+            platform.start();
+            run("blocking/PLATFORM(256)", platform.getLocalPort(), connections);
+            platform.shutdown();
+            assertEquals(2L * connections, blockingHandler.getFilesReceived());
+
+            RawUploadSelectorHandler selectorHandler = new RawUploadSelectorHandler(dir);
+            ReactorServer reactor = new ReactorServer(0, selectorHandler);
+            reactor.start();
+            run("selector", reactor.getLocalPort(), connections);
+            reactor.shutdown();
+            assertEquals(connections, selectorHandler.getFilesReceived());
+
+            RawUploadAsyncServer async = new RawUploadAsyncServer(0, dir);
+            async.start();
+            run("async", async.getLocalPort(), connections);
+            async.shutdown();
+            assertEquals(connections, async.getFilesReceived());
+        } finally {
+            TestTransfer.deleteDir(dir);
+        }
+    }
+
+    /**
+     * 每个连接在同一进程中占用客户端套接字、服务端套接字和服务端的输出文件三个文件描述符
+     */
+    private static int connections() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof UnixOperatingSystemMXBean) {
+            long maxFd = ((UnixOperatingSystemMXBean) os).getMaxFileDescriptorCount();
+            return (int) Math.min(MAX_CONNECTIONS, (maxFd - 1000) / 3);
+        }
+        return MAX_CONNECTIONS;
+    }
+
+    private void run(String engine, int port, int connections) throws Exception {
+        byte[] payload = Files.readAllBytes(Paths.get("2.txt"));
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+
+        //1.建立所有连接
+        long start = System.nanoTime();
+        SocketChannel[] channels = new SocketChannel[connections];
+        parallel(connections, i -> channels[i] = SocketChannel.open(address));
+        long connected = System.nanoTime();
+
+        //2.每个连接发送文件内容并关闭输出，此时所有连接同时在服务端处理中
+        parallel(connections, i -> {
+            ByteBuffer buf = ByteBuffer.wrap(payload);
+            while (buf.hasRemaining()) {
+                channels[i].write(buf);
+            }
+            channels[i].shutdownOutput();
+        });
+
+        //3.读回所有确认
+        parallel(connections, i -> {
+            ByteBuffer buf = ByteBuffer.allocate(64);
+            int len;
+            do {
+                len = channels[i].read(buf);
+            } while (len != -1);
+            buf.flip();
+            byte[] ack = new byte[buf.remaining()];
+            buf.get(ack);
+            assertArrayEquals(new String(ack, StandardCharsets.UTF_8), RawUpload.ACK, ack);
+            channels[i].close();
+        });
+        long end = System.nanoTime();
+
+        System.out.printf("%-24s 连接数=%d 建立连接 %.0f ms, 上传完成 %.0f ms (%.0f 次/秒), 峰值平台线程 %d%n",
+                engine, connections, (connected - start) / 1e6, (end - connected) / 1e6,
+                connections / ((end - connected) / 1e9), threads.getPeakThreadCount());
+    }
+
+    private interface Task {
+        void run(int i) throws Exception;
+    }
+
+    /**
+     * CLIENT_THREADS个线程分段执行task(0..n-1)
+     */
+    private static void parallel(int n, Task task) throws Exception {
+        List<Thread> list = new ArrayList<>();
+        List<Throwable> errors = new ArrayList<>();
+        for (int t = 0; t < CLIENT_THREADS; t++) {
+            int from = (int) ((long) n * t / CLIENT_THREADS);
+            int to = (int) ((long) n * (t + 1) / CLIENT_THREADS);
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int i = from; i < to; i++) {
+                        task.run(i);
+                    }
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            });
+            thread.start();
+            list.add(thread);
+        }
+        for (Thread thread : list) {
+            thread.join();
+        }
+        if (!errors.isEmpty()) {
+            throw new AssertionError(errors.get(0));
+        }
+    }
+
+    //处理器抛出RuntimeException：这个连接算失败，单线程的池照常处理下一个连接
+    @Test(timeout = 30_000)
+    public void handlerFailure() throws Exception {
+        BlockingServer server = new BlockingServer(0, BlockingServer.ThreadMode.PLATFORM, 1, channel -> {
+            ByteBuffer buf = ByteBuffer.allocate(1);
+            while (buf.hasRemaining() && channel.read(buf) != -1) {
+            }
+            if (buf.get(0) == 'x') {
+                throw new IllegalStateException("handler bug");
+            }
+            buf.flip();
+            channel.write(buf);
+        });
+        server.start();
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", server.getLocalPort());
+        try {
+            for (byte b : new byte[]{'x', 'a'}) {
+                try (SocketChannel sChannel = SocketChannel.open(address)) {
+                    sChannel.write(ByteBuffer.wrap(new byte[]{b}));
+                    ByteBuffer reply = ByteBuffer.allocate(1);
+                    int n = sChannel.read(reply);
+                    assertEquals(b == 'x' ? -1 : 1, n);
+                }
+            }
+            while (server.getCompletedCount() + server.getFailedCount() < 2) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, server.getFailedCount());
+            assertEquals(1, server.getCompletedCount());
+        } finally {
+            server.shutdown();
+        }
+    }
+}
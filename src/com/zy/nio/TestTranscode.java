@@ -0,0 +1,86 @@
+package com.zy.nio;
+
+import com.zy.nio.channel.StreamingTranscoder;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 流式转码：固定大小的缓冲区循环decode/encode，可以处理任意大的文件
+ * 对比TestChannel.test6一次性encode整个字符串
+ */
+public class TestTranscode {
+
+    private static final Charset GBK = Charset.forName("GBK");
+
+    //很小的奇数缓冲区，保证多字节字符经常被截断在两次读取之间，转码结果与String一次性转换一致
+    @Test
+    public void test1() throws Exception {
+        Path dir = Files.createTempDirectory("nio-transcode");
+        try {
+            String text = randomText(200_000, 0.5);
+            Path gbk = dir.resolve("gbk.txt");
+            Path utf8 = dir.resolve("utf8.txt");
+            Path back = dir.resolve("back.txt");
+            Files.write(gbk, text.getBytes(GBK));
+
+            new StreamingTranscoder(GBK, StandardCharsets.UTF_8, 1001, CodingErrorAction.REPORT).transcode(gbk, utf8);
+            assertEquals(text, new String(Files.readAllBytes(utf8), StandardCharsets.UTF_8));
+
+            new StreamingTranscoder(StandardCharsets.UTF_8, GBK, 777, CodingErrorAction.REPORT).transcode(utf8, back);
+            assertEquals(text, new String(Files.readAllBytes(back), GBK));
+        } finally {
+            TestTransfer.deleteDir(dir);
+        }
+    }
+
+    //大文件吞吐量：中英文混合与纯ASCII(走快速路径)
+    @Test
+    public void test2() throws Exception {
+        Path dir = Files.createTempDirectory("nio-transcode");
+        try {
+            for (double chinese : new double[]{0.5, 0.05, 0}) {
+                Path gbk = dir.resolve("gbk.txt");
+                Path utf8 = dir.resolve("utf8.txt");
+                String block = randomText(1 << 20, chinese);
+                byte[] bytes = block.getBytes(GBK);
+                try (OutputStream os = Files.newOutputStream(gbk)) {
+                    for (int i = 0; i < 64; i++) {
+                        os.write(bytes);
+                    }
+                }
+                StreamingTranscoder transcoder = new StreamingTranscoder(GBK, StandardCharsets.UTF_8);
+                System.out.println("中文比例" + chinese + ": " + transcoder.transcode(gbk, utf8));
+                Files.delete(gbk);
+                Files.delete(utf8);
+            }
+        } finally {
+            TestTransfer.deleteDir(dir);
+        }
+    }
+
+    //生成中英文混合文本，chinese为中文字符的比例
+    private static String randomText(int length, double chinese) {
+        Random random = new Random(7);
+        StringBuilder sb = new StringBuilder(length);
+        String han = "好好学习天天向上服务端数据接收成功缓冲区通道选择器";
+        for (int i = 0; i < length; i++) {
+            if (random.nextDouble() < chinese) {
+                sb.append(han.charAt(random.nextInt(han.length())));
+            } else if (random.nextInt(40) == 0) {
+                sb.append('\n');
+            } else {
+                sb.append((char) ('a' + random.nextInt(26)));
+            }
+        }
+        return sb.toString();
+    }
+}
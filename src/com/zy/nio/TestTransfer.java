@@ -0,0 +1,350 @@
+package com.zy.nio;
+
+import com.zy.nio.buffer.BufferPool;
+import com.zy.nio.buffer.PooledBuffer;
+import com.zy.nio.channel.ChannelTransfer;
+import com.zy.nio.channel.MappedCopy;
+import com.zy.nio.channel.ParallelCopy;
+import com.zy.nio.channel.TransferResult;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 大文件传输：分块循环transferTo/transferFrom，文件到文件、文件到非阻塞SocketChannel
+ * 测试文件在临时目录中生成，结束后删除
+ */
+public class TestTransfer {
+
+    //文件到文件：超过2GB的稀疏文件，一次transferTo传不完
+    @Test
+    public void test1() throws Exception {
+        Path dir = Files.createTempDirectory("nio-transfer");
+        Path src = dir.resolve("big.bin");
+        Path dst = dir.resolve("big.copy");
+        long size = 2L * 1024 * 1024 * 1024 + 4096;
+        try (RandomAccessFile raf = new RandomAccessFile(src.toFile(), "rw")) {
+            raf.setLength(size);
+            //尾部写点数据，确认最后一块也被复制了
+            raf.seek(size - 5);
+            raf.write("tail!".getBytes());
+        }
+        try (FileChannel inChannel = FileChannel.open(src, StandardOpenOption.READ);
+             FileChannel outChannel = FileChannel.open(dst, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+            TransferResult result = new ChannelTransfer().transfer(inChannel, outChannel);
+            System.out.println(result);
+            assertEquals(size, result.getBytes());
+            assertEquals(size, outChannel.size());
+            ByteBuffer tail = ByteBuffer.allocate(5);
+            outChannel.force(false);
+            try (FileChannel check = FileChannel.open(dst, StandardOpenOption.READ)) {
+                check.read(tail, size - 5);
+            }
+            assertEquals("tail!", new String(tail.array()));
+        } finally {
+            Files.deleteIfExists(src);
+            Files.deleteIfExists(dst);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    //文件到非阻塞SocketChannel：对端读得慢时transferTo会返回0，需要等OP_WRITE
+    @Test
+    public void test2() throws Exception {
+        Path src = Files.createTempFile("nio-transfer", ".bin");
+        long size = 64L * 1024 * 1024;
+        try (RandomAccessFile raf = new RandomAccessFile(src.toFile(), "rw")) {
+            raf.setLength(size);
+        }
+        ServerSocketChannel ssChannel = ServerSocketChannel.open();
+        ssChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+        AtomicLong received = new AtomicLong();
+        //慢速接收端
+        Thread server = new Thread(() -> {
+            try (SocketChannel socketChannel = ssChannel.accept()) {
+                ByteBuffer buf = ByteBuffer.allocateDirect(8192);
+                int len;
+                while ((len = socketChannel.read(buf)) != -1) {
+                    received.addAndGet(len);
+                    buf.clear();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        server.start();
+
+        try (FileChannel inChannel = FileChannel.open(src, StandardOpenOption.READ);
+             SocketChannel sChannel = SocketChannel.open(ssChannel.getLocalAddress())) {
+            sChannel.configureBlocking(false);
+            TransferResult result = new ChannelTransfer(4 * 1024 * 1024).transfer(inChannel, sChannel);
+            System.out.println(result);
+            assertEquals(size, result.getBytes());
+        }
+        server.join();
+        ssChannel.close();
+        Files.delete(src);
+        assertEquals(size, received.get());
+    }
+
+    //socket到文件：transferFrom读到对端关闭为止
+    @Test
+    public void test3() throws Exception {
+        Path dst = Files.createTempFile("nio-transfer", ".bin");
+        long size = 16L * 1024 * 1024;
+        ServerSocketChannel ssChannel = ServerSocketChannel.open();
+        ssChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+        Thread client = new Thread(() -> {
+            try (SocketChannel sChannel = SocketChannel.open(ssChannel.getLocalAddress())) {
+                ByteBuffer buf = ByteBuffer.allocateDirect(64 * 1024);
+                for (long sent = 0; sent < size; sent += buf.capacity()) {
+                    buf.clear();
+                    while (buf.hasRemaining()) {
+                        sChannel.write(buf);
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        client.start();
+        try (SocketChannel socketChannel = ssChannel.accept();
+             FileChannel outChannel = FileChannel.open(dst, StandardOpenOption.WRITE)) {
+            TransferResult result = new ChannelTransfer().transferFrom(socketChannel, outChannel, 0, Long.MAX_VALUE);
+            System.out.println(result);
+            assertEquals(size, result.getBytes());
+        }
+        client.join();
+        ssChannel.close();
+        Files.delete(dst);
+    }
+
+    //分窗口内存映射复制与TestChannel中test1/test2/test3三种方式对比：吞吐量与峰值RSS
+    @Test
+    public void test4() throws Exception {
+        Path dir = Files.createTempDirectory("nio-mapped");
+        Path src = dir.resolve("src.bin");
+        long size = 512L * 1024 * 1024;
+        writeRandomFile(src, size);
+        try {
+            bench("test1 流通道+缓冲区", dir, () -> {
+                try (FileChannel inChannel = FileChannel.open(src, StandardOpenOption.READ);
+                     FileChannel outChannel = FileChannel.open(dir.resolve("1.bin"), StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+                    PooledBuffer pooled = BufferPool.getDefault().acquire(1024);
+                    ByteBuffer buf = pooled.buffer();
+                    while (inChannel.read(buf) != -1) {
+                        buf.flip();
+                        outChannel.write(buf);
+                        buf.clear();
+                    }
+                    pooled.release();
+                }
+            });
+            bench("test2 整体映射+byte[]", dir, () -> {
+                try (FileChannel inChannel = FileChannel.open(src, StandardOpenOption.READ);
+                     FileChannel outChannel = FileChannel.open(dir.resolve("2.bin"), StandardOpenOption.WRITE, StandardOpenOption.READ, StandardOpenOption.CREATE_NEW)) {
+                    MappedByteBuffer inMappedBuf = inChannel.map(FileChannel.MapMode.READ_ONLY, 0, inChannel.size());
+                    MappedByteBuffer outMappedBuf = outChannel.map(FileChannel.MapMode.READ_WRITE, 0, inChannel.size());
+                    byte[] dst = new byte[inMappedBuf.limit()];
+                    inMappedBuf.get(dst);
+                    outMappedBuf.put(dst);
+                    MappedCopy.unmap(inMappedBuf);
+                    MappedCopy.unmap(outMappedBuf);
+                }
+            });
+            bench("test3 transferTo", dir, () -> {
+                try (FileChannel inChannel = FileChannel.open(src, StandardOpenOption.READ);
+                     FileChannel outChannel = FileChannel.open(dir.resolve("3.bin"), StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+                    new ChannelTransfer().transfer(inChannel, outChannel);
+                }
+            });
+            for (long window : new long[]{64L << 20, 128L << 20, 256L << 20}) {
+                bench("分窗口映射 " + (window >> 20) + "MB", dir, () -> {
+                    new MappedCopy(window).copy(src, dir.resolve("4.bin"));
+                });
+            }
+        } finally {
+            deleteDir(dir);
+        }
+    }
+
+    //分段并行复制：不同并行度、两种分段方式，复制后校验内容
+    @Test
+    public void test5() throws Exception {
+        Path dir = Files.createTempDirectory("nio-parallel");
+        Path src = dir.resolve("src.bin");
+        writeRandomFile(src, 512L * 1024 * 1024);
+        try {
+            for (ParallelCopy.Strategy strategy : ParallelCopy.Strategy.values()) {
+                for (int parallelism = 1; parallelism <= 8; parallelism *= 2) {
+                    Path dst = dir.resolve("dst-" + strategy + "-" + parallelism + ".bin");
+                    ParallelCopy parallelCopy = new ParallelCopy(parallelism, 32L * 1024 * 1024, strategy);
+                    TransferResult result = parallelCopy.copy(src, dst);
+                    System.out.println(strategy + " 并行度=" + parallelism + " " + result);
+                    assertTrue(parallelCopy.verify(src, dst));
+                    Files.delete(dst);
+                }
+            }
+        } finally {
+            deleteDir(dir);
+        }
+    }
+
+    //带校验的复制：边复制边算CRC32C，与"零拷贝复制后再把目标完整读一遍"对比；校验和不一致时抛出异常
+    @Test
+    public void test6() throws Exception {
+        Path dir = Files.createTempDirectory("nio-checked");
+        Path src = dir.resolve("src.bin");
+        long size = 256L * 1024 * 1024;
+        writeRandomFile(src, size);
+        ChannelTransfer transfer = new ChannelTransfer();
+        try {
+            long[] checksum = new long[1];
+            //预热一轮，页缓存与JIT都就绪后再计时
+            for (int round = 0; round < 2; round++) {
+                boolean print = round == 1;
+                long start = System.nanoTime();
+                try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+                     FileChannel out = FileChannel.open(dir.resolve("plain.bin"), StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+                    transfer.transfer(in, out);
+                }
+                long plain = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+                     FileChannel out = FileChannel.open(dir.resolve("plain.bin"), StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+                    transfer.transfer(in, out);
+                }
+                long separate;
+                try (FileChannel check = FileChannel.open(dir.resolve("plain.bin"), StandardOpenOption.READ)) {
+                    checksum[0] = crc32c(check);
+                    separate = System.nanoTime() - start;
+                }
+
+                start = System.nanoTime();
+                TransferResult result;
+                try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+                     FileChannel out = FileChannel.open(dir.resolve("checked.bin"), StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+                    result = transfer.transferChecked(in, 0, size, out);
+                }
+                long checked = System.nanoTime() - start;
+                assertEquals(size, result.getBytes());
+                assertTrue(result.hasChecksum());
+                assertEquals(checksum[0], result.getChecksum());
+                if (print) {
+                    System.out.println(result);
+                    System.out.printf("不校验 %.1f ms, 复制后再读一遍校验 %.1f ms, 边复制边校验 %.1f ms(比不校验多%.0f%%)%n",
+                            plain / 1e6, separate / 1e6, checked / 1e6, (checked - plain) * 100.0 / plain);
+                }
+            }
+
+            //预期的校验和不对：抛出异常
+            try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(dir.resolve("checked.bin"), StandardOpenOption.WRITE)) {
+                transfer.transferChecked(in, 0, size, out, checksum[0] ^ 1);
+                fail("checksum mismatch not detected");
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("checksum mismatch"));
+            }
+            assertFalse(new TransferResult(size, 1, TransferResult.Mode.ZERO_COPY).hasChecksum());
+        } finally {
+            deleteDir(dir);
+        }
+    }
+
+    //单独读一遍文件计算CRC32C
+    private static long crc32c(FileChannel channel) throws IOException {
+        CRC32C crc = new CRC32C();
+        ByteBuffer buf = ByteBuffer.allocateDirect(256 * 1024);
+        while (channel.read(buf) != -1) {
+            buf.flip();
+            crc.update(buf);
+            buf.clear();
+        }
+        return crc.getValue();
+    }
+
+    private interface Copy {
+        void run() throws Exception;
+    }
+
+    private void bench(String name, Path dir, Copy copy) throws Exception {
+        System.gc();
+        resetPeakRss();
+        long rssBefore = readStatus("VmHWM:");
+        long start = System.nanoTime();
+        copy.run();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long peak = readStatus("VmHWM:");
+        long size = Files.size(dir.resolve("src.bin"));
+        System.out.printf("%-20s %8.1f MB/s  峰值RSS %5d MB (开始前 %d MB)%n", name, size / seconds / (1 << 20),
+                peak >> 10, rssBefore >> 10);
+    }
+
+    //写入"5"到/proc/self/clear_refs可以重置峰值RSS(VmHWM)，只在Linux上有效
+    private static void resetPeakRss() {
+        try {
+            Files.write(Paths.get("/proc/self/clear_refs"), "5".getBytes());
+        } catch (Exception ignored) {
+        }
+    }
+
+    //读取/proc/self/status中的字段，单位KB，不支持时返回0
+    private static long readStatus(String field) {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith(field)) {
+                    return Long.parseLong(line.substring(field.length()).replace("kB", "").trim());
+                }
+            }
+        } catch (Exception ignored) {
+        }
+        return 0;
+    }
+
+    static void deleteDir(Path dir) throws Exception {
+        //先删子目录里的文件
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path p : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(p);
+            }
+        }
+    }
+
+    static void writeRandomFile(Path path, long size) throws Exception {
+        Random random = new Random(42);
+        byte[] block = new byte[1 << 20];
+        random.nextBytes(block);
+        try (FileChannel outChannel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+            ByteBuffer buf = ByteBuffer.wrap(block);
+            for (long written = 0; written < size; written += block.length) {
+                buf.clear();
+                while (buf.hasRemaining()) {
+                    outChannel.write(buf);
+                }
+            }
+        }
+    }
+}
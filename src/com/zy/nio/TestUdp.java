@@ -0,0 +1,318 @@
+package com.zy.nio;
+
+import com.zy.nio.udp.UdpPublisher;
+import com.zy.nio.udp.UdpReceiver;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 高速UDP接收：每次唤醒取完所有数据报、批量交给消费者、多个通道SO_REUSEPORT共用端口
+ * 对比TestNonBlockingNIO.server2()每次唤醒只收一个数据报并分配一个缓冲区
+ * 扇出发布：UdpPublisher把小消息合并进MTU大小的数据报，发给单播订阅者列表或组播组
+ */
+public class TestUdp {
+
+    private static final int SENDERS = 4;
+    private static final int PACKET = 64;
+    private static final long DURATION_NANOS = 2_000_000_000L;
+
+    //本机压测：SENDERS个线程各用一个通道(源端口不同)尽力发送，统计接收端每秒包数与丢包
+    @Test
+    public void test1() throws Exception {
+        load(1);
+        if (UdpReceiver.isReusePortSupported()) {
+            load(Math.max(2, Runtime.getRuntime().availableProcessors()));
+        }
+    }
+
+    private void load(int channels) throws Exception {
+        AtomicLong checksum = new AtomicLong();
+        UdpReceiver receiver = new UdpReceiver(0, channels, UdpReceiver.DEFAULT_BATCH, UdpReceiver.DEFAULT_MAX_DATAGRAM, batch -> {
+            //模拟消费：读每个包的第一个long
+            long sum = 0;
+            for (int i = 0; i < batch.size(); i++) {
+                sum += batch.packet(i).getLong(0);
+            }
+            checksum.addAndGet(sum);
+        });
+        receiver.start();
+        InetSocketAddress target = new InetSocketAddress("127.0.0.1", receiver.getLocalPort());
+
+        AtomicLong sent = new AtomicLong();
+        long start = System.nanoTime();
+        List<Thread> senders = new ArrayList<>();
+        for (int i = 0; i < SENDERS; i++) {
+            Thread t = new Thread(() -> {
+                try (DatagramChannel dc = DatagramChannel.open()) {
+                    dc.connect(target);
+                    ByteBuffer buf = ByteBuffer.allocateDirect(PACKET);
+                    long n = 0;
+                    while (System.nanoTime() - start < DURATION_NANOS) {
+                        buf.clear();
+                        buf.putLong(0, 1);
+                        dc.write(buf);
+                        n++;
+                    }
+                    sent.addAndGet(n);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            t.start();
+            senders.add(t);
+        }
+        for (Thread t : senders) {
+            t.join();
+        }
+        //等接收端把内核缓冲区里剩下的取完
+        Thread.sleep(200);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        receiver.shutdown();
+
+        System.out.printf("channels=%d 发送 %d 包, 接收 %d 包 (%.0f 包/秒), 每次唤醒 %.1f 包, 内核丢弃 %d, 超长 %d%n",
+                channels, sent.get(), receiver.getPackets(), receiver.getPackets() / seconds,
+                (double) receiver.getPackets() / Math.max(1, receiver.getWakeups()),
+                receiver.getKernelDrops(), receiver.getOverruns());
+        assertEquals(receiver.getPackets(), checksum.get());
+        assertTrue(receiver.getPackets() <= sent.get());
+    }
+
+    //超过maxDatagram的数据报计入overruns，正常的数据报内容完整
+    @Test
+    public void test2() throws Exception {
+        int max = 512;
+        AtomicLong good = new AtomicLong();
+        UdpReceiver receiver = new UdpReceiver(0, 1, 8, max, batch -> {
+            for (int i = 0; i < batch.size(); i++) {
+                ByteBuffer packet = batch.packet(i);
+                if (packet.remaining() == max && packet.get(max - 1) == (byte) (max - 1)) {
+                    good.incrementAndGet();
+                }
+            }
+        });
+        receiver.start();
+        try (DatagramChannel dc = DatagramChannel.open()) {
+            dc.connect(new InetSocketAddress("127.0.0.1", receiver.getLocalPort()));
+            for (int i = 0; i < 20; i++) {
+                ByteBuffer buf = ByteBuffer.allocate(i % 2 == 0 ? max : max + 100);
+                while (buf.hasRemaining()) {
+                    buf.put((byte) buf.position());
+                }
+                buf.flip();
+                dc.write(buf);
+            }
+        }
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (receiver.getPackets() + receiver.getOverruns() < 20 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        receiver.shutdown();
+        assertEquals(10, good.get());
+        assertEquals(10, receiver.getOverruns());
+    }
+
+    //本机200个单播订阅者：消息合并后按数据报扇出，每个订阅者按seq连续收到全部消息；与不合并对比send()次数
+    @Test
+    public void test3() throws Exception {
+        int subscribers = 200;
+        List<Subscriber> subs = new ArrayList<>();
+        try {
+            for (int i = 0; i < subscribers; i++) {
+                subs.add(new Subscriber());
+            }
+            for (long maxDelay : new long[]{1, 0}) {
+                int count = maxDelay == 0 ? 2000 : 20000;
+                for (Subscriber sub : subs) {
+                    sub.reset();
+                }
+                UdpPublisher publisher = new UdpPublisher(UdpPublisher.DEFAULT_MAX_DATAGRAM, maxDelay, TimeUnit.MILLISECONDS);
+                for (Subscriber sub : subs) {
+                    publisher.addSubscriber(new InetSocketAddress("127.0.0.1", sub.receiver.getLocalPort()));
+                }
+                publisher.start();
+                long start = System.nanoTime();
+                publish(publisher, count);
+                publisher.shutdown();
+                double seconds = (System.nanoTime() - start) / 1e9;
+                awaitAll(subs, count);
+                long delivered = 0;
+                for (Subscriber sub : subs) {
+                    delivered += sub.messages.get();
+                }
+                System.out.printf("maxDelay=%dms %.0f 消息/秒 投递%d/%d %s%n", maxDelay, count / seconds,
+                        delivered, (long) count * subscribers, publisher);
+                assertEquals(count, publisher.getMessages());
+                assertEquals(publisher.getDatagrams() * subscribers, publisher.getSends());
+                if (maxDelay > 0) {
+                    //合并后每个数据报带多条消息，本机不丢包
+                    assertTrue(publisher.messagesPerDatagram() > 5);
+                    for (Subscriber sub : subs) {
+                        assertEquals(count, sub.messages.get());
+                        assertEquals(0, sub.gaps.get());
+                        assertEquals(0, sub.corrupt.get());
+                    }
+                }
+            }
+        } finally {
+            for (Subscriber sub : subs) {
+                sub.receiver.shutdown();
+            }
+        }
+    }
+
+    //组播：接收端join组，发布端每个数据报只send一次；同时有一个单播订阅者
+    @Test
+    public void test4() throws Exception {
+        NetworkInterface nif = multicastInterface();
+        if (nif == null) {
+            System.out.println("没有支持组播的网卡，跳过");
+            return;
+        }
+        InetAddress group = InetAddress.getByName("239.255.73.21");
+        Subscriber multicast = new Subscriber();
+        Subscriber unicast = new Subscriber();
+        try {
+            multicast.receiver.join(group, nif);
+            UdpPublisher publisher = new UdpPublisher();
+            publisher.setMulticastInterface(nif);
+            publisher.addGroup(new InetSocketAddress(group, multicast.receiver.getLocalPort()));
+            publisher.addSubscriber(new InetSocketAddress("127.0.0.1", unicast.receiver.getLocalPort()));
+            publisher.start();
+            int count = 5000;
+            publish(publisher, count);
+            publisher.shutdown();
+            awaitAll(Collections.singletonList(unicast), count);
+            awaitAll(Collections.singletonList(multicast), count);
+            System.out.println("组播(" + nif.getName() + ") " + publisher);
+            assertEquals(count, unicast.messages.get());
+            assertEquals(count, multicast.messages.get());
+            assertEquals(0, multicast.gaps.get());
+            assertEquals(publisher.getDatagrams() * 2, publisher.getSends());
+        } finally {
+            multicast.receiver.shutdown();
+            unicast.receiver.shutdown();
+        }
+    }
+
+    //消息内容是自己的序号，长度16~64字节，每发20条停1ms，让一部分数据报等满延迟预算再发
+    private static void publish(UdpPublisher publisher, int count) throws InterruptedException {
+        Random random = new Random(5);
+        ByteBuffer message = ByteBuffer.allocateDirect(64);
+        for (int i = 0; i < count; i++) {
+            message.clear();
+            message.putLong(i);
+            message.position(16 + random.nextInt(49));
+            message.flip();
+            publisher.publish(message);
+            if (i % 20 == 19) {
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    private static void awaitAll(List<Subscriber> subs, int count) throws InterruptedException {
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        for (Subscriber sub : subs) {
+            while (sub.messages.get() < count && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+        }
+    }
+
+    private static NetworkInterface multicastInterface() throws Exception {
+        for (NetworkInterface nif : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (nif.isUp() && nif.supportsMulticast() && !nif.isVirtual()
+                    && Collections.list(nif.getInetAddresses()).stream().anyMatch(a -> a.getAddress().length == 4)) {
+                return nif;
+            }
+        }
+        return null;
+    }
+
+    //截断或不是本格式的数据报：decode()返回-1，不交出任何消息
+    @Test
+    public void test5() {
+        ByteBuffer valid = ByteBuffer.allocate(UdpPublisher.HEADER + 2 + 3 + 2 + 1);
+        valid.putLong(7).putShort((short) 2).putShort((short) 3).put(new byte[]{1, 2, 3}).putShort((short) 1).put((byte) 4).flip();
+        List<Integer> lengths = new ArrayList<>();
+        assertEquals(7, UdpPublisher.decode(valid.duplicate(), message -> lengths.add(message.remaining())));
+        assertEquals(List.of(3, 1), lengths);
+        lengths.clear();
+
+        List<ByteBuffer> malformed = new ArrayList<>();
+        //头部不完整
+        malformed.add(ByteBuffer.allocate(0));
+        malformed.add(ByteBuffer.wrap(new byte[UdpPublisher.HEADER - 1]));
+        //在头部之后的每个位置截断：消息的长度字段或内容不完整
+        for (int end = UdpPublisher.HEADER; end < valid.limit(); end++) {
+            ByteBuffer truncated = valid.duplicate();
+            truncated.limit(end);
+            malformed.add(truncated);
+        }
+        //count比实际多，长度越界，末尾多出字节
+        ByteBuffer tooMany = ByteBuffer.allocate(valid.limit());
+        tooMany.put(valid.duplicate()).putShort(8, (short) 3).flip();
+        malformed.add(tooMany);
+        ByteBuffer tooLong = ByteBuffer.allocate(valid.limit());
+        tooLong.put(valid.duplicate()).putShort(UdpPublisher.HEADER, (short) 0xFFFF).flip();
+        malformed.add(tooLong);
+        ByteBuffer trailing = ByteBuffer.allocate(valid.limit() + 1);
+        trailing.put(valid.duplicate()).put((byte) 0).flip();
+        malformed.add(trailing);
+        for (ByteBuffer datagram : malformed) {
+            assertEquals(-1, UdpPublisher.decode(datagram, message -> lengths.add(message.remaining())));
+        }
+        assertTrue(lengths.isEmpty());
+    }
+
+    //一个订阅者：检查数据报seq是否连续、消息是否按序号到达
+    private static class Subscriber {
+        final AtomicLong messages = new AtomicLong();
+        final AtomicLong gaps = new AtomicLong();
+        final AtomicLong corrupt = new AtomicLong();
+        final UdpReceiver receiver;
+        private long nextSeq;
+
+        Subscriber() throws Exception {
+            receiver = new UdpReceiver(0, 1, 16, UdpPublisher.DEFAULT_MAX_DATAGRAM, batch -> {
+                for (int i = 0; i < batch.size(); i++) {
+                    long seq = UdpPublisher.decode(batch.packet(i), message -> {
+                        if (message.getLong(0) != messages.getAndIncrement()) {
+                            corrupt.incrementAndGet();
+                        }
+                    });
+                    if (seq < 0) {
+                        corrupt.incrementAndGet();
+                        continue;
+                    }
+                    if (seq != nextSeq) {
+                        gaps.incrementAndGet();
+                    }
+                    nextSeq = seq + 1;
+                }
+            });
+            receiver.start();
+        }
+
+        void reset() {
+            messages.set(0);
+            gaps.set(0);
+            corrupt.set(0);
+            nextSeq = 0;
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package com.zy.nio;
+
+import com.zy.nio.protocol.UploadClient;
+import com.zy.nio.protocol.UploadHandler;
+import com.zy.nio.protocol.UploadProtocol;
+import com.zy.nio.protocol.UploadServer;
+import com.zy.nio.server.ReactorServer;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 多文件上传协议：长度前缀的帧格式，一个连接上流水线发送多个文件，服务端逐个确认
+ * TestBlockingNIO.client()/server()一个连接只能传一个文件，靠关闭连接表示文件结束
+ * 断点续传：连接中断后只补发服务端没有的部分；大文件分区间多连接并行上传
+ */
+public class TestUpload {
+
+    private static final int FILES = 500;
+
+    //同一个连接上连续上传500次1.jpg，与每个文件一个连接对比
+    @Test
+    public void test1() throws Exception {
+        Path dir = Files.createTempDirectory("nio-upload");
+        UploadServer server = new UploadServer(0, dir);
+        server.start();
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", server.getLocalPort());
+        Path file = Paths.get("1.jpg");
+        try {
+            List<Path> files = new ArrayList<>();
+            List<String> names = new ArrayList<>();
+            for (int i = 0; i < FILES; i++) {
+                files.add(file);
+                names.add("img-" + i + ".jpg");
+            }
+            //一个持久连接，流水线发送
+            long start = System.nanoTime();
+            List<UploadProtocol.Ack> acks;
+            try (UploadClient client = new UploadClient(address)) {
+                acks = client.uploadAll(files, names);
+            }
+            long pipelined = System.nanoTime() - start;
+            assertEquals(FILES, acks.size());
+            for (UploadProtocol.Ack ack : acks) {
+                assertTrue(ack.toString(), ack.isOk());
+            }
+
+            //每个文件一个连接，等确认后再发下一个
+            start = System.nanoTime();
+            for (int i = 0; i < FILES; i++) {
+                try (UploadClient client = new UploadClient(address)) {
+                    client.send(file, "single-" + i + ".jpg");
+                    assertTrue(client.readAck().isOk());
+                }
+            }
+            long perConnection = System.nanoTime() - start;
+
+            System.out.printf("流水线: %.1f 文件/秒, 每文件一个连接: %.1f 文件/秒%n",
+                    FILES * 1e9 / pipelined, FILES * 1e9 / perConnection);
+            assertEquals(Files.size(file), Files.size(dir.resolve("img-" + (FILES - 1) + ".jpg")));
+        } finally {
+            server.shutdown();
+            TestTransfer.deleteDir(dir);
+        }
+    }
+
+    //非阻塞上传服务端：2个worker线程同时处理2000个连接上的上传，确认通过OP_WRITE发送
+    @Test
+    public void test2() throws Exception {
+        Path dir = Files.createTempDirectory("nio-upload");
+        UploadHandler handler = new UploadHandler(dir);
+        ReactorServer server = new ReactorServer(0, 2, ReactorServer.Balance.LEAST_LOADED, handler);
+        server.start();
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", server.getLocalPort());
+        int clientThreads = 4;
+        int connectionsPerThread = 500;
+        Path file = Paths.get("2.txt");
+        try {
+            long start = System.nanoTime();
+            List<Thread> threads = new ArrayList<>();
+            int[] failures = new int[1];
+            for (int t = 0; t < clientThreads; t++) {
+                int id = t;
+                Thread thread = new Thread(() -> {
+                    List<UploadClient> clients = new ArrayList<>();
+                    try {
+                        //先在所有连接上发出文件，再逐个读取确认，服务端同一时刻持有全部连接
+                        for (int i = 0; i < connectionsPerThread; i++) {
+                            UploadClient client = new UploadClient(address);
+                            clients.add(client);
+                            client.send(file, "t" + id + "-" + i + ".txt");
+                        }
+                        for (UploadClient client : clients) {
+                            if (!client.readAck().isOk()) {
+                                synchronized (failures) {
+                                    failures[0]++;
+                                }
+                            }
+                            client.close();
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        synchronized (failures) {
+                            failures[0]++;
+                        }
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%d个上传, %.1f 文件/秒, 服务端收到 %d 个文件%n", clientThreads * connectionsPerThread,
+                    clientThreads * connectionsPerThread / seconds, handler.getFilesReceived());
+            assertEquals(0, failures[0]);
+            assertEquals(clientThreads * connectionsPerThread, handler.getFilesReceived());
+        } finally {
+            server.shutdown();
+            TestTransfer.deleteDir(dir);
+        }
+    }
+
+    //传到一半连接断开，服务端重启后询问断点，只补发剩下的部分
+    @Test
+    public void test3() throws Exception {
+        Path dir = Files.createTempDirectory("nio-upload");
+        Path file = Paths.get("1.jpg");
+        byte[] data = Files.readAllBytes(file);
+        CRC32C crc = new CRC32C();
+        crc.update(data);
+        int half = data.length / 2;
+        try {
+            ReactorServer server = new ReactorServer(0, 1, ReactorServer.Balance.ROUND_ROBIN, new UploadHandler(dir));
+            server.start();
+            try (SocketChannel sChannel = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.getLocalPort()))) {
+                ByteBuffer header = UploadProtocol.encodeRangeHeader(
+                        new UploadProtocol.RangeHeader("resume.jpg", data.length, crc.getValue(), 0, data.length));
+                ByteBuffer body = ByteBuffer.wrap(data, 0, half);
+                while (header.hasRemaining() || body.hasRemaining()) {
+                    sChannel.write(new ByteBuffer[]{header, body});
+                }
+            }
+            //等服务端处理完连接中断，记下已收到的区间
+            Path idx = dir.resolve("resume.jpg.part.idx");
+            long deadline = System.nanoTime() + 5_000_000_000L;
+            while ((!Files.exists(idx) || Files.size(idx) < 32) && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            server.shutdown();
+
+            //重启后从.part.idx恢复断点
+            server = new ReactorServer(0, 1, ReactorServer.Balance.ROUND_ROBIN, new UploadHandler(dir));
+            server.start();
+            try (UploadClient client = new UploadClient(new InetSocketAddress("127.0.0.1", server.getLocalPort()))) {
+                long offset = client.queryOffset("resume.jpg", data.length, crc.getValue());
+                System.out.printf("断点=%d, 需要补发%d字节(共%d字节)%n", offset, data.length - offset, data.length);
+                assertEquals(half, offset);
+                UploadProtocol.Ack ack = client.resume(file, "resume.jpg");
+                assertTrue(ack.toString(), ack.isOk());
+            } finally {
+                server.shutdown();
+            }
+            assertArrayEquals(data, Files.readAllBytes(dir.resolve("resume.jpg")));
+            assertFalse(Files.exists(dir.resolve("resume.jpg.part")));
+            assertFalse(Files.exists(dir.resolve("resume.jpg.part.idx")));
+        } finally {
+            TestTransfer.deleteDir(dir);
+        }
+    }
+
+    //64MB文件分4个区间，4个连接并行上传，收齐后校验并改名
+    @Test
+    public void test4() throws Exception {
+        Path dir = Files.createTempDirectory("nio-upload");
+        Path src = Files.createTempFile("nio-upload", ".bin");
+        Files.delete(src);
+        TestTransfer.writeRandomFile(src, 64L * 1024 * 1024);
+        UploadServer server = new UploadServer(0, dir);
+        server.start();
+        try {
+            InetSocketAddress address = new InetSocketAddress("127.0.0.1", server.getLocalPort());
+            for (int parts : new int[]{1, 4}) {
+                String name = "big-" + parts + ".bin";
+                long start = System.nanoTime();
+                UploadProtocol.Ack ack = UploadClient.uploadParallel(address, src, name, parts);
+                System.out.printf("%d个区间: %.1f ms%n", parts, (System.nanoTime() - start) / 1e6);
+                assertTrue(ack.toString(), ack.isOk());
+                assertEquals(Files.size(src), Files.size(dir.resolve(name)));
+            }
+            assertArrayEquals(Files.readAllBytes(src), Files.readAllBytes(dir.resolve("big-4.bin")));
+        } finally {
+            server.shutdown();
+            Files.delete(src);
+            TestTransfer.deleteDir(dir);
+        }
+    }
+
+    //内容在传输中被改动：尾部的CRC32C对不上，两种服务端都回复CHECKSUM_MISMATCH并删除文件
+    @Test
+    public void test5() throws Exception {
+        Path dir = Files.createTempDirectory("nio-upload");
+        byte[] data = Files.readAllBytes(Paths.get("1.txt"));
+        CRC32C crc = new CRC32C();
+        crc.update(data);
+        UploadServer blocking = new UploadServer(0, dir);
+        blocking.start();
+        ReactorServer reactor = new ReactorServer(0, 1, ReactorServer.Balance.ROUND_ROBIN, new UploadHandler(dir));
+        reactor.start();
+        try {
+            for (int port : new int[]{blocking.getLocalPort(), reactor.getLocalPort()}) {
+                try (SocketChannel sChannel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port))) {
+                    String name = "corrupt-" + port + ".txt";
+                    ByteBuffer header = UploadProtocol.encodeFileHeader(
+                            new UploadProtocol.FileHeader(name, data.length, UploadProtocol.CHECKSUM_TRAILER));
+                    byte[] corrupted = data.clone();
+                    corrupted[data.length / 2] ^= 1;
+                    ByteBuffer body = ByteBuffer.wrap(corrupted);
+                    ByteBuffer trailer = UploadProtocol.encodeTrailer(crc.getValue());
+                    while (trailer.hasRemaining()) {
+                        sChannel.write(new ByteBuffer[]{header, body, trailer});
+                    }
+                    ByteBuffer reply = UploadProtocol.readHeader(sChannel);
+                    UploadProtocol.Ack ack = UploadProtocol.decodeAck(reply);
+                    System.out.println(ack);
+                    assertEquals(UploadProtocol.STATUS_CHECKSUM_MISMATCH, ack.getStatus());
+                    assertFalse(Files.exists(dir.resolve(name)));
+                }
+                //正常上传：客户端返回的校验和与服务端确认的一致
+                try (UploadClient client = new UploadClient(new InetSocketAddress("127.0.0.1", port))) {
+                    long sent = client.send(Paths.get("1.txt"), "ok-" + port + ".txt");
+                    UploadProtocol.Ack ack = client.readAck();
+                    assertTrue(ack.toString(), ack.isOk());
+                    assertEquals(crc.getValue(), sent);
+                    assertEquals(sent, ack.getChecksum());
+                }
+            }
+        } finally {
+            blocking.shutdown();
+            reactor.shutdown();
+            TestTransfer.deleteDir(dir);
+        }
+    }
+
+    //ReactorServer上的并行区间上传：收齐后的校验在后台线程完成；放弃的上传闲置超时后关闭.part，续传时从.part.idx重新打开
+    @Test
+    public void test6() throws Exception {
+        Path dir = Files.createTempDirectory("nio-upload");
+        Path src = Files.createTempFile("nio-upload", ".bin");
+        Files.delete(src);
+        TestTransfer.writeRandomFile(src, 16L * 1024 * 1024);
+        byte[] data = Files.readAllBytes(Paths.get("1.jpg"));
+        CRC32C crc = new CRC32C();
+        crc.update(data);
+        UploadHandler handler = new UploadHandler(dir, 200, TimeUnit.MILLISECONDS);
+        ReactorServer server = new ReactorServer(0, 2, ReactorServer.Balance.ROUND_ROBIN, handler);
+        server.start();
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", server.getLocalPort());
+        try {
+            UploadProtocol.Ack ack = UploadClient.uploadParallel(address, src, "big.bin", 4);
+            assertTrue(ack.toString(), ack.isOk());
+            assertArrayEquals(Files.readAllBytes(src), Files.readAllBytes(dir.resolve("big.bin")));
+
+            try (SocketChannel sChannel = SocketChannel.open(address)) {
+                ByteBuffer header = UploadProtocol.encodeRangeHeader(
+                        new UploadProtocol.RangeHeader("idle.jpg", data.length, crc.getValue(), 0, data.length));
+                ByteBuffer body = ByteBuffer.wrap(data, 0, data.length / 2);
+                while (header.hasRemaining() || body.hasRemaining()) {
+                    sChannel.write(new ByteBuffer[]{header, body});
+                }
+            }
+            //先等服务端记下中断的区间，再等闲置的.part被关闭
+            Path idx = dir.resolve("idle.jpg.part.idx");
+            long deadline = System.nanoTime() + 5_000_000_000L;
+            while ((!Files.exists(idx) || Files.size(idx) < 32) && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(32, Files.size(idx));
+            while (handler.getOpenPartFiles() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, handler.getOpenPartFiles());
+            try (UploadClient client = new UploadClient(address)) {
+                assertEquals(data.length / 2, client.queryOffset("idle.jpg", data.length, crc.getValue()));
+                //查询只读.part.idx，没见过的文件名不留下.part，也不占用文件通道
+                assertEquals(0, client.queryOffset("never.bin", 100, 1));
+                assertFalse(Files.exists(dir.resolve("never.bin.part")));
+                assertEquals(0, handler.getOpenPartFiles());
+                ack = client.resume(Paths.get("1.jpg"), "idle.jpg");
+                assertTrue(ack.toString(), ack.isOk());
+            }
+            assertArrayEquals(data, Files.readAllBytes(dir.resolve("idle.jpg")));
+            assertEquals(2, handler.getFilesReceived());
+        } finally {
+            server.shutdown();
+            Files.delete(src);
+            TestTransfer.deleteDir(dir);
+        }
+        //ReactorServer.shutdown()关闭了处理器，后台线程随之退出
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (partialUploadThreads() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, partialUploadThreads());
+    }
+
+    private static long partialUploadThreads() {
+        return Thread.getAllStackTraces().keySet().stream().filter(t -> t.getName().equals("partial-uploads")).count();
+    }
+
+    //声明的头部长度放不下定长字段的帧：只关闭发送它的连接，同一个worker上的其他连接照常上传
+    @Test(timeout = 60_000)
+    public void test7() throws Exception {
+        Path dir = Files.createTempDirectory("nio-upload");
+        UploadServer blocking = new UploadServer(0, dir);
+        blocking.start();
+        ReactorServer reactor = new ReactorServer(0, 1, ReactorServer.Balance.ROUND_ROBIN, new UploadHandler(dir));
+        reactor.start();
+        try {
+            for (int port : new int[]{blocking.getLocalPort(), reactor.getLocalPort()}) {
+                InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+                try (UploadClient client = new UploadClient(address)) {
+                    for (byte type : new byte[]{UploadProtocol.TYPE_FILE, UploadProtocol.TYPE_QUERY, UploadProtocol.TYPE_RANGE}) {
+                        try (SocketChannel sChannel = SocketChannel.open(address)) {
+                            //headerLen=2，只有nameLen=0
+                            ByteBuffer frame = ByteBuffer.allocate(UploadProtocol.PREFIX_LENGTH + 2);
+                            frame.putInt(UploadProtocol.MAGIC).put(type).putShort((short) 2).putShort((short) 0);
+                            frame.flip();
+                            while (frame.hasRemaining()) {
+                                sChannel.write(frame);
+                            }
+                            assertClosed(sChannel);
+                        }
+                    }
+                    long sent = client.send(Paths.get("1.txt"), "after-" + port + ".txt");
+                    UploadProtocol.Ack ack = client.readAck();
+                    assertTrue(ack.toString(), ack.isOk());
+                    assertEquals(sent, ack.getChecksum());
+                }
+            }
+        } finally {
+            blocking.shutdown();
+            reactor.shutdown();
+            TestTransfer.deleteDir(dir);
+        }
+    }
+
+    //服务端关闭了连接：读到EOF或连接被重置，10秒内没有结果算失败
+    static void assertClosed(SocketChannel sChannel) throws IOException {
+        sChannel.socket().setSoTimeout(10_000);
+        try {
+            assertEquals(-1, sChannel.socket().getInputStream().read());
+        } catch (SocketTimeoutException e) {
+            throw e;
+        } catch (IOException ignored) {
+            //连接被重置
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.zy.nio.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 直接缓冲区池
+ * 一.按容量分级：从minSize开始每级翻倍直到maxSize，申请时向上取整到所在级别，超过maxSize的不入池
+ * 二.slab分配：某一级没有空闲缓冲区时，一次分配一整块直接内存再切成多个同级缓冲区
+ * 三.两层缓存：先查线程本地缓存(无锁)，再查全局空闲队列，最后才分配新的slab
+ * 四.泄漏检测：句柄被GC时还没有release()就记为泄漏，PARANOID级别会打印申请时的调用栈
+ *
+ * 直接缓冲区读写通道时不需要JDK再拷贝到临时直接缓冲区，配合池化也避免了每次allocate产生的垃圾
+ */
+public class BufferPool {
+
+    public enum LeakDetection {
+        //不检测
+        DISABLED,
+        //只计数
+        SIMPLE,
+        //计数并记录申请时的调用栈
+        PARANOID
+    }
+
+    private static final BufferPool DEFAULT = new BufferPool(512, 1024 * 1024, 256 * 1024, 32);
+
+    private final int minSize;
+    private final int maxSize;
+    private final int slabSize;
+    private final int threadCacheSize;
+    private final ConcurrentLinkedDeque<ByteBuffer>[] shared;
+    private final ThreadLocal<ArrayDeque<ByteBuffer>[]> threadCache;
+    private volatile LeakDetection leakDetection = LeakDetection.SIMPLE;
+
+    private final LongAdder threadCacheHits = new LongAdder();
+    private final LongAdder sharedHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder unpooled = new LongAdder();
+    private final LongAdder releases = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+
+    /**
+     * @param minSize         最小级别容量，必须是2的幂
+     * @param maxSize         最大级别容量，必须是2的幂
+     * @param slabSize        每次向系统申请的直接内存大小，小于级别容量时按级别容量申请
+     * @param threadCacheSize 每个线程每个级别最多缓存的缓冲区个数
+     */
+    public BufferPool(int minSize, int maxSize, int slabSize, int threadCacheSize) {
+        if (Integer.bitCount(minSize) != 1 || Integer.bitCount(maxSize) != 1 || minSize > maxSize) {
+            throw new IllegalArgumentException("sizes must be powers of two: " + minSize + ", " + maxSize);
+        }
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.slabSize = slabSize;
+        this.threadCacheSize = threadCacheSize;
+        int classes = Integer.numberOfTrailingZeros(maxSize) - Integer.numberOfTrailingZeros(minSize) + 1;
+        //泛型数组只能这样创建，元素都是ConcurrentLinkedDeque<ByteBuffer>
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ConcurrentLinkedDeque<ByteBuffer>[] shared = new ConcurrentLinkedDeque[classes];
+        for (int i = 0; i < classes; i++) {
+            shared[i] = new ConcurrentLinkedDeque<>();
+        }
+        this.shared = shared;
+        this.threadCache = ThreadLocal.withInitial(() -> {
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            ArrayDeque<ByteBuffer>[] cache = new ArrayDeque[classes];
+            for (int i = 0; i < classes; i++) {
+                cache[i] = new ArrayDeque<>(threadCacheSize);
+            }
+            return cache;
+        });
+    }
+
+    /**
+     * 全局默认池：512B ~ 1MB，slab 256KB
+     */
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    public void setLeakDetection(LeakDetection leakDetection) {
+        this.leakDetection = leakDetection;
+    }
+
+    /**
+     * 借出一个容量不小于size的直接缓冲区，position=0，limit=size
+     */
+    public PooledBuffer acquire(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be positive: " + size);
+        }
+        int sizeClass = sizeClass(size);
+        ByteBuffer buf;
+        if (sizeClass < 0) {
+            unpooled.increment();
+            allocatedBytes.addAndGet(size);
+            buf = ByteBuffer.allocateDirect(size);
+        } else {
+            buf = threadCache.get()[sizeClass].pollLast();
+            if (buf != null) {
+                threadCacheHits.increment();
+            } else if ((buf = shared[sizeClass].pollLast()) != null) {
+                sharedHits.increment();
+            } else {
+                misses.increment();
+                buf = allocateSlab(sizeClass);
+            }
+        }
+        buf.clear().limit(size);
+        return track(buf, sizeClass);
+    }
+
+    private PooledBuffer track(ByteBuffer buf, int sizeClass) {
+        LeakDetection level = leakDetection;
+        if (level == LeakDetection.DISABLED) {
+            return new PooledBuffer(this, buf, sizeClass, null);
+        }
+        Throwable trace = level == LeakDetection.PARANOID ? new Throwable("buffer acquired here") : null;
+        return new PooledBuffer(this, buf, sizeClass, new PooledBuffer.LeakTracker(this, buf.capacity(), trace));
+    }
+
+    private ByteBuffer allocateSlab(int sizeClass) {
+        int size = minSize << sizeClass;
+        int count = Math.max(1, slabSize / size);
+        ByteBuffer slab = ByteBuffer.allocateDirect(size * count);
+        allocatedBytes.addAndGet((long) size * count);
+        //切成count个同级缓冲区，第一个直接返回，其余放入全局队列
+        ByteBuffer first = null;
+        for (int i = 0; i < count; i++) {
+            slab.limit((i + 1) * size).position(i * size);
+            ByteBuffer slice = slab.slice();
+            if (first == null) {
+                first = slice;
+            } else {
+                shared[sizeClass].offerLast(slice);
+            }
+        }
+        return first;
+    }
+
+    void recycle(ByteBuffer buf, int sizeClass) {
+        releases.increment();
+        if (sizeClass < 0) {
+            //未入池的大缓冲区交给GC
+            return;
+        }
+        ArrayDeque<ByteBuffer> local = threadCache.get()[sizeClass];
+        if (local.size() < threadCacheSize) {
+            local.offerLast(buf);
+        } else {
+            shared[sizeClass].offerLast(buf);
+        }
+    }
+
+    void reportLeak(int capacity, Throwable trace) {
+        leaks.increment();
+        System.err.println("BufferPool LEAK: " + capacity + " byte buffer was not released before GC");
+        if (trace != null) {
+            trace.printStackTrace();
+        }
+    }
+
+    private int sizeClass(int size) {
+        if (size > maxSize) {
+            return -1;
+        }
+        if (size <= minSize) {
+            return 0;
+        }
+        int rounded = Integer.highestOneBit(size - 1) << 1;
+        return Integer.numberOfTrailingZeros(rounded) - Integer.numberOfTrailingZeros(minSize);
+    }
+
+    public Stats stats() {
+        return new Stats(threadCacheHits.sum(), sharedHits.sum(), misses.sum(), unpooled.sum(),
+                releases.sum(), leaks.sum(), allocatedBytes.get());
+    }
+
+    /**
+     * 池的统计快照
+     */
+    public static final class Stats {
+        public final long threadCacheHits;
+        public final long sharedHits;
+        public final long misses;
+        public final long unpooled;
+        public final long releases;
+        public final long leaks;
+        public final long allocatedBytes;
+
+        Stats(long threadCacheHits, long sharedHits, long misses, long unpooled, long releases, long leaks, long allocatedBytes) {
+            this.threadCacheHits = threadCacheHits;
+            this.sharedHits = sharedHits;
+            this.misses = misses;
+            this.unpooled = unpooled;
+            this.releases = releases;
+            this.leaks = leaks;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        public long acquires() {
+            return threadCacheHits + sharedHits + misses + unpooled;
+        }
+
+        /**
+         * 命中率：不需要向系统申请新内存的借用占比
+         */
+        public double hitRate() {
+            long total = acquires();
+            return total == 0 ? 0 : (double) (threadCacheHits + sharedHits) / total;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("acquires=%d threadCacheHits=%d sharedHits=%d misses=%d unpooled=%d hitRate=%.2f%% "
+                            + "releases=%d leaks=%d allocated=%dKB",
+                    acquires(), threadCacheHits, sharedHits, misses, unpooled, hitRate() * 100,
+                    releases, leaks, allocatedBytes / 1024);
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package com.zy.nio.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 组合缓冲区：把多个ByteBuffer按顺序看成一段连续的可读数据，追加时不复制
+ * 1.addComponent()直接引用调用方的缓冲区(例如worker的读缓冲区)，解析出的消息如果整个落在一个分量里，
+ *   readSlice()返回该分量的slice，不复制
+ * 2.借来的分量只在当前回调内有效，回调结束前调用retain()，只把还没消费的尾部复制到从池中借的分量里
+ * 3.跨分量的消息由readSlice()复制到调用方给的缓冲区，这是唯一一次拼接
+ * 4.读完的池分量不立即归还，readSlice()返回的slice可能还指向它，由调用方在消息处理完后调用releaseDrained()
+ * 不是线程安全的，和连接一样只在所属worker线程中使用
+ */
+public final class CompositeBuffer {
+
+    private final BufferPool pool;
+    private final int componentSize;
+    //分量都处于读模式：position是读位置，limit是写位置
+    private ByteBuffer[] components = new ByteBuffer[4];
+    //分量对应的池句柄，借来的分量为null
+    private PooledBuffer[] owners = new PooledBuffer[4];
+    private int count;
+    //已经读完、等releaseDrained()归还的池分量
+    private PooledBuffer[] drained = new PooledBuffer[4];
+    private int drainedCount;
+    //retain()时暂存借来的分量
+    private ByteBuffer[] borrowed = new ByteBuffer[4];
+    private int readable;
+    private long copiedBytes;
+
+    public CompositeBuffer() {
+        this(BufferPool.getDefault(), 16 * 1024);
+    }
+
+    /**
+     * @param componentSize retain()时从池中借的分量大小
+     */
+    public CompositeBuffer(BufferPool pool, int componentSize) {
+        this.pool = pool;
+        this.componentSize = componentSize;
+    }
+
+    /**
+     * 追加buf的剩余部分，不复制；之后由本对象推进buf的position
+     */
+    public void addComponent(ByteBuffer buf) {
+        if (buf.hasRemaining()) {
+            add(buf, null);
+        }
+    }
+
+    private void add(ByteBuffer buf, PooledBuffer owner) {
+        if (count == components.length) {
+            components = Arrays.copyOf(components, count * 2);
+            owners = Arrays.copyOf(owners, count * 2);
+        }
+        components[count] = buf;
+        owners[count] = owner;
+        count++;
+        readable += buf.remaining();
+    }
+
+    public int readableBytes() {
+        return readable;
+    }
+
+    public boolean isReadable() {
+        return readable > 0;
+    }
+
+    /**
+     * 相对读位置index处的字节，不移动读位置
+     */
+    public byte getByte(int index) {
+        if (index < 0 || index >= readable) {
+            throw new IndexOutOfBoundsException("index: " + index + ", readable: " + readable);
+        }
+        for (int i = 0; i < count; i++) {
+            ByteBuffer c = components[i];
+            if (index < c.remaining()) {
+                return c.get(c.position() + index);
+            }
+            index -= c.remaining();
+        }
+        throw new IllegalStateException();
+    }
+
+    /**
+     * 从from开始查找pattern，返回相对读位置的下标，找不到返回-1
+     */
+    public int indexOf(byte[] pattern, int from) {
+        int base = 0;
+        for (int i = 0; i < count; i++) {
+            ByteBuffer c = components[i];
+            int start = Math.max(from - base, 0);
+            for (int j = start; j < c.remaining(); j++) {
+                if (c.get(c.position() + j) == pattern[0] && matches(pattern, base + j)) {
+                    return base + j;
+                }
+            }
+            base += c.remaining();
+        }
+        return -1;
+    }
+
+    private boolean matches(byte[] pattern, int index) {
+        if (index + pattern.length > readable) {
+            return false;
+        }
+        for (int k = 1; k < pattern.length; k++) {
+            if (getByte(index + k) != pattern[k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 接下来的length字节是否都在第一个分量里，是的话readSlice()不需要拼接
+     */
+    public boolean isContiguous(int length) {
+        return count > 0 && components[0].remaining() >= length;
+    }
+
+    /**
+     * 读取length字节：整个落在第一个分量里时返回它的slice(不复制)，否则复制到assembly并返回assembly
+     * 返回的slice在releaseDrained()之前有效
+     *
+     * @param assembly 拼接用的缓冲区，容量不小于length；isContiguous(length)时不会用到，可以传null
+     */
+    public ByteBuffer readSlice(int length, ByteBuffer assembly) {
+        if (length > readable) {
+            throw new IndexOutOfBoundsException("length: " + length + ", readable: " + readable);
+        }
+        if (isContiguous(length)) {
+            ByteBuffer first = components[0];
+            ByteBuffer slice = first.slice();
+            slice.limit(length);
+            skip(length);
+            return slice;
+        }
+        assembly.clear().limit(length);
+        while (assembly.hasRemaining()) {
+            ByteBuffer first = components[0];
+            int n = Math.min(first.remaining(), assembly.remaining());
+            int limit = first.limit();
+            first.limit(first.position() + n);
+            assembly.put(first);
+            first.limit(limit);
+            readable -= n;
+            copiedBytes += n;
+            discardReadComponents();
+        }
+        return assembly.flip();
+    }
+
+    /**
+     * 跳过n字节，读完的池分量留到releaseDrained()时归还
+     */
+    public void skip(int n) {
+        if (n > readable) {
+            throw new IndexOutOfBoundsException("skip: " + n + ", readable: " + readable);
+        }
+        readable -= n;
+        while (n > 0) {
+            ByteBuffer first = components[0];
+            int step = Math.min(n, first.remaining());
+            first.position(first.position() + step);
+            n -= step;
+            discardReadComponents();
+        }
+    }
+
+    private void discardReadComponents() {
+        int drained = 0;
+        while (drained < count && !components[drained].hasRemaining()) {
+            if (owners[drained] != null) {
+                //消息正好在分量末尾结束时，交出去的slice还指向它，归还后同一线程的下一次acquire()会拿到同一块内存
+                if (drainedCount == this.drained.length) {
+                    this.drained = Arrays.copyOf(this.drained, drainedCount * 2);
+                }
+                this.drained[drainedCount++] = owners[drained];
+            }
+            drained++;
+        }
+        if (drained > 0) {
+            System.arraycopy(components, drained, components, 0, count - drained);
+            System.arraycopy(owners, drained, owners, 0, count - drained);
+            for (int i = count - drained; i < count; i++) {
+                components[i] = null;
+                owners[i] = null;
+            }
+            count -= drained;
+        }
+    }
+
+    /**
+     * 归还已经读完的池分量，之前readSlice()返回的slice随之失效；在处理完这批消息后调用
+     */
+    public void releaseDrained() {
+        for (int i = 0; i < drainedCount; i++) {
+            drained[i].release();
+            drained[i] = null;
+        }
+        drainedCount = 0;
+    }
+
+    /**
+     * 把借来的分量中还没消费的数据复制到池中的分量，之后调用方可以重用自己的缓冲区
+     * 借来的分量总在最后(之前的都已经retain过)，先填满最后一个池分量的空闲空间，不够再借新的
+     */
+    public void retain() {
+        retain(0);
+    }
+
+    /**
+     * 同retain()，sizeHint是正在攒的这条消息的总长度(已知时，例如读到了长度字段)：
+     * 新借的分量至少能放下整条消息，攒齐后它在一个分量里，readSlice()不必再拼接
+     */
+    public void retain(int sizeHint) {
+        int first = count;
+        while (first > 0 && owners[first - 1] == null) {
+            first--;
+        }
+        int n = count - first;
+        if (n == 0) {
+            return;
+        }
+        if (borrowed.length < n) {
+            borrowed = new ByteBuffer[n];
+        }
+        for (int i = 0; i < n; i++) {
+            borrowed[i] = components[first + i];
+            components[first + i] = null;
+            readable -= borrowed[i].remaining();
+        }
+        count = first;
+        if (sizeHint > 0 && count > 0 && !(count == 1 && components[0].capacity() - components[0].position() >= sizeHint)) {
+            consolidate(sizeHint);
+        }
+        for (int i = 0; i < n; i++) {
+            copiedBytes += borrowed[i].remaining();
+            append(borrowed[i], sizeHint);
+            borrowed[i] = null;
+        }
+    }
+
+    /**
+     * 从src复制length字节追加到池分量(src前进length)，用于把一条已知长度的消息补齐到同一个分量里；
+     * 只能在没有借来的分量时调用
+     */
+    public void copyFrom(ByteBuffer src, int length, int sizeHint) {
+        if (count > 0 && owners[count - 1] == null) {
+            throw new IllegalStateException("borrowed component not retained");
+        }
+        int limit = src.limit();
+        src.limit(src.position() + length);
+        copiedBytes += length;
+        append(src, sizeHint);
+        src.limit(limit);
+    }
+
+    //把池分量中的数据合并到一个至少capacity大的新分量里
+    private void consolidate(int capacity) {
+        PooledBuffer pooled = pool.acquire(Math.max(componentSize, capacity));
+        ByteBuffer target = pooled.buffer();
+        target.clear();
+        for (int i = 0; i < count; i++) {
+            copiedBytes += components[i].remaining();
+            target.put(components[i]);
+            owners[i].release();
+            components[i] = null;
+            owners[i] = null;
+        }
+        target.flip();
+        count = 0;
+        readable = 0;
+        add(target, pooled);
+    }
+
+    private void append(ByteBuffer src, int sizeHint) {
+        while (src.hasRemaining()) {
+            ByteBuffer last = count == 0 ? null : components[count - 1];
+            if (last == null || last.limit() == last.capacity()) {
+                int size = Math.max(sizeHint - readable, Math.min(src.remaining(), 1024 * 1024));
+                PooledBuffer pooled = pool.acquire(Math.max(componentSize, size));
+                last = pooled.buffer();
+                last.limit(0);
+                add(last, pooled);
+            }
+            int n = Math.min(src.remaining(), last.capacity() - last.limit());
+            int position = last.position();
+            int limit = src.limit();
+            last.position(last.limit()).limit(last.limit() + n);
+            src.limit(src.position() + n);
+            last.put(src);
+            src.limit(limit);
+            last.position(position);
+            readable += n;
+        }
+    }
+
+    /**
+     * 累计复制的字节数(retain与跨分量拼接)，与读到的总字节数比较可以看出零拷贝的比例
+     */
+    public long copiedBytes() {
+        return copiedBytes;
+    }
+
+    /**
+     * 丢弃所有数据并归还池分量
+     */
+    public void release() {
+        for (int i = 0; i < count; i++) {
+            if (owners[i] != null) {
+                owners[i].release();
+            }
+            components[i] = null;
+            owners[i] = null;
+        }
+        count = 0;
+        readable = 0;
+        releaseDrained();
+    }
+}
@@ -0,0 +1,79 @@
+package com.zy.nio.buffer;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+
+/**
+ * 从BufferPool借出的直接缓冲区句柄，用完必须调用release()归还
+ * 归还之后不能再使用buffer()，否则会和下一个借用者共享同一块内存
+ */
+public final class PooledBuffer {
+
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final BufferPool pool;
+    private final ByteBuffer buffer;
+    private final int sizeClass;
+    private final LeakTracker tracker;
+    private final Cleaner.Cleanable cleanable;
+    private boolean released;
+
+    PooledBuffer(BufferPool pool, ByteBuffer buffer, int sizeClass, LeakTracker tracker) {
+        this.pool = pool;
+        this.buffer = buffer;
+        this.sizeClass = sizeClass;
+        this.tracker = tracker;
+        //句柄不可达时由Cleaner线程执行tracker
+        this.cleanable = tracker == null ? null : CLEANER.register(this, tracker);
+    }
+
+    public ByteBuffer buffer() {
+        if (released) {
+            throw new IllegalStateException("buffer already released");
+        }
+        return buffer;
+    }
+
+    public int capacity() {
+        return buffer.capacity();
+    }
+
+    /**
+     * 归还缓冲区，重复调用无效
+     */
+    public void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        if (tracker != null) {
+            tracker.released = true;
+            cleanable.clean();
+        }
+        pool.recycle(buffer, sizeClass);
+    }
+
+    /**
+     * 泄漏跟踪状态：句柄被GC回收时若还没有release，就记一次泄漏
+     * 注意不能引用PooledBuffer本身，否则句柄永远不会被回收
+     */
+    static final class LeakTracker implements Runnable {
+        private final BufferPool pool;
+        private final int capacity;
+        private final Throwable trace;
+        volatile boolean released;
+
+        LeakTracker(BufferPool pool, int capacity, Throwable trace) {
+            this.pool = pool;
+            this.capacity = capacity;
+            this.trace = trace;
+        }
+
+        @Override
+        public void run() {
+            if (!released) {
+                pool.reportLeak(capacity, trace);
+            }
+        }
+    }
+}
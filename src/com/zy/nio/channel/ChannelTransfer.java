@@ -0,0 +1,308 @@
+package com.zy.nio.channel;
+
+import com.zy.nio.buffer.BufferPool;
+import com.zy.nio.buffer.PooledBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * 分块零拷贝传输
+ * transferTo()/transferFrom()一次调用最多只搬运约2GB(Linux sendfile的上限)，返回值可能小于请求的字节数，
+ * TestChannel.test3那样只调用一次并忽略返回值，大文件会被悄悄截断
+ * 这里按块循环调用直到全部传完：
+ * 1.目标是非阻塞SocketChannel时，写不进去(返回0)就等待OP_WRITE再继续
+ * 2.内核路径不可用(UnsupportedOperationException、第一次调用就抛出IOException或阻塞通道上一直返回0)时，
+ *   退化为直接缓冲区读写；已经传了一部分之后的IOException(对端重置、断开、磁盘错误)直接抛出，不再重试
+ * 需要校验时用transferChecked()/transferFromChecked()：数据经过直接缓冲区的同时计算CRC32C，
+ * 不必传完再把文件完整读一遍；内核搬运的数据不经过用户态，所以这两个方法不走transferTo/transferFrom
+ */
+public class ChannelTransfer {
+
+    //默认每次transferTo的块大小
+    public static final long DEFAULT_CHUNK = 64L * 1024 * 1024;
+    //退化模式使用的缓冲区大小
+    private static final int COPY_BUFFER = 256 * 1024;
+
+    private final long chunkSize;
+
+    public ChannelTransfer() {
+        this(DEFAULT_CHUNK);
+    }
+
+    public ChannelTransfer(long chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * 把整个文件传输到目标通道
+     */
+    public TransferResult transfer(FileChannel in, WritableByteChannel out) throws IOException {
+        return transfer(in, 0, in.size(), out);
+    }
+
+    /**
+     * 把文件[position, position+count)传输到目标通道，目标可以是文件，也可以是阻塞或非阻塞的SocketChannel
+     */
+    public TransferResult transfer(FileChannel in, long position, long count, WritableByteChannel out) throws IOException {
+        long start = System.nanoTime();
+        long done = 0;
+        TransferResult.Mode mode = TransferResult.Mode.ZERO_COPY;
+        Selector selector = null;
+        boolean first = true;
+        IOException unavailable = null;
+        try {
+            while (done < count) {
+                long n;
+                try {
+                    n = in.transferTo(position + done, Math.min(chunkSize, count - done), out);
+                } catch (UnsupportedOperationException e) {
+                    //内核路径不可用
+                    n = -1;
+                } catch (IOException e) {
+                    if (!first || done > 0) {
+                        throw e;
+                    }
+                    //第一次调用就失败，可能是这种通道组合不支持内核路径，用缓冲区复制再试一次
+                    unavailable = e;
+                    n = -1;
+                }
+                first = false;
+                if (n > 0) {
+                    done += n;
+                    continue;
+                }
+                if (n == 0 && isNonBlocking(out)) {
+                    //对端接收缓冲区满了，等可写再继续
+                    if (selector == null) {
+                        selector = Selector.open();
+                    }
+                    awaitWritable(selector, (SelectableChannel) out);
+                    continue;
+                }
+                if (n == 0 && position + done >= in.size()) {
+                    //源文件比预期的短
+                    break;
+                }
+                //剩余部分退化为缓冲区复制
+                long copied;
+                try {
+                    copied = copy(in, position + done, count - done, out, null);
+                } catch (IOException e) {
+                    throw withCause(e, unavailable);
+                }
+                if (copied > 0) {
+                    mode = TransferResult.Mode.BUFFERED;
+                }
+                done += copied;
+                break;
+            }
+        } finally {
+            if (selector != null) {
+                selector.close();
+            }
+        }
+        return new TransferResult(done, System.nanoTime() - start, mode);
+    }
+
+    /**
+     * 从源通道(文件或阻塞的SocketChannel)读取count个字节写入文件的position处
+     */
+    public TransferResult transferFrom(ReadableByteChannel in, FileChannel out, long position, long count) throws IOException {
+        long start = System.nanoTime();
+        long done = 0;
+        TransferResult.Mode mode = TransferResult.Mode.ZERO_COPY;
+        boolean first = true;
+        IOException unavailable = null;
+        while (done < count) {
+            long n;
+            try {
+                n = out.transferFrom(in, position + done, Math.min(chunkSize, count - done));
+            } catch (UnsupportedOperationException e) {
+                n = -1;
+            } catch (IOException e) {
+                if (!first || done > 0) {
+                    throw e;
+                }
+                unavailable = e;
+                n = -1;
+            }
+            first = false;
+            if (n > 0) {
+                done += n;
+                continue;
+            }
+            if (n == 0 && in instanceof FileChannel) {
+                //源文件已经读完
+                break;
+            }
+            //transferFrom无法区分对端关闭与暂时无数据，改用缓冲区读，读到-1为止
+            long copied;
+            try {
+                copied = copyFrom(in, out, position + done, count - done, null);
+            } catch (IOException e) {
+                throw withCause(e, unavailable);
+            }
+            if (copied > 0) {
+                mode = TransferResult.Mode.BUFFERED;
+            }
+            done += copied;
+            break;
+        }
+        return new TransferResult(done, System.nanoTime() - start, mode);
+    }
+
+    //退化复制也失败时，把第一次调用的异常附在后面，不丢失原始原因
+    private static IOException withCause(IOException e, IOException unavailable) {
+        if (unavailable != null) {
+            e.addSuppressed(unavailable);
+        }
+        return e;
+    }
+
+    /**
+     * 非阻塞场景下的单步传输：最多搬运一个块，目标写不进去时返回0，由调用者注册OP_WRITE后再调用
+     */
+    public long transferStep(FileChannel in, long position, long count, WritableByteChannel out) throws IOException {
+        return in.transferTo(position, Math.min(chunkSize, count), out);
+    }
+
+    /**
+     * 带校验的传输：通过直接缓冲区复制文件[position, position+count)，同一个缓冲区写出之前先更新CRC32C，
+     * 结果的getChecksum()就是发出去的数据的校验和
+     */
+    public TransferResult transferChecked(FileChannel in, long position, long count, WritableByteChannel out) throws IOException {
+        long start = System.nanoTime();
+        CRC32C crc = new CRC32C();
+        long done = copy(in, position, count, out, crc);
+        return new TransferResult(done, System.nanoTime() - start, TransferResult.Mode.CHECKED, crc.getValue());
+    }
+
+    /**
+     * 同transferChecked()，与预期的校验和(例如保存过的值)不一致时抛出IOException
+     */
+    public TransferResult transferChecked(FileChannel in, long position, long count, WritableByteChannel out, long expected) throws IOException {
+        return verify(transferChecked(in, position, count, out), expected);
+    }
+
+    /**
+     * 带校验的接收：从源通道读count个字节写入文件的position处，同时计算CRC32C
+     */
+    public TransferResult transferFromChecked(ReadableByteChannel in, FileChannel out, long position, long count) throws IOException {
+        long start = System.nanoTime();
+        CRC32C crc = new CRC32C();
+        long done = copyFrom(in, out, position, count, crc);
+        return new TransferResult(done, System.nanoTime() - start, TransferResult.Mode.CHECKED, crc.getValue());
+    }
+
+    public TransferResult transferFromChecked(ReadableByteChannel in, FileChannel out, long position, long count, long expected) throws IOException {
+        return verify(transferFromChecked(in, out, position, count), expected);
+    }
+
+    private static TransferResult verify(TransferResult result, long expected) throws IOException {
+        if (result.getChecksum() != expected) {
+            throw new IOException(String.format("checksum mismatch: expected %08x, actual %08x", expected, result.getChecksum()));
+        }
+        return result;
+    }
+
+    //buf处于读模式，更新校验和但不移动position
+    private static void update(Checksum checksum, ByteBuffer buf) {
+        if (checksum != null) {
+            int position = buf.position();
+            checksum.update(buf);
+            buf.position(position);
+        }
+    }
+
+    private long copy(FileChannel in, long position, long count, WritableByteChannel out, Checksum checksum) throws IOException {
+        PooledBuffer pooled = BufferPool.getDefault().acquire(COPY_BUFFER);
+        ByteBuffer buf = pooled.buffer();
+        Selector selector = null;
+        long done = 0;
+        try {
+            while (done < count) {
+                buf.clear();
+                if (count - done < buf.capacity()) {
+                    buf.limit((int) (count - done));
+                }
+                int n = in.read(buf, position + done);
+                if (n == -1) {
+                    break;
+                }
+                buf.flip();
+                update(checksum, buf);
+                while (buf.hasRemaining()) {
+                    if (out.write(buf) == 0 && isNonBlocking(out)) {
+                        if (selector == null) {
+                            selector = Selector.open();
+                        }
+                        awaitWritable(selector, (SelectableChannel) out);
+                    }
+                }
+                done += n;
+            }
+        } finally {
+            pooled.release();
+            if (selector != null) {
+                selector.close();
+            }
+        }
+        return done;
+    }
+
+    private long copyFrom(ReadableByteChannel in, FileChannel out, long position, long count, Checksum checksum) throws IOException {
+        PooledBuffer pooled = BufferPool.getDefault().acquire(COPY_BUFFER);
+        ByteBuffer buf = pooled.buffer();
+        long done = 0;
+        try {
+            while (done < count) {
+                buf.clear();
+                if (count - done < buf.capacity()) {
+                    buf.limit((int) (count - done));
+                }
+                if (in.read(buf) == -1) {
+                    break;
+                }
+                buf.flip();
+                update(checksum, buf);
+                while (buf.hasRemaining()) {
+                    done += out.write(buf, position + done);
+                }
+            }
+        } finally {
+            pooled.release();
+        }
+        return done;
+    }
+
+    private static boolean isNonBlocking(WritableByteChannel out) {
+        return out instanceof SelectableChannel && !((SelectableChannel) out).isBlocking();
+    }
+
+    /**
+     * 用一个临时选择器阻塞等待通道可写
+     */
+    private static void awaitWritable(Selector selector, SelectableChannel channel) throws IOException {
+        SelectionKey key = channel.keyFor(selector);
+        if (key == null) {
+            key = channel.register(selector, SelectionKey.OP_WRITE);
+        }
+        selector.select();
+        selector.selectedKeys().clear();
+        if (!key.isValid()) {
+            throw new IOException("channel closed while waiting for OP_WRITE");
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package com.zy.nio.channel;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 连接级压缩：握手协商算法，之后的数据按块压缩
+ * 握手(客户端先发)：preface(8B) count(1B) 算法id(count字节，按客户端偏好排序)，服务端回复选中的算法id(1B)，
+ * 服务端一个都不支持时回复NONE，之后原样传输
+ * 服务端开启压缩后仍然兼容不握手的客户端：开头不是preface的连接按原始字节处理，不回复
+ * DEFLATE的数据是一串块：type(1B) rawLength(4B) length(4B) 后面紧跟length字节，
+ * 每块独立压缩(Deflater/Inflater每块reset，不用重新分配)，压不小的块(JPEG、zip等)以STORED原样发送
+ */
+public final class Compression {
+
+    //与PNG的文件头类似：高位字节与换行符能尽早发现被当成文本处理过的数据
+    static final byte[] PREFACE = {(byte) 0x89, 'N', 'I', 'O', 'C', '\r', '\n', 0x1A};
+    static final int MAX_OFFERED = 16;
+
+    static final byte BLOCK_STORED = 0;
+    static final byte BLOCK_DEFLATED = 1;
+    //type + rawLength + length
+    static final int BLOCK_HEADER = 9;
+    public static final int DEFAULT_BLOCK = 64 * 1024;
+    static final int MAX_BLOCK = 1024 * 1024;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    public enum Algorithm {
+        NONE(0), DEFLATE(1);
+
+        private final byte id;
+
+        Algorithm(int id) {
+            this.id = (byte) id;
+        }
+
+        public byte id() {
+            return id;
+        }
+
+        static Algorithm of(byte id) throws IOException {
+            for (Algorithm algorithm : values()) {
+                if (algorithm.id == id) {
+                    return algorithm;
+                }
+            }
+            throw new IOException("unknown compression algorithm: " + id);
+        }
+    }
+
+    private Compression() {
+    }
+
+    /**
+     * 客户端握手：按偏好顺序列出支持的算法
+     */
+    public static ByteBuffer encodeHello(Algorithm... offered) {
+        if (offered.length == 0 || offered.length > MAX_OFFERED) {
+            throw new IllegalArgumentException("offered algorithms: " + offered.length);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(PREFACE.length + 1 + offered.length);
+        buf.put(PREFACE).put((byte) offered.length);
+        for (Algorithm algorithm : offered) {
+            buf.put(algorithm.id);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * 客户端解析服务端的回复，选中的必须是自己提供过的
+     */
+    public static Algorithm decodeReply(byte id, Algorithm... offered) throws IOException {
+        Algorithm chosen = Algorithm.of(id);
+        if (chosen == Algorithm.NONE) {
+            return chosen;
+        }
+        for (Algorithm algorithm : offered) {
+            if (algorithm == chosen) {
+                return chosen;
+            }
+        }
+        throw new IOException("server chose an algorithm that was not offered: " + chosen);
+    }
+
+    /**
+     * 根据开头几个字节判断内容是不是已经压缩过的格式，这类数据再压缩只会白白消耗CPU
+     */
+    public static boolean isCompressedFormat(ByteBuffer head) {
+        int p = head.position();
+        int n = head.remaining();
+        if (n >= 3 && (head.get(p) & 0xFF) == 0xFF && (head.get(p + 1) & 0xFF) == 0xD8 && (head.get(p + 2) & 0xFF) == 0xFF) {
+            //JPEG
+            return true;
+        }
+        if (n >= 4) {
+            int magic = head.getInt(p);
+            //PNG、zip(包括jar/docx等)、7z、xz
+            if (magic == 0x89504E47 || magic == 0x504B0304 || magic == 0x377ABCAF || magic == 0xFD377A58) {
+                return true;
+            }
+        }
+        //gzip
+        return n >= 2 && (head.get(p) & 0xFF) == 0x1F && (head.get(p + 1) & 0xFF) == 0x8B;
+    }
+
+    /**
+     * 当前线程的CPU时间，不支持时退化为墙钟时间
+     */
+    static long cpuNanos() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    static void writeFully(WritableByteChannel out, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
+
+    /**
+     * 服务端握手：逐字节检查preface，不匹配时已经读到的字节属于原始数据，由buffered()取回
+     * 一个实例对应一个连接，不是线程安全的
+     */
+    public static final class ServerHandshake {
+
+        private final Algorithm[] supported;
+        private final ByteBuffer head = ByteBuffer.allocate(PREFACE.length + 1 + MAX_OFFERED);
+        private int count = -1;
+        private boolean done;
+        private Algorithm chosen;
+
+        /**
+         * @param supported 服务端支持的算法，按客户端的偏好选第一个服务端也支持的
+         */
+        public ServerHandshake(Algorithm... supported) {
+            this.supported = supported;
+        }
+
+        /**
+         * 从src中取握手需要的字节，多余的留在src中
+         *
+         * @return 是否已经有结果
+         */
+        public boolean feed(ByteBuffer src) throws IOException {
+            while (!done && src.hasRemaining()) {
+                byte b = src.get();
+                int index = head.position();
+                head.put(b);
+                if (index < PREFACE.length) {
+                    if (b != PREFACE[index]) {
+                        //不握手的客户端
+                        done = true;
+                    }
+                } else if (index == PREFACE.length) {
+                    count = b & 0xFF;
+                    if (count == 0 || count > MAX_OFFERED) {
+                        throw new IOException("bad compression hello: " + count + " algorithms");
+                    }
+                } else if (index == PREFACE.length + count) {
+                    choose();
+                    done = true;
+                }
+            }
+            return done;
+        }
+
+        private void choose() {
+            chosen = Algorithm.NONE;
+            for (int i = PREFACE.length + 1; i <= PREFACE.length + count; i++) {
+                byte id = head.get(i);
+                for (Algorithm algorithm : supported) {
+                    if (algorithm.id == id) {
+                        chosen = algorithm;
+                        return;
+                    }
+                }
+            }
+        }
+
+        /**
+         * 连接在握手完成前就读到EOF：preface都没读完说明是不握手的短数据，否则握手被截断
+         */
+        public void finish() throws IOException {
+            if (!done && head.position() > PREFACE.length) {
+                throw new IOException("connection closed during compression hello");
+            }
+            done = true;
+        }
+
+        /**
+         * 客户端握手了：需要回复reply()，之后按chosen()解码
+         */
+        public boolean isNegotiated() {
+            return chosen != null;
+        }
+
+        public Algorithm chosen() {
+            return chosen;
+        }
+
+        public ByteBuffer reply() {
+            return ByteBuffer.wrap(new byte[]{chosen.id});
+        }
+
+        /**
+         * 没有握手时已经读走的原始数据
+         */
+        public ByteBuffer buffered() {
+            if (chosen != null) {
+                return ByteBuffer.allocate(0);
+            }
+            ByteBuffer data = head.duplicate();
+            data.flip();
+            return data;
+        }
+    }
+
+    /**
+     * 压缩统计，多个连接可以共用一个，压缩率 = wireBytes / rawBytes
+     */
+    public static final class Stats {
+        private final LongAdder rawBytes = new LongAdder();
+        private final LongAdder wireBytes = new LongAdder();
+        private final LongAdder cpuNanos = new LongAdder();
+        private final LongAdder blocks = new LongAdder();
+        private final LongAdder storedBlocks = new LongAdder();
+
+        void block(long raw, long wire, boolean stored, long nanos) {
+            rawBytes.add(raw);
+            wireBytes.add(wire);
+            cpuNanos.add(nanos);
+            blocks.increment();
+            if (stored) {
+                storedBlocks.increment();
+            }
+        }
+
+        public long getRawBytes() {
+            return rawBytes.sum();
+        }
+
+        /**
+         * 网络上的字节数，包括块头
+         */
+        public long getWireBytes() {
+            return wireBytes.sum();
+        }
+
+        /**
+         * 压缩或解压占用的CPU时间
+         */
+        public long getCpuNanos() {
+            return cpuNanos.sum();
+        }
+
+        public long getBlocks() {
+            return blocks.sum();
+        }
+
+        /**
+         * 没有压缩、原样发送的块数
+         */
+        public long getStoredBlocks() {
+            return storedBlocks.sum();
+        }
+
+        public double ratio() {
+            long raw = getRawBytes();
+            return raw == 0 ? 1 : (double) getWireBytes() / raw;
+        }
+
+        /**
+         * 每MB原始数据花费的CPU毫秒数
+         */
+        public double cpuMillisPerMB() {
+            long raw = getRawBytes();
+            return raw == 0 ? 0 : getCpuNanos() / 1e6 / (raw / (double) (1 << 20));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("raw=%d wire=%d ratio=%.3f cpu=%.1fms (%.2fms/MB) blocks=%d stored=%d",
+                    getRawBytes(), getWireBytes(), ratio(), getCpuNanos() / 1e6, cpuMillisPerMB(), getBlocks(), getStoredBlocks());
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.zy.nio.channel;
+
+import com.zy.nio.buffer.BufferPool;
+import com.zy.nio.buffer.PooledBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.Deflater;
+
+/**
+ * 按块压缩写出(Compression的DEFLATE块格式)，写入的数据先攒到一个直接缓冲区，满一块压缩一次
+ * 1.Deflater直接读写直接缓冲区(JDK 11的setInput(ByteBuffer)/deflate(ByteBuffer))，不经过堆数组
+ * 2.第一块是JPEG、zip等已压缩格式时整条流都不再尝试压缩；连续几块压不小时同样放弃，后面的块原样发送
+ * 3.Deflater和两个缓冲区在整个连接上反复使用，close()时归还
+ * 下层通道必须是阻塞的；close()只结束压缩流，不关闭下层通道，调用方随后可以shutdownOutput()并等待确认
+ */
+public class DeflatingChannel implements WritableByteChannel {
+
+    //连续这么多块压不小就不再尝试
+    private static final int GIVE_UP_AFTER = 4;
+
+    private final WritableByteChannel out;
+    private final Compression.Stats stats;
+    private final Deflater deflater;
+    private final int blockSize;
+    private final PooledBuffer blockPooled;
+    private final PooledBuffer packedPooled;
+    private final ByteBuffer block;
+    private final ByteBuffer packed;
+    private final ByteBuffer header = ByteBuffer.allocate(Compression.BLOCK_HEADER);
+    private final ByteBuffer[] frame = new ByteBuffer[2];
+    private boolean first = true;
+    private boolean passthrough;
+    private int incompressible;
+    private boolean open = true;
+
+    public DeflatingChannel(WritableByteChannel out, Compression.Stats stats) {
+        this(out, Deflater.BEST_SPEED, Compression.DEFAULT_BLOCK, stats);
+    }
+
+    /**
+     * @param level     压缩级别，跨机房带宽比CPU贵时可以调高
+     * @param blockSize 每块的原始字节数
+     */
+    public DeflatingChannel(WritableByteChannel out, int level, int blockSize, Compression.Stats stats) {
+        if (blockSize <= 0 || blockSize > Compression.MAX_BLOCK) {
+            throw new IllegalArgumentException("bad block size: " + blockSize);
+        }
+        this.out = out;
+        this.stats = stats == null ? new Compression.Stats() : stats;
+        this.deflater = new Deflater(level);
+        this.blockSize = blockSize;
+        this.blockPooled = BufferPool.getDefault().acquire(blockSize);
+        this.packedPooled = BufferPool.getDefault().acquire(blockSize);
+        this.block = blockPooled.buffer();
+        this.packed = packedPooled.buffer();
+        block.clear().limit(blockSize);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (!open) {
+            throw new IOException("compressed stream finished");
+        }
+        int n = src.remaining();
+        while (src.hasRemaining()) {
+            int len = Math.min(block.remaining(), src.remaining());
+            int limit = src.limit();
+            src.limit(src.position() + len);
+            block.put(src);
+            src.limit(limit);
+            if (!block.hasRemaining()) {
+                emit();
+            }
+        }
+        return n;
+    }
+
+    //把攒够的一块压缩(或原样)写出
+    private void emit() throws IOException {
+        block.flip();
+        int raw = block.remaining();
+        if (raw == 0) {
+            block.clear().limit(blockSize);
+            return;
+        }
+        if (first) {
+            first = false;
+            passthrough = Compression.isCompressedFormat(block);
+        }
+        long start = Compression.cpuNanos();
+        boolean stored = true;
+        if (!passthrough) {
+            int position = block.position();
+            deflater.reset();
+            deflater.setInput(block);
+            deflater.finish();
+            packed.clear().limit(raw);
+            while (!deflater.finished() && packed.hasRemaining()) {
+                deflater.deflate(packed);
+            }
+            //setInput(ByteBuffer)会移动block的position
+            block.position(position);
+            if (deflater.finished() && packed.position() < raw) {
+                stored = false;
+                incompressible = 0;
+            } else if (++incompressible >= GIVE_UP_AFTER) {
+                passthrough = true;
+            }
+        }
+        ByteBuffer payload = stored ? block : packed.flip();
+        header.clear();
+        header.put(stored ? Compression.BLOCK_STORED : Compression.BLOCK_DEFLATED).putInt(raw).putInt(payload.remaining()).flip();
+        long nanos = Compression.cpuNanos() - start;
+        int wire = header.remaining() + payload.remaining();
+        if (out instanceof GatheringByteChannel) {
+            //块头和内容一次系统调用写出
+            frame[0] = header;
+            frame[1] = payload;
+            while (payload.hasRemaining()) {
+                ((GatheringByteChannel) out).write(frame);
+            }
+            frame[0] = frame[1] = null;
+        } else {
+            Compression.writeFully(out, header);
+            Compression.writeFully(out, payload);
+        }
+        stats.block(raw, wire, stored, nanos);
+        block.clear().limit(blockSize);
+    }
+
+    /**
+     * 把不满一块的剩余数据写出，之后还可以继续写
+     */
+    public void flush() throws IOException {
+        if (block.position() > 0) {
+            emit();
+        }
+    }
+
+    public Compression.Stats getStats() {
+        return stats;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * 写出剩余数据并归还缓冲区，不关闭下层通道
+     */
+    @Override
+    public void close() throws IOException {
+        if (!open) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * 出错时使用：只归还Deflater与缓冲区，不写出剩余数据
+     */
+    public void release() {
+        if (open) {
+            open = false;
+            deflater.end();
+            blockPooled.release();
+            packedPooled.release();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.zy.nio.channel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 有上限的只读FileChannel缓存(LRU)，热点文件不必每个请求都open/close
+ * 1.acquire()返回带引用计数的句柄，用完release()；被淘汰的通道等最后一个使用者release()后才关闭，不会关掉正在传输的文件
+ * 2.每次acquire()检查文件的fileKey(inode)、大小与修改时间，文件被替换(例如上传完成时原子改名)后重新打开
+ * 3.FileChannel的按位置读和transferTo(position, ...)不修改通道的position，多个连接、多个线程可以共用一个通道
+ */
+public class FileChannelCache implements Closeable {
+
+    private final int capacity;
+    private final LinkedHashMap<Path, Handle> handles = new LinkedHashMap<>(16, 0.75f, true);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private boolean closed;
+
+    public FileChannelCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * 取得文件的通道，文件不存在时抛NoSuchFileException
+     */
+    public Handle acquire(Path path) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        if (!attrs.isRegularFile()) {
+            throw new IOException("not a regular file: " + path);
+        }
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("cache closed");
+            }
+            Handle handle = handles.get(path);
+            if (handle != null && handle.matches(attrs)) {
+                handle.refs++;
+                hits.increment();
+                return handle;
+            }
+            if (handle != null) {
+                //文件已被替换
+                handles.remove(path);
+                handle.evict();
+            }
+        }
+        misses.increment();
+        Handle opened = new Handle(path, FileChannel.open(path, StandardOpenOption.READ), attrs);
+        synchronized (this) {
+            if (closed) {
+                opened.channel.close();
+                throw new IOException("cache closed");
+            }
+            Handle existing = handles.get(path);
+            if (existing != null && existing.matches(attrs)) {
+                //另一个线程同时打开了同一个文件
+                opened.channel.close();
+                existing.refs++;
+                return existing;
+            }
+            if (existing != null) {
+                handles.remove(path);
+                existing.evict();
+            }
+            handles.put(path, opened);
+            trim();
+            return opened;
+        }
+    }
+
+    //超出上限时从最久未使用的开始淘汰
+    private void trim() {
+        Iterator<Map.Entry<Path, Handle>> iterator = handles.entrySet().iterator();
+        while (handles.size() > capacity && iterator.hasNext()) {
+            Handle handle = iterator.next().getValue();
+            iterator.remove();
+            handle.evict();
+            evictions.increment();
+        }
+    }
+
+    public synchronized int size() {
+        return handles.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * 关闭所有没有使用者的通道，正在使用的等release()时关闭
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (Handle handle : handles.values()) {
+            handle.evict();
+        }
+        handles.clear();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("open=%d hits=%d misses=%d evictions=%d", size(), getHits(), getMisses(), getEvictions());
+    }
+
+    /**
+     * 缓存中的一个文件通道，引用计数受FileChannelCache的锁保护
+     */
+    public final class Handle {
+        private final Path path;
+        private final FileChannel channel;
+        private final Object fileKey;
+        private final long size;
+        private final long modified;
+        //已被acquire()但还没release()的次数，缓存本身持有的那一份不算
+        private int refs = 1;
+        private boolean evicted;
+
+        private Handle(Path path, FileChannel channel, BasicFileAttributes attrs) {
+            this.path = path;
+            this.channel = channel;
+            this.fileKey = attrs.fileKey();
+            this.size = attrs.size();
+            this.modified = attrs.lastModifiedTime().toMillis();
+        }
+
+        private boolean matches(BasicFileAttributes attrs) {
+            return Objects.equals(fileKey, attrs.fileKey()) && size == attrs.size()
+                    && modified == attrs.lastModifiedTime().toMillis();
+        }
+
+        public Path path() {
+            return path;
+        }
+
+        public FileChannel channel() {
+            return channel;
+        }
+
+        /**
+         * acquire()时的文件大小，传输以此为准，文件之后被追加的部分不会发出
+         */
+        public long size() {
+            return size;
+        }
+
+        private void evict() {
+            evicted = true;
+            if (refs == 0) {
+                closeQuietly();
+            }
+        }
+
+        public void release() {
+            synchronized (FileChannelCache.this) {
+                if (--refs == 0 && evicted) {
+                    closeQuietly();
+                }
+            }
+        }
+
+        private void closeQuietly() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
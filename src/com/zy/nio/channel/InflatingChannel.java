@@ -0,0 +1,197 @@
+package com.zy.nio.channel;
+
+import com.zy.nio.buffer.BufferPool;
+import com.zy.nio.buffer.PooledBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * DeflatingChannel的接收端：把收到的压缩字节写进来，解压后写到下层通道(文件、去重存储、日志)
+ * 输入可以在任意位置被拆开(选择器每次读到多少就写进来多少)，块头与块内容都增量解析；
+ * STORED块直接转写，不经过Inflater；DEFLATED块由Inflater从调用方的缓冲区直接解压到一个直接缓冲区
+ * Inflater与输出缓冲区在整个连接上反复使用
+ */
+public class InflatingChannel implements WritableByteChannel {
+
+    private final WritableByteChannel out;
+    private final Compression.Stats stats;
+    private final Inflater inflater = new Inflater();
+    private final PooledBuffer pooled;
+    private final ByteBuffer inflated;
+    private final ByteBuffer header = ByteBuffer.allocate(Compression.BLOCK_HEADER);
+    //当前块
+    private byte type;
+    private int rawLength;
+    private int length;
+    private int remaining;
+    private long produced;
+    private long cpuNanos;
+    private boolean inBlock;
+    private boolean open = true;
+
+    public InflatingChannel(WritableByteChannel out, Compression.Stats stats) {
+        this.out = out;
+        this.stats = stats == null ? new Compression.Stats() : stats;
+        this.pooled = BufferPool.getDefault().acquire(Compression.DEFAULT_BLOCK);
+        this.inflated = pooled.buffer();
+        inflated.clear();
+    }
+
+    /**
+     * 总是消费src的全部剩余字节
+     */
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (!open) {
+            throw new IOException("compressed stream closed");
+        }
+        int n = src.remaining();
+        while (src.hasRemaining()) {
+            if (!inBlock) {
+                if (!fill(header, src)) {
+                    break;
+                }
+                startBlock();
+                continue;
+            }
+            int len = Math.min(remaining, src.remaining());
+            ByteBuffer slice = src.duplicate();
+            slice.limit(slice.position() + len);
+            src.position(src.position() + len);
+            remaining -= len;
+            if (type == Compression.BLOCK_STORED) {
+                produced += len;
+                Compression.writeFully(out, slice);
+            } else {
+                inflate(slice);
+            }
+            if (remaining == 0) {
+                endBlock();
+            }
+        }
+        return n;
+    }
+
+    private void startBlock() throws IOException {
+        header.flip();
+        type = header.get();
+        rawLength = header.getInt();
+        length = header.getInt();
+        header.clear();
+        if ((type != Compression.BLOCK_STORED && type != Compression.BLOCK_DEFLATED)
+                || rawLength < 0 || rawLength > Compression.MAX_BLOCK || length < 0 || length > Compression.MAX_BLOCK
+                || (type == Compression.BLOCK_STORED && length != rawLength)) {
+            throw new IOException("bad compressed block: type=" + type + " raw=" + rawLength + " length=" + length);
+        }
+        remaining = length;
+        produced = 0;
+        cpuNanos = 0;
+        inBlock = true;
+        if (type == Compression.BLOCK_DEFLATED) {
+            inflater.reset();
+        }
+        if (remaining == 0) {
+            endBlock();
+        }
+    }
+
+    //Inflater持有slice的引用，返回前必须把它消费完
+    private void inflate(ByteBuffer slice) throws IOException {
+        long start = Compression.cpuNanos();
+        inflater.setInput(slice);
+        try {
+            while (!inflater.needsInput() && !inflater.finished()) {
+                int n = inflater.inflate(inflated);
+                if (!inflated.hasRemaining()) {
+                    drain();
+                } else if (n == 0 && !inflater.needsInput() && !inflater.finished()) {
+                    throw new IOException("corrupt compressed block");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt compressed block", e);
+        }
+        if (inflater.finished() && inflater.getRemaining() > 0) {
+            throw new IOException("trailing bytes in compressed block");
+        }
+        drain();
+        cpuNanos += Compression.cpuNanos() - start;
+    }
+
+    private void drain() throws IOException {
+        inflated.flip();
+        produced += inflated.remaining();
+        if (produced > rawLength) {
+            throw new IOException("compressed block longer than declared: " + rawLength);
+        }
+        Compression.writeFully(out, inflated);
+        inflated.clear();
+    }
+
+    private void endBlock() throws IOException {
+        if (produced != rawLength || (type == Compression.BLOCK_DEFLATED && !inflater.finished())) {
+            throw new IOException("compressed block size mismatch: " + produced + " of " + rawLength);
+        }
+        stats.block(rawLength, Compression.BLOCK_HEADER + length, type == Compression.BLOCK_STORED, cpuNanos);
+        inBlock = false;
+    }
+
+    private static boolean fill(ByteBuffer dst, ByteBuffer src) {
+        int len = Math.min(dst.remaining(), src.remaining());
+        int limit = src.limit();
+        src.limit(src.position() + len);
+        dst.put(src);
+        src.limit(limit);
+        return !dst.hasRemaining();
+    }
+
+    public Compression.Stats getStats() {
+        return stats;
+    }
+
+    /**
+     * 最后一块是否已经收完，为false时close()会失败
+     */
+    public boolean isComplete() {
+        return !inBlock && header.position() == 0;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * 流完整时关闭下层通道；流被截断时抛出异常且不关闭下层通道，由调用方丢弃(例如RawUpload.abortSink())
+     */
+    @Override
+    public void close() throws IOException {
+        if (!open) {
+            return;
+        }
+        release();
+        if (!isComplete()) {
+            throw new IOException("compressed stream truncated");
+        }
+        out.close();
+    }
+
+    /**
+     * 只归还Inflater与缓冲区，不碰下层通道
+     */
+    public void release() {
+        if (open) {
+            open = false;
+            inflater.end();
+            pooled.release();
+        }
+    }
+
+    public WritableByteChannel delegate() {
+        return out;
+    }
+}
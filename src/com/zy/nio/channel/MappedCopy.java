@@ -0,0 +1,106 @@
+package com.zy.nio.channel;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 分窗口内存映射复制
+ * TestChannel.test2把整个文件映射后再拷贝到和文件一样大的byte[]中，内存占用翻倍，超过Integer.MAX_VALUE的文件也映射不了
+ * 这里每次只映射一个窗口(默认128MB)，输入映射直接put(ByteBuffer)到输出映射，不经过堆数组，
+ * 每个窗口复制完立即解除映射，不用等GC回收MappedByteBuffer
+ */
+public class MappedCopy {
+
+    public static final long DEFAULT_WINDOW = 128L * 1024 * 1024;
+
+    //sun.misc.Unsafe.invokeCleaner(ByteBuffer)，用于立即解除映射，不可用时为null
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> clazz = Class.forName("sun.misc.Unsafe");
+            Field field = clazz.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = clazz.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (Exception e) {
+            //JDK8或被禁止访问时，只能等GC释放映射
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private final long windowSize;
+
+    public MappedCopy() {
+        this(DEFAULT_WINDOW);
+    }
+
+    public MappedCopy(long windowSize) {
+        if (windowSize <= 0 || windowSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("windowSize must be in (0, Integer.MAX_VALUE]: " + windowSize);
+        }
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * 复制src到dst，dst已存在时会被覆盖
+     */
+    public TransferResult copy(Path src, Path dst) throws IOException {
+        try (FileChannel inChannel = FileChannel.open(src, StandardOpenOption.READ);
+             FileChannel outChannel = FileChannel.open(dst, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            return copy(inChannel, outChannel);
+        }
+    }
+
+    /**
+     * 复制整个输入通道到输出通道的相同位置，输出通道必须以READ和WRITE打开
+     */
+    public TransferResult copy(FileChannel inChannel, FileChannel outChannel) throws IOException {
+        long start = System.nanoTime();
+        long size = inChannel.size();
+        long position = 0;
+        while (position < size) {
+            long length = Math.min(windowSize, size - position);
+            MappedByteBuffer inMappedBuf = inChannel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            //READ_WRITE映射超出文件长度时会自动扩展文件
+            MappedByteBuffer outMappedBuf = outChannel.map(FileChannel.MapMode.READ_WRITE, position, length);
+            try {
+                //映射到映射的批量复制，不经过堆数组
+                outMappedBuf.put(inMappedBuf);
+            } finally {
+                unmap(inMappedBuf);
+                unmap(outMappedBuf);
+            }
+            position += length;
+        }
+        return new TransferResult(size, System.nanoTime() - start, TransferResult.Mode.MAPPED);
+    }
+
+    /**
+     * 立即解除映射，之后再访问该缓冲区会导致JVM崩溃，调用后不能再使用buf
+     *
+     * @return 是否成功解除，不支持时返回false，映射会在GC时释放
+     */
+    public static boolean unmap(MappedByteBuffer buf) {
+        if (INVOKE_CLEANER == null) {
+            return false;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buf);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
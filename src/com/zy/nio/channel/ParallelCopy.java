@@ -0,0 +1,209 @@
+package com.zy.nio.channel;
+
+import com.zy.nio.buffer.BufferPool;
+import com.zy.nio.buffer.PooledBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 分段并行复制
+ * TestChannel里的复制都是单线程顺序读写，NVMe这类设备需要多个并发请求才能跑满带宽
+ * 把文件切成若干段，在固定大小的I/O线程池中并发复制：
+ * POSITIONAL：每段用FileChannel.read(buf, pos)/write(buf, pos)，所有线程共享同一对通道(定位读写是线程安全的)
+ * TRANSFER：每段单独打开输出通道定位到段首，用transferTo复制
+ */
+public class ParallelCopy {
+
+    public enum Strategy {
+        POSITIONAL, TRANSFER
+    }
+
+    public static final long DEFAULT_SEGMENT = 64L * 1024 * 1024;
+    private static final int IO_BUFFER = 1024 * 1024;
+
+    private final int parallelism;
+    private final long segmentSize;
+    private final Strategy strategy;
+
+    public ParallelCopy() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_SEGMENT, Strategy.POSITIONAL);
+    }
+
+    public ParallelCopy(int parallelism, long segmentSize, Strategy strategy) {
+        if (parallelism <= 0 || segmentSize <= 0) {
+            throw new IllegalArgumentException("parallelism and segmentSize must be positive");
+        }
+        this.parallelism = parallelism;
+        this.segmentSize = segmentSize;
+        this.strategy = strategy;
+    }
+
+    /**
+     * 复制src到dst，dst已存在时会被覆盖
+     */
+    public TransferResult copy(Path src, Path dst) throws IOException {
+        long start = System.nanoTime();
+        try (FileChannel inChannel = FileChannel.open(src, StandardOpenOption.READ);
+             FileChannel outChannel = FileChannel.open(dst, StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = inChannel.size();
+            if (size > 0) {
+                //先写最后一个字节把文件撑到目标长度，各段再并发填充
+                outChannel.write(ByteBuffer.wrap(new byte[1]), size - 1);
+            }
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (long position = 0; position < size; position += segmentSize) {
+                long segStart = position;
+                long segLength = Math.min(segmentSize, size - position);
+                if (strategy == Strategy.POSITIONAL) {
+                    tasks.add(() -> {
+                        copySegment(inChannel, outChannel, segStart, segLength);
+                        return null;
+                    });
+                } else {
+                    tasks.add(() -> {
+                        transferSegment(inChannel, dst, segStart, segLength);
+                        return null;
+                    });
+                }
+            }
+            runAll(tasks);
+            return new TransferResult(size, System.nanoTime() - start, TransferResult.Mode.PARALLEL);
+        }
+    }
+
+    /**
+     * 分段并行比较两个文件的内容是否一致
+     */
+    public boolean verify(Path src, Path dst) throws IOException {
+        try (FileChannel a = FileChannel.open(src, StandardOpenOption.READ);
+             FileChannel b = FileChannel.open(dst, StandardOpenOption.READ)) {
+            long size = a.size();
+            if (size != b.size()) {
+                return false;
+            }
+            AtomicInteger mismatches = new AtomicInteger();
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (long position = 0; position < size; position += segmentSize) {
+                long segStart = position;
+                long segLength = Math.min(segmentSize, size - position);
+                tasks.add(() -> {
+                    if (!compareSegment(a, b, segStart, segLength)) {
+                        mismatches.incrementAndGet();
+                    }
+                    return null;
+                });
+            }
+            runAll(tasks);
+            return mismatches.get() == 0;
+        }
+    }
+
+    private void runAll(List<Callable<Void>> tasks) throws IOException {
+        AtomicInteger ids = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(parallelism, Math.max(1, tasks.size())), r -> {
+            Thread t = new Thread(r, "copy-io-" + ids.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            for (Future<Void> future : pool.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("copy interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static void copySegment(FileChannel in, FileChannel out, long position, long length) throws IOException {
+        PooledBuffer pooled = BufferPool.getDefault().acquire(IO_BUFFER);
+        ByteBuffer buf = pooled.buffer();
+        try {
+            long done = 0;
+            while (done < length) {
+                buf.clear();
+                if (length - done < buf.capacity()) {
+                    buf.limit((int) (length - done));
+                }
+                int n = in.read(buf, position + done);
+                if (n == -1) {
+                    throw new IOException("source truncated at " + (position + done));
+                }
+                buf.flip();
+                long writePos = position + done;
+                while (buf.hasRemaining()) {
+                    writePos += out.write(buf, writePos);
+                }
+                done += n;
+            }
+        } finally {
+            pooled.release();
+        }
+    }
+
+    private static void transferSegment(FileChannel in, Path dst, long position, long length) throws IOException {
+        //transferTo写入目标通道的当前位置，所以每段使用自己的输出通道
+        try (FileChannel out = FileChannel.open(dst, StandardOpenOption.WRITE)) {
+            out.position(position);
+            TransferResult result = new ChannelTransfer().transfer(in, position, length, out);
+            if (result.getBytes() != length) {
+                throw new IOException("segment at " + position + " copied " + result.getBytes() + " of " + length);
+            }
+        }
+    }
+
+    private static boolean compareSegment(FileChannel a, FileChannel b, long position, long length) throws IOException {
+        PooledBuffer pooledA = BufferPool.getDefault().acquire(IO_BUFFER);
+        PooledBuffer pooledB = BufferPool.getDefault().acquire(IO_BUFFER);
+        ByteBuffer bufA = pooledA.buffer();
+        ByteBuffer bufB = pooledB.buffer();
+        try {
+            long done = 0;
+            while (done < length) {
+                int len = (int) Math.min(IO_BUFFER, length - done);
+                bufA.clear().limit(len);
+                bufB.clear().limit(len);
+                readFully(a, bufA, position + done);
+                readFully(b, bufB, position + done);
+                bufA.flip();
+                bufB.flip();
+                if (!bufA.equals(bufB)) {
+                    return false;
+                }
+                done += len;
+            }
+            return true;
+        } finally {
+            pooledA.release();
+            pooledB.release();
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) == -1) {
+                return;
+            }
+        }
+    }
+}
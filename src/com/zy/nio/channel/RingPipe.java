@@ -0,0 +1,383 @@
+package com.zy.nio.channel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.Selector;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 进程内的无锁环形字节管道，用法与java.nio.channels.Pipe相同：数据写入sink()，从source()读出
+ * Pipe的每次读写都是一次系统调用并经过内核拷贝，这里生产者和消费者直接在同一块直接内存上交接数据：
+ * 1.head(消费者已读到的位置)与tail(生产者已发布的位置)单调递增，下标对容量(2的幂)取模
+ * 2.单生产者：只有一个线程写，写完数据再发布tail，没有CAS
+ * 3.多生产者：先CAS预占claim区间再写数据，最后按预占顺序依次发布tail，不超过容量的一次写入不会与其他生产者交错
+ * 4.消费者空闲时通过park()登记，生产者只在消费者真正停下时才唤醒它(LockSupport.unpark或Selector.wakeup)，
+ *   消费者忙的时候生产者只多读一个volatile变量
+ */
+public class RingPipe {
+
+    //阻塞读写等待时先自旋的次数，之后让出CPU，再之后park，单核上自旋只会浪费对方的时间片
+    private static final int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 100 : 0;
+    private static final int YIELDS = 10;
+
+    private final ByteBuffer data;
+    private final int capacity;
+    private final int mask;
+    private final boolean multiProducer;
+
+    //消费者已读到的位置
+    private final AtomicLong head = new AtomicLong();
+    //生产者已发布的位置，消费者可以读到tail之前的数据
+    private final AtomicLong tail = new AtomicLong();
+    //多生产者预占的位置，claim >= tail
+    private final AtomicLong claim = new AtomicLong();
+    //消费者已停下等待数据
+    private final AtomicBoolean parked = new AtomicBoolean();
+    private final LongAdder wakeups = new LongAdder();
+    private volatile Selector wakeupSelector;
+    private volatile Thread parkedThread;
+    private volatile boolean sinkClosed;
+    private volatile boolean sourceClosed;
+
+    //单生产者写入用的视图与缓存的head，只由生产者线程访问
+    private final ByteBuffer writeView;
+    private long headCache;
+    //读取用的视图与缓存的tail，只由消费者线程访问
+    private final ByteBuffer readView;
+    private long tailCache;
+
+    private final Sink sink = new Sink();
+    private final Source source = new Source();
+
+    private RingPipe(int capacity, boolean multiProducer) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.multiProducer = multiProducer;
+        this.data = ByteBuffer.allocateDirect(capacity);
+        this.writeView = data.duplicate();
+        this.readView = data.duplicate();
+    }
+
+    /**
+     * 单生产者单消费者
+     */
+    public static RingPipe open(int capacity) {
+        return new RingPipe(capacity, false);
+    }
+
+    /**
+     * 多生产者单消费者
+     */
+    public static RingPipe openMultiProducer(int capacity) {
+        return new RingPipe(capacity, true);
+    }
+
+    public Sink sink() {
+        return sink;
+    }
+
+    public Source source() {
+        return source;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * 可读的字节数
+     */
+    public int available() {
+        return (int) (tail.get() - head.get());
+    }
+
+    /**
+     * 生产者唤醒消费者的次数
+     */
+    public long getWakeups() {
+        return wakeups.sum();
+    }
+
+    /**
+     * 消费者在选择器线程上读取时，设置停下时需要唤醒的选择器，用法：
+     * <pre>
+     * while (running) {
+     *     if (pipe.park()) selector.select(); else selector.selectNow();
+     *     pipe.unpark();
+     *     //处理选择键，读取pipe.source()
+     * }
+     * </pre>
+     */
+    public void setWakeupSelector(Selector selector) {
+        this.wakeupSelector = selector;
+    }
+
+    /**
+     * 消费者准备停下：登记后再检查一次是否有数据，没有数据返回true，此后生产者写入时会唤醒消费者
+     * 有数据返回false，消费者不应阻塞
+     */
+    public boolean park() {
+        parked.set(true);
+        //先登记再检查，与生产者的"先发布tail再检查parked"配对，不会丢失唤醒
+        if (tail.get() != head.get() || sinkClosed) {
+            parked.set(false);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 消费者醒来后取消登记
+     */
+    public void unpark() {
+        parked.set(false);
+    }
+
+    private void signal() {
+        if (parked.get() && parked.compareAndSet(true, false)) {
+            wakeups.increment();
+            Selector selector = wakeupSelector;
+            if (selector != null) {
+                selector.wakeup();
+            }
+            Thread thread = parkedThread;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+
+    /**
+     * 非阻塞写入，返回写入的字节数，空间不足时单生产者写入一部分，多生产者(不超过容量的写入)返回0
+     */
+    int offer(ByteBuffer src) throws IOException {
+        if (sinkClosed) {
+            throw new ClosedChannelException();
+        }
+        if (sourceClosed) {
+            throw new IOException("Broken pipe");
+        }
+        if (!src.hasRemaining()) {
+            return 0;
+        }
+        return multiProducer ? offerMulti(src) : offerSingle(src);
+    }
+
+    private int offerSingle(ByteBuffer src) {
+        long t = tail.get();
+        if (capacity - (t - headCache) < src.remaining()) {
+            headCache = head.get();
+        }
+        int n = (int) Math.min(src.remaining(), capacity - (t - headCache));
+        if (n == 0) {
+            return 0;
+        }
+        copyIn(writeView, t, src, n);
+        //volatile写：数据对消费者可见之后才检查parked
+        tail.set(t + n);
+        signal();
+        return n;
+    }
+
+    private int offerMulti(ByteBuffer src) {
+        long start;
+        int n;
+        while (true) {
+            start = claim.get();
+            long free = capacity - (start - head.get());
+            //不超过容量的写入要么全部写入要么不写，保证不与其他生产者交错
+            n = src.remaining() <= capacity ? (free >= src.remaining() ? src.remaining() : 0) : (int) free;
+            if (n == 0) {
+                return 0;
+            }
+            if (claim.compareAndSet(start, start + n)) {
+                break;
+            }
+        }
+        copyIn(data.duplicate(), start, src, n);
+        //按预占顺序发布：等前面的生产者发布完
+        for (int i = 0; tail.get() != start; i++) {
+            backoff(i);
+        }
+        tail.set(start + n);
+        signal();
+        return n;
+    }
+
+    /**
+     * 非阻塞读取，返回读到的字节数，没有数据返回0
+     */
+    int poll(ByteBuffer dst) {
+        long h = head.get();
+        if (tailCache == h) {
+            tailCache = tail.get();
+        }
+        int n = (int) Math.min(dst.remaining(), tailCache - h);
+        if (n == 0) {
+            return 0;
+        }
+        copyOut(readView, h, dst, n);
+        //生产者晚一点看到空出的空间没有关系
+        head.lazySet(h + n);
+        return n;
+    }
+
+    private void copyIn(ByteBuffer view, long pos, ByteBuffer src, int len) {
+        int index = (int) (pos & mask);
+        int first = Math.min(len, capacity - index);
+        int srcLimit = src.limit();
+        src.limit(src.position() + first);
+        view.clear().position(index);
+        view.put(src);
+        if (first < len) {
+            //绕回开头
+            src.limit(src.position() + len - first);
+            view.clear();
+            view.put(src);
+        }
+        src.limit(srcLimit);
+    }
+
+    private void copyOut(ByteBuffer view, long pos, ByteBuffer dst, int len) {
+        int index = (int) (pos & mask);
+        int first = Math.min(len, capacity - index);
+        view.limit(index + first).position(index);
+        dst.put(view);
+        if (first < len) {
+            view.limit(len - first).position(0);
+            dst.put(view);
+        }
+    }
+
+    /**
+     * 等待时的退避：先自旋，再让出CPU，最后短暂park
+     */
+    private static void backoff(int i) {
+        if (i < SPINS) {
+            Thread.onSpinWait();
+        } else if (i < SPINS + YIELDS) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(1000);
+        }
+    }
+
+    /**
+     * 写端，默认阻塞：空间不足时等待消费者读走数据
+     */
+    public class Sink implements WritableByteChannel {
+        private volatile boolean blocking = true;
+
+        public Sink configureBlocking(boolean block) {
+            this.blocking = block;
+            return this;
+        }
+
+        public boolean isBlocking() {
+            return blocking;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int written = offer(src);
+            if (!blocking) {
+                return written;
+            }
+            for (int i = 0; src.hasRemaining(); i++) {
+                int n = offer(src);
+                if (n > 0) {
+                    written += n;
+                    i = 0;
+                } else {
+                    backoff(i);
+                }
+            }
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !sinkClosed;
+        }
+
+        /**
+         * 关闭写端，消费者读完剩余数据后read返回-1
+         */
+        @Override
+        public void close() {
+            sinkClosed = true;
+            //消费者可能正等着数据，唤醒它看到EOF
+            parked.set(true);
+            signal();
+        }
+    }
+
+    /**
+     * 读端，同一时刻只能有一个线程读取，默认阻塞：没有数据时先自旋再park，等生产者唤醒
+     */
+    public class Source implements ReadableByteChannel {
+        private volatile boolean blocking = true;
+
+        public Source configureBlocking(boolean block) {
+            this.blocking = block;
+            return this;
+        }
+
+        public boolean isBlocking() {
+            return blocking;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (sourceClosed) {
+                throw new ClosedChannelException();
+            }
+            for (int i = 0; ; i++) {
+                int n = poll(dst);
+                if (n > 0 || !dst.hasRemaining()) {
+                    return n;
+                }
+                if (sinkClosed) {
+                    //关闭前写入的数据先读完
+                    n = poll(dst);
+                    return n > 0 ? n : -1;
+                }
+                if (!blocking) {
+                    return 0;
+                }
+                if (i < SPINS) {
+                    Thread.onSpinWait();
+                } else {
+                    parkedThread = Thread.currentThread();
+                    if (park()) {
+                        LockSupport.park(this);
+                    }
+                    unpark();
+                    parkedThread = null;
+                }
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !sourceClosed;
+        }
+
+        /**
+         * 关闭读端，之后的写入抛出IOException
+         */
+        @Override
+        public void close() {
+            sourceClosed = true;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package com.zy.nio.channel;
+
+import com.zy.nio.buffer.BufferPool;
+import com.zy.nio.buffer.PooledBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * 流式字符集转码(如GBK <-> UTF-8)
+ * TestChannel.test6的CharsetEncoder.encode(CharBuffer)每次调用都分配新的输出缓冲区，并且要求整个输入都在内存中
+ * 这里使用增量的decode(in, out, endOfInput)/encode(in, out, endOfInput)循环，三个缓冲区固定大小、反复使用：
+ * 输入字节 --decode--> 字符 --encode--> 输出字节
+ * 一次读取末尾被截断的多字节字符，解码器会返回UNDERFLOW并把剩余字节留在输入缓冲区中，compact后和下一次读取的数据拼起来
+ * 两个字符集对ASCII编码相同时，纯ASCII的连续字节直接复制到输出，跳过解码和编码
+ * 一个实例不是线程安全的
+ */
+public class StreamingTranscoder {
+
+    public static final int DEFAULT_BUFFER = 64 * 1024;
+    //8个字节的最高位
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    private final CharsetDecoder decoder;
+    private final CharsetEncoder encoder;
+    private final int bufferSize;
+    private final CharBuffer chars;
+    private final boolean asciiFastPath;
+
+    public StreamingTranscoder(Charset from, Charset to) {
+        this(from, to, DEFAULT_BUFFER, CodingErrorAction.REPORT);
+    }
+
+    /**
+     * @param onError 遇到非法输入或无法映射的字符时的处理方式：REPORT抛出异常，REPLACE替换
+     */
+    public StreamingTranscoder(Charset from, Charset to, int bufferSize, CodingErrorAction onError) {
+        this.decoder = from.newDecoder().onMalformedInput(onError).onUnmappableCharacter(onError);
+        this.encoder = to.newEncoder().onMalformedInput(onError).onUnmappableCharacter(onError);
+        this.bufferSize = bufferSize;
+        this.chars = CharBuffer.allocate(bufferSize);
+        this.asciiFastPath = isAsciiCompatible(from) && isAsciiCompatible(to);
+    }
+
+    public TranscodeResult transcode(Path src, Path dst) throws IOException {
+        try (FileChannel inChannel = FileChannel.open(src, StandardOpenOption.READ);
+             FileChannel outChannel = FileChannel.open(dst, StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            return transcode(inChannel, outChannel);
+        }
+    }
+
+    /**
+     * 从in读到EOF，转码后写入out，in/out可以是文件通道，也可以是阻塞的SocketChannel
+     */
+    public TranscodeResult transcode(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        long start = System.nanoTime();
+        decoder.reset();
+        encoder.reset();
+        chars.clear();
+        PooledBuffer pooledIn = BufferPool.getDefault().acquire(bufferSize);
+        PooledBuffer pooledOut = BufferPool.getDefault().acquire(bufferSize * 4);
+        ByteBuffer inBytes = pooledIn.buffer();
+        ByteBuffer outBytes = pooledOut.buffer();
+        long bytesIn = 0;
+        long bytesOut = 0;
+        long asciiBytes = 0;
+        try {
+            boolean eof = false;
+            //inBytes始终处于写模式，解码前flip，解码后compact
+            while (!eof) {
+                int n = in.read(inBytes);
+                if (n == -1) {
+                    eof = true;
+                } else {
+                    bytesIn += n;
+                }
+                inBytes.flip();
+                while (true) {
+                    if (asciiFastPath && chars.position() == 0) {
+                        int copied = copyAscii(inBytes, outBytes);
+                        asciiBytes += copied;
+                        if (!outBytes.hasRemaining()) {
+                            bytesOut += drain(outBytes, out);
+                            continue;
+                        }
+                    }
+                    //快速路径下只解码到下一段连续ASCII之前，解码完再回到快速路径
+                    int limit = inBytes.limit();
+                    int windowEnd = asciiFastPath ? nextAsciiRun(inBytes) : limit;
+                    int before = inBytes.position();
+                    inBytes.limit(windowEnd);
+                    CoderResult cr = decoder.decode(inBytes, chars, eof && windowEnd == limit);
+                    if (cr.isUnderflow() && windowEnd < limit && inBytes.position() == before) {
+                        //窗口末尾是被截断的多字节字符(GBK的第二个字节可能落在ASCII范围)，扩大窗口
+                        windowEnd = Math.min(limit, windowEnd + 8);
+                        inBytes.limit(windowEnd);
+                        cr = decoder.decode(inBytes, chars, eof && windowEnd == limit);
+                    }
+                    inBytes.limit(limit);
+                    if (cr.isError()) {
+                        cr.throwException();
+                    }
+                    //字符缓冲区满了或输入用完了，都把已解码的字符编码出去
+                    bytesOut += encode(false, outBytes, out);
+                    if (cr.isUnderflow() && windowEnd == limit) {
+                        //输入不足一个完整字符，需要读更多数据
+                        break;
+                    }
+                }
+                inBytes.compact();
+            }
+            //结束：冲刷解码器和编码器的内部状态
+            inBytes.flip();
+            CoderResult cr;
+            while ((cr = decoder.flush(chars)).isOverflow()) {
+                bytesOut += encode(false, outBytes, out);
+            }
+            if (inBytes.hasRemaining()) {
+                //EOF时还剩不完整的字节序列
+                throw new CharacterCodingException();
+            }
+            bytesOut += encode(true, outBytes, out);
+            while (encoder.flush(outBytes).isOverflow()) {
+                bytesOut += drain(outBytes, out);
+            }
+            bytesOut += drain(outBytes, out);
+        } finally {
+            pooledIn.release();
+            pooledOut.release();
+        }
+        return new TranscodeResult(bytesIn, bytesOut, asciiBytes, System.nanoTime() - start);
+    }
+
+    /**
+     * 把chars中已解码的字符编码到outBytes，满了就写出
+     */
+    private long encode(boolean endOfInput, ByteBuffer outBytes, WritableByteChannel out) throws IOException {
+        long written = 0;
+        chars.flip();
+        while (true) {
+            CoderResult cr = encoder.encode(chars, outBytes, endOfInput);
+            if (cr.isError()) {
+                cr.throwException();
+            }
+            if (cr.isOverflow()) {
+                written += drain(outBytes, out);
+                continue;
+            }
+            break;
+        }
+        //代理对被截断时高位代理会留在chars里
+        chars.compact();
+        return written;
+    }
+
+    private static long drain(ByteBuffer outBytes, WritableByteChannel out) throws IOException {
+        outBytes.flip();
+        long written = 0;
+        while (outBytes.hasRemaining()) {
+            written += out.write(outBytes);
+        }
+        outBytes.clear();
+        return written;
+    }
+
+    /**
+     * 从in的当前位置开始复制连续的ASCII字节到out，每次检查8个字节的最高位
+     */
+    private static int copyAscii(ByteBuffer in, ByteBuffer out) {
+        int start = in.position();
+        int end = start + Math.min(in.remaining(), out.remaining());
+        int i = start;
+        while (i + 8 <= end && (in.getLong(i) & HIGH_BITS) == 0) {
+            i += 8;
+        }
+        while (i < end && in.get(i) >= 0) {
+            i++;
+        }
+        int len = i - start;
+        if (len > 0) {
+            ByteBuffer run = in.duplicate();
+            run.limit(i);
+            out.put(run);
+            in.position(i);
+        }
+        return len;
+    }
+
+    /**
+     * 从in的当前位置开始查找下一段至少16个连续ASCII字节的起点，找不到返回limit
+     * 太短的ASCII段不值得打断解码器，中文比例高时窗口过碎反而更慢
+     */
+    private static int nextAsciiRun(ByteBuffer in) {
+        int limit = in.limit();
+        for (int i = in.position(); i + 16 <= limit; i++) {
+            if (((in.getLong(i) | in.getLong(i + 8)) & HIGH_BITS) == 0) {
+                return i;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * ASCII字符(0-127)编码为相同的单字节，且字符集无状态(ISO-2022系列用ASCII字节做转义序列)
+     */
+    static boolean isAsciiCompatible(Charset charset) {
+        if (!charset.canEncode() || charset.name().startsWith("ISO-2022")) {
+            return false;
+        }
+        byte[] ascii = new byte[128];
+        for (int i = 0; i < ascii.length; i++) {
+            ascii[i] = (byte) i;
+        }
+        return Arrays.equals(ascii, new String(ascii, StandardCharsets.US_ASCII).getBytes(charset));
+    }
+
+    /**
+     * 转码结果：输入/输出字节数以及走ASCII快速路径的字节数
+     */
+    public static class TranscodeResult extends TransferResult {
+        private final long bytesOut;
+        private final long asciiBytes;
+
+        TranscodeResult(long bytesIn, long bytesOut, long asciiBytes, long nanos) {
+            super(bytesIn, nanos, Mode.TRANSCODE);
+            this.bytesOut = bytesOut;
+            this.asciiBytes = asciiBytes;
+        }
+
+        public long getBytesOut() {
+            return bytesOut;
+        }
+
+        public long getAsciiBytes() {
+            return asciiBytes;
+        }
+
+        @Override
+        public String toString() {
+            return super.toString() + String.format(" -> %d bytes, ascii fast path %.1f%%", bytesOut,
+                    getBytes() == 0 ? 0.0 : asciiBytes * 100.0 / getBytes());
+        }
+    }
+}
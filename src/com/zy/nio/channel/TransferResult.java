@@ -0,0 +1,77 @@
+package com.zy.nio.channel;
+
+/**
+ * 一次传输/复制的结果：字节数、耗时与使用的方式
+ */
+public class TransferResult {
+
+    /**
+     * 传输方式
+     */
+    public enum Mode {
+        //transferTo/transferFrom，由内核直接搬运(sendfile/copy_file_range)
+        ZERO_COPY,
+        //退化为通过直接缓冲区读写
+        BUFFERED,
+        //通过直接缓冲区读写，同时计算CRC32C
+        CHECKED,
+        //分窗口内存映射
+        MAPPED,
+        //多线程分段并行
+        PARALLEL,
+        //字符集转码
+        TRANSCODE
+    }
+
+    private final long bytes;
+    private final long nanos;
+    private final Mode mode;
+    private final long checksum;
+
+    public TransferResult(long bytes, long nanos, Mode mode) {
+        this(bytes, nanos, mode, -1);
+    }
+
+    /**
+     * @param checksum 传输的数据的CRC32C，-1表示没有计算
+     */
+    public TransferResult(long bytes, long nanos, Mode mode, long checksum) {
+        this.bytes = bytes;
+        this.nanos = nanos;
+        this.mode = mode;
+        this.checksum = checksum;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getNanos() {
+        return nanos;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public boolean hasChecksum() {
+        return checksum != -1;
+    }
+
+    /**
+     * 传输的数据的CRC32C，没有计算时为-1
+     */
+    public long getChecksum() {
+        return checksum;
+    }
+
+    public double bytesPerSecond() {
+        return nanos == 0 ? 0 : bytes * 1e9 / nanos;
+    }
+
+    @Override
+    public String toString() {
+        String s = String.format("%s %d bytes in %.1f ms (%.1f MB/s)", mode, bytes, nanos / 1e6, bytesPerSecond() / (1 << 20));
+        return hasChecksum() ? s + String.format(" crc32c=%08x", checksum) : s;
+    }
+}
@@ -0,0 +1,588 @@
+package com.zy.nio.load;
+
+import com.zy.nio.metrics.Histogram;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TCP压测客户端：少量选择器线程驱动成千上万个非阻塞SocketChannel，只允许连接本机地址
+ * 1.交互方式：ECHO 长连接，发送一个请求体，读回同样长度的数据算一次请求(配合EchoHandler)；
+ *   UPLOAD 每次请求新建连接，发送请求体后shutdownOutput，读到EOF算一次请求(配合RawUpload的各个服务端)
+ * 2.闭环模式：每个连接上一个请求完成后立即发下一个，并发度=连接数，吞吐量由服务端决定
+ * 3.开环模式：按目标速率rate(次/秒)均匀安排请求，与服务端是否跟得上无关；连接忙时请求在该连接上排队，
+ *   延迟从计划发送时间算起，避免服务端变慢时少发请求而低估延迟(coordinated omission)
+ * 请求体从文件读入直接缓冲区，多个文件时按请求依次轮换
+ */
+public class LoadGenerator {
+
+    public enum Exchange {
+        ECHO, UPLOAD
+    }
+
+    public enum Mode {
+        OPEN_LOOP, CLOSED_LOOP
+    }
+
+    //每个连接上最多排队的开环请求数，超过计入errors
+    private static final int MAX_PENDING = 1024;
+
+    private final InetSocketAddress address;
+    private Exchange exchange = Exchange.ECHO;
+    private Mode mode = Mode.CLOSED_LOOP;
+    private int connections = 100;
+    private int threads = 2;
+    private double rate;
+    private long durationNanos = TimeUnit.SECONDS.toNanos(5);
+    private long drainNanos = TimeUnit.SECONDS.toNanos(2);
+    private ByteBuffer[] payloads = {randomPayload(128)};
+
+    private final Histogram latency = new Histogram();
+    private volatile long startNanos;
+
+    public LoadGenerator(InetSocketAddress address) {
+        InetAddress ip = address.getAddress();
+        if (ip == null || !ip.isLoopbackAddress()) {
+            throw new IllegalArgumentException("load generator only targets localhost: " + address);
+        }
+        this.address = address;
+    }
+
+    public LoadGenerator(int port) {
+        this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    public LoadGenerator exchange(Exchange exchange) {
+        this.exchange = exchange;
+        return this;
+    }
+
+    public LoadGenerator mode(Mode mode) {
+        this.mode = mode;
+        return this;
+    }
+
+    public LoadGenerator connections(int connections) {
+        if (connections <= 0) {
+            throw new IllegalArgumentException("connections must be positive: " + connections);
+        }
+        this.connections = connections;
+        return this;
+    }
+
+    /**
+     * 选择器线程数，连接平均分配到各线程
+     */
+    public LoadGenerator threads(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * 开环模式的目标速率(次/秒)，闭环模式忽略
+     */
+    public LoadGenerator rate(double rate) {
+        this.rate = rate;
+        return this;
+    }
+
+    public LoadGenerator duration(long duration, TimeUnit unit) {
+        this.durationNanos = unit.toNanos(duration);
+        return this;
+    }
+
+    /**
+     * 停止发送新请求后，等待已发出请求完成的最长时间，之后仍未完成的计入timeouts
+     */
+    public LoadGenerator drain(long duration, TimeUnit unit) {
+        this.drainNanos = unit.toNanos(duration);
+        return this;
+    }
+
+    /**
+     * 用这些文件的内容作为请求体，按请求依次轮换
+     */
+    public LoadGenerator payload(Path... files) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            try (FileChannel fc = FileChannel.open(files[i], StandardOpenOption.READ)) {
+                if (fc.size() > Integer.MAX_VALUE) {
+                    throw new IOException("payload too large: " + files[i]);
+                }
+                ByteBuffer buf = ByteBuffer.allocateDirect((int) fc.size());
+                while (buf.hasRemaining() && fc.read(buf) != -1) {
+                }
+                buf.flip();
+                buffers[i] = buf.asReadOnlyBuffer();
+            }
+        }
+        this.payloads = buffers;
+        return this;
+    }
+
+    /**
+     * 用size字节的随机数据作为请求体
+     */
+    public LoadGenerator payload(int size) {
+        this.payloads = new ByteBuffer[]{randomPayload(size)};
+        return this;
+    }
+
+    private static ByteBuffer randomPayload(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        ByteBuffer buf = ByteBuffer.allocateDirect(size);
+        buf.put(bytes).flip();
+        return buf.asReadOnlyBuffer();
+    }
+
+    /**
+     * 执行压测并等待结束
+     * 1.各线程先建立连接(ECHO)，全部就绪后同时开始计时
+     * 2.持续duration后停止发送新请求，最多再等drain让已发出的请求完成
+     */
+    public LoadReport run() throws IOException, InterruptedException {
+        if (mode == Mode.OPEN_LOOP && rate <= 0) {
+            throw new IllegalArgumentException("open loop needs a positive rate");
+        }
+        int workerCount = Math.min(threads, connections);
+        Worker[] workers = new Worker[workerCount];
+        CountDownLatch ready = new CountDownLatch(workerCount);
+        CountDownLatch go = new CountDownLatch(1);
+        Thread[] workerThreads = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            int slots = connections / workerCount + (i < connections % workerCount ? 1 : 0);
+            workers[i] = new Worker(slots, workerCount, ready, go);
+            workerThreads[i] = new Thread(workers[i], "load-" + i);
+            workerThreads[i].start();
+        }
+        ready.await();
+        latency.reset();
+        startNanos = System.nanoTime();
+        go.countDown();
+        for (Thread t : workerThreads) {
+            t.join();
+        }
+        long elapsed = System.nanoTime() - startNanos;
+
+        long requests = 0, errors = 0, timeouts = 0, sent = 0, received = 0;
+        for (Worker w : workers) {
+            requests += w.completed;
+            errors += w.errors;
+            timeouts += w.timeouts;
+            sent += w.bytesSent;
+            received += w.bytesReceived;
+        }
+        return new LoadReport(exchange + "/" + mode, requests, errors, timeouts, sent, received, elapsed, latency);
+    }
+
+    /**
+     * 一个连接位置：ECHO时对应一条长连接，UPLOAD时每次请求重新建立连接
+     */
+    private final class Slot {
+        final ByteBuffer[] outs = new ByteBuffer[payloads.length];
+        //按需扩容，成千上万个连接时不预先占用内存
+        long[] pending = new long[4];
+        int pendingHead, pendingSize;
+        SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer out;
+        long expected, received, start;
+        boolean connected, busy, dead;
+
+        Slot() {
+            for (int i = 0; i < outs.length; i++) {
+                outs[i] = payloads[i].duplicate();
+            }
+        }
+
+        boolean offer(long scheduled) {
+            if (pendingSize == pending.length) {
+                if (pending.length == MAX_PENDING) {
+                    return false;
+                }
+                long[] grown = new long[pending.length * 2];
+                for (int i = 0; i < pendingSize; i++) {
+                    grown[i] = pending[(pendingHead + i) % pending.length];
+                }
+                pending = grown;
+                pendingHead = 0;
+            }
+            pending[(pendingHead + pendingSize++) % pending.length] = scheduled;
+            return true;
+        }
+
+        long poll() {
+            long t = pending[pendingHead];
+            pendingHead = (pendingHead + 1) % pending.length;
+            pendingSize--;
+            return t;
+        }
+    }
+
+    private final class Worker implements Runnable {
+        final Slot[] slots;
+        final int workerCount;
+        final CountDownLatch ready, go;
+        final ByteBuffer scratch = ByteBuffer.allocateDirect(64 * 1024);
+        Selector selector;
+        boolean stopping, retry;
+        int inflight, next, payloadIndex;
+        long completed, errors, timeouts, bytesSent, bytesReceived;
+
+        Worker(int slotCount, int workerCount, CountDownLatch ready, CountDownLatch go) {
+            this.slots = new Slot[slotCount];
+            for (int i = 0; i < slotCount; i++) {
+                slots[i] = new Slot();
+            }
+            this.workerCount = workerCount;
+            this.ready = ready;
+            this.go = go;
+        }
+
+        @Override
+        public void run() {
+            try {
+                selector = Selector.open();
+                if (exchange == Exchange.ECHO) {
+                    connectAll();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                errors += slots.length;
+                for (Slot slot : slots) {
+                    slot.dead = true;
+                }
+            } finally {
+                ready.countDown();
+            }
+            try {
+                go.await();
+                loop();
+            } catch (IOException | InterruptedException e) {
+                e.printStackTrace();
+            } finally {
+                for (Slot slot : slots) {
+                    closeChannel(slot);
+                }
+                try {
+                    if (selector != null) {
+                        selector.close();
+                    }
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        //建立所有长连接，全部完成(或失败)后才开始计时
+        private void connectAll() throws IOException {
+            int connecting = 0;
+            for (Slot slot : slots) {
+                if (open(slot)) {
+                    slot.connected = true;
+                    slot.key.interestOps(SelectionKey.OP_READ);
+                } else if (!slot.dead) {
+                    connecting++;
+                }
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (connecting > 0 && System.nanoTime() < deadline) {
+                selector.select(100);
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey sk = iterator.next();
+                    iterator.remove();
+                    Slot slot = (Slot) sk.attachment();
+                    connecting--;
+                    if (finishConnect(slot)) {
+                        slot.connected = true;
+                        sk.interestOps(SelectionKey.OP_READ);
+                    }
+                }
+            }
+            for (Slot slot : slots) {
+                if (!slot.connected && !slot.dead) {
+                    errors++;
+                    closeChannel(slot);
+                    slot.dead = true;
+                }
+            }
+        }
+
+        private void loop() throws IOException {
+            long start = startNanos;
+            long end = start + durationNanos;
+            //本线程承担rate/workerCount，第k个请求计划在start + k * interval发出
+            double interval = mode == Mode.OPEN_LOOP ? workerCount * 1e9 / rate : 0;
+            long scheduled = 0;
+            long nextSend = start;
+            if (mode == Mode.CLOSED_LOOP) {
+                for (Slot slot : slots) {
+                    if (!slot.dead) {
+                        begin(slot, start);
+                    }
+                }
+            }
+            while (true) {
+                long now = System.nanoTime();
+                if (now >= end) {
+                    stopping = true;
+                    if (inflight == 0 || now >= end + drainNanos) {
+                        break;
+                    }
+                }
+                if (retry && !stopping) {
+                    retryIdle(now);
+                }
+                if (mode == Mode.OPEN_LOOP && !stopping) {
+                    while (nextSend <= now && nextSend < end) {
+                        dispatch(nextSend);
+                        nextSend = start + (long) (++scheduled * interval);
+                    }
+                }
+                long wait = stopping ? end + drainNanos - now : Math.min(end, mode == Mode.OPEN_LOOP ? nextSend : end) - now;
+                if (wait <= 0) {
+                    selector.selectNow();
+                } else {
+                    selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+                }
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey sk = iterator.next();
+                    iterator.remove();
+                    handle(sk);
+                }
+            }
+            for (Slot slot : slots) {
+                timeouts += (slot.busy ? 1 : 0) + slot.pendingSize;
+            }
+        }
+
+        //开环：把计划时间为scheduled的请求交给下一个连接，连接忙就排队
+        private void dispatch(long scheduled) {
+            for (int i = 0; i < slots.length; i++) {
+                Slot slot = slots[next];
+                next = (next + 1) % slots.length;
+                if (slot.dead) {
+                    continue;
+                }
+                if (!slot.busy && pendingFree(slot)) {
+                    begin(slot, scheduled);
+                } else if (!slot.offer(scheduled)) {
+                    errors++;
+                }
+                return;
+            }
+            errors++;
+        }
+
+        private boolean pendingFree(Slot slot) {
+            return slot.pendingSize == 0 && (exchange == Exchange.UPLOAD || slot.connected);
+        }
+
+        //开始一个请求；发送出错时和handle()一样只作废这个连接位置，不中断整个线程的循环
+        private void begin(Slot slot, long scheduled) {
+            int index = payloadIndex;
+            payloadIndex = (payloadIndex + 1) % payloads.length;
+            slot.out = slot.outs[index];
+            slot.out.clear();
+            slot.expected = slot.out.remaining();
+            slot.received = 0;
+            slot.start = scheduled;
+            slot.busy = true;
+            inflight++;
+            if (exchange == Exchange.UPLOAD) {
+                if (!open(slot)) {
+                    if (slot.channel == null) {
+                        fail(slot);
+                    }
+                    return;
+                }
+            }
+            try {
+                send(slot);
+            } catch (IOException e) {
+                failed(slot);
+            }
+        }
+
+        //打开新连接并注册，立即连上返回true；连接中时注册OP_CONNECT
+        private boolean open(Slot slot) {
+            try {
+                slot.channel = SocketChannel.open();
+                slot.channel.configureBlocking(false);
+                boolean connected = slot.channel.connect(address);
+                slot.key = slot.channel.register(selector, connected ? 0 : SelectionKey.OP_CONNECT, slot);
+                return connected;
+            } catch (IOException e) {
+                closeChannel(slot);
+                slot.dead = exchange == Exchange.ECHO;
+                errors += exchange == Exchange.ECHO ? 1 : 0;
+                return false;
+            }
+        }
+
+        private boolean finishConnect(Slot slot) {
+            try {
+                return slot.channel.finishConnect();
+            } catch (IOException e) {
+                closeChannel(slot);
+                slot.dead = exchange == Exchange.ECHO;
+                errors++;
+                return false;
+            }
+        }
+
+        private void handle(SelectionKey sk) throws IOException {
+            Slot slot = (Slot) sk.attachment();
+            if (!sk.isValid()) {
+                return;
+            }
+            if (sk.isConnectable()) {
+                if (!finishConnect(slot)) {
+                    if (slot.busy) {
+                        release(slot);
+                    }
+                    return;
+                }
+                try {
+                    send(slot);
+                } catch (IOException e) {
+                    failed(slot);
+                }
+                return;
+            }
+            try {
+                if (sk.isWritable()) {
+                    send(slot);
+                }
+                if (sk.isValid() && sk.isReadable()) {
+                    receive(slot);
+                }
+            } catch (IOException e) {
+                failed(slot);
+            }
+        }
+
+        //连接出错：计一次错误并关闭；长连接的位置作废，排在它上面的请求也算失败
+        private void failed(Slot slot) {
+            errors++;
+            closeChannel(slot);
+            if (exchange == Exchange.ECHO) {
+                slot.dead = true;
+                errors += slot.pendingSize;
+                slot.pendingSize = 0;
+            }
+            if (slot.busy) {
+                release(slot);
+            }
+        }
+
+        private void send(Slot slot) throws IOException {
+            int n = slot.channel.write(slot.out);
+            bytesSent += n;
+            if (slot.out.hasRemaining()) {
+                slot.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            slot.key.interestOps(SelectionKey.OP_READ);
+            if (exchange == Exchange.UPLOAD) {
+                slot.channel.shutdownOutput();
+            }
+        }
+
+        private void receive(Slot slot) throws IOException {
+            int len;
+            while (true) {
+                scratch.clear();
+                len = slot.channel.read(scratch);
+                if (len <= 0) {
+                    break;
+                }
+                slot.received += len;
+                bytesReceived += len;
+            }
+            if (exchange == Exchange.ECHO) {
+                if (len == -1) {
+                    throw new IOException("server closed connection");
+                }
+                if (slot.busy && slot.received >= slot.expected) {
+                    complete(slot);
+                }
+            } else if (len == -1) {
+                closeChannel(slot);
+                complete(slot);
+            }
+        }
+
+        private void complete(Slot slot) {
+            long now = System.nanoTime();
+            latency.record(now - slot.start);
+            completed++;
+            slot.busy = false;
+            inflight--;
+            next(slot, now);
+        }
+
+        //请求失败，连接位置空出来
+        private void fail(Slot slot) {
+            errors++;
+            release(slot);
+        }
+
+        //失败后不在当前调用栈里立即重试(服务端不可用时会无限递归)，留到下一轮循环
+        private void release(Slot slot) {
+            slot.busy = false;
+            inflight--;
+            retry = true;
+        }
+
+        private void retryIdle(long now) {
+            retry = false;
+            for (Slot slot : slots) {
+                if (!slot.dead && !slot.busy) {
+                    next(slot, now);
+                }
+            }
+        }
+
+        private void next(Slot slot, long now) {
+            if (stopping) {
+                return;
+            }
+            if (mode == Mode.CLOSED_LOOP) {
+                begin(slot, now);
+            } else if (slot.pendingSize > 0) {
+                begin(slot, slot.poll());
+            }
+        }
+
+        private void closeChannel(Slot slot) {
+            if (slot.channel == null) {
+                return;
+            }
+            try {
+                slot.channel.close();
+            } catch (IOException ignored) {
+            }
+            slot.channel = null;
+            slot.key = null;
+            slot.connected = false;
+        }
+    }
+}
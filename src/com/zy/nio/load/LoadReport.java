@@ -0,0 +1,105 @@
+package com.zy.nio.load;
+
+import com.zy.nio.metrics.Histogram;
+
+/**
+ * 一次压测的结果：完成的请求数、失败数、吞吐量与延迟分布
+ * 开环模式下延迟从计划发送时间算起(包含在客户端排队的时间)，闭环模式下从实际发送时间算起
+ */
+public class LoadReport {
+
+    private final String name;
+    private final long requests;
+    private final long errors;
+    private final long timeouts;
+    private final long bytesSent;
+    private final long bytesReceived;
+    private final long elapsedNanos;
+    private final Histogram latency;
+
+    public LoadReport(String name, long requests, long errors, long timeouts, long bytesSent, long bytesReceived,
+                      long elapsedNanos, Histogram latency) {
+        this.name = name;
+        this.requests = requests;
+        this.errors = errors;
+        this.timeouts = timeouts;
+        this.bytesSent = bytesSent;
+        this.bytesReceived = bytesReceived;
+        this.elapsedNanos = elapsedNanos;
+        this.latency = latency;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 成功完成的请求数(UDP为发出的数据报数)
+     */
+    public long getRequests() {
+        return requests;
+    }
+
+    /**
+     * 连接失败、对端提前关闭、客户端排队溢出等
+     */
+    public long getErrors() {
+        return errors;
+    }
+
+    /**
+     * 压测结束时仍未完成的请求数
+     */
+    public long getTimeouts() {
+        return timeouts;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * 每秒完成的请求数
+     */
+    public double getThroughput() {
+        return requests * 1e9 / elapsedNanos;
+    }
+
+    /**
+     * 每秒发送的MB数
+     */
+    public double getSendMBps() {
+        return bytesSent * 1e9 / elapsedNanos / 1048576.0;
+    }
+
+    public Histogram getLatency() {
+        return latency;
+    }
+
+    public long p50() {
+        return latency.percentile(0.5);
+    }
+
+    public long p99() {
+        return latency.percentile(0.99);
+    }
+
+    public long p999() {
+        return latency.percentile(0.999);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[%s] requests=%d errors=%d timeouts=%d elapsed=%.2fs throughput=%.0f/s send=%.1fMB/s recv=%.1fMB/s%n  latency %s",
+                name, requests, errors, timeouts, elapsedNanos / 1e9, getThroughput(), getSendMBps(),
+                bytesReceived * 1e9 / elapsedNanos / 1048576.0, latency.toMicros());
+    }
+}
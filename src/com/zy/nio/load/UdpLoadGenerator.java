@@ -0,0 +1,257 @@
+package com.zy.nio.load;
+
+import com.zy.nio.metrics.Histogram;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * UDP压测客户端：若干个选择器线程，每个线程负责几个已connect的非阻塞DatagramChannel，只允许发往本机地址
+ * 1.rate>0时按目标速率(包/秒)均匀发送(开环)，rate=0时尽可能快地发送
+ * 2.通道发送缓冲区满(write返回0)时该包计入errors，通道注册OP_WRITE，可写之前不再选它
+ * 3.UDP没有响应，报告里的延迟是实际发出时间相对计划时间的滞后，反映压测端自身是否跟得上目标速率
+ * 接收端的丢包看UdpReceiver的计数
+ */
+public class UdpLoadGenerator {
+
+    //rate=0时每轮连续发送的包数
+    private static final int BURST = 64;
+
+    private final InetSocketAddress address;
+    private int channels = 4;
+    private int threads = 1;
+    private double rate;
+    private long durationNanos = TimeUnit.SECONDS.toNanos(5);
+    private ByteBuffer[] payloads = {randomPayload(512)};
+
+    private final Histogram lag = new Histogram();
+
+    public UdpLoadGenerator(InetSocketAddress address) {
+        InetAddress ip = address.getAddress();
+        if (ip == null || !ip.isLoopbackAddress()) {
+            throw new IllegalArgumentException("load generator only targets localhost: " + address);
+        }
+        this.address = address;
+    }
+
+    public UdpLoadGenerator(int port) {
+        this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    public UdpLoadGenerator channels(int channels) {
+        if (channels <= 0) {
+            throw new IllegalArgumentException("channels must be positive: " + channels);
+        }
+        this.channels = channels;
+        return this;
+    }
+
+    public UdpLoadGenerator threads(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * 目标速率(包/秒)，0表示不限速
+     */
+    public UdpLoadGenerator rate(double rate) {
+        this.rate = rate;
+        return this;
+    }
+
+    public UdpLoadGenerator duration(long duration, TimeUnit unit) {
+        this.durationNanos = unit.toNanos(duration);
+        return this;
+    }
+
+    /**
+     * 用这些文件的内容作为数据报，按包依次轮换；超过64KB的文件无法放进一个数据报
+     */
+    public UdpLoadGenerator payload(Path... files) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            try (FileChannel fc = FileChannel.open(files[i], StandardOpenOption.READ)) {
+                if (fc.size() > 65507) {
+                    throw new IOException("datagram payload too large: " + files[i]);
+                }
+                ByteBuffer buf = ByteBuffer.allocateDirect((int) fc.size());
+                while (buf.hasRemaining() && fc.read(buf) != -1) {
+                }
+                buf.flip();
+                buffers[i] = buf.asReadOnlyBuffer();
+            }
+        }
+        this.payloads = buffers;
+        return this;
+    }
+
+    public UdpLoadGenerator payload(int size) {
+        this.payloads = new ByteBuffer[]{randomPayload(size)};
+        return this;
+    }
+
+    private static ByteBuffer randomPayload(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        ByteBuffer buf = ByteBuffer.allocateDirect(size);
+        buf.put(bytes).flip();
+        return buf.asReadOnlyBuffer();
+    }
+
+    public LoadReport run() throws IOException, InterruptedException {
+        int workerCount = Math.min(threads, channels);
+        Sender[] senders = new Sender[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            senders[i] = new Sender(channels / workerCount + (i < channels % workerCount ? 1 : 0), workerCount);
+        }
+        Thread[] senderThreads = new Thread[workerCount];
+        long start = System.nanoTime();
+        for (int i = 0; i < workerCount; i++) {
+            senders[i].start = start;
+            senderThreads[i] = new Thread(senders[i], "udp-load-" + i);
+            senderThreads[i].start();
+        }
+        for (Thread t : senderThreads) {
+            t.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        long packets = 0, errors = 0, sent = 0;
+        for (Sender s : senders) {
+            packets += s.packets;
+            errors += s.errors;
+            sent += s.bytesSent;
+        }
+        return new LoadReport("UDP/" + (rate > 0 ? "OPEN_LOOP" : "UNTHROTTLED"), packets, errors, 0, sent, 0, elapsed, lag);
+    }
+
+    private final class Sender implements Runnable {
+        final DatagramChannel[] dcs;
+        final SelectionKey[] keys;
+        final ByteBuffer[] outs = new ByteBuffer[payloads.length];
+        final int workerCount;
+        Selector selector;
+        long start;
+        int next, payloadIndex, blocked;
+        long packets, errors, bytesSent;
+
+        Sender(int channelCount, int workerCount) {
+            this.dcs = new DatagramChannel[channelCount];
+            this.keys = new SelectionKey[channelCount];
+            this.workerCount = workerCount;
+            for (int i = 0; i < outs.length; i++) {
+                outs[i] = payloads[i].duplicate();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                selector = Selector.open();
+                for (int i = 0; i < dcs.length; i++) {
+                    dcs[i] = DatagramChannel.open();
+                    dcs[i].configureBlocking(false);
+                    dcs[i].connect(address);
+                    keys[i] = dcs[i].register(selector, 0, i);
+                }
+                loop();
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                for (DatagramChannel dc : dcs) {
+                    try {
+                        if (dc != null) {
+                            dc.close();
+                        }
+                    } catch (IOException ignored) {
+                    }
+                }
+                try {
+                    if (selector != null) {
+                        selector.close();
+                    }
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        private void loop() throws IOException {
+            long end = start + durationNanos;
+            double interval = rate > 0 ? workerCount * 1e9 / rate : 0;
+            long scheduled = 0;
+            long nextSend = start;
+            while (true) {
+                long now = System.nanoTime();
+                if (now >= end) {
+                    break;
+                }
+                if (rate > 0) {
+                    while (nextSend <= now && blocked < dcs.length) {
+                        send(nextSend);
+                        nextSend = start + (long) (++scheduled * interval);
+                    }
+                } else {
+                    for (int i = 0; i < BURST && blocked < dcs.length; i++) {
+                        send(System.nanoTime());
+                    }
+                }
+                long wait = blocked == dcs.length ? end - now : rate > 0 ? nextSend - now : 0;
+                if (wait <= 0) {
+                    selector.selectNow();
+                } else {
+                    selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(Math.min(wait, end - now))));
+                }
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey sk = iterator.next();
+                    iterator.remove();
+                    if (sk.isValid() && sk.isWritable()) {
+                        sk.interestOps(0);
+                        blocked--;
+                    }
+                }
+            }
+        }
+
+        private void send(long scheduled) throws IOException {
+            int i = next;
+            while (keys[i].interestOps() != 0) {
+                i = (i + 1) % dcs.length;
+            }
+            next = (i + 1) % dcs.length;
+            ByteBuffer out = outs[payloadIndex];
+            payloadIndex = (payloadIndex + 1) % outs.length;
+            out.clear();
+            int n;
+            try {
+                n = dcs[i].write(out);
+            } catch (IOException e) {
+                //接收端未启动时，connect过的通道会收到ICMP端口不可达
+                errors++;
+                return;
+            }
+            if (n == 0) {
+                errors++;
+                keys[i].interestOps(SelectionKey.OP_WRITE);
+                blocked++;
+                return;
+            }
+            packets++;
+            bytesSent += n;
+            lag.record(System.nanoTime() - scheduled);
+        }
+    }
+}
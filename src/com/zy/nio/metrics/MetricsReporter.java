@@ -0,0 +1,44 @@
+package com.zy.nio.metrics;
+
+import java.io.PrintStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 定时把指标以文本形式输出(默认System.out)，在单独的守护线程中执行，不影响选择器线程
+ */
+public class MetricsReporter {
+
+    private final PrintStream out;
+    private final ServerMetrics[] metrics;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "metrics-reporter");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public MetricsReporter(ServerMetrics... metrics) {
+        this(System.out, metrics);
+    }
+
+    public MetricsReporter(PrintStream out, ServerMetrics... metrics) {
+        this.out = out;
+        this.metrics = metrics;
+    }
+
+    public MetricsReporter start(long period, TimeUnit unit) {
+        scheduler.scheduleAtFixedRate(this::report, period, period, unit);
+        return this;
+    }
+
+    public void report() {
+        for (ServerMetrics m : metrics) {
+            out.println(m.dump());
+        }
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+}
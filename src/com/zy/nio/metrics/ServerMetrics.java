@@ -0,0 +1,331 @@
+package com.zy.nio.metrics;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * 选择器循环的指标：TCP(ReactorServer的每个SubReactor)与UDP(UdpReceiver的每个接收线程)共用一个实例
+ * 1.计数器：LongAdder分段计数，多个worker线程同时累加不会争用同一个缓存行
+ * 2.直方图：select()阻塞时间、跨线程wakeup()到选择器醒来的延迟、每次唤醒的事件数、每轮循环耗时、每个事件的处理耗时、每个连接读到的总字节数
+ * 3.仪表：当前连接数，直接内存与映射内存的使用量(BufferPoolMXBean)
+ * 记录方法只做原子加法，不分配对象；导出方式：JMX(registerMBean)与定时文本输出(MetricsReporter)
+ * 一个实例由多个选择器共用，所以wakeup()的请求时间由每个选择器自己记录(WakeupTimer)，醒来时传给selected()
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+
+    private final String name;
+
+    private final LongAdder wakeups = new LongAdder();
+    private final LongAdder events = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder accepted = new LongAdder();
+    //仪表：当前连接数，reset()不清零
+    private final LongAdder open = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+
+    private final Histogram selectWait = new Histogram();
+    private final Histogram wakeupLatency = new Histogram();
+    private final Histogram eventsPerWakeup = new Histogram();
+    private final Histogram loopTime = new Histogram();
+    private final Histogram handlerTime = new Histogram();
+    private final Histogram connectionBytes = new Histogram();
+
+    public ServerMetrics(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * select()返回后调用，没有其他线程唤醒的选择器(例如UdpReceiver)用这个
+     *
+     * @param blockedNanos 在select()中阻塞的时间
+     * @param selected     就绪的选择键个数
+     * @param now          select()返回时的System.nanoTime()
+     */
+    public void selected(long blockedNanos, int selected, long now) {
+        selected(blockedNanos, selected, now, 0);
+    }
+
+    /**
+     * 同上，并记录跨线程唤醒的延迟
+     *
+     * @param wakeupRequested 这个选择器最早一次还没被响应的wakeup()请求时间(WakeupTimer.take())，0表示没有
+     */
+    public void selected(long blockedNanos, int selected, long now, long wakeupRequested) {
+        wakeups.increment();
+        selectWait.record(blockedNanos);
+        eventsPerWakeup.record(selected);
+        if (wakeupRequested != 0) {
+            wakeupLatency.record(now - wakeupRequested);
+        }
+    }
+
+    /**
+     * 一个就绪事件处理完
+     */
+    public void event(long handlerNanos) {
+        events.increment();
+        handlerTime.record(handlerNanos);
+    }
+
+    /**
+     * 一轮循环(从select()返回到处理完所有事件)结束
+     */
+    public void loop(long loopNanos) {
+        loopTime.record(loopNanos);
+    }
+
+    public void read(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    public void written(long bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    public void connectionOpened() {
+        accepted.increment();
+        open.increment();
+    }
+
+    public void connectionClosed(long totalBytesRead) {
+        open.decrement();
+        connectionBytes.record(totalBytesRead);
+    }
+
+    /**
+     * 连接读、写或空闲超时
+     */
+    public void timeout() {
+        timeouts.increment();
+    }
+
+    public Histogram selectWait() {
+        return selectWait;
+    }
+
+    public Histogram wakeupLatency() {
+        return wakeupLatency;
+    }
+
+    public Histogram eventsPerWakeup() {
+        return eventsPerWakeup;
+    }
+
+    public Histogram loopTime() {
+        return loopTime;
+    }
+
+    public Histogram handlerTime() {
+        return handlerTime;
+    }
+
+    public Histogram connectionBytes() {
+        return connectionBytes;
+    }
+
+    @Override
+    public long getWakeups() {
+        return wakeups.sum();
+    }
+
+    @Override
+    public long getEvents() {
+        return events.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getOpenConnections() {
+        return open.sum();
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return accepted.sum();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public long getSelectWaitP99Nanos() {
+        return selectWait.percentile(0.99);
+    }
+
+    @Override
+    public long getWakeupLatencyP99Nanos() {
+        return wakeupLatency.percentile(0.99);
+    }
+
+    @Override
+    public long getLoopP50Nanos() {
+        return loopTime.percentile(0.5);
+    }
+
+    @Override
+    public long getLoopP99Nanos() {
+        return loopTime.percentile(0.99);
+    }
+
+    @Override
+    public long getLoopMaxNanos() {
+        return loopTime.max();
+    }
+
+    @Override
+    public long getHandlerP50Nanos() {
+        return handlerTime.percentile(0.5);
+    }
+
+    @Override
+    public long getHandlerP99Nanos() {
+        return handlerTime.percentile(0.99);
+    }
+
+    @Override
+    public long getHandlerMaxNanos() {
+        return handlerTime.max();
+    }
+
+    @Override
+    public long getEventsPerWakeupP99() {
+        return eventsPerWakeup.percentile(0.99);
+    }
+
+    @Override
+    public long getDirectMemoryUsed() {
+        BufferPoolMXBean pool = bufferPool("direct");
+        return pool == null ? -1 : pool.getMemoryUsed();
+    }
+
+    @Override
+    public long getDirectBufferCount() {
+        BufferPoolMXBean pool = bufferPool("direct");
+        return pool == null ? -1 : pool.getCount();
+    }
+
+    @Override
+    public long getMappedMemoryUsed() {
+        BufferPoolMXBean pool = bufferPool("mapped");
+        return pool == null ? -1 : pool.getMemoryUsed();
+    }
+
+    private static BufferPoolMXBean bufferPool(String name) {
+        List<BufferPoolMXBean> pools = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class);
+        for (BufferPoolMXBean pool : pools) {
+            if (pool.getName().equals(name)) {
+                return pool;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 注册到平台MBeanServer：com.zy.nio:type=ServerMetrics,name=名称
+     */
+    public ObjectName registerMBean() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = objectName();
+        if (server.isRegistered(objectName)) {
+            server.unregisterMBean(objectName);
+        }
+        server.registerMBean(this, objectName);
+        return objectName;
+    }
+
+    public void unregisterMBean() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = objectName();
+        if (server.isRegistered(objectName)) {
+            server.unregisterMBean(objectName);
+        }
+    }
+
+    public ObjectName objectName() throws JMException {
+        return new ObjectName("com.zy.nio:type=ServerMetrics,name=" + ObjectName.quote(name));
+    }
+
+    /**
+     * 一个选择器最早一次还没被响应的wakeup()请求时间，每个选择器一个，不能在共用的ServerMetrics里记录：
+     * 否则先醒来的worker会拿走别的worker的请求时间
+     */
+    public static final class WakeupTimer {
+        private final AtomicLong requested = new AtomicLong();
+
+        /**
+         * 其他线程请求唤醒选择器之前调用(例如boss线程把新连接交给worker)
+         */
+        public void requested() {
+            requested.compareAndSet(0, System.nanoTime());
+        }
+
+        /**
+         * select()返回后取出并清除请求时间，0表示没有
+         */
+        public long take() {
+            return requested.getAndSet(0);
+        }
+    }
+
+    /**
+     * 清零计数器与直方图，两者从同一时刻重新开始；当前连接数与内存用量是仪表，不清零
+     */
+    @Override
+    public void reset() {
+        wakeups.reset();
+        events.reset();
+        bytesRead.reset();
+        bytesWritten.reset();
+        accepted.reset();
+        timeouts.reset();
+        selectWait.reset();
+        wakeupLatency.reset();
+        eventsPerWakeup.reset();
+        loopTime.reset();
+        handlerTime.reset();
+        connectionBytes.reset();
+    }
+
+    @Override
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        sb.append('[').append(name).append("] wakeups=").append(getWakeups())
+                .append(" events=").append(getEvents())
+                .append(" connections=").append(getOpenConnections())
+                .append(" accepted=").append(getAcceptedConnections())
+                .append(" timeouts=").append(getTimeouts())
+                .append(" read=").append(getBytesRead())
+                .append(" written=").append(getBytesWritten()).append('\n');
+        sb.append("  select wait     ").append(selectWait.toMicros()).append('\n');
+        sb.append("  wakeup latency  ").append(wakeupLatency.toMicros()).append('\n');
+        sb.append("  events/wakeup   ").append(eventsPerWakeup).append('\n');
+        sb.append("  loop            ").append(loopTime.toMicros()).append('\n');
+        sb.append("  handler         ").append(handlerTime.toMicros()).append('\n');
+        sb.append("  bytes/conn      ").append(connectionBytes).append('\n');
+        sb.append(String.format("  direct memory   used=%.1fMB buffers=%d mapped=%.1fMB",
+                getDirectMemoryUsed() / 1048576.0, getDirectBufferCount(), getMappedMemoryUsed() / 1048576.0));
+        return sb.toString();
+    }
+}
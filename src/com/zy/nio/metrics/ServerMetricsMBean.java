@@ -0,0 +1,49 @@
+package com.zy.nio.metrics;
+
+/**
+ * ServerMetrics的JMX接口，时间单位都是纳秒
+ */
+public interface ServerMetricsMBean {
+
+    long getWakeups();
+
+    long getEvents();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    long getOpenConnections();
+
+    long getAcceptedConnections();
+
+    long getTimeouts();
+
+    long getSelectWaitP99Nanos();
+
+    long getWakeupLatencyP99Nanos();
+
+    long getLoopP50Nanos();
+
+    long getLoopP99Nanos();
+
+    long getLoopMaxNanos();
+
+    long getHandlerP50Nanos();
+
+    long getHandlerP99Nanos();
+
+    long getHandlerMaxNanos();
+
+    long getEventsPerWakeupP99();
+
+    long getDirectMemoryUsed();
+
+    long getDirectBufferCount();
+
+    long getMappedMemoryUsed();
+
+    String dump();
+
+    void reset();
+}
@@ -0,0 +1,95 @@
+package com.zy.nio.protocol;
+
+import com.zy.nio.buffer.BufferPool;
+import com.zy.nio.buffer.PooledBuffer;
+import com.zy.nio.channel.ChannelTransfer;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 下载客户端(阻塞式)：一个持久连接上依次发送GET帧、读取DATA帧
+ * 下载到文件时用FileChannel.transferFrom直接从套接字写入文件
+ */
+public class DownloadClient implements Closeable {
+
+    private final SocketChannel sChannel;
+    private final ChannelTransfer transfer = new ChannelTransfer();
+
+    public DownloadClient(InetSocketAddress address) throws IOException {
+        this.sChannel = SocketChannel.open(address);
+    }
+
+    /**
+     * 下载整个文件保存为target
+     */
+    public UploadProtocol.DataHeader download(String name, Path target) throws IOException {
+        try (FileChannel outChannel = FileChannel.open(target, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            UploadProtocol.DataHeader header = request(name, 0, -1);
+            long received = transfer.transferFrom(sChannel, outChannel, 0, header.getLength()).getBytes();
+            if (received != header.getLength()) {
+                throw new EOFException("connection closed while downloading " + name);
+            }
+            return header;
+        }
+    }
+
+    /**
+     * 下载文件name从offset开始的length字节(-1表示到文件末尾)，写入out
+     */
+    public UploadProtocol.DataHeader get(String name, long offset, long length, WritableByteChannel out) throws IOException {
+        UploadProtocol.DataHeader header = request(name, offset, length);
+        PooledBuffer pooled = BufferPool.getDefault().acquire(64 * 1024);
+        try {
+            ByteBuffer buf = pooled.buffer();
+            long remaining = header.getLength();
+            while (remaining > 0) {
+                buf.clear();
+                if (remaining < buf.capacity()) {
+                    buf.limit((int) remaining);
+                }
+                if (sChannel.read(buf) == -1) {
+                    throw new EOFException("connection closed while downloading " + name);
+                }
+                buf.flip();
+                remaining -= buf.remaining();
+                while (buf.hasRemaining()) {
+                    out.write(buf);
+                }
+            }
+        } finally {
+            pooled.release();
+        }
+        return header;
+    }
+
+    //发送GET帧并读取DATA帧头部，之后通道上紧跟着length字节的内容
+    private UploadProtocol.DataHeader request(String name, long offset, long length) throws IOException {
+        ByteBuffer get = UploadProtocol.encodeGet(new UploadProtocol.GetRequest(name, offset, length));
+        while (get.hasRemaining()) {
+            sChannel.write(get);
+        }
+        ByteBuffer header = UploadProtocol.readHeader(sChannel);
+        if (header == null) {
+            throw new IOException("connection closed before reply");
+        }
+        if (UploadProtocol.frameType(header) != UploadProtocol.TYPE_DATA) {
+            throw new IOException("unexpected frame type: " + UploadProtocol.frameType(header));
+        }
+        return UploadProtocol.decodeDataHeader(header);
+    }
+
+    @Override
+    public void close() throws IOException {
+        sChannel.close();
+    }
+}
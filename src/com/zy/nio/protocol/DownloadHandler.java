@@ -0,0 +1,205 @@
+package com.zy.nio.protocol;
+
+import com.zy.nio.channel.FileChannelCache;
+import com.zy.nio.server.Connection;
+import com.zy.nio.server.ConnectionHandler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 下载处理器，配合ReactorServer使用：收到GET帧后把存储目录下的文件(或其中一段)发回客户端
+ * 1.文件内容用FileChannel.transferTo(position, count, socketChannel)发送(Linux上是sendfile)，不经过Java堆，也不经过直接缓冲区
+ * 2.非阻塞通道写满时transferTo返回0(或只写出一部分)，记下position，注册OP_WRITE，可写时从position继续
+ * 3.一次可写事件最多发送MAX_BYTES_PER_EVENT字节，大文件不会霸占worker线程
+ * 4.打开的文件通道放在有上限的FileChannelCache中，热点文件在多个连接、多个请求间共用
+ * 一个连接上可以流水线发送多个GET，按顺序逐个回复
+ */
+public class DownloadHandler implements ConnectionHandler {
+
+    private static final long MAX_BYTES_PER_EVENT = 4L * 1024 * 1024;
+    //排队的请求超过这个数就暂停读取
+    private static final int MAX_PIPELINED = 64;
+
+    private final Path dir;
+    private final FileChannelCache cache;
+    private final LongAdder files = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder partialWrites = new LongAdder();
+
+    public DownloadHandler(Path dir) throws IOException {
+        this(dir, 256);
+    }
+
+    /**
+     * @param cacheCapacity 最多同时缓存的打开文件数
+     */
+    public DownloadHandler(Path dir, int cacheCapacity) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.cache = new FileChannelCache(cacheCapacity);
+    }
+
+    @Override
+    public void onOpen(Connection conn) {
+        conn.attach(new DownloadSession());
+    }
+
+    @Override
+    public void onRead(Connection conn, ByteBuffer buf) throws IOException {
+        DownloadSession session = (DownloadSession) conn.attachment();
+        while (buf.hasRemaining()) {
+            if (session.phase == DownloadSession.Phase.PREFIX) {
+                if (!UploadProtocol.fill(session.prefix, buf)) {
+                    break;
+                }
+                session.prefix.flip();
+                if (UploadProtocol.decodeType(session.prefix) != UploadProtocol.TYPE_GET) {
+                    throw new IOException("unexpected frame type: " + UploadProtocol.decodeType(session.prefix));
+                }
+                session.header = ByteBuffer.allocate(UploadProtocol.headerLength(session.prefix));
+                session.prefix.clear();
+                session.phase = DownloadSession.Phase.HEADER;
+            } else {
+                if (!UploadProtocol.fill(session.header, buf)) {
+                    break;
+                }
+                session.header.flip();
+                session.requests.add(UploadProtocol.decodeGet(session.header));
+                session.header = null;
+                session.phase = DownloadSession.Phase.PREFIX;
+            }
+        }
+        if (session.requests.size() >= MAX_PIPELINED) {
+            conn.interestRead(false);
+        }
+        if (session.current == null) {
+            pump(conn, session);
+        }
+    }
+
+    @Override
+    public void onWrite(Connection conn) throws IOException {
+        pump(conn, (DownloadSession) conn.attachment());
+    }
+
+    /**
+     * 推进发送：当前区间发完就开始下一个请求，直到通道写满或没有请求
+     */
+    private void pump(Connection conn, DownloadSession session) throws IOException {
+        long budget = MAX_BYTES_PER_EVENT;
+        while (!conn.isClosed()) {
+            if (!conn.outbound().isEmpty()) {
+                //DATA帧头部还没发完，出站队列清空后onWrite再继续
+                return;
+            }
+            if (session.current == null) {
+                UploadProtocol.GetRequest request = session.requests.poll();
+                if (request == null) {
+                    break;
+                }
+                start(conn, session, request);
+                continue;
+            }
+            while (session.position < session.end) {
+                long n = session.current.channel().transferTo(session.position,
+                        Math.min(session.end - session.position, budget), conn.channel());
+                if (n == 0) {
+                    if (session.position >= session.current.channel().size()) {
+                        //打开之后文件被截断，已经发出的头部声明的长度发不完了，只能关闭连接，不能一直注册OP_WRITE空转
+                        throw new IOException("file truncated while sending: " + session.position + " >= " + session.current.channel().size());
+                    }
+                    //发送缓冲区满了
+                    partialWrites.increment();
+                    conn.interestWrite(true);
+                    return;
+                }
+                session.position += n;
+                budget -= n;
+                bytes.add(n);
+                conn.worker().metrics().written(n);
+                if (budget <= 0) {
+                    //通道仍然可写，下一轮select立即返回，让同一worker上的其他连接先处理
+                    conn.interestWrite(true);
+                    return;
+                }
+            }
+            session.release();
+            files.increment();
+        }
+        conn.interestWrite(false);
+        if (session.inputClosed) {
+            if (session.idle()) {
+                conn.close();
+            }
+        } else if (session.requests.size() < MAX_PIPELINED) {
+            conn.interestRead(true);
+        }
+    }
+
+    //开始一个请求：先把DATA帧头部放入出站队列，内容由pump()用transferTo发送
+    private void start(Connection conn, DownloadSession session, UploadProtocol.GetRequest request) throws IOException {
+        String name = request.getName();
+        FileChannelCache.Handle handle;
+        try {
+            handle = cache.acquire(dir.resolve(UploadProtocol.safeFileName(name)));
+        } catch (NoSuchFileException e) {
+            conn.write(UploadProtocol.encodeDataHeader(new UploadProtocol.DataHeader(UploadProtocol.STATUS_NOT_FOUND, name, -1, request.getOffset(), 0)));
+            return;
+        }
+        long size = handle.size();
+        if (request.getOffset() > size) {
+            handle.release();
+            conn.write(UploadProtocol.encodeDataHeader(new UploadProtocol.DataHeader(UploadProtocol.STATUS_BAD_RANGE, name, size, request.getOffset(), 0)));
+            return;
+        }
+        long length = size - request.getOffset();
+        if (request.getLength() >= 0) {
+            length = Math.min(length, request.getLength());
+        }
+        session.current = handle;
+        session.position = request.getOffset();
+        session.end = request.getOffset() + length;
+        conn.write(UploadProtocol.encodeDataHeader(new UploadProtocol.DataHeader(UploadProtocol.STATUS_OK, name, size, request.getOffset(), length)));
+    }
+
+    @Override
+    public void onEof(Connection conn) {
+        DownloadSession session = (DownloadSession) conn.attachment();
+        session.inputClosed = true;
+        conn.interestRead(false);
+        if (session.idle() && conn.outbound().isEmpty()) {
+            conn.close();
+        }
+    }
+
+    @Override
+    public void onClose(Connection conn) {
+        DownloadSession session = (DownloadSession) conn.attachment();
+        if (session != null) {
+            session.release();
+        }
+    }
+
+    public FileChannelCache getCache() {
+        return cache;
+    }
+
+    public long getFilesSent() {
+        return files.sum();
+    }
+
+    public long getBytesSent() {
+        return bytes.sum();
+    }
+
+    /**
+     * transferTo因为发送缓冲区满而中断、等OP_WRITE续传的次数
+     */
+    public long getPartialWrites() {
+        return partialWrites.sum();
+    }
+}
@@ -0,0 +1,42 @@
+package com.zy.nio.protocol;
+
+import com.zy.nio.channel.FileChannelCache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * 下载连接的状态，挂在Connection上
+ * 入站解析GET帧(PREFIX -> HEADER)，请求按到达顺序排队；出站一次只发送一个文件区间，
+ * 当前区间发完(position == end)才开始下一个请求
+ */
+class DownloadSession {
+
+    enum Phase {
+        PREFIX, HEADER
+    }
+
+    Phase phase = Phase.PREFIX;
+    final ByteBuffer prefix = ByteBuffer.allocate(UploadProtocol.PREFIX_LENGTH);
+    ByteBuffer header;
+    final ArrayDeque<UploadProtocol.GetRequest> requests = new ArrayDeque<>();
+
+    //正在发送的文件区间
+    FileChannelCache.Handle current;
+    long position;
+    long end;
+
+    //对端已关闭输出，请求都处理完后关闭连接
+    boolean inputClosed;
+
+    boolean idle() {
+        return current == null && requests.isEmpty();
+    }
+
+    void release() {
+        if (current != null) {
+            current.release();
+            current = null;
+        }
+    }
+}
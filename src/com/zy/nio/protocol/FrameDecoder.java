@@ -0,0 +1,205 @@
+package com.zy.nio.protocol;
+
+import com.zy.nio.buffer.BufferPool;
+import com.zy.nio.buffer.CompositeBuffer;
+import com.zy.nio.buffer.PooledBuffer;
+import com.zy.nio.server.Connection;
+import com.zy.nio.server.ConnectionHandler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 消息解码器，配合ReactorServer使用：把字节流切成一条条消息交给FrameHandler
+ * 与TestNonBlockingNIO.server()每次读取都new String不同，一条消息或一个多字节字符被拆在两次读取中也能完整地交出去
+ * 1.分隔符(例如"\n")或长度字段(2/4字节大端，不含自身)两种切分方式
+ * 2.worker的读缓冲区作为分量直接加入CompositeBuffer，完整落在一次读取中的消息以slice交给处理器，不复制、不分配byte[]
+ * 3.只有跨越两次读取的尾部才复制到池中的分量；长度已知时按整条消息的大小借分量，攒齐后仍是一个slice，
+ *   分隔符消息跨分量时才拼接到每个连接一个的池缓冲区中
+ * 4.消息最大长度maxFrameLength：超过时抛出IOException关闭连接，每个连接缓存的数据不会超过它
+ * TestBuffer.test2()里mark()/reset()的"先看够不够一条消息，不够就退回"也是这个思路
+ */
+public class FrameDecoder implements ConnectionHandler {
+
+    private final byte[] delimiter;
+    private final int lengthFieldLength;
+    private final int maxFrameLength;
+    private final FrameHandler handler;
+    private final LongAdder frames = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder copied = new LongAdder();
+
+    private FrameDecoder(byte[] delimiter, int lengthFieldLength, int maxFrameLength, FrameHandler handler) {
+        if (maxFrameLength <= 0) {
+            throw new IllegalArgumentException("maxFrameLength must be positive: " + maxFrameLength);
+        }
+        this.delimiter = delimiter;
+        this.lengthFieldLength = lengthFieldLength;
+        this.maxFrameLength = maxFrameLength;
+        this.handler = handler;
+    }
+
+    /**
+     * 按分隔符切分，交给处理器的消息不含分隔符
+     */
+    public static FrameDecoder delimited(byte[] delimiter, int maxFrameLength, FrameHandler handler) {
+        if (delimiter.length == 0) {
+            throw new IllegalArgumentException("empty delimiter");
+        }
+        return new FrameDecoder(delimiter.clone(), 0, maxFrameLength, handler);
+    }
+
+    /**
+     * 按消息前面的长度字段切分(2或4字节，大端)，交给处理器的消息不含长度字段
+     */
+    public static FrameDecoder lengthPrefixed(int lengthFieldLength, int maxFrameLength, FrameHandler handler) {
+        if (lengthFieldLength != 2 && lengthFieldLength != 4) {
+            throw new IllegalArgumentException("lengthFieldLength must be 2 or 4: " + lengthFieldLength);
+        }
+        return new FrameDecoder(null, lengthFieldLength, maxFrameLength, handler);
+    }
+
+    /**
+     * 每个连接的解码状态
+     */
+    private static final class State {
+        final CompositeBuffer in = new CompositeBuffer();
+        //跨分量消息的拼接缓冲区，第一次需要时借出，不够大时换大的
+        PooledBuffer assembly;
+        //分隔符已经查找过的位置，下次从这里继续，不必每次从头扫描
+        int scanned;
+        //已经读到长度字段、还没攒齐的消息总长度(含长度字段)，0表示未知
+        int pending;
+
+        ByteBuffer assembly(int length) {
+            if (assembly == null || assembly.capacity() < length) {
+                releaseAssembly();
+                assembly = BufferPool.getDefault().acquire(Math.max(length, 4096));
+            }
+            return assembly.buffer();
+        }
+
+        void releaseAssembly() {
+            if (assembly != null) {
+                assembly.release();
+                assembly = null;
+            }
+        }
+
+        void release() {
+            in.release();
+            releaseAssembly();
+        }
+    }
+
+    @Override
+    public void onOpen(Connection conn) {
+        conn.attach(new State());
+    }
+
+    @Override
+    public void onRead(Connection conn, ByteBuffer buf) throws IOException {
+        State state = (State) conn.attachment();
+        bytes.add(buf.remaining());
+        long before = state.in.copiedBytes();
+        if (state.pending > 0) {
+            //正在攒一条长消息：只把补齐它所需的字节复制到它所在的分量，后面的消息仍然直接从buf切
+            int need = Math.min(state.pending - state.in.readableBytes(), buf.remaining());
+            state.in.copyFrom(buf, need, state.pending);
+        }
+        state.in.addComponent(buf);
+        try {
+            int length;
+            while (!conn.isClosed() && (length = nextFrame(state)) >= 0) {
+                ByteBuffer frame = state.in.readSlice(length, state.in.isContiguous(length) ? null : state.assembly(length));
+                if (delimiter != null) {
+                    state.in.skip(delimiter.length);
+                }
+                frames.increment();
+                handler.onFrame(conn, frame);
+            }
+        } finally {
+            //交出去的slice都处理完了，读完的池分量这时才能归还
+            state.in.releaseDrained();
+            //buf是worker共用的读缓冲区，回调结束前把没消费的部分复制出来
+            if (!conn.isClosed()) {
+                state.in.retain(state.pending);
+                if (!state.in.isReadable()) {
+                    //没有半条消息时不占用拼接缓冲区，大量空闲连接不会各自攥着一块内存
+                    state.releaseAssembly();
+                }
+            }
+            copied.add(state.in.copiedBytes() - before);
+        }
+    }
+
+    /**
+     * 下一条完整消息的长度，不完整返回-1；长度字段在这里跳过
+     */
+    private int nextFrame(State state) throws IOException {
+        CompositeBuffer in = state.in;
+        if (delimiter != null) {
+            int index = in.indexOf(delimiter, state.scanned);
+            if (index < 0) {
+                //分隔符可能被拆开，下次从可能的起点开始查找
+                state.scanned = Math.max(0, in.readableBytes() - delimiter.length + 1);
+                if (in.readableBytes() > maxFrameLength + delimiter.length - 1) {
+                    throw new IOException("frame exceeds " + maxFrameLength + " bytes without delimiter");
+                }
+                return -1;
+            }
+            if (index > maxFrameLength) {
+                throw new IOException("frame too long: " + index);
+            }
+            state.scanned = 0;
+            return index;
+        }
+        if (in.readableBytes() < lengthFieldLength) {
+            return -1;
+        }
+        long length = 0;
+        for (int i = 0; i < lengthFieldLength; i++) {
+            length = length << 8 | (in.getByte(i) & 0xFF);
+        }
+        if (length > maxFrameLength) {
+            throw new IOException("frame too long: " + length);
+        }
+        if (in.readableBytes() < lengthFieldLength + length) {
+            state.pending = lengthFieldLength + (int) length;
+            return -1;
+        }
+        state.pending = 0;
+        in.skip(lengthFieldLength);
+        return (int) length;
+    }
+
+    @Override
+    public void onEof(Connection conn) throws IOException {
+        handler.onEof(conn, ((State) conn.attachment()).in.readableBytes());
+    }
+
+    @Override
+    public void onClose(Connection conn) {
+        State state = (State) conn.attachment();
+        if (state != null) {
+            state.release();
+        }
+        handler.onClose(conn);
+    }
+
+    public long getFrames() {
+        return frames.sum();
+    }
+
+    public long getBytesRead() {
+        return bytes.sum();
+    }
+
+    /**
+     * 因为跨越读取或跨分量而复制的字节数，其余的都以slice直接交给处理器
+     */
+    public long getBytesCopied() {
+        return copied.sum();
+    }
+}
@@ -0,0 +1,30 @@
+package com.zy.nio.protocol;
+
+import com.zy.nio.server.Connection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * FrameDecoder解析出完整消息后的回调，在worker线程中执行
+ */
+public interface FrameHandler {
+
+    /**
+     * 一条完整的消息(不含分隔符或长度字段)，处于读模式，只在本次回调内有效，需要保留时自行复制
+     */
+    void onFrame(Connection conn, ByteBuffer frame) throws IOException;
+
+    /**
+     * 对端关闭输出时回调，partial是末尾不完整消息的字节数，默认直接关闭连接
+     */
+    default void onEof(Connection conn, int partial) throws IOException {
+        conn.close();
+    }
+
+    /**
+     * 连接关闭时回调
+     */
+    default void onClose(Connection conn) {
+    }
+}
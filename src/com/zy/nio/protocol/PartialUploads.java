@@ -0,0 +1,355 @@
+package com.zy.nio.protocol;
+
+import com.zy.nio.buffer.BufferPool;
+import com.zy.nio.buffer.PooledBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * 断点续传的服务端状态，同一个存储目录下的所有连接共用
+ * 1.每个没传完的文件对应 name.part(数据，按偏移写入) 和 name.part.idx(已收到的区间)
+ * 2.idx内容：size(8B) checksum(8B) 之后是若干个[start, end)区间，每收完(或中断)一个RANGE帧重写一次，服务端重启后仍能续传
+ * 3.所有区间合并成[0, size)时计算整个文件的CRC32C，与客户端声明的一致则原子改名为name；
+ *   这一步要把整个文件读一遍再force，非阻塞的调用方用complete()交给后台线程，不占用reactor的worker
+ * 4.没有连接在写、闲置超过idleTimeout的.part由后台线程关闭文件通道，续传时再从.part.idx重新打开，
+ *   放弃了的上传不会一直占着文件描述符
+ * 同一个文件的多个区间可以由不同连接(不同线程)同时写入：FileChannel的按位置写是线程安全的，区间集合的修改在PartFile的锁内
+ */
+class PartialUploads {
+
+    static final long DEFAULT_IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private final Path dir;
+    private final long idleNanos;
+    private final Map<String, PartFile> parts = new HashMap<>();
+    //收齐后的校验、force、改名，以及定期关闭闲置的.part
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "partial-uploads");
+        t.setDaemon(true);
+        return t;
+    });
+
+    PartialUploads(Path dir) {
+        this(dir, DEFAULT_IDLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    PartialUploads(Path dir, long idleTimeout, TimeUnit unit) {
+        this.dir = dir;
+        this.idleNanos = unit.toNanos(idleTimeout);
+        long period = Math.max(unit.toMillis(idleTimeout) / 2, 10);
+        executor.scheduleWithFixedDelay(this::closeIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 打开(或续用)文件的.part，用完调用release()；已有的.part属于其他版本(size或checksum不同)时丢弃重来
+     */
+    synchronized PartFile open(String name, long size, long checksum) throws IOException {
+        name = UploadProtocol.safeFileName(name);
+        PartFile part = parts.get(name);
+        if (part != null && (part.size != size || part.checksum != checksum)) {
+            parts.remove(name);
+            part.discard();
+            part = null;
+        }
+        if (part == null) {
+            part = new PartFile(name, size, checksum);
+            parts.put(name, part);
+        }
+        part.users++;
+        return part;
+    }
+
+    /**
+     * 不再写入part，没有其他连接在用时开始计算闲置时间
+     */
+    synchronized void release(PartFile part) {
+        part.users--;
+        part.lastUsed = System.nanoTime();
+    }
+
+    /**
+     * 已持有的从0开始的连续字节数；只读.part.idx，不创建也不打开.part，没见过的文件名不会留下任何东西
+     */
+    long query(String name, long size, long checksum) throws IOException {
+        name = UploadProtocol.safeFileName(name);
+        synchronized (this) {
+            PartFile part = parts.get(name);
+            if (part != null) {
+                return part.size == size && part.checksum == checksum ? part.prefix() : 0;
+            }
+        }
+        TreeMap<Long, Long> ranges = readIndex(dir.resolve(name + ".part"), dir.resolve(name + ".part.idx"), size, checksum);
+        if (ranges == null) {
+            return 0;
+        }
+        Long end = ranges.get(0L);
+        return end == null ? 0 : end;
+    }
+
+    /**
+     * 读取.part.idx中的区间，文件不存在或版本(size、checksum)不一致时返回null
+     */
+    private static TreeMap<Long, Long> readIndex(Path partPath, Path idxPath, long size, long checksum) throws IOException {
+        if (!Files.exists(idxPath) || !Files.exists(partPath)) {
+            return null;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(idxPath));
+        if (buf.remaining() < 16 || (buf.remaining() - 16) % 16 != 0 || buf.getLong() != size || buf.getLong() != checksum) {
+            return null;
+        }
+        TreeMap<Long, Long> ranges = new TreeMap<>();
+        while (buf.hasRemaining()) {
+            ranges.put(buf.getLong(), buf.getLong());
+        }
+        return ranges;
+    }
+
+    //关闭闲置的.part，已收到的区间都在.part.idx里，下次open()时重新读入
+    private synchronized void closeIdle() {
+        long now = System.nanoTime();
+        for (Iterator<PartFile> iterator = parts.values().iterator(); iterator.hasNext(); ) {
+            PartFile part = iterator.next();
+            if (part.users == 0 && now - part.lastUsed >= idleNanos) {
+                iterator.remove();
+                try {
+                    part.channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * 当前打开着的.part个数
+     */
+    synchronized int openCount() {
+        return parts.size();
+    }
+
+    /**
+     * 记录[start, end)已写入；文件齐了就校验并改名，在调用线程中完成
+     *
+     * @return 文件完成时为OK/CHECKSUM_MISMATCH确认，否则为PARTIAL确认(size为已持有的字节数)
+     */
+    UploadProtocol.Ack received(PartFile part, long start, long end) throws IOException {
+        return record(part, start, end) ? finish(part) : partialAck(part);
+    }
+
+    /**
+     * 记录[start, end)已写入
+     *
+     * @return 是否由这次调用收齐了文件，是的话调用者负责finish()或complete()，只有一个调用者会得到true
+     */
+    boolean record(PartFile part, long start, long end) throws IOException {
+        synchronized (part) {
+            part.add(start, end);
+            if (part.finished || !part.isComplete()) {
+                return false;
+            }
+            part.finished = true;
+        }
+        synchronized (this) {
+            if (parts.get(part.name) == part) {
+                parts.remove(part.name);
+            }
+        }
+        return true;
+    }
+
+    UploadProtocol.Ack partialAck(PartFile part) {
+        return new UploadProtocol.Ack(part.name, UploadProtocol.STATUS_PARTIAL, part.held(), 0);
+    }
+
+    /**
+     * 在后台线程中执行finish()
+     */
+    CompletableFuture<UploadProtocol.Ack> complete(PartFile part) {
+        CompletableFuture<UploadProtocol.Ack> future = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                future.complete(finish(part));
+            } catch (IOException | RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    //收齐之后：校验整个文件，force，改名
+    private UploadProtocol.Ack finish(PartFile part) throws IOException {
+        long crc = part.crc();
+        part.channel.force(false);
+        part.channel.close();
+        Files.deleteIfExists(part.idxPath);
+        byte status;
+        if (crc == part.checksum) {
+            Files.move(part.partPath, dir.resolve(part.name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            status = UploadProtocol.STATUS_OK;
+        } else {
+            Files.deleteIfExists(part.partPath);
+            status = UploadProtocol.STATUS_CHECKSUM_MISMATCH;
+        }
+        return new UploadProtocol.Ack(part.name, status, part.size, crc);
+    }
+
+    /**
+     * 关闭后台线程和所有打开着的.part，已收到的区间留在.part.idx里
+     */
+    synchronized void close() {
+        executor.shutdownNow();
+        for (PartFile part : parts.values()) {
+            try {
+                part.channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+        parts.clear();
+    }
+
+    final class PartFile {
+        final String name;
+        final long size;
+        final long checksum;
+        final Path partPath;
+        final Path idxPath;
+        final FileChannel channel;
+        //已收到的区间，start -> end，互不重叠也不相邻
+        private final TreeMap<Long, Long> ranges = new TreeMap<>();
+        private boolean finished;
+        //以下两个受PartialUploads的锁保护：正在写入的连接数，最后一次release()的时间
+        private int users;
+        private long lastUsed = System.nanoTime();
+
+        private PartFile(String name, long size, long checksum) throws IOException {
+            this.name = name;
+            this.size = size;
+            this.checksum = checksum;
+            this.partPath = dir.resolve(name + ".part");
+            this.idxPath = dir.resolve(name + ".part.idx");
+            if (!loadIndex()) {
+                Files.deleteIfExists(partPath);
+                Files.deleteIfExists(idxPath);
+            }
+            this.channel = FileChannel.open(partPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        //读取上次留下的idx，版本一致返回true
+        private boolean loadIndex() throws IOException {
+            TreeMap<Long, Long> saved = readIndex(partPath, idxPath, size, checksum);
+            if (saved == null) {
+                return false;
+            }
+            for (Map.Entry<Long, Long> range : saved.entrySet()) {
+                add(range.getKey(), range.getValue());
+            }
+            return true;
+        }
+
+        /**
+         * 写入[start, end)之前调用者已经把数据写进了channel，这里只合并区间并持久化
+         */
+        synchronized void add(long start, long end) throws IOException {
+            if (end <= start) {
+                return;
+            }
+            Map.Entry<Long, Long> before = ranges.floorEntry(start);
+            if (before != null && before.getValue() >= start) {
+                start = before.getKey();
+                end = Math.max(end, before.getValue());
+            }
+            Map.Entry<Long, Long> after;
+            while ((after = ranges.ceilingEntry(start)) != null && after.getKey() <= end) {
+                end = Math.max(end, after.getValue());
+                ranges.remove(after.getKey());
+            }
+            ranges.put(start, end);
+            if (channel != null) {
+                saveIndex();
+            }
+        }
+
+        private void saveIndex() throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(16 + ranges.size() * 16);
+            buf.putLong(size).putLong(checksum);
+            for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+                buf.putLong(range.getKey()).putLong(range.getValue());
+            }
+            buf.flip();
+            try (FileChannel out = FileChannel.open(idxPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (buf.hasRemaining()) {
+                    out.write(buf);
+                }
+            }
+        }
+
+        synchronized long prefix() {
+            Long end = ranges.get(0L);
+            return end == null ? 0 : end;
+        }
+
+        synchronized long held() {
+            long total = 0;
+            for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+                total += range.getValue() - range.getKey();
+            }
+            return total;
+        }
+
+        synchronized boolean isComplete() {
+            return prefix() == size;
+        }
+
+        private long crc() throws IOException {
+            CRC32C crc = new CRC32C();
+            PooledBuffer pooled = BufferPool.getDefault().acquire(256 * 1024);
+            try {
+                ByteBuffer buf = pooled.buffer();
+                long position = 0;
+                while (position < size) {
+                    buf.clear();
+                    if (size - position < buf.capacity()) {
+                        buf.limit((int) (size - position));
+                    }
+                    int n = channel.read(buf, position);
+                    if (n == -1) {
+                        break;
+                    }
+                    position += n;
+                    buf.flip();
+                    crc.update(buf);
+                }
+            } finally {
+                pooled.release();
+            }
+            return crc.getValue();
+        }
+
+        //版本变了，丢弃已收到的数据
+        private void discard() {
+            synchronized (this) {
+                finished = true;
+            }
+            try {
+                channel.close();
+                Files.deleteIfExists(partPath);
+                Files.deleteIfExists(idxPath);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
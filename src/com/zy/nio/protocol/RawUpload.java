@@ -0,0 +1,302 @@
+package com.zy.nio.protocol;
+
+import com.zy.nio.buffer.BufferPool;
+import com.zy.nio.buffer.PooledBuffer;
+import com.zy.nio.channel.Compression;
+import com.zy.nio.channel.DeflatingChannel;
+import com.zy.nio.channel.InflatingChannel;
+import com.zy.nio.store.ChunkStore;
+import com.zy.nio.store.ChunkWriter;
+import com.zy.nio.store.SegmentLog;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TestBlockingNIO.client2()/server2()的上传交互：没有任何帧格式
+ * 客户端发送文件内容后shutdownOutput，服务端读到EOF就把收到的内容存为一个文件，回复"服务端数据接收成功"并关闭连接
+ * 阻塞(RawUploadBlockingHandler)、选择器(RawUploadSelectorHandler)几种服务端都按这个交互实现，可以用同一个客户端压测
+ * 可选压缩：客户端先发Compression的握手，等服务端选定算法后再发送(压缩后的)内容；
+ * 开启了压缩的服务端对不握手的客户端仍按原始字节处理；没开启压缩的服务端不回复握手，客户端等待超时后改用新连接原样发送
+ */
+public final class RawUpload {
+
+    public static final byte[] ACK = "服务端数据接收成功".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * 等待握手回复的默认时间
+     */
+    public static final long HELLO_TIMEOUT_MILLIS = 1000;
+
+    private static final AtomicLong SEQ = new AtomicLong();
+
+    private RawUpload() {
+    }
+
+    /**
+     * 服务端为每个连接分配一个不重复的文件
+     */
+    static Path nextTarget(Path dir) {
+        return dir.resolve(nextName() + ".bin");
+    }
+
+    static String nextName() {
+        return "upload-" + SEQ.incrementAndGet();
+    }
+
+    static FileChannel openTarget(Path target) throws IOException {
+        return FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * 服务端为每个连接打开输出：默认写dir下的新文件；传入store时写入去重存储(重复的块不落盘)；
+     * 传入log时追加到持久化日志，确认前要等durable()
+     */
+    static WritableByteChannel openSink(Path dir, ChunkStore store, SegmentLog log) throws IOException {
+        return openSink(dir, store, log, false);
+    }
+
+    /**
+     * @param asyncCommit 去重存储的配方交给后台线程提交，非阻塞的调用方等ChunkWriter.committed()再确认
+     */
+    static WritableByteChannel openSink(Path dir, ChunkStore store, SegmentLog log, boolean asyncCommit) throws IOException {
+        if (log != null) {
+            return log.openStream(nextName());
+        }
+        return store == null ? openTarget(nextTarget(dir)) : store.create(nextName(), asyncCommit);
+    }
+
+    /**
+     * 连接没读到EOF就断开时丢弃输出：文件直接关闭，去重存储不提交配方，日志不写COMMIT
+     */
+    static void abortSink(WritableByteChannel sink) {
+        if (sink instanceof InflatingChannel) {
+            ((InflatingChannel) sink).release();
+            abortSink(((InflatingChannel) sink).delegate());
+            return;
+        }
+        if (sink instanceof ChunkWriter) {
+            ((ChunkWriter) sink).abort();
+            return;
+        }
+        if (sink instanceof SegmentLog.Stream) {
+            ((SegmentLog.Stream) sink).abort();
+            return;
+        }
+        try {
+            sink.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * 客户端：与client2()相同，发送文件、关闭输出，读取服务端反馈直到EOF
+     */
+    public static String send(InetSocketAddress address, Path file) throws IOException {
+        try (SocketChannel sChannel = SocketChannel.open(address)) {
+            return send(sChannel, file);
+        }
+    }
+
+    /**
+     * 在已连接的通道上发送，压测时可以先建立好所有连接再发送
+     */
+    public static String send(SocketChannel sChannel, Path file) throws IOException {
+        return send(sChannel, file, null);
+    }
+
+    /**
+     * 压缩发送：握手提供DEFLATE，服务端同意时按块压缩，否则原样发送
+     *
+     * @param stats 累计压缩率与CPU时间，可以为null
+     */
+    public static String sendCompressed(InetSocketAddress address, Path file, Compression.Stats stats) throws IOException {
+        return sendCompressed(address, file, stats, HELLO_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * 握手回复在timeoutMillis内没有到达：服务端没开启压缩，会把握手当成文件内容一直等EOF。
+     * 这时重置这个连接(服务端读到的是连接重置而不是EOF，不会确认也不算一次上传)，在新连接上原样发送
+     */
+    public static String sendCompressed(InetSocketAddress address, Path file, Compression.Stats stats, long timeoutMillis) throws IOException {
+        try (SocketChannel sChannel = SocketChannel.open(address)) {
+            ByteBuffer hello = Compression.encodeHello(Compression.Algorithm.DEFLATE);
+            while (hello.hasRemaining()) {
+                sChannel.write(hello);
+            }
+            ByteBuffer reply = ByteBuffer.allocate(1);
+            if (readReply(sChannel, reply, timeoutMillis)) {
+                Compression.Algorithm chosen = Compression.decodeReply(reply.get(0), Compression.Algorithm.DEFLATE);
+                if (chosen == Compression.Algorithm.NONE) {
+                    return send(sChannel, file);
+                }
+                return send(sChannel, file, new DeflatingChannel(sChannel, stats));
+            }
+            //SO_LINGER为0时关闭连接发送RST
+            sChannel.setOption(StandardSocketOptions.SO_LINGER, 0);
+        }
+        return send(address, file);
+    }
+
+    /**
+     * 用选择器等待握手回复，超时返回false；返回前通道恢复阻塞模式
+     */
+    private static boolean readReply(SocketChannel sChannel, ByteBuffer reply, long timeoutMillis) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        sChannel.configureBlocking(false);
+        try (Selector selector = Selector.open()) {
+            sChannel.register(selector, SelectionKey.OP_READ);
+            while (true) {
+                if (sChannel.read(reply) == -1) {
+                    throw new IOException("connection closed during compression hello");
+                }
+                if (!reply.hasRemaining()) {
+                    return true;
+                }
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    return false;
+                }
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(left)));
+                selector.selectedKeys().clear();
+            }
+        } finally {
+            //选择器关闭后注册已经取消，可以切回阻塞模式
+            sChannel.configureBlocking(true);
+        }
+    }
+
+    private static String send(SocketChannel sChannel, Path file, DeflatingChannel deflating) throws IOException {
+        PooledBuffer pooled = BufferPool.getDefault().acquire(64 * 1024);
+        WritableByteChannel out = deflating == null ? sChannel : deflating;
+        try (FileChannel inChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buf = pooled.buffer();
+            while (inChannel.read(buf) != -1) {
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    out.write(buf);
+                }
+                buf.clear();
+            }
+            if (deflating != null) {
+                deflating.close();
+            }
+            sChannel.shutdownOutput();
+            //接收服务端反馈
+            while (sChannel.read(buf) != -1) {
+                if (!buf.hasRemaining()) {
+                    throw new IOException("ack too long");
+                }
+            }
+            buf.flip();
+            byte[] dst = new byte[buf.remaining()];
+            buf.get(dst);
+            return new String(dst, StandardCharsets.UTF_8);
+        } finally {
+            if (deflating != null) {
+                deflating.release();
+            }
+            pooled.release();
+        }
+    }
+
+    /**
+     * 服务端一个连接的入站数据：开启压缩时先过握手，协商了DEFLATE就在输出前面接一个InflatingChannel
+     */
+    static final class Inbound {
+
+        private final WritableByteChannel sink;
+        private final Compression.Stats stats;
+        private Compression.ServerHandshake handshake;
+        private WritableByteChannel channel;
+
+        /**
+         * @param supported 为null时不握手，读到的就是原始内容
+         */
+        Inbound(WritableByteChannel sink, Compression.Algorithm[] supported, Compression.Stats stats) {
+            this.sink = sink;
+            this.stats = stats;
+            this.channel = sink;
+            if (supported != null) {
+                handshake = new Compression.ServerHandshake(supported);
+            }
+        }
+
+        /**
+         * 写入一次读到的数据
+         *
+         * @return 握手刚完成时需要回复给客户端的字节，否则为null
+         */
+        ByteBuffer read(ByteBuffer buf) throws IOException {
+            ByteBuffer reply = null;
+            if (handshake != null) {
+                if (!handshake.feed(buf)) {
+                    return null;
+                }
+                reply = negotiated();
+            }
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            return reply;
+        }
+
+        private ByteBuffer negotiated() throws IOException {
+            Compression.ServerHandshake done = handshake;
+            handshake = null;
+            if (!done.isNegotiated()) {
+                //不握手的客户端，已经读走的字节是内容的开头
+                ByteBuffer head = done.buffered();
+                while (head.hasRemaining()) {
+                    channel.write(head);
+                }
+                return null;
+            }
+            if (done.chosen() == Compression.Algorithm.DEFLATE) {
+                channel = new InflatingChannel(sink, stats);
+            }
+            return done.reply();
+        }
+
+        /**
+         * 读到EOF：提交输出，流不完整时丢弃输出并抛出异常
+         */
+        void eof() throws IOException {
+            try {
+                if (handshake != null) {
+                    handshake.finish();
+                    negotiated();
+                }
+                channel.close();
+            } catch (IOException e) {
+                abortSink(channel);
+                throw e;
+            }
+        }
+
+        /**
+         * 连接中断：丢弃输出
+         */
+        void abort() {
+            if (sink.isOpen()) {
+                abortSink(channel);
+            }
+        }
+
+        WritableByteChannel sink() {
+            return sink;
+        }
+    }
+}
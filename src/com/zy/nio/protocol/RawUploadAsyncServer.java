@@ -0,0 +1,364 @@
+package com.zy.nio.protocol;
+
+import com.zy.nio.buffer.BufferPool;
+import com.zy.nio.buffer.PooledBuffer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 基于NIO.2异步通道的上传服务端，交互与client2()/server2()相同(见RawUpload)
+ * 阻塞式(TestBlockingNIO)由线程等待I/O，选择器式(TestNonBlockingNIO)由线程等待就绪事件再自己读写，
+ * 这里发起读写后立即返回，操作完成时由通道组的线程回调CompletionHandler：
+ * 1.AsynchronousServerSocketChannel.accept完成后再次发起accept，同时为新连接开始读
+ * 2.每个连接两个缓冲区轮流使用：一个缓冲区读满后交给AsynchronousFileChannel按显式位置写文件，另一个继续读套接字
+ * 3.读到EOF并且文件写入全部完成后关闭文件，异步写回确认，写完关闭连接
+ * Linux上AsynchronousFileChannel由JDK用线程池模拟(没有内核异步文件I/O)，文件写在单独的线程池中执行，不占用通道组的线程
+ */
+public class RawUploadAsyncServer {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final Set<StandardOpenOption> FILE_OPTIONS = EnumSet.of(StandardOpenOption.WRITE,
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+
+    private final int port;
+    private final Path dir;
+    private final AsynchronousChannelGroup group;
+    //构造时自己创建的通道组，shutdown时一起关闭
+    private final boolean ownsGroup;
+    private final ExecutorService fileExecutor;
+    private final Set<Session> sessions = ConcurrentHashMap.newKeySet();
+    private final LongAdder files = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private AsynchronousServerSocketChannel serverChannel;
+    private volatile boolean running;
+
+    /**
+     * 通道组使用CPU核数个线程
+     */
+    public RawUploadAsyncServer(int port, Path dir) throws IOException {
+        this(port, dir, Runtime.getRuntime().availableProcessors());
+    }
+
+    public RawUploadAsyncServer(int port, Path dir, int threads) throws IOException {
+        this(port, dir, AsynchronousChannelGroup.withFixedThreadPool(threads, namedFactory("async-io-")), true, threads);
+    }
+
+    /**
+     * 使用外部的通道组，shutdown时不关闭它
+     */
+    public RawUploadAsyncServer(int port, Path dir, AsynchronousChannelGroup group) throws IOException {
+        this(port, dir, group, false, Runtime.getRuntime().availableProcessors());
+    }
+
+    private RawUploadAsyncServer(int port, Path dir, AsynchronousChannelGroup group, boolean ownsGroup, int fileThreads) throws IOException {
+        this.port = port;
+        this.dir = Files.createDirectories(dir);
+        this.group = group;
+        this.ownsGroup = ownsGroup;
+        this.fileExecutor = Executors.newFixedThreadPool(fileThreads, namedFactory("async-file-"));
+    }
+
+    private static ThreadFactory namedFactory(String prefix) {
+        AtomicInteger seq = new AtomicInteger();
+        return r -> new Thread(r, prefix + seq.getAndIncrement());
+    }
+
+    public void start() throws IOException {
+        serverChannel = AsynchronousServerSocketChannel.open(group);
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        running = true;
+        serverChannel.accept(null, acceptHandler);
+    }
+
+    private final CompletionHandler<AsynchronousSocketChannel, Void> acceptHandler = new CompletionHandler<AsynchronousSocketChannel, Void>() {
+        @Override
+        public void completed(AsynchronousSocketChannel socket, Void attachment) {
+            //先发起下一次accept，再处理这个连接
+            serverChannel.accept(null, this);
+            Session session = new Session(socket);
+            sessions.add(session);
+            session.open();
+        }
+
+        @Override
+        public void failed(Throwable e, Void attachment) {
+            if (!running || e instanceof AsynchronousCloseException) {
+                return;
+            }
+            //例如文件描述符用完，继续接收
+            e.printStackTrace();
+            serverChannel.accept(null, this);
+        }
+    };
+
+    /**
+     * 一个缓冲区及其正在写入的文件位置，同时作为读和写文件的附件
+     */
+    private static class Slot {
+        final PooledBuffer pooled = BufferPool.getDefault().acquire(BUFFER_SIZE);
+        final ByteBuffer buf = pooled.buffer();
+        long filePosition;
+    }
+
+    /**
+     * 一个连接的状态，读完成与写文件完成可能在不同线程中同时回调，状态变化都在synchronized中进行
+     * 同一时刻最多一个读操作，另一个缓冲区可能在写文件
+     */
+    private class Session {
+        private final AsynchronousSocketChannel socket;
+        private AsynchronousFileChannel file;
+        private final Slot[] slots = new Slot[2];
+        //没有在读也没有在写文件的缓冲区
+        private final ArrayDeque<Slot> free = new ArrayDeque<>(2);
+        //下一次读到的数据写入文件的位置
+        private long position;
+        private int pendingWrites;
+        private boolean reading;
+        private boolean eof;
+        private boolean closed;
+
+        Session(AsynchronousSocketChannel socket) {
+            this.socket = socket;
+        }
+
+        void open() {
+            try {
+                file = AsynchronousFileChannel.open(RawUpload.nextTarget(dir), FILE_OPTIONS, fileExecutor);
+            } catch (IOException e) {
+                fail(e, null);
+                return;
+            }
+            synchronized (this) {
+                for (int i = 0; i < slots.length; i++) {
+                    slots[i] = new Slot();
+                }
+                free.add(slots[1]);
+                reading = true;
+            }
+            read(slots[0]);
+        }
+
+        private void read(Slot slot) {
+            slot.buf.clear();
+            socket.read(slot.buf, slot, readHandler);
+        }
+
+        private final CompletionHandler<Integer, Slot> readHandler = new CompletionHandler<Integer, Slot>() {
+            @Override
+            public void completed(Integer n, Slot slot) {
+                Slot next;
+                synchronized (Session.this) {
+                    reading = false;
+                    if (closed) {
+                        slot.pooled.release();
+                        return;
+                    }
+                    if (n == -1) {
+                        eof = true;
+                        free.add(slot);
+                        finishIfDone();
+                        return;
+                    }
+                    slot.buf.flip();
+                    slot.filePosition = position;
+                    position += n;
+                    pendingWrites++;
+                    file.write(slot.buf, slot.filePosition, slot, writeHandler);
+                    //另一个缓冲区空闲就继续读，否则等写文件完成后由writeHandler发起读
+                    next = free.poll();
+                    if (next == null) {
+                        return;
+                    }
+                    reading = true;
+                }
+                read(next);
+            }
+
+            @Override
+            public void failed(Throwable e, Slot slot) {
+                synchronized (Session.this) {
+                    reading = false;
+                }
+                fail(e, slot);
+            }
+        };
+
+        private final CompletionHandler<Integer, Slot> writeHandler = new CompletionHandler<Integer, Slot>() {
+            @Override
+            public void completed(Integer written, Slot slot) {
+                synchronized (Session.this) {
+                    if (closed) {
+                        pendingWrites--;
+                        slot.pooled.release();
+                        return;
+                    }
+                    if (slot.buf.hasRemaining()) {
+                        //没写完，从新的位置继续写
+                        slot.filePosition += written;
+                        file.write(slot.buf, slot.filePosition, slot, this);
+                        return;
+                    }
+                    pendingWrites--;
+                    if (eof) {
+                        free.add(slot);
+                        finishIfDone();
+                        return;
+                    }
+                    if (reading) {
+                        //另一个缓冲区正在读，这个先放回去
+                        free.add(slot);
+                        return;
+                    }
+                    reading = true;
+                }
+                read(slot);
+            }
+
+            @Override
+            public void failed(Throwable e, Slot slot) {
+                synchronized (Session.this) {
+                    pendingWrites--;
+                }
+                fail(e, slot);
+            }
+        };
+
+        /**
+         * 读到EOF且文件写入全部完成：关闭文件，发送确认
+         */
+        private void finishIfDone() {
+            if (!eof || pendingWrites > 0) {
+                return;
+            }
+            try {
+                file.close();
+            } catch (IOException e) {
+                fail(e, null);
+                return;
+            }
+            files.increment();
+            bytes.add(position);
+            ByteBuffer ack = ByteBuffer.wrap(RawUpload.ACK);
+            socket.write(ack, ack, ackHandler);
+        }
+
+        private final CompletionHandler<Integer, ByteBuffer> ackHandler = new CompletionHandler<Integer, ByteBuffer>() {
+            @Override
+            public void completed(Integer written, ByteBuffer ack) {
+                if (ack.hasRemaining()) {
+                    //异步写可能只写出一部分，确认完整发出后才关闭
+                    socket.write(ack, ack, this);
+                    return;
+                }
+                close();
+            }
+
+            @Override
+            public void failed(Throwable e, ByteBuffer ack) {
+                fail(e, null);
+            }
+        };
+
+        /**
+         * 操作失败：关闭连接，归还失败操作所用的缓冲区
+         */
+        void fail(Throwable e, Slot slot) {
+            failed.increment();
+            close();
+            if (slot != null) {
+                slot.pooled.release();
+            }
+        }
+
+        /**
+         * 关闭连接与文件，空闲的缓冲区立即归还，正在读写的缓冲区等对应的操作回调后再归还，
+         * 避免操作还在进行时缓冲区已经被别的连接借走
+         */
+        synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            sessions.remove(this);
+            try {
+                socket.close();
+                if (file != null) {
+                    file.close();
+                }
+            } catch (IOException ignored) {
+            }
+            for (Slot slot : free) {
+                slot.pooled.release();
+            }
+            free.clear();
+        }
+    }
+
+    /**
+     * 停止接收新连接，关闭所有连接，关闭自己创建的通道组与文件线程池
+     */
+    public void shutdown() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException ignored) {
+        }
+        for (Session session : sessions) {
+            session.close();
+        }
+        if (ownsGroup) {
+            try {
+                group.shutdownNow();
+            } catch (IOException ignored) {
+            }
+            group.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        fileExecutor.shutdownNow();
+        fileExecutor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    public int getLocalPort() throws IOException {
+        return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+    }
+
+    public long getFilesReceived() {
+        return files.sum();
+    }
+
+    public long getBytesReceived() {
+        return bytes.sum();
+    }
+
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    public int getActiveConnections() {
+        return sessions.size();
+    }
+}
@@ -0,0 +1,125 @@
+package com.zy.nio.protocol;
+
+import com.zy.nio.buffer.BufferPool;
+import com.zy.nio.buffer.PooledBuffer;
+import com.zy.nio.channel.Compression;
+import com.zy.nio.server.BlockingHandler;
+import com.zy.nio.store.ChunkStore;
+import com.zy.nio.store.SegmentLog;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * server2()的处理逻辑，配合BlockingServer使用：顺序读到EOF写入文件，再回复确认
+ * 传入ChunkStore时写入去重存储，读到EOF才提交对象
+ * 传入SegmentLog时追加到持久化日志，等组提交把COMMIT记录force到磁盘后才回复确认；
+ * 每个连接一个线程，同一批force期间到达的连接共用一次同步
+ * setCompression()之后先处理客户端的压缩握手，协商了DEFLATE的连接边读边解压
+ */
+public class RawUploadBlockingHandler implements BlockingHandler {
+
+    private final Path dir;
+    private final ChunkStore store;
+    private final SegmentLog log;
+    private final LongAdder files = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final Compression.Stats compressionStats = new Compression.Stats();
+    private Compression.Algorithm[] compression;
+
+    public RawUploadBlockingHandler(Path dir) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.store = null;
+        this.log = null;
+    }
+
+    public RawUploadBlockingHandler(ChunkStore store) {
+        this.dir = store.getDirectory();
+        this.store = store;
+        this.log = null;
+    }
+
+    public RawUploadBlockingHandler(SegmentLog log) {
+        this.dir = log.getDirectory();
+        this.store = null;
+        this.log = log;
+    }
+
+    @Override
+    public void handle(SocketChannel socketChannel) throws IOException {
+        PooledBuffer pooled = BufferPool.getDefault().acquire(16 * 1024);
+        try {
+            RawUpload.Inbound inbound = new RawUpload.Inbound(RawUpload.openSink(dir, store, log), compression, compressionStats);
+            ByteBuffer buf = pooled.buffer();
+            long received = 0;
+            int len;
+            try {
+                while ((len = socketChannel.read(buf)) != -1) {
+                    received += len;
+                    buf.flip();
+                    ByteBuffer reply = inbound.read(buf);
+                    //握手完成，告诉客户端选定的算法
+                    while (reply != null && reply.hasRemaining()) {
+                        socketChannel.write(reply);
+                    }
+                    buf.clear();
+                }
+            } catch (IOException e) {
+                inbound.abort();
+                throw e;
+            }
+            inbound.eof();
+            if (log != null) {
+                awaitDurable(((SegmentLog.Stream) inbound.sink()).getCommitLsn());
+            }
+            //发送反馈给客户端
+            buf.put(RawUpload.ACK);
+            buf.flip();
+            while (buf.hasRemaining()) {
+                socketChannel.write(buf);
+            }
+            files.increment();
+            bytes.add(received);
+        } finally {
+            pooled.release();
+        }
+    }
+
+    private void awaitDurable(long lsn) throws IOException {
+        try {
+            log.durable(lsn).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for sync", e);
+        } catch (ExecutionException e) {
+            throw new IOException("sync failed", e.getCause());
+        }
+    }
+
+    /**
+     * 接受客户端的压缩握手，在服务启动前调用
+     *
+     * @param supported 支持的算法，客户端提供的算法都不在其中时回复NONE
+     */
+    public void setCompression(Compression.Algorithm... supported) {
+        this.compression = supported;
+    }
+
+    public Compression.Stats getCompressionStats() {
+        return compressionStats;
+    }
+
+    public long getFilesReceived() {
+        return files.sum();
+    }
+
+    public long getBytesReceived() {
+        return bytes.sum();
+    }
+}
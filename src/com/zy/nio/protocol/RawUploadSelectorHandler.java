@@ -0,0 +1,145 @@
+package com.zy.nio.protocol;
+
+import com.zy.nio.channel.Compression;
+import com.zy.nio.server.Connection;
+import com.zy.nio.server.ConnectionHandler;
+import com.zy.nio.store.ChunkStore;
+import com.zy.nio.store.ChunkWriter;
+import com.zy.nio.store.SegmentLog;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * server2()的交互在ReactorServer上的实现：每个连接的附件是它的输出文件，
+ * 读到的数据直接写文件，EOF时关闭文件、确认放进出站队列，发完后关闭连接
+ * 传入ChunkStore时输出改为去重存储，EOF时把配方交给存储的后台线程提交(pack、索引和配方的force不在worker线程里做)，
+ * 落盘后同样通过worker().execute()回来发送确认
+ * 传入SegmentLog时输出追加到持久化日志，EOF时写COMMIT记录，等日志的组提交把它force到磁盘后
+ * (同步线程回调，再通过worker().execute()回到本连接的worker线程)才发送确认
+ * setCompression()之后先处理客户端的压缩握手，握手可能被拆在几次读取里；回复进入出站队列，之后的数据边读边解压
+ */
+public class RawUploadSelectorHandler implements ConnectionHandler {
+
+    private final Path dir;
+    private final ChunkStore store;
+    private final SegmentLog log;
+    private final LongAdder files = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final Compression.Stats compressionStats = new Compression.Stats();
+    private Compression.Algorithm[] compression;
+
+    public RawUploadSelectorHandler(Path dir) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.store = null;
+        this.log = null;
+    }
+
+    public RawUploadSelectorHandler(ChunkStore store) {
+        this.dir = store.getDirectory();
+        this.store = store;
+        this.log = null;
+    }
+
+    public RawUploadSelectorHandler(SegmentLog log) {
+        this.dir = log.getDirectory();
+        this.store = null;
+        this.log = log;
+    }
+
+    @Override
+    public void onOpen(Connection conn) throws IOException {
+        conn.attach(new RawUpload.Inbound(RawUpload.openSink(dir, store, log, true), compression, compressionStats));
+    }
+
+    @Override
+    public void onRead(Connection conn, ByteBuffer buf) throws IOException {
+        RawUpload.Inbound inbound = (RawUpload.Inbound) conn.attachment();
+        ByteBuffer reply = inbound.read(buf);
+        if (reply != null) {
+            conn.write(reply);
+        }
+    }
+
+    @Override
+    public void onEof(Connection conn) throws IOException {
+        RawUpload.Inbound inbound = (RawUpload.Inbound) conn.attachment();
+        inbound.eof();
+        files.increment();
+        bytes.add(conn.bytesRead());
+        conn.interestRead(false);
+        CompletableFuture<Void> durable;
+        if (log != null) {
+            durable = log.durable(((SegmentLog.Stream) inbound.sink()).getCommitLsn());
+        } else if (store != null) {
+            durable = ((ChunkWriter) inbound.sink()).committed();
+        } else {
+            ack(conn);
+            return;
+        }
+        durable.whenComplete((v, e) -> conn.worker().execute(() -> {
+            if (conn.isClosed()) {
+                return;
+            }
+            if (e != null) {
+                //没有落盘，不确认，客户端读不到ACK就知道要重传
+                conn.close();
+                return;
+            }
+            try {
+                ack(conn);
+            } catch (IOException ex) {
+                conn.close();
+            }
+        }));
+    }
+
+    private void ack(Connection conn) throws IOException {
+        conn.write(ByteBuffer.wrap(RawUpload.ACK));
+        if (conn.outbound().isEmpty()) {
+            conn.close();
+        }
+    }
+
+    @Override
+    public void onWrite(Connection conn) {
+        //确认发完了(压缩握手的回复发完时输出还没提交)
+        RawUpload.Inbound inbound = (RawUpload.Inbound) conn.attachment();
+        if (conn.outbound().isEmpty() && !inbound.sink().isOpen()) {
+            conn.close();
+        }
+    }
+
+    @Override
+    public void onClose(Connection conn) {
+        RawUpload.Inbound inbound = (RawUpload.Inbound) conn.attachment();
+        if (inbound != null) {
+            inbound.abort();
+        }
+    }
+
+    /**
+     * 接受客户端的压缩握手，在服务启动前调用
+     *
+     * @param supported 支持的算法，客户端提供的算法都不在其中时回复NONE
+     */
+    public void setCompression(Compression.Algorithm... supported) {
+        this.compression = supported;
+    }
+
+    public Compression.Stats getCompressionStats() {
+        return compressionStats;
+    }
+
+    public long getFilesReceived() {
+        return files.sum();
+    }
+
+    public long getBytesReceived() {
+        return bytes.sum();
+    }
+}
@@ -0,0 +1,246 @@
+package com.zy.nio.protocol;
+
+import com.zy.nio.buffer.BufferPool;
+import com.zy.nio.buffer.PooledBuffer;
+import com.zy.nio.channel.ChannelTransfer;
+import com.zy.nio.channel.TransferResult;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32C;
+
+/**
+ * 多文件上传客户端：一个持久连接上连续发送多个FILE帧，不需要像TestBlockingNIO.client()那样每个文件重新建立连接
+ * 发送与接收确认可以流水线进行：uploadAll()先把所有文件连续发出，另一个线程同时读取确认
+ * 断点续传：resume()先询问服务端已持有的字节数，只发送剩下的部分；uploadParallel()把大文件分成几个区间用多个连接同时发送
+ */
+public class UploadClient implements Closeable {
+
+    private final SocketChannel sChannel;
+    private final ChannelTransfer transfer = new ChannelTransfer();
+
+    public UploadClient(InetSocketAddress address) throws IOException {
+        this.sChannel = SocketChannel.open(address);
+    }
+
+    /**
+     * 发送一个文件，不等待确认
+     */
+    public long send(Path file) throws IOException {
+        return send(file, file.getFileName().toString());
+    }
+
+    /**
+     * 以指定的名字发送一个文件，不等待确认
+     * 文件内容经过直接缓冲区时计算CRC32C，发完后作为尾部跟在内容后面，文件只读一遍
+     *
+     * @return 发送的内容的CRC32C
+     */
+    public long send(Path file, String name) throws IOException {
+        try (FileChannel inChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = inChannel.size();
+            ByteBuffer header = UploadProtocol.encodeFileHeader(
+                    new UploadProtocol.FileHeader(name, size, UploadProtocol.CHECKSUM_TRAILER));
+            while (header.hasRemaining()) {
+                sChannel.write(header);
+            }
+            TransferResult result = transfer.transferChecked(inChannel, 0, size, sChannel);
+            if (result.getBytes() != size) {
+                throw new IOException(file + " changed while sending: " + result.getBytes() + " of " + size);
+            }
+            ByteBuffer trailer = UploadProtocol.encodeTrailer(result.getChecksum());
+            while (trailer.hasRemaining()) {
+                sChannel.write(trailer);
+            }
+            return result.getChecksum();
+        }
+    }
+
+    /**
+     * 阻塞读取下一个确认
+     */
+    public UploadProtocol.Ack readAck() throws IOException {
+        return UploadProtocol.decodeAck(readFrame(UploadProtocol.TYPE_ACK));
+    }
+
+    private ByteBuffer readFrame(byte type) throws IOException {
+        ByteBuffer header = UploadProtocol.readHeader(sChannel);
+        if (header == null) {
+            throw new IOException("connection closed before reply");
+        }
+        if (UploadProtocol.frameType(header) != type) {
+            throw new IOException("unexpected frame type: " + UploadProtocol.frameType(header));
+        }
+        return header;
+    }
+
+    /**
+     * 询问服务端已持有name(总长size，校验和checksum)从0开始的连续多少字节
+     */
+    public long queryOffset(String name, long size, long checksum) throws IOException {
+        ByteBuffer query = UploadProtocol.encodeQuery(new UploadProtocol.FileHeader(name, size, checksum));
+        while (query.hasRemaining()) {
+            sChannel.write(query);
+        }
+        return UploadProtocol.decodeOffset(readFrame(UploadProtocol.TYPE_OFFSET));
+    }
+
+    /**
+     * 发送文件的[offset, offset+length)区间并等待确认，内容按位置从文件读取，不移动inChannel的position
+     *
+     * @return 文件齐了时为OK/CHECKSUM_MISMATCH，否则为PARTIAL
+     */
+    public UploadProtocol.Ack sendRange(FileChannel inChannel, String name, long size, long checksum,
+                                        long offset, long length) throws IOException {
+        ByteBuffer header = UploadProtocol.encodeRangeHeader(
+                new UploadProtocol.RangeHeader(name, size, checksum, offset, length));
+        while (header.hasRemaining()) {
+            sChannel.write(header);
+        }
+        long sent = transfer.transfer(inChannel, offset, length, sChannel).getBytes();
+        if (sent != length) {
+            throw new IOException(name + " changed while sending: " + sent + " of " + length);
+        }
+        return readAck();
+    }
+
+    /**
+     * 断点续传：只发送服务端还没有的部分，返回最终确认
+     */
+    public UploadProtocol.Ack resume(Path file) throws IOException {
+        return resume(file, file.getFileName().toString());
+    }
+
+    public UploadProtocol.Ack resume(Path file, String name) throws IOException {
+        try (FileChannel inChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = inChannel.size();
+            long checksum = checksum(inChannel, size);
+            long offset = queryOffset(name, size, checksum);
+            return sendRange(inChannel, name, size, checksum, offset, size - offset);
+        }
+    }
+
+    /**
+     * 把文件分成parts个区间，每个区间一个连接同时发送，返回最后收齐时的确认
+     */
+    public static UploadProtocol.Ack uploadParallel(InetSocketAddress address, Path file, String name, int parts) throws IOException {
+        try (FileChannel inChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = inChannel.size();
+            long checksum = checksum(inChannel, size);
+            long step = (size + parts - 1) / parts;
+            ExecutorService executor = Executors.newFixedThreadPool(parts);
+            try {
+                List<Future<UploadProtocol.Ack>> futures = new ArrayList<>(parts);
+                for (int i = 0; i < parts; i++) {
+                    long offset = Math.min(size, i * step);
+                    long length = Math.min(step, size - offset);
+                    futures.add(executor.submit(() -> {
+                        try (UploadClient client = new UploadClient(address)) {
+                            return client.sendRange(inChannel, name, size, checksum, offset, length);
+                        }
+                    }));
+                }
+                UploadProtocol.Ack result = null;
+                for (Future<UploadProtocol.Ack> future : futures) {
+                    UploadProtocol.Ack ack = future.get();
+                    if (ack.getStatus() != UploadProtocol.STATUS_PARTIAL) {
+                        result = ack;
+                    }
+                }
+                if (result == null) {
+                    throw new IOException("all ranges acknowledged but " + name + " not complete");
+                }
+                return result;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while uploading " + name, e);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * 流水线上传：后台线程读取确认，当前线程连续发送所有文件，返回按发送顺序排列的确认
+     */
+    public List<UploadProtocol.Ack> uploadAll(List<Path> files) throws IOException {
+        List<String> names = new ArrayList<>(files.size());
+        for (Path file : files) {
+            names.add(file.getFileName().toString());
+        }
+        return uploadAll(files, names);
+    }
+
+    /**
+     * 流水线上传，names.get(i)为files.get(i)在服务端保存的名字
+     */
+    public List<UploadProtocol.Ack> uploadAll(List<Path> files, List<String> names) throws IOException {
+        List<UploadProtocol.Ack> acks = new ArrayList<>(files.size());
+        IOException[] error = new IOException[1];
+        Thread reader = new Thread(() -> {
+            try {
+                for (int i = 0; i < files.size(); i++) {
+                    acks.add(readAck());
+                }
+            } catch (IOException e) {
+                error[0] = e;
+            }
+        }, "upload-ack-reader");
+        reader.start();
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                send(files.get(i), names.get(i));
+            }
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for acks", e);
+        }
+        if (error[0] != null) {
+            throw error[0];
+        }
+        return acks;
+    }
+
+    /**
+     * 计算文件的CRC32C，用于QUERY/RANGE帧头部：续传和并行上传要在发送之前用它标识文件的版本，
+     * 所以这里仍要先读一遍；FILE帧不需要，校验和放在尾部
+     */
+    static long checksum(FileChannel inChannel, long size) throws IOException {
+        CRC32C crc = new CRC32C();
+        PooledBuffer pooled = BufferPool.getDefault().acquire(256 * 1024);
+        ByteBuffer buf = pooled.buffer();
+        try {
+            long position = 0;
+            int n;
+            while (position < size && (n = inChannel.read(buf, position)) != -1) {
+                position += n;
+                buf.flip();
+                crc.update(buf);
+                buf.clear();
+            }
+        } finally {
+            pooled.release();
+        }
+        return crc.getValue();
+    }
+
+    @Override
+    public void close() throws IOException {
+        sChannel.close();
+    }
+}
@@ -0,0 +1,272 @@
+package com.zy.nio.protocol;
+
+import com.zy.nio.server.Connection;
+import com.zy.nio.server.ConnectionHandler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 非阻塞上传处理器，配合ReactorServer使用，协议与UploadServer相同
+ * TestBlockingNIO.server2()每个上传占用一个线程阻塞读到EOF，这里每个连接只是一个UploadSession状态对象，
+ * 少量worker线程就可以同时处理成千上万个上传，确认帧进入连接的出站队列，写不完时由OP_WRITE继续发送而不是阻塞写
+ * 同时支持断点续传的QUERY/RANGE帧，续传状态在所有连接间共享；收齐文件后的整文件校验和force在PartialUploads的后台线程完成，
+ * 确认再通过worker().execute()回到本连接的worker线程发送
+ */
+public class UploadHandler implements ConnectionHandler, Closeable {
+
+    private final Path dir;
+    private final PartialUploads partials;
+    private final LongAdder files = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    public UploadHandler(Path dir) throws IOException {
+        this(dir, PartialUploads.DEFAULT_IDLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param partIdleTimeout 没传完的文件闲置多久关闭.part文件通道，续传时再重新打开
+     */
+    public UploadHandler(Path dir, long partIdleTimeout, TimeUnit unit) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.partials = new PartialUploads(this.dir, partIdleTimeout, unit);
+    }
+
+    @Override
+    public void onOpen(Connection conn) {
+        conn.attach(new UploadSession());
+    }
+
+    @Override
+    public void onRead(Connection conn, ByteBuffer buf) throws IOException {
+        UploadSession session = (UploadSession) conn.attachment();
+        //一次读到的数据可能包含多个帧，也可能只有半个帧前缀
+        while (buf.hasRemaining()) {
+            switch (session.phase) {
+                case PREFIX:
+                    if (!UploadProtocol.fill(session.prefix, buf)) {
+                        return;
+                    }
+                    session.prefix.flip();
+                    session.frameType = UploadProtocol.decodeType(session.prefix);
+                    if (session.frameType != UploadProtocol.TYPE_FILE && session.frameType != UploadProtocol.TYPE_QUERY
+                            && session.frameType != UploadProtocol.TYPE_RANGE) {
+                        throw new IOException("unexpected frame type: " + session.frameType);
+                    }
+                    session.header = ByteBuffer.allocate(UploadProtocol.headerLength(session.prefix));
+                    session.prefix.clear();
+                    session.phase = UploadSession.Phase.HEADER;
+                    break;
+                case HEADER:
+                    if (!UploadProtocol.fill(session.header, buf)) {
+                        return;
+                    }
+                    session.header.flip();
+                    if (session.frameType == UploadProtocol.TYPE_QUERY) {
+                        query(conn, session);
+                        break;
+                    }
+                    if (session.frameType == UploadProtocol.TYPE_RANGE) {
+                        session.openRange(partials, UploadProtocol.decodeRangeHeader(session.header));
+                    } else {
+                        session.openFile(dir, UploadProtocol.decodeFileHeader(session.header));
+                    }
+                    session.header = null;
+                    session.phase = UploadSession.Phase.BODY;
+                    if (session.remaining() == 0) {
+                        endBody(conn, session);
+                    }
+                    break;
+                case BODY:
+                    writeBody(session, buf);
+                    if (session.remaining() == 0) {
+                        endBody(conn, session);
+                    }
+                    break;
+                case TRAILER:
+                    if (!UploadProtocol.fill(session.trailer, buf)) {
+                        return;
+                    }
+                    finish(conn, session);
+                    break;
+                default:
+                    throw new IllegalStateException(session.phase.name());
+            }
+        }
+    }
+
+    /**
+     * 把buf中属于当前文件的部分写到文件的writeOffset处
+     */
+    private void writeBody(UploadSession session, ByteBuffer buf) throws IOException {
+        int len = (int) Math.min(buf.remaining(), session.remaining());
+        ByteBuffer body = buf.duplicate();
+        body.limit(body.position() + len);
+        if (session.part == null) {
+            session.crc.update(body.duplicate());
+        }
+        while (body.hasRemaining()) {
+            session.writeOffset += session.outChannel.write(body, session.writeOffset);
+        }
+        buf.position(buf.position() + len);
+    }
+
+    //内容收完，FILE帧的校验和在尾部时还要再收8个字节
+    private void endBody(Connection conn, UploadSession session) throws IOException {
+        if (session.part == null && session.fileHeader.hasTrailer()) {
+            session.phase = UploadSession.Phase.TRAILER;
+        } else {
+            finish(conn, session);
+        }
+    }
+
+    private void finish(Connection conn, UploadSession session) throws IOException {
+        session.phase = UploadSession.Phase.PREFIX;
+        if (session.part != null) {
+            bytes.add(session.writeOffset - session.rangeStart);
+            PartialUploads.PartFile part = session.part;
+            if (!session.finishRange()) {
+                reply(conn, partials.partialAck(part));
+                return;
+            }
+            //收齐了：整个文件读一遍校验再force，不能在worker线程里做
+            UploadSession.Reply pending = new UploadSession.Reply(null);
+            session.replies.add(pending);
+            partials.complete(part).whenComplete((ack, e) -> {
+                if (e == null) {
+                    files.increment();
+                }
+                conn.worker().execute(() -> {
+                    if (conn.isClosed()) {
+                        return;
+                    }
+                    if (e != null) {
+                        conn.close();
+                        return;
+                    }
+                    pending.frame = UploadProtocol.encodeAck(ack);
+                    try {
+                        flushReplies(conn, session);
+                    } catch (IOException ex) {
+                        conn.close();
+                    }
+                });
+            });
+            return;
+        }
+        bytes.add(session.fileHeader.getSize());
+        UploadProtocol.Ack ack = session.finishFile();
+        files.increment();
+        reply(conn, ack);
+    }
+
+    //QUERY帧：回复已持有的连续字节数
+    private void query(Connection conn, UploadSession session) throws IOException {
+        UploadProtocol.FileHeader query = UploadProtocol.decodeFileHeader(session.header);
+        session.header = null;
+        session.phase = UploadSession.Phase.PREFIX;
+        long offset = partials.query(query.getName(), query.getSize(), query.getChecksum());
+        reply(conn, UploadProtocol.encodeOffset(query.getName(), offset));
+    }
+
+    private void reply(Connection conn, UploadProtocol.Ack ack) throws IOException {
+        reply(conn, UploadProtocol.encodeAck(ack));
+    }
+
+    private void reply(Connection conn, ByteBuffer frame) throws IOException {
+        UploadSession session = (UploadSession) conn.attachment();
+        if (!session.replies.isEmpty()) {
+            //前面还有在后台完成的确认，排在它后面
+            session.replies.add(new UploadSession.Reply(frame));
+            return;
+        }
+        write(conn, frame);
+    }
+
+    private void write(Connection conn, ByteBuffer frame) throws IOException {
+        if (!conn.write(frame)) {
+            //客户端不读确认，确认积压超过高水位，暂停接收新文件
+            conn.interestRead(false);
+        }
+    }
+
+    //按顺序发送已经完成的回复，遇到还没完成的停下
+    private void flushReplies(Connection conn, UploadSession session) throws IOException {
+        UploadSession.Reply head;
+        while ((head = session.replies.peek()) != null && head.frame != null) {
+            session.replies.poll();
+            write(conn, head.frame);
+        }
+        if (session.inputClosed && session.replies.isEmpty() && conn.outbound().isEmpty()) {
+            conn.close();
+        }
+    }
+
+    @Override
+    public void onWritabilityChanged(Connection conn, boolean writable) {
+        UploadSession session = (UploadSession) conn.attachment();
+        if (writable && !session.inputClosed) {
+            conn.interestRead(true);
+        }
+    }
+
+    @Override
+    public void onWrite(Connection conn) {
+        UploadSession session = (UploadSession) conn.attachment();
+        //确认都发完了，对端也已关闭输出
+        if (session.inputClosed && session.replies.isEmpty() && conn.outbound().isEmpty()) {
+            conn.close();
+        }
+    }
+
+    @Override
+    public void onEof(Connection conn) {
+        UploadSession session = (UploadSession) conn.attachment();
+        if (session.phase != UploadSession.Phase.PREFIX || session.prefix.position() > 0) {
+            //文件或帧没有收完
+            conn.close();
+            return;
+        }
+        session.inputClosed = true;
+        conn.interestRead(false);
+        if (session.replies.isEmpty() && conn.outbound().isEmpty()) {
+            conn.close();
+        }
+    }
+
+    @Override
+    public void onClose(Connection conn) {
+        UploadSession session = (UploadSession) conn.attachment();
+        if (session != null) {
+            session.abort();
+        }
+    }
+
+    /**
+     * 停止后台线程，关闭打开着的.part，已收到的区间留在.part.idx里；ReactorServer.shutdown()时自动调用
+     */
+    @Override
+    public void close() {
+        partials.close();
+    }
+
+    /**
+     * 当前打开着的.part个数，闲置超时的会被关闭
+     */
+    public int getOpenPartFiles() {
+        return partials.openCount();
+    }
+
+    public long getFilesReceived() {
+        return files.sum();
+    }
+
+    public long getBytesReceived() {
+        return bytes.sum();
+    }
+}
@@ -0,0 +1,563 @@
+package com.zy.nio.protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 多文件上传的帧格式，一个连接上可以连续发送多个文件
+ * 每一帧：
+ * +-------+------+-----------+--------------------+-------------------+
+ * | magic | type | headerLen |       header       |       body        |
+ * |  4B   |  1B  |    2B     |   headerLen字节     | FILE帧为size字节   |
+ * +-------+------+-----------+--------------------+-------------------+
+ * FILE帧头部：nameLen(2B) name(UTF-8) size(8B) checksum(8B)，后面紧跟size字节的文件内容；
+ *   checksum为CHECKSUM_TRAILER(-1)时内容之后再跟8字节的CRC32C(TRAILER_LENGTH)，客户端边发送边计算，不需要先把文件读一遍
+ * ACK帧头部：status(1B) nameLen(2B) name(UTF-8) size(8B) checksum(8B)，没有body，checksum为服务端计算的值
+ * 断点续传(可恢复上传)：
+ * QUERY帧头部：与FILE帧相同，没有body，询问服务端已经持有该文件(以size+checksum区分版本)从0开始的连续多少字节
+ * OFFSET帧头部：nameLen(2B) name(UTF-8) offset(8B)，QUERY的回复
+ * RANGE帧头部：nameLen(2B) name(UTF-8) size(8B) checksum(8B) offset(8B) length(8B)，后面紧跟length字节，
+ *   服务端写入name.part的offset处；文件的所有字节都收到后校验并原子改名为name，回复OK/CHECKSUM_MISMATCH，否则回复PARTIAL(size为已持有的字节数)
+ *   多个连接可以同时发送同一个文件的不同区间
+ * 下载：
+ * GET帧头部：nameLen(2B) name(UTF-8) offset(8B) length(8B)，length为-1表示到文件末尾
+ * DATA帧头部：status(1B) nameLen(2B) name(UTF-8) size(8B) offset(8B) length(8B)，后面紧跟length字节，size为文件总长
+ * 所有校验和都是CRC32C，所有整数都是大端序(ByteBuffer默认)
+ */
+public final class UploadProtocol {
+
+    public static final int MAGIC = 0x4E494F31;
+    public static final byte TYPE_FILE = 1;
+    public static final byte TYPE_ACK = 2;
+    public static final byte TYPE_QUERY = 3;
+    public static final byte TYPE_OFFSET = 4;
+    public static final byte TYPE_RANGE = 5;
+    public static final byte TYPE_GET = 6;
+    public static final byte TYPE_DATA = 7;
+
+    //magic + type + headerLen
+    public static final int PREFIX_LENGTH = 7;
+    //FILE帧的checksum取这个值表示校验和放在内容之后
+    public static final long CHECKSUM_TRAILER = -1L;
+    public static final int TRAILER_LENGTH = 8;
+    public static final int MAX_NAME_LENGTH = 1024;
+    public static final int MAX_HEADER_LENGTH = 4096;
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_CHECKSUM_MISMATCH = 1;
+    public static final byte STATUS_ERROR = 2;
+    public static final byte STATUS_PARTIAL = 3;
+    public static final byte STATUS_NOT_FOUND = 4;
+    public static final byte STATUS_BAD_RANGE = 5;
+
+    private UploadProtocol() {
+    }
+
+    /**
+     * FILE帧的前缀和头部，调用方随后发送size字节的文件内容
+     */
+    public static ByteBuffer encodeFileHeader(FileHeader header) {
+        byte[] name = encodeName(header.getName());
+        int headerLen = 2 + name.length + 8 + 8;
+        ByteBuffer buf = ByteBuffer.allocate(PREFIX_LENGTH + headerLen);
+        buf.putInt(MAGIC).put(TYPE_FILE).putShort((short) headerLen);
+        buf.putShort((short) name.length).put(name).putLong(header.getSize()).putLong(header.getChecksum());
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * 内容之后的校验和，FILE帧头部的checksum为CHECKSUM_TRAILER时发送
+     */
+    public static ByteBuffer encodeTrailer(long checksum) {
+        ByteBuffer buf = ByteBuffer.allocate(TRAILER_LENGTH);
+        buf.putLong(checksum);
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * QUERY帧：询问服务端已持有的字节数
+     */
+    public static ByteBuffer encodeQuery(FileHeader header) {
+        ByteBuffer buf = encodeFileHeader(header);
+        buf.put(4, TYPE_QUERY);
+        return buf;
+    }
+
+    public static ByteBuffer encodeOffset(String name, long offset) {
+        byte[] nameBytes = encodeName(name);
+        int headerLen = 2 + nameBytes.length + 8;
+        ByteBuffer buf = ByteBuffer.allocate(PREFIX_LENGTH + headerLen);
+        buf.putInt(MAGIC).put(TYPE_OFFSET).putShort((short) headerLen);
+        buf.putShort((short) nameBytes.length).put(nameBytes).putLong(offset);
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * RANGE帧的前缀和头部，调用方随后发送length字节
+     */
+    public static ByteBuffer encodeRangeHeader(RangeHeader header) {
+        byte[] name = encodeName(header.getName());
+        int headerLen = 2 + name.length + 8 + 8 + 8 + 8;
+        ByteBuffer buf = ByteBuffer.allocate(PREFIX_LENGTH + headerLen);
+        buf.putInt(MAGIC).put(TYPE_RANGE).putShort((short) headerLen);
+        buf.putShort((short) name.length).put(name).putLong(header.getSize()).putLong(header.getChecksum())
+                .putLong(header.getOffset()).putLong(header.getLength());
+        buf.flip();
+        return buf;
+    }
+
+    public static ByteBuffer encodeGet(GetRequest request) {
+        byte[] name = encodeName(request.getName());
+        int headerLen = 2 + name.length + 8 + 8;
+        ByteBuffer buf = ByteBuffer.allocate(PREFIX_LENGTH + headerLen);
+        buf.putInt(MAGIC).put(TYPE_GET).putShort((short) headerLen);
+        buf.putShort((short) name.length).put(name).putLong(request.getOffset()).putLong(request.getLength());
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * DATA帧的前缀和头部，调用方随后发送length字节
+     */
+    public static ByteBuffer encodeDataHeader(DataHeader header) {
+        byte[] name = encodeName(header.getName());
+        int headerLen = 1 + 2 + name.length + 8 + 8 + 8;
+        ByteBuffer buf = ByteBuffer.allocate(PREFIX_LENGTH + headerLen);
+        buf.putInt(MAGIC).put(TYPE_DATA).putShort((short) headerLen);
+        buf.put(header.getStatus()).putShort((short) name.length).put(name)
+                .putLong(header.getSize()).putLong(header.getOffset()).putLong(header.getLength());
+        buf.flip();
+        return buf;
+    }
+
+    public static ByteBuffer encodeAck(Ack ack) {
+        byte[] name = encodeName(ack.getName());
+        int headerLen = 1 + 2 + name.length + 8 + 8;
+        ByteBuffer buf = ByteBuffer.allocate(PREFIX_LENGTH + headerLen);
+        buf.putInt(MAGIC).put(TYPE_ACK).putShort((short) headerLen);
+        buf.put(ack.getStatus()).putShort((short) name.length).put(name).putLong(ack.getSize()).putLong(ack.getChecksum());
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * 解析帧前缀，buf中至少要有PREFIX_LENGTH个字节
+     *
+     * @return 帧类型，头部长度需要再调用headerLength()获取
+     */
+    public static byte decodeType(ByteBuffer prefix) throws IOException {
+        int magic = prefix.getInt(prefix.position());
+        if (magic != MAGIC) {
+            throw new IOException("bad frame magic: " + Integer.toHexString(magic));
+        }
+        return prefix.get(prefix.position() + 4);
+    }
+
+    /**
+     * 解析帧前缀中的头部长度，超过MAX_HEADER_LENGTH或不够放下该帧类型的定长字段时抛出IOException
+     */
+    public static int headerLength(ByteBuffer prefix) throws IOException {
+        int headerLen = prefix.getShort(prefix.position() + 5) & 0xFFFF;
+        if (headerLen > MAX_HEADER_LENGTH) {
+            throw new IOException("frame header too long: " + headerLen);
+        }
+        byte type = prefix.get(prefix.position() + 4);
+        if (headerLen < minHeaderLength(type)) {
+            throw new IOException("frame header too short for type " + type + ": " + headerLen);
+        }
+        return headerLen;
+    }
+
+    /**
+     * 各帧类型头部的定长字段(文件名为空时)的长度，未知类型返回0，由调用方拒绝
+     */
+    static int minHeaderLength(byte type) {
+        switch (type) {
+            case TYPE_FILE:
+            case TYPE_QUERY:
+                return 2 + 8 + 8;
+            case TYPE_ACK:
+                return 1 + 2 + 8 + 8;
+            case TYPE_OFFSET:
+                return 2 + 8;
+            case TYPE_RANGE:
+                return 2 + 8 + 8 + 8 + 8;
+            case TYPE_GET:
+                return 2 + 8 + 8;
+            case TYPE_DATA:
+                return 1 + 2 + 8 + 8 + 8;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * 从头部字节中解析FILE帧头部，buf的position指向头部开始
+     */
+    public static FileHeader decodeFileHeader(ByteBuffer buf) throws IOException {
+        String name = decodeName(buf);
+        long size = getLong(buf);
+        long checksum = getLong(buf);
+        if (size < 0) {
+            throw new IOException("negative file size: " + size);
+        }
+        return new FileHeader(name, size, checksum);
+    }
+
+    /**
+     * 解析OFFSET帧头部
+     *
+     * @return 服务端已持有的从0开始的连续字节数
+     */
+    public static long decodeOffset(ByteBuffer buf) throws IOException {
+        decodeName(buf);
+        long offset = getLong(buf);
+        if (offset < 0) {
+            throw new IOException("negative offset: " + offset);
+        }
+        return offset;
+    }
+
+    public static RangeHeader decodeRangeHeader(ByteBuffer buf) throws IOException {
+        String name = decodeName(buf);
+        long size = getLong(buf);
+        long checksum = getLong(buf);
+        long offset = getLong(buf);
+        long length = getLong(buf);
+        if (size < 0 || offset < 0 || length < 0 || offset > size - length) {
+            throw new IOException("bad range " + offset + "+" + length + " of " + size);
+        }
+        return new RangeHeader(name, size, checksum, offset, length);
+    }
+
+    public static GetRequest decodeGet(ByteBuffer buf) throws IOException {
+        String name = decodeName(buf);
+        long offset = getLong(buf);
+        long length = getLong(buf);
+        if (offset < 0 || length < -1) {
+            throw new IOException("bad range " + offset + "+" + length);
+        }
+        return new GetRequest(name, offset, length);
+    }
+
+    public static DataHeader decodeDataHeader(ByteBuffer buf) throws IOException {
+        byte status = get(buf);
+        String name = decodeName(buf);
+        long size = getLong(buf);
+        long offset = getLong(buf);
+        long length = getLong(buf);
+        if (length < 0) {
+            throw new IOException("negative data length: " + length);
+        }
+        return new DataHeader(status, name, size, offset, length);
+    }
+
+    public static Ack decodeAck(ByteBuffer buf) throws IOException {
+        byte status = get(buf);
+        String name = decodeName(buf);
+        return new Ack(name, status, getLong(buf), getLong(buf));
+    }
+
+    private static byte[] encodeName(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("file name too long: " + name);
+        }
+        return bytes;
+    }
+
+    private static String decodeName(ByteBuffer buf) throws IOException {
+        require(buf, 2);
+        int len = buf.getShort() & 0xFFFF;
+        if (len > MAX_NAME_LENGTH || len > buf.remaining()) {
+            throw new IOException("bad file name length: " + len);
+        }
+        byte[] bytes = new byte[len];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    //头部长度由对端声明，定长字段之前都要检查，不够时抛出IOException而不是BufferUnderflowException
+    private static void require(ByteBuffer buf, int length) throws IOException {
+        if (buf.remaining() < length) {
+            throw new IOException("truncated frame header: need " + length + " bytes, " + buf.remaining() + " left");
+        }
+    }
+
+    private static byte get(ByteBuffer buf) throws IOException {
+        require(buf, 1);
+        return buf.get();
+    }
+
+    private static long getLong(ByteBuffer buf) throws IOException {
+        require(buf, 8);
+        return buf.getLong();
+    }
+
+    /**
+     * 阻塞读满buf，一个字节都没读到就遇到EOF时返回false，读到一半遇到EOF抛出EOFException
+     */
+    public static boolean readFully(ReadableByteChannel channel, ByteBuffer buf) throws IOException {
+        boolean any = false;
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf);
+            if (n == -1) {
+                if (any) {
+                    throw new EOFException("connection closed in the middle of a frame");
+                }
+                return false;
+            }
+            any |= n > 0;
+        }
+        return true;
+    }
+
+    /**
+     * 非阻塞解析用：从src中尽量填满dst，填满返回true
+     */
+    static boolean fill(ByteBuffer dst, ByteBuffer src) {
+        int len = Math.min(dst.remaining(), src.remaining());
+        ByteBuffer slice = src.duplicate();
+        slice.limit(slice.position() + len);
+        dst.put(slice);
+        src.position(src.position() + len);
+        return !dst.hasRemaining();
+    }
+
+    /**
+     * 阻塞读取一个完整的帧头(前缀+头部)，连接已关闭时返回null
+     *
+     * @return position指向头部开始的缓冲区，帧类型通过frameType()获取
+     */
+    public static ByteBuffer readHeader(ReadableByteChannel channel) throws IOException {
+        ByteBuffer prefix = ByteBuffer.allocate(PREFIX_LENGTH);
+        if (!readFully(channel, prefix)) {
+            return null;
+        }
+        prefix.flip();
+        //校验magic
+        decodeType(prefix);
+        int headerLen = headerLength(prefix);
+        ByteBuffer header = ByteBuffer.allocate(PREFIX_LENGTH + headerLen);
+        header.put(prefix);
+        if (!readFully(channel, header)) {
+            throw new EOFException("connection closed in the middle of a frame");
+        }
+        header.flip();
+        header.position(PREFIX_LENGTH);
+        return header;
+    }
+
+    /**
+     * readHeader()返回的缓冲区对应的帧类型
+     */
+    public static byte frameType(ByteBuffer header) {
+        return header.get(4);
+    }
+
+    /**
+     * 只保留文件名部分，拒绝路径穿越
+     */
+    public static String safeFileName(String name) throws IOException {
+        if (name.isEmpty() || name.contains("/") || name.contains("\\") || name.equals(".") || name.equals("..")) {
+            throw new IOException("illegal file name: " + name);
+        }
+        return name;
+    }
+
+    /**
+     * FILE帧头部
+     */
+    public static final class FileHeader {
+        private final String name;
+        private final long size;
+        private final long checksum;
+
+        public FileHeader(String name, long size, long checksum) {
+            this.name = name;
+            this.size = size;
+            this.checksum = checksum;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getChecksum() {
+            return checksum;
+        }
+
+        /**
+         * 校验和是否在内容之后发送
+         */
+        public boolean hasTrailer() {
+            return checksum == CHECKSUM_TRAILER;
+        }
+    }
+
+    /**
+     * RANGE帧头部：文件name(总长size，校验和checksum)从offset开始的length字节
+     */
+    public static final class RangeHeader {
+        private final String name;
+        private final long size;
+        private final long checksum;
+        private final long offset;
+        private final long length;
+
+        public RangeHeader(String name, long size, long checksum, long offset, long length) {
+            this.name = name;
+            this.size = size;
+            this.checksum = checksum;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getChecksum() {
+            return checksum;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getLength() {
+            return length;
+        }
+    }
+
+    /**
+     * GET帧头部：下载文件name从offset开始的length字节，length为-1表示到文件末尾
+     */
+    public static final class GetRequest {
+        private final String name;
+        private final long offset;
+        private final long length;
+
+        public GetRequest(String name, long offset, long length) {
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getLength() {
+            return length;
+        }
+    }
+
+    /**
+     * DATA帧头部：status不是OK时length为0
+     */
+    public static final class DataHeader {
+        private final byte status;
+        private final String name;
+        private final long size;
+        private final long offset;
+        private final long length;
+
+        public DataHeader(byte status, String name, long size, long offset, long length) {
+            this.status = status;
+            this.name = name;
+            this.size = size;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public byte getStatus() {
+            return status;
+        }
+
+        public boolean isOk() {
+            return status == STATUS_OK;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        @Override
+        public String toString() {
+            return name + " status=" + status + " size=" + size + " range=" + offset + "+" + length;
+        }
+    }
+
+    /**
+     * 服务端对每个文件的确认
+     */
+    public static final class Ack {
+        private final String name;
+        private final byte status;
+        private final long size;
+        private final long checksum;
+
+        public Ack(String name, byte status, long size, long checksum) {
+            this.name = name;
+            this.status = status;
+            this.size = size;
+            this.checksum = checksum;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public byte getStatus() {
+            return status;
+        }
+
+        public boolean isOk() {
+            return status == STATUS_OK;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getChecksum() {
+            return checksum;
+        }
+
+        @Override
+        public String toString() {
+            return name + " status=" + status + " size=" + size + " checksum=" + Long.toHexString(checksum);
+        }
+    }
+}
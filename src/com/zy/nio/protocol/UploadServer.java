@@ -0,0 +1,206 @@
+package com.zy.nio.protocol;
+
+import com.zy.nio.buffer.BufferPool;
+import com.zy.nio.buffer.PooledBuffer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+
+/**
+ * 多文件上传服务端(阻塞式，每个连接一个线程)
+ * 按帧依次读取FILE帧，把每个文件写到存储目录下各自的FileChannel，边写边计算CRC32C，校验后回复ACK帧，
+ * 客户端可以在一个连接上流水线发送任意多个文件；QUERY/RANGE帧用于断点续传和分区间并行上传
+ */
+public class UploadServer {
+
+    private final int port;
+    private final Path dir;
+    private final PartialUploads partials;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final LongAdder files = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private ServerSocketChannel ssChannel;
+    private Thread acceptThread;
+    private volatile boolean running;
+
+    public UploadServer(int port, Path dir) {
+        this.port = port;
+        this.dir = dir;
+        this.partials = new PartialUploads(dir);
+    }
+
+    public void start() throws IOException {
+        Files.createDirectories(dir);
+        ssChannel = ServerSocketChannel.open();
+        ssChannel.bind(new InetSocketAddress(port));
+        running = true;
+        acceptThread = new Thread(() -> {
+            while (running) {
+                try {
+                    SocketChannel socketChannel = ssChannel.accept();
+                    executor.execute(() -> serve(socketChannel));
+                } catch (ClosedChannelException e) {
+                    return;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "upload-accept");
+        acceptThread.start();
+    }
+
+    /**
+     * 处理一个连接上的所有帧，直到客户端关闭连接
+     */
+    private void serve(SocketChannel socketChannel) {
+        PooledBuffer pooled = BufferPool.getDefault().acquire(64 * 1024);
+        try (SocketChannel channel = socketChannel) {
+            ByteBuffer header;
+            while ((header = UploadProtocol.readHeader(channel)) != null) {
+                ByteBuffer reply;
+                switch (UploadProtocol.frameType(header)) {
+                    case UploadProtocol.TYPE_FILE:
+                        reply = UploadProtocol.encodeAck(receive(channel, UploadProtocol.decodeFileHeader(header), pooled.buffer()));
+                        break;
+                    case UploadProtocol.TYPE_QUERY:
+                        UploadProtocol.FileHeader query = UploadProtocol.decodeFileHeader(header);
+                        reply = UploadProtocol.encodeOffset(query.getName(),
+                                partials.query(query.getName(), query.getSize(), query.getChecksum()));
+                        break;
+                    case UploadProtocol.TYPE_RANGE:
+                        reply = UploadProtocol.encodeAck(receiveRange(channel, UploadProtocol.decodeRangeHeader(header), pooled.buffer()));
+                        break;
+                    default:
+                        throw new IOException("unexpected frame type: " + UploadProtocol.frameType(header));
+                }
+                while (reply.hasRemaining()) {
+                    channel.write(reply);
+                }
+            }
+        } catch (IOException e) {
+            if (running) {
+                System.err.println("upload connection failed: " + e);
+            }
+        } finally {
+            pooled.release();
+        }
+    }
+
+    /**
+     * 把帧中size字节的文件内容写入存储目录，同时计算CRC32C；校验和不一致时删除文件
+     */
+    private UploadProtocol.Ack receive(SocketChannel channel, UploadProtocol.FileHeader fileHeader, ByteBuffer buf) throws IOException {
+        String name = UploadProtocol.safeFileName(fileHeader.getName());
+        Path target = dir.resolve(name);
+        CRC32C crc = new CRC32C();
+        long remaining = fileHeader.getSize();
+        try (FileChannel outChannel = FileChannel.open(target, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (remaining > 0) {
+                buf.clear();
+                if (remaining < buf.capacity()) {
+                    buf.limit((int) remaining);
+                }
+                if (channel.read(buf) == -1) {
+                    throw new EOFException("connection closed while receiving " + name);
+                }
+                buf.flip();
+                remaining -= buf.remaining();
+                //CRC32C.update(ByteBuffer)会移动position，用duplicate计算
+                crc.update(buf.duplicate());
+                while (buf.hasRemaining()) {
+                    outChannel.write(buf);
+                }
+            }
+        }
+        long expected = fileHeader.getChecksum();
+        if (fileHeader.hasTrailer()) {
+            buf.clear().limit(UploadProtocol.TRAILER_LENGTH);
+            if (!UploadProtocol.readFully(channel, buf)) {
+                throw new EOFException("connection closed before checksum of " + name);
+            }
+            expected = buf.getLong(0);
+        }
+        files.increment();
+        bytes.add(fileHeader.getSize());
+        byte status = UploadProtocol.STATUS_OK;
+        if (crc.getValue() != expected) {
+            status = UploadProtocol.STATUS_CHECKSUM_MISMATCH;
+            Files.deleteIfExists(target);
+        }
+        return new UploadProtocol.Ack(name, status, fileHeader.getSize(), crc.getValue());
+    }
+
+    /**
+     * 把RANGE帧的内容写到.part文件的offset处，连接中断时已写入的部分同样记为已收到
+     */
+    private UploadProtocol.Ack receiveRange(SocketChannel channel, UploadProtocol.RangeHeader range, ByteBuffer buf) throws IOException {
+        PartialUploads.PartFile part = partials.open(range.getName(), range.getSize(), range.getChecksum());
+        long position = range.getOffset();
+        long end = range.getOffset() + range.getLength();
+        try {
+            try {
+                while (position < end) {
+                    buf.clear();
+                    if (end - position < buf.capacity()) {
+                        buf.limit((int) (end - position));
+                    }
+                    if (channel.read(buf) == -1) {
+                        throw new EOFException("connection closed while receiving " + range.getName());
+                    }
+                    buf.flip();
+                    while (buf.hasRemaining()) {
+                        position += part.channel.write(buf, position);
+                    }
+                }
+            } catch (IOException e) {
+                partials.received(part, range.getOffset(), position);
+                throw e;
+            }
+            bytes.add(range.getLength());
+            //每个连接一个线程，收齐后的校验直接在本线程做
+            UploadProtocol.Ack ack = partials.received(part, range.getOffset(), position);
+            if (ack.getStatus() != UploadProtocol.STATUS_PARTIAL) {
+                files.increment();
+            }
+            return ack;
+        } finally {
+            partials.release(part);
+        }
+    }
+
+    public void shutdown() throws IOException, InterruptedException {
+        running = false;
+        ssChannel.close();
+        acceptThread.join();
+        executor.shutdownNow();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+        partials.close();
+    }
+
+    public int getLocalPort() throws IOException {
+        return ((InetSocketAddress) ssChannel.getLocalAddress()).getPort();
+    }
+
+    public long getFilesReceived() {
+        return files.sum();
+    }
+
+    public long getBytesReceived() {
+        return bytes.sum();
+    }
+}
@@ -0,0 +1,147 @@
+package com.zy.nio.protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.zip.CRC32C;
+
+/**
+ * 非阻塞上传的连接状态，挂在SelectionKey(Connection)上
+ * 入站按阶段推进：PREFIX(帧前缀) -> HEADER(帧头部) -> BODY(文件内容) -> [TRAILER(校验和)] -> 回到PREFIX
+ * 每个文件收完后生成一个ACK帧放入连接的出站队列，发不完的部分由OP_WRITE事件继续发送
+ * RANGE帧的内容写入PartialUploads的.part文件，连接中断时已写入的部分记为已收到，下次从断点继续；
+ * 收齐文件的那个RANGE帧的确认由后台线程生成，在它之前排进replies，后面的回复排在它之后，保证按帧的顺序确认
+ */
+class UploadSession {
+
+    enum Phase {
+        PREFIX, HEADER, BODY, TRAILER
+    }
+
+    Phase phase = Phase.PREFIX;
+    final ByteBuffer prefix = ByteBuffer.allocate(UploadProtocol.PREFIX_LENGTH);
+    byte frameType;
+    ByteBuffer header;
+
+    //当前文件
+    UploadProtocol.FileHeader fileHeader;
+    Path target;
+    FileChannel outChannel;
+    long writeOffset;
+    //当前帧的内容写到文件的这个位置为止
+    long bodyEnd;
+    final CRC32C crc = new CRC32C();
+    final ByteBuffer trailer = ByteBuffer.allocate(UploadProtocol.TRAILER_LENGTH);
+
+    //当前RANGE帧
+    PartialUploads partials;
+    PartialUploads.PartFile part;
+    long rangeStart;
+
+    //对端已关闭输出，确认发完后关闭连接
+    boolean inputClosed;
+    //等待后台完成的确认以及排在它后面的回复，队首完成后依次放入出站队列
+    final Queue<Reply> replies = new ArrayDeque<>();
+
+    static final class Reply {
+        //null表示还没完成
+        ByteBuffer frame;
+
+        Reply(ByteBuffer frame) {
+            this.frame = frame;
+        }
+    }
+
+    void openFile(Path dir, UploadProtocol.FileHeader fileHeader) throws IOException {
+        this.fileHeader = fileHeader;
+        this.target = dir.resolve(UploadProtocol.safeFileName(fileHeader.getName()));
+        this.outChannel = FileChannel.open(target, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.writeOffset = 0;
+        this.bodyEnd = fileHeader.getSize();
+        this.crc.reset();
+        this.trailer.clear();
+    }
+
+    void openRange(PartialUploads partials, UploadProtocol.RangeHeader range) throws IOException {
+        this.partials = partials;
+        this.part = partials.open(range.getName(), range.getSize(), range.getChecksum());
+        this.outChannel = part.channel;
+        this.rangeStart = range.getOffset();
+        this.writeOffset = range.getOffset();
+        this.bodyEnd = range.getOffset() + range.getLength();
+    }
+
+    long remaining() {
+        return bodyEnd - writeOffset;
+    }
+
+    /**
+     * RANGE帧收完：记录区间
+     *
+     * @return 是否由这个区间收齐了文件，是的话调用者用PartialUploads.complete()校验并改名
+     */
+    boolean finishRange() throws IOException {
+        PartialUploads.PartFile current = part;
+        part = null;
+        outChannel = null;
+        try {
+            return partials.record(current, rangeStart, writeOffset);
+        } finally {
+            partials.release(current);
+        }
+    }
+
+    /**
+     * 文件收完(有尾部时尾部也收完)：关闭输出通道并生成确认，校验和不一致时删除文件
+     */
+    UploadProtocol.Ack finishFile() throws IOException {
+        outChannel.close();
+        outChannel = null;
+        long checksum = crc.getValue();
+        long expected = fileHeader.hasTrailer() ? trailer.getLong(0) : fileHeader.getChecksum();
+        byte status = UploadProtocol.STATUS_OK;
+        if (checksum != expected) {
+            status = UploadProtocol.STATUS_CHECKSUM_MISMATCH;
+            Files.deleteIfExists(target);
+        }
+        UploadProtocol.Ack ack = new UploadProtocol.Ack(target.getFileName().toString(), status, fileHeader.getSize(), checksum);
+        fileHeader = null;
+        target = null;
+        return ack;
+    }
+
+    /**
+     * 连接中断时丢弃没收完的文件
+     */
+    void abort() {
+        if (part != null) {
+            //.part由所有连接共用，不关闭，只记下已经写入的部分；正好收齐时在后台完成
+            try {
+                if (partials.record(part, rangeStart, writeOffset)) {
+                    partials.complete(part);
+                }
+            } catch (IOException ignored) {
+            } finally {
+                partials.release(part);
+            }
+            part = null;
+            outChannel = null;
+            return;
+        }
+        if (outChannel == null) {
+            return;
+        }
+        try {
+            outChannel.close();
+            Files.deleteIfExists(target);
+        } catch (IOException ignored) {
+        }
+        outChannel = null;
+    }
+}
@@ -0,0 +1,13 @@
+package com.zy.nio.server;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 阻塞式连接处理器：在连接自己的线程(虚拟线程或线程池线程)中按顺序读写，返回后由BlockingServer关闭通道
+ */
+@FunctionalInterface
+public interface BlockingHandler {
+
+    void handle(SocketChannel channel) throws IOException;
+}
@@ -0,0 +1,169 @@
+package com.zy.nio.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 阻塞式服务端：TestBlockingNIO.server()/server2()只接收一个连接就退出，这里循环accept，每个连接一个线程，
+ * 连接里仍然是最简单的顺序读写代码(BlockingHandler)
+ * 1.VIRTUAL：每个连接一个虚拟线程(JDK 21+)，阻塞在read上时不占用平台线程，上万个连接只需要少量载体线程
+ * 2.PLATFORM：固定大小的平台线程池，连接多于线程数时在队列中等待空闲线程
+ * 运行时不支持虚拟线程时自动退回PLATFORM，实际使用的模式见getThreadMode()
+ */
+public class BlockingServer {
+
+    public enum ThreadMode {
+        VIRTUAL, PLATFORM
+    }
+
+    private final int port;
+    private final BlockingHandler handler;
+    private final ThreadMode threadMode;
+    private final ExecutorService executor;
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final AtomicInteger active = new AtomicInteger();
+    private ServerSocketChannel ssChannel;
+    private Thread acceptThread;
+    private volatile boolean running;
+
+    /**
+     * 优先使用虚拟线程，不支持时使用CPU核数*16个平台线程
+     */
+    public BlockingServer(int port, BlockingHandler handler) {
+        this(port, ThreadMode.VIRTUAL, Runtime.getRuntime().availableProcessors() * 16, handler);
+    }
+
+    /**
+     * @param platformThreads PLATFORM模式(或退回PLATFORM时)的线程数
+     */
+    public BlockingServer(int port, ThreadMode mode, int platformThreads, BlockingHandler handler) {
+        if (platformThreads <= 0) {
+            throw new IllegalArgumentException("platformThreads must be positive: " + platformThreads);
+        }
+        this.port = port;
+        this.handler = handler;
+        ExecutorService virtual = mode == ThreadMode.VIRTUAL ? newVirtualThreadExecutor() : null;
+        if (virtual != null) {
+            this.executor = virtual;
+            this.threadMode = ThreadMode.VIRTUAL;
+        } else {
+            AtomicInteger seq = new AtomicInteger();
+            this.executor = Executors.newFixedThreadPool(platformThreads,
+                    r -> new Thread(r, "blocking-worker-" + seq.getAndIncrement()));
+            this.threadMode = ThreadMode.PLATFORM;
+        }
+    }
+
+    /**
+     * 通过反射调用Executors.newVirtualThreadPerTaskExecutor()，源码仍可以用旧版本JDK编译，运行时不支持返回null
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            //JDK 21以前没有这个方法，JDK 19/20没有开启预览特性时调用会抛出异常
+            return null;
+        }
+    }
+
+    public void start() throws IOException {
+        ssChannel = ServerSocketChannel.open();
+        ssChannel.bind(new InetSocketAddress(port), 1024);
+        running = true;
+        acceptThread = new Thread(this::acceptLoop, "blocking-accept");
+        acceptThread.start();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            SocketChannel socketChannel;
+            try {
+                socketChannel = ssChannel.accept();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                //例如文件描述符用完，稍后再试
+                e.printStackTrace();
+                sleepQuietly();
+                continue;
+            }
+            accepted.increment();
+            active.incrementAndGet();
+            executor.execute(() -> serve(socketChannel));
+        }
+    }
+
+    private void serve(SocketChannel socketChannel) {
+        try (SocketChannel channel = socketChannel) {
+            handler.handle(channel);
+            completed.increment();
+        } catch (IOException | RuntimeException e) {
+            //处理器的bug也只算这个连接失败，不让线程池的线程带着异常退出
+            failed.increment();
+        } finally {
+            active.decrementAndGet();
+        }
+    }
+
+    private static void sleepQuietly() {
+        try {
+            Thread.sleep(10);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 停止接收新连接，中断正在处理的连接(阻塞在通道上的线程会因通道被关闭而退出)
+     */
+    public void shutdown() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            ssChannel.close();
+        } catch (IOException ignored) {
+        }
+        acceptThread.join(5000);
+        executor.shutdownNow();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    public int getLocalPort() throws IOException {
+        return ((InetSocketAddress) ssChannel.getLocalAddress()).getPort();
+    }
+
+    public ThreadMode getThreadMode() {
+        return threadMode;
+    }
+
+    public long getAcceptedCount() {
+        return accepted.sum();
+    }
+
+    public long getCompletedCount() {
+        return completed.sum();
+    }
+
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    /**
+     * 正在处理(包括PLATFORM模式下排队等待线程)的连接数
+     */
+    public int getActiveConnections() {
+        return active.get();
+    }
+}
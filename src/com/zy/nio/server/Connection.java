@@ -0,0 +1,168 @@
+package com.zy.nio.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 一个已接收的客户端连接，作为附件挂在SelectionKey上
+ * 只允许在所属的worker线程中操作
+ */
+public class Connection {
+
+    /**
+     * 超时的种类，见ReactorServer.setTimeouts()
+     */
+    public enum Timeout {
+        //等待读取时太久没有读到数据
+        READ,
+        //有数据待发送时太久没有写出进展(对端不读)
+        WRITE,
+        //太久既没有读也没有写
+        IDLE
+    }
+
+    private final SocketChannel channel;
+    private final SubReactor worker;
+    private final ConnectionHandler handler;
+    private SelectionKey key;
+    //出站队列，第一次写数据时创建
+    private OutboundQueue outbound;
+    //业务状态，由ConnectionHandler自行决定放什么
+    private Object attachment;
+    private long bytesRead;
+    private boolean closed;
+    //最近一次读到数据、最近一次写出进展的时间(worker的当前轮次时间)，用于超时判断
+    long lastRead;
+    long lastWrite;
+    //本连接在worker时间轮中的超时检查
+    TimingWheel.Entry timer;
+
+    Connection(SocketChannel channel, SubReactor worker, ConnectionHandler handler) {
+        this.channel = channel;
+        this.worker = worker;
+        this.handler = handler;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    void addBytesRead(int n) {
+        bytesRead += n;
+        lastRead = worker.now();
+    }
+
+    public SocketChannel channel() {
+        return channel;
+    }
+
+    public SelectionKey key() {
+        return key;
+    }
+
+    public SubReactor worker() {
+        return worker;
+    }
+
+    public Object attachment() {
+        return attachment;
+    }
+
+    public void attach(Object attachment) {
+        this.attachment = attachment;
+    }
+
+    public long bytesRead() {
+        return bytesRead;
+    }
+
+    public OutboundQueue outbound() {
+        if (outbound == null) {
+            outbound = new OutboundQueue(this, handler);
+        }
+        return outbound;
+    }
+
+    boolean hasOutbound() {
+        return outbound != null && !outbound.isEmpty();
+    }
+
+    /**
+     * 放入出站队列并立即尝试发送，没发完的部分等OP_WRITE
+     *
+     * @return 是否仍然可写，返回false时生产者应暂停，等onWritabilityChanged(conn, true)
+     */
+    public boolean write(ByteBuffer buf) throws IOException {
+        OutboundQueue queue = outbound();
+        queue.enqueue(buf);
+        queue.flush();
+        return queue.isWritable();
+    }
+
+    /**
+     * 开启或关闭对OP_WRITE的监听，只在有待发送数据时开启，否则选择器会一直返回可写
+     */
+    public void interestWrite(boolean on) {
+        if (closed || !key.isValid()) {
+            return;
+        }
+        int ops = key.interestOps();
+        if (on && (ops & SelectionKey.OP_WRITE) == 0) {
+            //开始等待可写，写超时从现在算起
+            lastWrite = worker.now();
+        }
+        key.interestOps(on ? ops | SelectionKey.OP_WRITE : ops & ~SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * 开启或关闭对OP_READ的监听，用于暂停读取
+     */
+    public void interestRead(boolean on) {
+        if (closed || !key.isValid()) {
+            return;
+        }
+        int ops = key.interestOps();
+        key.interestOps(on ? ops | SelectionKey.OP_READ : ops & ~SelectionKey.OP_READ);
+    }
+
+    /**
+     * 是否仍在监听OP_READ，处理器暂停读取后worker不再继续读
+     */
+    boolean isReading() {
+        return !closed && key.isValid() && (key.interestOps() & SelectionKey.OP_READ) != 0;
+    }
+
+    boolean isWaitingWrite() {
+        return !closed && key.isValid() && (key.interestOps() & SelectionKey.OP_WRITE) != 0;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * 关闭连接：取消选择键、关闭通道并回调onClose
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (timer != null) {
+            timer.cancel();
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        if (outbound != null) {
+            outbound.clear();
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        worker.connectionClosed(this);
+    }
+}
@@ -0,0 +1,56 @@
+package com.zy.nio.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 连接事件处理器：由worker选择器线程回调，同一个连接的所有回调都在同一个线程中执行
+ * 回调里不要做阻塞操作，否则会拖慢该worker上的所有连接
+ */
+public interface ConnectionHandler {
+
+    /**
+     * 连接注册到worker选择器之后回调
+     */
+    default void onOpen(Connection conn) throws IOException {
+    }
+
+    /**
+     * 读取到数据时回调，buf已经切换成读模式(flip)，只在本次回调内有效
+     */
+    void onRead(Connection conn, ByteBuffer buf) throws IOException;
+
+    /**
+     * 通道可写时回调(出站队列已先行flush)，只有注册了OP_WRITE才会触发
+     */
+    default void onWrite(Connection conn) throws IOException {
+    }
+
+    /**
+     * 出站队列越过高水位(writable=false)或回落到不超过低水位(writable=true)时回调，
+     * 生产者应在不可写时暂停写入(例如暂停读取上游)，恢复可写后再继续
+     */
+    default void onWritabilityChanged(Connection conn, boolean writable) throws IOException {
+    }
+
+    /**
+     * 对端关闭输出(read返回-1)时回调，默认直接关闭连接
+     */
+    default void onEof(Connection conn) throws IOException {
+        conn.close();
+    }
+
+    /**
+     * 读、写或空闲超时时回调(ReactorServer.setTimeouts()开启后)，默认关闭连接；
+     * 不关闭的话超时从现在重新计算
+     */
+    default void onTimeout(Connection conn, Connection.Timeout timeout) throws IOException {
+        conn.close();
+    }
+
+    /**
+     * 连接关闭时回调
+     */
+    default void onClose(Connection conn) {
+    }
+}
@@ -0,0 +1,34 @@
+package com.zy.nio.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 回显处理器：读到什么写回什么，配合LoadGenerator测量请求-响应延迟
+ * 出站队列为空时直接写通道，写不完的部分才拷贝一份放入出站队列；队列超过高水位时暂停读取
+ */
+public class EchoHandler implements ConnectionHandler {
+
+    @Override
+    public void onRead(Connection conn, ByteBuffer buf) throws IOException {
+        if (conn.outbound().isEmpty()) {
+            conn.worker().metrics().written(conn.channel().write(buf));
+            if (!buf.hasRemaining()) {
+                return;
+            }
+        }
+        //buf只在本次回调内有效，剩下的部分要拷贝
+        ByteBuffer copy = ByteBuffer.allocate(buf.remaining());
+        copy.put(buf).flip();
+        if (!conn.write(copy)) {
+            conn.interestRead(false);
+        }
+    }
+
+    @Override
+    public void onWritabilityChanged(Connection conn, boolean writable) {
+        if (writable) {
+            conn.interestRead(true);
+        }
+    }
+}
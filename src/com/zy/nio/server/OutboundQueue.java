@@ -0,0 +1,119 @@
+package com.zy.nio.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * 连接的出站队列，只能在所属worker线程中使用
+ * 1.非阻塞通道的write()可能只写出一部分，没写完的缓冲区留在队列里，等OP_WRITE再继续
+ * 2.一次flush把队列中的多个缓冲区用聚集写入write(ByteBuffer[])发出，减少系统调用
+ * 3.只有队列非空时才监听OP_WRITE
+ * 4.高低水位：待发送字节数超过高水位时变为不可写并通知处理器，降到不超过低水位时再恢复(低水位可以为0，即发空了才恢复)，
+ *   生产者据此暂停，对端消费慢时内存不会无限增长
+ */
+public class OutboundQueue {
+
+    public static final int DEFAULT_LOW_WATERMARK = 32 * 1024;
+    public static final int DEFAULT_HIGH_WATERMARK = 64 * 1024;
+
+    //一次聚集写入最多的缓冲区个数
+    private static final int MAX_GATHER = 64;
+
+    private final Connection conn;
+    private final ConnectionHandler handler;
+    private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private int lowWatermark = DEFAULT_LOW_WATERMARK;
+    private int highWatermark = DEFAULT_HIGH_WATERMARK;
+    private long pendingBytes;
+    private boolean writable = true;
+
+    OutboundQueue(Connection conn, ConnectionHandler handler) {
+        this.conn = conn;
+        this.handler = handler;
+    }
+
+    public void setWatermarks(int lowWatermark, int highWatermark) {
+        if (lowWatermark < 0 || lowWatermark > highWatermark) {
+            throw new IllegalArgumentException("bad watermarks: " + lowWatermark + ", " + highWatermark);
+        }
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+    }
+
+    /**
+     * 放入队列，buf的所有权交给队列，发出之前调用方不能再修改
+     *
+     * @return 放入后是否仍然可写(未超过高水位)
+     */
+    public boolean enqueue(ByteBuffer buf) throws IOException {
+        if (!buf.hasRemaining()) {
+            return writable;
+        }
+        queue.addLast(buf);
+        pendingBytes += buf.remaining();
+        if (writable && pendingBytes > highWatermark) {
+            writable = false;
+            handler.onWritabilityChanged(conn, false);
+        }
+        return writable;
+    }
+
+    /**
+     * 尽量发送队列中的数据，发不完就注册OP_WRITE
+     *
+     * @return 队列是否已清空
+     */
+    public boolean flush() throws IOException {
+        while (!queue.isEmpty()) {
+            int count = 0;
+            for (ByteBuffer buf : queue) {
+                gather[count++] = buf;
+                if (count == MAX_GATHER) {
+                    break;
+                }
+            }
+            long written = conn.channel().write(gather, 0, count);
+            Arrays.fill(gather, 0, count, null);
+            pendingBytes -= written;
+            if (written > 0) {
+                conn.lastWrite = conn.worker().now();
+            }
+            conn.worker().metrics().written(written);
+            //移除已经写完的缓冲区
+            while (!queue.isEmpty() && !queue.peekFirst().hasRemaining()) {
+                queue.pollFirst();
+            }
+            if (written == 0 || !queue.isEmpty() && count < MAX_GATHER) {
+                //发送缓冲区满了
+                break;
+            }
+        }
+        if (!writable && pendingBytes <= lowWatermark) {
+            writable = true;
+            handler.onWritabilityChanged(conn, true);
+        }
+        boolean empty = queue.isEmpty();
+        conn.interestWrite(!empty);
+        return empty;
+    }
+
+    public boolean isWritable() {
+        return writable;
+    }
+
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    public long pendingBytes() {
+        return pendingBytes;
+    }
+
+    void clear() {
+        queue.clear();
+        pendingBytes = 0;
+    }
+}
@@ -0,0 +1,208 @@
+package com.zy.nio.server;
+
+import com.zy.nio.metrics.ServerMetrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 多Reactor服务端：TestNonBlockingNIO.server()的多线程版本
+ * 1.boss线程：一个选择器，只监听OP_ACCEPT
+ * 2.worker线程：N个选择器(默认CPU核数)，负责已接收连接的读写
+ * 3.新连接按轮询或最少连接数分配到worker上
+ */
+public class ReactorServer {
+
+    /**
+     * 连接分配策略
+     */
+    public enum Balance {
+        ROUND_ROBIN, LEAST_LOADED
+    }
+
+    private final int port;
+    private final ConnectionHandler handler;
+    private final SubReactor[] workers;
+    private final Balance balance;
+    private final LongAdder accepted = new LongAdder();
+    //所有worker共用
+    private final ServerMetrics metrics = new ServerMetrics("reactor");
+    private ServerSocketChannel serverChannel;
+    private Selector bossSelector;
+    private Thread bossThread;
+    private volatile boolean running;
+    private int next;
+
+    public ReactorServer(int port, ConnectionHandler handler) throws IOException {
+        this(port, Runtime.getRuntime().availableProcessors(), Balance.ROUND_ROBIN, handler);
+    }
+
+    public ReactorServer(int port, int workerCount, Balance balance, ConnectionHandler handler) throws IOException {
+        this(port, workerCount, balance, 64 * 1024, handler);
+    }
+
+    public ReactorServer(int port, int workerCount, Balance balance, int readBufferSize, ConnectionHandler handler) throws IOException {
+        if (workerCount <= 0) {
+            throw new IllegalArgumentException("workerCount must be positive: " + workerCount);
+        }
+        this.port = port;
+        this.handler = handler;
+        this.balance = balance;
+        this.workers = new SubReactor[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new SubReactor(i, handler, readBufferSize, metrics);
+        }
+    }
+
+    /**
+     * 开启连接超时，start()之前调用，0表示不检查该项
+     * 超时由各worker线程上的时间轮检查，到期回调ConnectionHandler.onTimeout()，默认关闭连接
+     *
+     * @param readTimeout  等待读取时多久没读到数据
+     * @param writeTimeout 有数据待发送时多久没有写出进展
+     * @param idleTimeout  多久既没读也没写
+     */
+    public void setTimeouts(long readTimeout, long writeTimeout, long idleTimeout, TimeUnit unit) {
+        if (readTimeout < 0 || writeTimeout < 0 || idleTimeout < 0) {
+            throw new IllegalArgumentException("negative timeout");
+        }
+        for (SubReactor worker : workers) {
+            worker.setTimeouts(unit.toNanos(readTimeout), unit.toNanos(writeTimeout), unit.toNanos(idleTimeout));
+        }
+    }
+
+    /**
+     * 绑定端口并启动boss与worker线程
+     */
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        bossSelector = Selector.open();
+        serverChannel.register(bossSelector, SelectionKey.OP_ACCEPT);
+        running = true;
+        for (SubReactor worker : workers) {
+            worker.start();
+        }
+        bossThread = new Thread(this::acceptLoop, "nio-boss");
+        bossThread.start();
+    }
+
+    private void acceptLoop() {
+        try {
+            while (running) {
+                bossSelector.select();
+                Iterator<SelectionKey> iterator = bossSelector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey sk = iterator.next();
+                    iterator.remove();
+                    if (sk.isValid() && sk.isAcceptable()) {
+                        //一次就绪把backlog里的连接都取出来
+                        SocketChannel socketChannel;
+                        while ((socketChannel = serverChannel.accept()) != null) {
+                            accepted.increment();
+                            nextWorker().register(socketChannel);
+                        }
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private SubReactor nextWorker() {
+        if (balance == Balance.LEAST_LOADED) {
+            SubReactor min = workers[0];
+            for (SubReactor worker : workers) {
+                if (worker.connectionCount() < min.connectionCount()) {
+                    min = worker;
+                }
+            }
+            return min;
+        }
+        SubReactor worker = workers[next];
+        next = (next + 1) % workers.length;
+        return worker;
+    }
+
+    /**
+     * 停止接收新连接，关闭所有连接与选择器，并等待线程退出；
+     * 处理器实现了Closeable(例如UploadHandler)时，所有worker退出后再关闭它
+     */
+    public void shutdown() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        bossSelector.wakeup();
+        bossThread.join(5000);
+        try {
+            bossSelector.close();
+            serverChannel.close();
+        } catch (IOException ignored) {
+        }
+        for (SubReactor worker : workers) {
+            worker.shutdown();
+        }
+        for (SubReactor worker : workers) {
+            worker.awaitTermination(5000);
+        }
+        if (handler instanceof Closeable) {
+            try {
+                ((Closeable) handler).close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 实际绑定的端口(构造时传0则由系统分配)
+     */
+    public int getLocalPort() throws IOException {
+        return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+    }
+
+    /**
+     * 选择器循环的指标，可以registerMBean()导出到JMX或交给MetricsReporter定时输出
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public SubReactor[] getWorkers() {
+        return workers.clone();
+    }
+
+    public long getAcceptedCount() {
+        return accepted.sum();
+    }
+
+    public long getBytesRead() {
+        long total = 0;
+        for (SubReactor worker : workers) {
+            total += worker.bytesRead();
+        }
+        return total;
+    }
+
+    public int getConnectionCount() {
+        int total = 0;
+        for (SubReactor worker : workers) {
+            total += worker.connectionCount();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,339 @@
+package com.zy.nio.server;
+
+import com.zy.nio.buffer.BufferPool;
+import com.zy.nio.buffer.PooledBuffer;
+import com.zy.nio.metrics.ServerMetrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * worker选择器：负责一部分连接的读写事件
+ * boss线程accept到的通道先放进pending队列，再wakeup选择器，由worker线程自己完成注册，
+ * 避免跨线程register时被select()阻塞
+ * 连接的读、写、空闲超时由本线程驱动的时间轮检查：每个连接只挂一个定时任务，
+ * 读写时只更新时间戳，到期时再看是否真的超时，没超时就按剩余时间重新挂上
+ */
+public class SubReactor implements Runnable {
+
+    //一次读就绪最多连续读取的次数，防止一个连接霸占线程
+    private static final int MAX_READS_PER_EVENT = 16;
+    //时间轮：100ms一个刻度，512个槽(一圈51.2秒)
+    private static final long TICK_MILLIS = 100;
+    private static final int WHEEL_SIZE = 512;
+
+    private final int id;
+    private final Selector selector;
+    private final ConnectionHandler handler;
+    private final ServerMetrics metrics;
+    private final ServerMetrics.WakeupTimer wakeupTimer = new ServerMetrics.WakeupTimer();
+    private final PooledBuffer pooledReadBuf;
+    private final ByteBuffer readBuf;
+    private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final LongAdder bytesRead = new LongAdder();
+    private volatile boolean running = true;
+    private Thread thread;
+    private final TimingWheel wheel = new TimingWheel(TICK_MILLIS, TimeUnit.MILLISECONDS, WHEEL_SIZE, System.nanoTime());
+    //超时(纳秒)，0表示不检查，start()之前设置
+    private long readTimeout;
+    private long writeTimeout;
+    private long idleTimeout;
+    //本轮select()返回的时间，读写时间戳都用它，不必每次调用System.nanoTime()
+    private long now = System.nanoTime();
+
+    SubReactor(int id, ConnectionHandler handler, int bufferSize, ServerMetrics metrics) throws IOException {
+        this.id = id;
+        this.handler = handler;
+        this.metrics = metrics;
+        this.selector = Selector.open();
+        //每个worker一个从池中借来的直接缓冲区，所有连接复用
+        this.pooledReadBuf = BufferPool.getDefault().acquire(bufferSize);
+        this.readBuf = pooledReadBuf.buffer();
+    }
+
+    void setTimeouts(long readTimeout, long writeTimeout, long idleTimeout) {
+        this.readTimeout = readTimeout;
+        this.writeTimeout = writeTimeout;
+        this.idleTimeout = idleTimeout;
+    }
+
+    void start() {
+        thread = new Thread(this, "nio-worker-" + id);
+        thread.start();
+    }
+
+    /**
+     * 由boss线程调用，把新连接交给本worker
+     */
+    void register(SocketChannel channel) {
+        connections.incrementAndGet();
+        pending.add(channel);
+        wakeupTimer.requested();
+        selector.wakeup();
+    }
+
+    /**
+     * 在本worker线程中执行task(下一轮select()返回后)，其他线程通过它操作连接，例如磁盘同步完成后发送确认
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        wakeupTimer.requested();
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                long selectStart = System.nanoTime();
+                //有超时任务时最多阻塞到下一个刻度
+                int selected = selector.select(wheel.millisToNextTick(selectStart));
+                long woke = System.nanoTime();
+                now = woke;
+                metrics.selected(woke - selectStart, selected, woke, wakeupTimer.take());
+                registerPending();
+                runTasks();
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey sk = iterator.next();
+                    iterator.remove();
+                    Connection conn = (Connection) sk.attachment();
+                    if (!sk.isValid()) {
+                        conn.close();
+                        continue;
+                    }
+                    long eventStart = System.nanoTime();
+                    try {
+                        if (sk.isReadable()) {
+                            read(conn);
+                        }
+                        if (sk.isValid() && sk.isWritable()) {
+                            conn.lastWrite = woke;
+                            if (conn.hasOutbound()) {
+                                conn.outbound().flush();
+                            }
+                            if (!conn.isClosed()) {
+                                handler.onWrite(conn);
+                            }
+                        }
+                    } catch (IOException e) {
+                        conn.close();
+                    } catch (RuntimeException e) {
+                        //处理器的bug只关闭这一个连接，worker线程和它上面的其他连接不受影响
+                        e.printStackTrace();
+                        conn.close();
+                    }
+                    metrics.event(System.nanoTime() - eventStart);
+                }
+                //先处理完就绪事件再检查超时，刚到达的数据不会被当成超时
+                wheel.advance(System.nanoTime());
+                metrics.loop(System.nanoTime() - woke);
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) {
+                e.printStackTrace();
+            }
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void registerPending() {
+        SocketChannel channel;
+        while ((channel = pending.poll()) != null) {
+            Connection conn = new Connection(channel, this, handler);
+            metrics.connectionOpened();
+            try {
+                channel.configureBlocking(false);
+                conn.setKey(channel.register(selector, SelectionKey.OP_READ, conn));
+                conn.lastRead = conn.lastWrite = now;
+                armTimer(conn, firstTimeout());
+                handler.onOpen(conn);
+            } catch (IOException | RuntimeException e) {
+                conn.close();
+            }
+        }
+    }
+
+    private long firstTimeout() {
+        long min = Long.MAX_VALUE;
+        if (readTimeout > 0) {
+            min = readTimeout;
+        }
+        if (writeTimeout > 0) {
+            min = Math.min(min, writeTimeout);
+        }
+        if (idleTimeout > 0) {
+            min = Math.min(min, idleTimeout);
+        }
+        return min;
+    }
+
+    private void armTimer(Connection conn, long delay) {
+        if (delay != Long.MAX_VALUE) {
+            conn.timer = wheel.schedule(delay, TimeUnit.NANOSECONDS, now, () -> checkTimeout(conn));
+        }
+    }
+
+    /**
+     * 时间轮到期：按时间戳判断哪种超时真的发生了，都没有就按最早的剩余时间重新挂上
+     */
+    private void checkTimeout(Connection conn) {
+        if (conn.isClosed()) {
+            return;
+        }
+        long current = System.nanoTime();
+        long next = Long.MAX_VALUE;
+        Connection.Timeout fired = null;
+        if (readTimeout > 0 && conn.isReading()) {
+            long left = conn.lastRead + readTimeout - current;
+            if (left <= 0) {
+                fired = Connection.Timeout.READ;
+            }
+            next = Math.min(next, left);
+        }
+        if (fired == null && writeTimeout > 0 && conn.isWaitingWrite()) {
+            long left = conn.lastWrite + writeTimeout - current;
+            if (left <= 0) {
+                fired = Connection.Timeout.WRITE;
+            }
+            next = Math.min(next, left);
+        }
+        if (fired == null && idleTimeout > 0) {
+            long left = Math.max(conn.lastRead, conn.lastWrite) + idleTimeout - current;
+            if (left <= 0) {
+                fired = Connection.Timeout.IDLE;
+            }
+            next = Math.min(next, left);
+        }
+        if (fired != null) {
+            metrics.timeout();
+            try {
+                handler.onTimeout(conn, fired);
+            } catch (IOException | RuntimeException e) {
+                conn.close();
+            }
+            if (conn.isClosed()) {
+                return;
+            }
+            //处理器保留了连接，超时从现在重新计算
+            conn.lastRead = conn.lastWrite = current;
+            next = firstTimeout();
+        } else if (next == Long.MAX_VALUE) {
+            //暂停读取且没有待写数据，只开了读/写超时：过一个完整周期再看
+            next = firstTimeout();
+        }
+        armTimer(conn, next);
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void read(Connection conn) throws IOException {
+        SocketChannel channel = conn.channel();
+        for (int i = 0; i < MAX_READS_PER_EVENT && conn.isReading(); i++) {
+            readBuf.clear();
+            int len = channel.read(readBuf);
+            if (len == -1) {
+                handler.onEof(conn);
+                return;
+            }
+            if (len == 0) {
+                //没有更多数据了，回到select()
+                return;
+            }
+            conn.addBytesRead(len);
+            bytesRead.add(len);
+            metrics.read(len);
+            readBuf.flip();
+            handler.onRead(conn, readBuf);
+        }
+    }
+
+    void connectionClosed(Connection conn) {
+        connections.decrementAndGet();
+        metrics.connectionClosed(conn.bytesRead());
+        handler.onClose(conn);
+    }
+
+    private void closeAll() {
+        SocketChannel channel;
+        while ((channel = pending.poll()) != null) {
+            connections.decrementAndGet();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+        try {
+            for (SelectionKey sk : selector.keys()) {
+                if (sk.attachment() instanceof Connection) {
+                    ((Connection) sk.attachment()).close();
+                }
+            }
+            selector.close();
+        } catch (IOException | ClosedSelectorException ignored) {
+        }
+        pooledReadBuf.release();
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    void awaitTermination(long millis) throws InterruptedException {
+        if (thread != null) {
+            thread.join(millis);
+        }
+    }
+
+    /**
+     * 本轮select()返回的时间(System.nanoTime())
+     */
+    long now() {
+        return now;
+    }
+
+    /**
+     * 本worker记录指标的对象，处理器绕过出站队列直接写通道(例如transferTo)时用它记录写出的字节数
+     */
+    public ServerMetrics metrics() {
+        return metrics;
+    }
+
+    public int id() {
+        return id;
+    }
+
+    /**
+     * 当前连接数，least-loaded负载均衡依据
+     */
+    public int connectionCount() {
+        return connections.get();
+    }
+
+    public long bytesRead() {
+        return bytesRead.sum();
+    }
+}
@@ -0,0 +1,161 @@
+package com.zy.nio.server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 哈希时间轮：由SubReactor的选择器线程驱动，不需要额外的调度线程，也不需要线程安全
+ * 1.环形数组的每个槽是一个双向链表，定时任务按到期的刻度(deadline tick)放进 tick % 槽数 的槽里
+ * 2.schedule()与cancel()都是O(1)，只是链表的插入与摘除
+ * 3.advance(now)每推进一个刻度只检查一个槽，槽里没到期的(还要再转几圈)留在原处
+ * 精度是一个刻度：到期的任务最多晚一个刻度执行，用来做连接超时足够了
+ */
+public class TimingWheel {
+
+    private final long tickNanos;
+    private final Entry[] wheel;
+    private final int mask;
+    private final long startNanos;
+    //已经处理到的刻度
+    private long tick;
+    private int size;
+
+    /**
+     * @param wheelSize 槽数，向上取整为2的幂
+     */
+    public TimingWheel(long tickDuration, TimeUnit unit, int wheelSize, long now) {
+        if (tickDuration <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("bad wheel: " + tickDuration + ", " + wheelSize);
+        }
+        this.tickNanos = unit.toNanos(tickDuration);
+        int n = Integer.highestOneBit(wheelSize);
+        if (n < wheelSize) {
+            n <<= 1;
+        }
+        this.wheel = new Entry[n];
+        this.mask = n - 1;
+        this.startNanos = now;
+    }
+
+    /**
+     * delay之后(在advance()中)执行task
+     */
+    public Entry schedule(long delay, TimeUnit unit, long now, Runnable task) {
+        long deadline = (now - startNanos + unit.toNanos(delay) + tickNanos - 1) / tickNanos;
+        Entry entry = new Entry(this, Math.max(deadline, tick + 1), task);
+        link(entry);
+        return entry;
+    }
+
+    /**
+     * 推进到now，执行所有到期的任务；任务里可以再schedule()，新任务最早在下一个刻度执行
+     *
+     * @return 执行的任务数
+     */
+    public int advance(long now) {
+        long target = (now - startNanos) / tickNanos;
+        if (target <= tick) {
+            return 0;
+        }
+        long from = tick;
+        tick = target;
+        if (size == 0) {
+            return 0;
+        }
+        //停得太久(超过一圈)时每个槽看一遍就够了
+        long steps = Math.min(target - from, wheel.length);
+        //先把到期的摘下来再执行，任务里cancel()别的任务不会破坏正在遍历的链表
+        Entry expired = null;
+        int count = 0;
+        for (long t = from + 1; t <= from + steps; t++) {
+            Entry entry = wheel[(int) (t & mask)];
+            while (entry != null) {
+                Entry next = entry.next;
+                if (entry.deadline <= target) {
+                    unlink(entry);
+                    entry.next = expired;
+                    expired = entry;
+                    count++;
+                }
+                entry = next;
+            }
+        }
+        while (expired != null) {
+            Entry entry = expired;
+            expired = entry.next;
+            entry.next = null;
+            entry.task.run();
+        }
+        return count;
+    }
+
+    /**
+     * 距离下一个刻度的毫秒数(至少1)，用作select(timeout)的超时，没有任务时返回0(一直阻塞)
+     */
+    public long millisToNextTick(long now) {
+        if (size == 0) {
+            return 0;
+        }
+        long next = startNanos + (tick + 1) * tickNanos;
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(next - now + 999_999));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void link(Entry entry) {
+        int slot = (int) (entry.deadline & mask);
+        entry.next = wheel[slot];
+        if (entry.next != null) {
+            entry.next.prev = entry;
+        }
+        wheel[slot] = entry;
+        entry.linked = true;
+        size++;
+    }
+
+    private void unlink(Entry entry) {
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        } else {
+            wheel[(int) (entry.deadline & mask)] = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = entry.next = null;
+        entry.linked = false;
+        size--;
+    }
+
+    /**
+     * 一个定时任务
+     */
+    public static final class Entry {
+        private final TimingWheel owner;
+        private final long deadline;
+        private final Runnable task;
+        private Entry prev;
+        private Entry next;
+        private boolean linked;
+
+        private Entry(TimingWheel owner, long deadline, Runnable task) {
+            this.owner = owner;
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        /**
+         * 取消还没执行的任务，O(1)
+         */
+        public void cancel() {
+            if (linked) {
+                owner.unlink(this);
+            }
+        }
+
+        public boolean isPending() {
+            return linked;
+        }
+    }
+}
@@ -0,0 +1,415 @@
+package com.zy.nio.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按内容寻址的去重存储：接收路径上边收边分块(Chunker)、边算SHA-256，只有没见过的块才写入
+ * 目录结构：
+ * 1.chunks.pack 只追加的块数据
+ * 2.chunks.idx  只追加的索引，每条记录 = SHA-256(32字节) + 块在pack中的偏移(8字节) + 长度(4字节)，打开时全部读入内存
+ * 3.recipes/名称 每个对象一个配方文件，记录格式与索引相同，按顺序列出组成该对象的块
+ * 写入顺序是先块数据后索引，崩溃后pack末尾没有索引指向的数据在下次打开时截掉；页缓存可能先把索引刷到磁盘，
+ * 指向pack末尾之外的索引记录同样丢掉；配方写入前先force pack再force索引，配方先写临时文件再原子改名，
+ * 所以落盘的配方引用的块一定都在磁盘上
+ * 非阻塞的调用方用create(name, true)：close()把配方交给后台线程提交，排队的配方共用一次pack和索引的force(组提交)，
+ * committed()在配方落盘后完成，reactor的worker不用等fsync
+ * 多个连接可以同时写入(ChunkWriter各自分块和计算哈希)，查重与追加pack在store的锁内完成
+ */
+public class ChunkStore implements Closeable {
+
+    static final int HASH_LENGTH = 32;
+    static final int RECORD_LENGTH = HASH_LENGTH + 8 + 4;
+
+    private final Path dir;
+    private final Path recipes;
+    private final FileChannel pack;
+    private final FileChannel index;
+    private final Map<ChunkId, long[]> chunks = new HashMap<>();
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_LENGTH);
+    private long packSize;
+    //后台提交的配方
+    private final ConcurrentLinkedQueue<PendingRecipe> pendingRecipes = new ConcurrentLinkedQueue<>();
+    private final ExecutorService committer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "chunk-store-commit");
+        t.setDaemon(true);
+        return t;
+    });
+    private final LongAdder commitBatches = new LongAdder();
+
+    private final LongAdder logicalBytes = new LongAdder();
+    private final LongAdder storedBytes = new LongAdder();
+    private final LongAdder chunkCount = new LongAdder();
+    private final LongAdder newChunks = new LongAdder();
+
+    private ChunkStore(Path dir) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.recipes = Files.createDirectories(dir.resolve("recipes"));
+        this.pack = FileChannel.open(dir.resolve("chunks.pack"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.index = FileChannel.open(dir.resolve("chunks.idx"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            load();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * 打开(不存在则创建)目录dir下的存储
+     */
+    public static ChunkStore open(Path dir) throws IOException {
+        return new ChunkStore(dir);
+    }
+
+    //读入索引；截掉不完整的索引记录、指向pack末尾之外的索引记录和没有索引指向的pack尾部
+    private void load() throws IOException {
+        long records = index.size() / RECORD_LENGTH;
+        long available = pack.size();
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_LENGTH * 1024);
+        long position = 0;
+        long end = records * RECORD_LENGTH;
+        read:
+        while (position < end) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), end - position));
+            while (buf.hasRemaining()) {
+                if (index.read(buf, position + buf.position()) == -1) {
+                    throw new IOException("index truncated while reading");
+                }
+            }
+            buf.flip();
+            while (buf.hasRemaining()) {
+                long recordPosition = position + buf.position();
+                byte[] hash = new byte[HASH_LENGTH];
+                buf.get(hash);
+                long offset = buf.getLong();
+                int length = buf.getInt();
+                if (offset + length > available) {
+                    //索引先于pack落盘，崩溃时块数据没写到磁盘；偏移递增，之后的记录也一样
+                    end = recordPosition;
+                    break read;
+                }
+                chunks.put(new ChunkId(hash), new long[]{offset, length});
+                packSize = Math.max(packSize, offset + length);
+            }
+            position += buf.limit();
+        }
+        index.truncate(end);
+        index.position(end);
+        pack.truncate(packSize);
+    }
+
+    /**
+     * 开始写入一个名为name的对象，close()之后才可见；同名对象会被覆盖
+     */
+    public ChunkWriter create(String name) {
+        return create(name, false);
+    }
+
+    /**
+     * @param asyncCommit 为true时close()只把配方交给后台线程，等ChunkWriter.committed()完成后对象才可见
+     */
+    public ChunkWriter create(String name, boolean asyncCommit) {
+        return new ChunkWriter(this, new Chunker(), name, asyncCommit);
+    }
+
+    /**
+     * 按配方把对象内容写到target，每个块直接从pack文件transferTo(零拷贝)
+     *
+     * @return 写出的字节数
+     */
+    public long restore(String name, WritableByteChannel target) throws IOException {
+        ByteBuffer recipe = ByteBuffer.wrap(readRecipe(name));
+        long total = 0;
+        while (recipe.hasRemaining()) {
+            recipe.position(recipe.position() + HASH_LENGTH);
+            long offset = recipe.getLong();
+            int length = recipe.getInt();
+            long done = 0;
+            while (done < length) {
+                long n = pack.transferTo(offset + done, length - done, target);
+                if (n <= 0) {
+                    throw new IOException("pack truncated at " + (offset + done));
+                }
+                done += n;
+            }
+            total += length;
+        }
+        return total;
+    }
+
+    /**
+     * 对象的原始长度，不存在时抛NoSuchFileException
+     */
+    public long size(String name) throws IOException {
+        ByteBuffer recipe = ByteBuffer.wrap(readRecipe(name));
+        long total = 0;
+        for (int p = HASH_LENGTH + 8; p < recipe.limit(); p += RECORD_LENGTH) {
+            total += recipe.getInt(p);
+        }
+        return total;
+    }
+
+    public boolean contains(String name) {
+        return Files.exists(recipePath(name));
+    }
+
+    private byte[] readRecipe(String name) throws IOException {
+        Path path = recipePath(name);
+        if (!Files.exists(path)) {
+            throw new NoSuchFileException(path.toString());
+        }
+        return Files.readAllBytes(path);
+    }
+
+    private Path recipePath(String name) {
+        if (name.isEmpty() || name.contains("/") || name.contains("\\") || name.startsWith(".")) {
+            throw new IllegalArgumentException("illegal object name: " + name);
+        }
+        return recipes.resolve(name);
+    }
+
+    /**
+     * 查重：块已存在时返回它在pack中的位置；否则追加到pack、写索引再返回
+     *
+     * @param entry 输出参数，[0]=偏移，[1]=长度
+     * @return 是否是新块
+     */
+    boolean put(byte[] hash, byte[] data, int length, long[] entry) throws IOException {
+        chunkCount.increment();
+        logicalBytes.add(length);
+        ChunkId id = new ChunkId(hash);
+        synchronized (this) {
+            long[] existing = chunks.get(id);
+            if (existing != null) {
+                entry[0] = existing[0];
+                entry[1] = existing[1];
+                return false;
+            }
+            long offset = packSize;
+            ByteBuffer buf = ByteBuffer.wrap(data, 0, length);
+            while (buf.hasRemaining()) {
+                pack.write(buf, offset + buf.position());
+            }
+            packSize += length;
+            record.clear();
+            record.put(hash).putLong(offset).putInt(length).flip();
+            while (record.hasRemaining()) {
+                index.write(record);
+            }
+            chunks.put(new ChunkId(hash.clone()), new long[]{offset, length});
+            entry[0] = offset;
+            entry[1] = length;
+        }
+        newChunks.increment();
+        storedBytes.add(length);
+        return true;
+    }
+
+    /**
+     * 写入配方：先把配方引用的块(pack与索引)刷到磁盘，再写临时文件，force后原子改名
+     */
+    void commit(String name, ByteBuffer recipe) throws IOException {
+        force();
+        writeRecipe(name, recipe);
+    }
+
+    /**
+     * 交给后台线程提交配方，落盘后完成done
+     */
+    void commitLater(String name, ByteBuffer recipe, CompletableFuture<Void> done) {
+        pendingRecipes.add(new PendingRecipe(name, recipe, done));
+        try {
+            committer.execute(this::commitPending);
+        } catch (RejectedExecutionException e) {
+            done.completeExceptionally(new IOException("chunk store closed"));
+        }
+    }
+
+    //取出排队的所有配方，先force一次pack和索引，再逐个写配方
+    private void commitPending() {
+        List<PendingRecipe> batch = new ArrayList<>();
+        PendingRecipe pending;
+        while ((pending = pendingRecipes.poll()) != null) {
+            batch.add(pending);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        commitBatches.increment();
+        try {
+            force();
+        } catch (IOException e) {
+            for (PendingRecipe recipe : batch) {
+                recipe.done.completeExceptionally(e);
+            }
+            return;
+        }
+        for (PendingRecipe recipe : batch) {
+            try {
+                writeRecipe(recipe.name, recipe.recipe);
+                recipe.done.complete(null);
+            } catch (IOException e) {
+                recipe.done.completeExceptionally(e);
+            }
+        }
+    }
+
+    //配方先写临时文件，force后原子改名
+    private void writeRecipe(String name, ByteBuffer recipe) throws IOException {
+        Path target = recipePath(name);
+        Path tmp = recipes.resolve("." + name + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (recipe.hasRemaining()) {
+                out.write(recipe);
+            }
+            out.force(false);
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 把pack和索引刷到磁盘，先pack后索引
+     */
+    public synchronized void force() throws IOException {
+        pack.force(false);
+        index.force(false);
+    }
+
+    public Path getDirectory() {
+        return dir;
+    }
+
+    /**
+     * 本次打开以来写入的原始字节数(去重前)
+     */
+    public long getLogicalBytes() {
+        return logicalBytes.sum();
+    }
+
+    /**
+     * 本次打开以来实际写入pack的字节数
+     */
+    public long getStoredBytes() {
+        return storedBytes.sum();
+    }
+
+    /**
+     * 因为去重而省下的写入字节数
+     */
+    public long getSavedBytes() {
+        return getLogicalBytes() - getStoredBytes();
+    }
+
+    /**
+     * 去重比 = 原始字节数/实际写入字节数，没有写入时为1
+     */
+    public double getDedupRatio() {
+        long stored = getStoredBytes();
+        return stored == 0 ? 1 : (double) getLogicalBytes() / stored;
+    }
+
+    public long getChunkCount() {
+        return chunkCount.sum();
+    }
+
+    public long getNewChunkCount() {
+        return newChunks.sum();
+    }
+
+    /**
+     * 后台提交的批数，每批共用一次pack和索引的force
+     */
+    public long getCommitBatches() {
+        return commitBatches.sum();
+    }
+
+    /**
+     * 存储中不重复的块数(包括以前写入的)
+     */
+    public synchronized int getUniqueChunks() {
+        return chunks.size();
+    }
+
+    public synchronized long getPackSize() {
+        return packSize;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("logical=%d stored=%d saved=%d ratio=%.2f chunks=%d new=%d pack=%d",
+                getLogicalBytes(), getStoredBytes(), getSavedBytes(), getDedupRatio(), getChunkCount(), getNewChunkCount(), getPackSize());
+    }
+
+    @Override
+    public void close() throws IOException {
+        //先等排队的配方提交完，提交时要拿store的锁，不能持锁等待
+        committer.shutdown();
+        try {
+            committer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            try {
+                pack.close();
+            } finally {
+                index.close();
+            }
+        }
+    }
+
+    private static final class PendingRecipe {
+        final String name;
+        final ByteBuffer recipe;
+        final CompletableFuture<Void> done;
+
+        PendingRecipe(String name, ByteBuffer recipe, CompletableFuture<Void> done) {
+            this.name = name;
+            this.recipe = recipe;
+            this.done = done;
+        }
+    }
+
+    /**
+     * SHA-256作为HashMap的键，哈希本身已经均匀分布，hashCode直接取前4个字节
+     */
+    private static final class ChunkId {
+        final byte[] hash;
+
+        ChunkId(byte[] hash) {
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ChunkId && Arrays.equals(hash, ((ChunkId) o).hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return (hash[0] & 0xff) << 24 | (hash[1] & 0xff) << 16 | (hash[2] & 0xff) << 8 | (hash[3] & 0xff);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.zy.nio.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 向ChunkStore写入一个对象：数据流入时分块、算SHA-256并查重，新块追加到pack，close()时提交配方
+ * 实现了WritableByteChannel，接收路径上可以直接替换原来的输出FileChannel
+ * 1.收到的数据先拷到块缓冲区(最大块长)，在上面找切分点
+ * 2.每切出一个块就算哈希、交给store查重，块缓冲区中剩下的数据移到开头
+ * 3.close()时提交配方；asyncCommit时交给store的后台线程，committed()在配方落盘后完成
+ * 不是线程安全的，一个连接一个实例
+ */
+public class ChunkWriter implements WritableByteChannel {
+
+    private final ChunkStore store;
+    private final Chunker chunker;
+    private final String name;
+    private final MessageDigest digest;
+    private final byte[] chunk;
+    private final byte[] hash = new byte[ChunkStore.HASH_LENGTH];
+    private final long[] entry = new long[2];
+    private int buffered;
+    private ByteBuffer recipe = ByteBuffer.allocate(ChunkStore.RECORD_LENGTH * 64);
+    private long length;
+    private long newBytes;
+    private boolean open = true;
+    private final boolean asyncCommit;
+    private final CompletableFuture<Void> committed = new CompletableFuture<>();
+
+    ChunkWriter(ChunkStore store, Chunker chunker, String name, boolean asyncCommit) {
+        this.store = store;
+        this.chunker = chunker;
+        this.name = name;
+        this.asyncCommit = asyncCommit;
+        this.chunk = new byte[chunker.getMax()];
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 消费src中的全部数据
+     */
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        int total = src.remaining();
+        while (src.hasRemaining()) {
+            int n = Math.min(src.remaining(), chunk.length - buffered);
+            src.get(chunk, buffered, n);
+            buffered += n;
+            int cut;
+            while ((cut = chunker.next(chunk, buffered)) != -1) {
+                emit(cut);
+                System.arraycopy(chunk, cut, chunk, 0, buffered - cut);
+                buffered -= cut;
+            }
+        }
+        length += total;
+        return total;
+    }
+
+    private void emit(int size) throws IOException {
+        digest.update(chunk, 0, size);
+        try {
+            digest.digest(hash, 0, hash.length);
+        } catch (DigestException e) {
+            throw new IOException(e);
+        }
+        if (store.put(hash, chunk, size, entry)) {
+            newBytes += size;
+        }
+        if (recipe.remaining() < ChunkStore.RECORD_LENGTH) {
+            ByteBuffer grown = ByteBuffer.allocate(recipe.capacity() * 2);
+            recipe.flip();
+            recipe = grown.put(recipe);
+        }
+        recipe.put(hash).putLong(entry[0]).putInt((int) entry[1]);
+    }
+
+    /**
+     * 已写入的原始字节数
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * 其中实际写入pack的字节数(新块)
+     */
+    public long getNewBytes() {
+        return newBytes;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * 切出最后一个块并提交配方，之后对象才能restore；asyncCommit时只是交给后台线程，要等committed()完成
+     */
+    @Override
+    public void close() throws IOException {
+        if (!open) {
+            return;
+        }
+        open = false;
+        if (buffered > 0) {
+            emit(buffered);
+            buffered = 0;
+        }
+        recipe.flip();
+        if (asyncCommit) {
+            store.commitLater(name, recipe, committed);
+            return;
+        }
+        try {
+            store.commit(name, recipe);
+        } catch (IOException e) {
+            committed.completeExceptionally(e);
+            throw e;
+        }
+        committed.complete(null);
+    }
+
+    /**
+     * 配方落盘后完成；abort()的对象永远不会完成
+     */
+    public CompletableFuture<Void> committed() {
+        return committed;
+    }
+
+    /**
+     * 放弃写入，不提交配方；已经追加到pack的新块保留，之后可以被其他对象引用
+     */
+    public void abort() {
+        open = false;
+    }
+}
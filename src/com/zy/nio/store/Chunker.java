@@ -0,0 +1,97 @@
+package com.zy.nio.store;
+
+import java.util.Random;
+
+/**
+ * 基于内容的分块(FastCDC)：用Gear滚动哈希在数据流中找切分点，切分点只取决于附近最多64字节的内容，
+ * 文件中间插入或删除数据只影响附近一两个块，前后其余块仍能去重(固定大小分块会整体错位)
+ * 1.前min字节不找切分点(跳过的部分只需保证最后64字节参与哈希)
+ * 2.归一化：块长小于avg时用更难满足的掩码，超过avg后用更容易满足的掩码，块长更集中在avg附近
+ * 3.到max字节强制切分
+ * 有状态，一个数据流一个实例，不是线程安全的
+ */
+public class Chunker {
+
+    public static final int DEFAULT_MIN = 2 * 1024;
+    public static final int DEFAULT_AVG = 8 * 1024;
+    public static final int DEFAULT_MAX = 64 * 1024;
+
+    //固定种子，重启之后切分点必须保持一致，否则已存的块无法再命中
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x6765617248617368L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final int min;
+    private final int avg;
+    private final int max;
+    private final long maskS;
+    private final long maskL;
+    //当前块已经扫描过的长度与滚动哈希值
+    private int scanned;
+    private long hash;
+
+    public Chunker() {
+        this(DEFAULT_MIN, DEFAULT_AVG, DEFAULT_MAX);
+    }
+
+    public Chunker(int min, int avg, int max) {
+        if (Integer.bitCount(avg) != 1 || min <= 64 || min >= avg || avg >= max) {
+            throw new IllegalArgumentException("need 64 < min < avg < max and avg a power of two: " + min + "/" + avg + "/" + max);
+        }
+        this.min = min;
+        this.avg = avg;
+        this.max = max;
+        int bits = Integer.numberOfTrailingZeros(avg);
+        //用哈希的高位判断，高位受最近64字节影响，低位只受最近几个字节影响
+        this.maskS = -1L << (64 - bits - 2);
+        this.maskL = -1L << (64 - bits + 2);
+    }
+
+    public int getMax() {
+        return max;
+    }
+
+    /**
+     * 在buf[0, length)中继续寻找当前块的切分点，buf[0]是当前块的第一个字节，已扫描过的部分不会重复扫描
+     *
+     * @return 切分点(块长度)，没找到返回-1
+     */
+    public int next(byte[] buf, int length) {
+        int i = scanned;
+        if (i < min - 64) {
+            i = Math.min(min - 64, length);
+        }
+        long h = hash;
+        int normal = Math.min(avg, length);
+        int end = Math.min(max, length);
+        for (; i < normal; i++) {
+            h = (h << 1) + GEAR[buf[i] & 0xff];
+            if (i >= min && (h & maskS) == 0) {
+                return cut(i + 1);
+            }
+        }
+        for (; i < end; i++) {
+            h = (h << 1) + GEAR[buf[i] & 0xff];
+            if ((h & maskL) == 0) {
+                return cut(i + 1);
+            }
+        }
+        if (i == max) {
+            return cut(max);
+        }
+        scanned = i;
+        hash = h;
+        return -1;
+    }
+
+    private int cut(int length) {
+        scanned = 0;
+        hash = 0;
+        return length;
+    }
+}
@@ -0,0 +1,607 @@
+package com.zy.nio.store;
+
+import com.zy.nio.metrics.Histogram;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * 持久化接收日志：所有连接收到的数据追加到同一组预分配的段文件，批量force(组提交)后才确认
+ * 1.段文件 segment-序号.log 创建时写满0并force一次，之后文件大小不变，force(false)只需刷数据(fdatasync)不必刷元数据；
+ *   下一个段由后台线程提前创建好，换段时不在追加线程(reactor)上写64MB的0
+ * 2.记录 = 头部(length 4B, type 1B, streamId 8B, crc 4B) + length字节，crc是CRC32C(type, streamId, 数据)；
+ *   头部全0表示段内没有更多记录，放不下的记录写到下一个段
+ * 3.LSN：记录在日志中的结束位置，段号 * segmentSize + 段内偏移，单调递增
+ * 4.组提交：durable(lsn)返回的future在lsn之前的数据都force到磁盘后完成；同步线程等待第一个请求最多maxDelay，
+ *   或未同步的数据达到maxBytes就立即force，期间到达的所有请求共用一次force
+ * 5.重新打开时逐条校验最后一个段的记录，从第一条不完整或校验失败的记录处继续追加(崩溃时写了一半的记录被覆盖)
+ * 一个上传是一个流(Stream)：若干DATA记录加一条COMMIT记录(内容是名字)，没有COMMIT的流在replay时忽略
+ */
+public class SegmentLog implements Closeable {
+
+    public static final byte TYPE_DATA = 1;
+    public static final byte TYPE_COMMIT = 2;
+
+    static final int HEADER_LENGTH = 4 + 1 + 8 + 4;
+
+    public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * replay()的回调
+     */
+    public interface RecordVisitor {
+        void visit(byte type, long streamId, ByteBuffer payload) throws IOException;
+    }
+
+    private final Path dir;
+    private final long segmentSize;
+    private final int maxRecord;
+    private final long maxDelayNanos;
+    private final long maxBytes;
+
+    //追加状态，受this锁保护
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+    private final CRC32C crc = new CRC32C();
+    private long segmentIndex;
+    private FileChannel segment;
+    private long position;
+    private long nextStreamId = 1;
+    //写满后换下来、还没force的段，修改时同时持有this和sync
+    private final List<FileChannel> retired = new ArrayList<>();
+    //后台预分配的下一个段
+    private final ExecutorService preallocator;
+    private Future<FileChannel> nextSegment;
+
+    //组提交状态，受sync锁保护
+    private final Object sync = new Object();
+    private final PriorityQueue<Waiter> waiters = new PriorityQueue<>();
+    private long appendedLsn;
+    private long durableLsn;
+    private IOException failure;
+    private boolean closed;
+    private final Thread syncThread;
+
+    private long appends;
+    private long bytesAppended;
+    private long syncs;
+    private final Histogram syncTime = new Histogram();
+    private final Histogram commitsPerSync = new Histogram();
+
+    private SegmentLog(Path dir, long segmentSize, long maxDelayNanos, long maxBytes) throws IOException {
+        if (segmentSize < 64 * 1024) {
+            throw new IllegalArgumentException("segment too small: " + segmentSize);
+        }
+        this.dir = Files.createDirectories(dir);
+        this.segmentSize = segmentSize;
+        this.maxRecord = (int) Math.min(1024 * 1024, segmentSize / 4);
+        this.maxDelayNanos = maxDelayNanos;
+        this.maxBytes = maxBytes;
+        recover();
+        this.preallocator = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "segment-log-preallocate");
+            t.setDaemon(true);
+            return t;
+        });
+        prepareNext();
+        this.syncThread = new Thread(this::syncLoop, "segment-log-sync");
+        this.syncThread.setDaemon(true);
+        this.syncThread.start();
+    }
+
+    /**
+     * 打开(不存在则创建)日志
+     *
+     * @param maxDelay 第一个等待确认的请求最多等多久就force
+     * @param maxBytes 未同步的数据达到多少字节就立即force，不再等待
+     */
+    public static SegmentLog open(Path dir, long segmentSize, long maxDelay, TimeUnit unit, long maxBytes) throws IOException {
+        return new SegmentLog(dir, segmentSize, unit.toNanos(maxDelay), maxBytes);
+    }
+
+    public static SegmentLog open(Path dir) throws IOException {
+        return open(dir, DEFAULT_SEGMENT_SIZE, 2, TimeUnit.MILLISECONDS, 4 * 1024 * 1024);
+    }
+
+    private Path segmentPath(long index) {
+        return dir.resolve(String.format("segment-%08d.log", index));
+    }
+
+    private List<Long> segments() throws IOException {
+        List<Long> indexes = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "segment-*.log")) {
+            for (Path file : files) {
+                String n = file.getFileName().toString();
+                indexes.add(Long.parseLong(n.substring(8, n.length() - 4)));
+            }
+        }
+        Collections.sort(indexes);
+        return indexes;
+    }
+
+    //找到最后一个段中最后一条有效记录的结束位置，并读出已经用过的最大streamId
+    private void recover() throws IOException {
+        List<Long> indexes = segments();
+        if (indexes.isEmpty()) {
+            openSegment(0);
+            return;
+        }
+        long[] maxStream = new long[1];
+        long end = 0;
+        for (long index : indexes) {
+            try (FileChannel ch = FileChannel.open(segmentPath(index), StandardOpenOption.READ)) {
+                end = scan(ch, (type, streamId, payload) -> maxStream[0] = Math.max(maxStream[0], streamId));
+            }
+        }
+        nextStreamId = maxStream[0] + 1;
+        segmentIndex = indexes.get(indexes.size() - 1);
+        segment = FileChannel.open(segmentPath(segmentIndex), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (segment.size() < segmentSize) {
+            preallocate(segment, segment.size());
+        }
+        position = end;
+        //覆盖可能写了一半的记录，保证头部全0的结束标记
+        ByteBuffer zeros = ByteBuffer.allocate((int) Math.min(HEADER_LENGTH, segmentSize - end));
+        segment.write(zeros, end);
+        segment.force(false);
+        appendedLsn = durableLsn = segmentIndex * segmentSize + position;
+    }
+
+    /**
+     * 逐条读取段中的记录，返回最后一条有效记录的结束位置
+     */
+    private long scan(FileChannel ch, RecordVisitor visitor) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(HEADER_LENGTH);
+        ByteBuffer payload = ByteBuffer.allocate(maxRecord);
+        CRC32C check = new CRC32C();
+        long pos = 0;
+        long size = ch.size();
+        while (pos + HEADER_LENGTH <= size) {
+            head.clear();
+            readFully(ch, head, pos);
+            head.flip();
+            int length = head.getInt();
+            byte type = head.get();
+            long streamId = head.getLong();
+            int expected = head.getInt();
+            if (type != TYPE_DATA && type != TYPE_COMMIT || length < 0 || length > maxRecord || pos + HEADER_LENGTH + length > size) {
+                break;
+            }
+            payload.clear().limit(length);
+            readFully(ch, payload, pos + HEADER_LENGTH);
+            payload.flip();
+            check.reset();
+            check.update(type);
+            updateLong(check, streamId);
+            check.update(payload.duplicate());
+            if ((int) check.getValue() != expected) {
+                break;
+            }
+            visitor.visit(type, streamId, payload);
+            pos += HEADER_LENGTH + length;
+        }
+        return pos;
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, position + buf.position()) == -1) {
+                throw new IOException("unexpected end of segment");
+            }
+        }
+    }
+
+    private static void updateLong(CRC32C check, long v) {
+        for (int i = 56; i >= 0; i -= 8) {
+            check.update((int) (v >>> i));
+        }
+    }
+
+    private void openSegment(long index) throws IOException {
+        segmentIndex = index;
+        segment = createSegment(index);
+        position = 0;
+    }
+
+    private FileChannel createSegment(long index) throws IOException {
+        Path path = segmentPath(index);
+        FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            preallocate(ch, 0);
+        } catch (IOException e) {
+            ch.close();
+            Files.deleteIfExists(path);
+            throw e;
+        }
+        return ch;
+    }
+
+    //在后台线程创建下一个段，崩溃时留下的空段在recover()时当作最后一个段继续使用
+    private void prepareNext() {
+        long index = segmentIndex + 1;
+        nextSegment = preallocator.submit(() -> createSegment(index));
+    }
+
+    //写满0并force一次，之后的force(false)不需要再更新文件大小等元数据
+    private void preallocate(FileChannel ch, long from) throws IOException {
+        ByteBuffer zeros = ByteBuffer.allocateDirect(1024 * 1024);
+        for (long p = from; p < segmentSize; ) {
+            zeros.clear();
+            if (segmentSize - p < zeros.capacity()) {
+                zeros.limit((int) (segmentSize - p));
+            }
+            p += ch.write(zeros, p);
+        }
+        ch.force(true);
+    }
+
+    /**
+     * 开始一个新的流，一个上传一个
+     */
+    public synchronized Stream openStream(String name) {
+        return new Stream(nextStreamId++, name);
+    }
+
+    /**
+     * 追加一条记录(数据不超过maxRecord)，返回记录的结束LSN
+     */
+    private synchronized long append(byte type, long streamId, ByteBuffer payload) throws IOException {
+        if (closed) {
+            throw new IOException("log closed");
+        }
+        int length = payload.remaining();
+        if (position + HEADER_LENGTH + length > segmentSize) {
+            roll();
+        }
+        crc.reset();
+        crc.update(type);
+        updateLong(crc, streamId);
+        crc.update(payload.duplicate());
+        header.clear();
+        header.putInt(length).put(type).putLong(streamId).putInt((int) crc.getValue()).flip();
+        gather[0] = header;
+        gather[1] = payload;
+        segment.position(position);
+        while (header.hasRemaining() || payload.hasRemaining()) {
+            segment.write(gather);
+        }
+        gather[1] = null;
+        position += HEADER_LENGTH + length;
+        appends++;
+        bytesAppended += length;
+        long lsn = segmentIndex * segmentSize + position;
+        synchronized (sync) {
+            appendedLsn = lsn;
+            if (!waiters.isEmpty() && appendedLsn - durableLsn >= maxBytes) {
+                sync.notifyAll();
+            }
+        }
+        return lsn;
+    }
+
+    //当前段放不下了：剩余部分本来就是0，换到预分配好的下一个段，旧段留给同步线程force后关闭
+    private void roll() throws IOException {
+        FileChannel next;
+        try {
+            //追加速度超过预分配速度时才会在这里等待
+            next = nextSegment.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the next segment");
+        } catch (ExecutionException e) {
+            //下一次换段时重试
+            prepareNext();
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+        synchronized (sync) {
+            retired.add(segment);
+        }
+        segment = next;
+        segmentIndex++;
+        position = 0;
+        prepareNext();
+    }
+
+    /**
+     * lsn之前(含)的数据都落盘后完成；force失败时以异常完成
+     */
+    public CompletableFuture<Void> durable(long lsn) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        synchronized (sync) {
+            if (failure != null) {
+                future.completeExceptionally(failure);
+            } else if (lsn <= durableLsn) {
+                future.complete(null);
+            } else if (closed) {
+                future.completeExceptionally(new IOException("log closed"));
+            } else {
+                waiters.add(new Waiter(lsn, System.nanoTime(), future));
+                sync.notifyAll();
+            }
+        }
+        return future;
+    }
+
+    private void syncLoop() {
+        while (true) {
+            long target;
+            List<FileChannel> toClose;
+            synchronized (sync) {
+                try {
+                    while (!closed && waiters.isEmpty()) {
+                        sync.wait();
+                    }
+                    if (waiters.isEmpty()) {
+                        return;
+                    }
+                    //等更多请求加入同一批，直到最早的请求等满maxDelay或者积累了maxBytes
+                    long deadline = oldestWaiter() + maxDelayNanos;
+                    long now;
+                    while (!closed && appendedLsn - durableLsn < maxBytes && (now = System.nanoTime()) < deadline) {
+                        TimeUnit.NANOSECONDS.timedWait(sync, deadline - now);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            long start = System.nanoTime();
+            FileChannel current;
+            synchronized (this) {
+                //force期间不阻止追加：先取LSN，再force，之后追加的数据留给下一批
+                //target之前换下来的段必须在同一个锁内取出，否则中间的roll()换下的段没有force就被确认
+                target = segmentIndex * segmentSize + position;
+                current = segment;
+                synchronized (sync) {
+                    toClose = new ArrayList<>(retired);
+                    retired.clear();
+                }
+            }
+            IOException error = null;
+            try {
+                for (FileChannel ch : toClose) {
+                    ch.force(false);
+                    ch.close();
+                }
+                current.force(false);
+            } catch (IOException e) {
+                error = e;
+            }
+            syncTime.record(System.nanoTime() - start);
+            List<Waiter> done = new ArrayList<>();
+            synchronized (sync) {
+                syncs++;
+                if (error != null) {
+                    failure = error;
+                    done.addAll(waiters);
+                    waiters.clear();
+                } else {
+                    durableLsn = Math.max(durableLsn, target);
+                    while (!waiters.isEmpty() && waiters.peek().lsn <= durableLsn) {
+                        done.add(waiters.poll());
+                    }
+                }
+            }
+            commitsPerSync.record(done.size());
+            //在锁外完成future，回调可能很慢
+            for (Waiter waiter : done) {
+                if (error != null) {
+                    waiter.future.completeExceptionally(error);
+                } else {
+                    waiter.future.complete(null);
+                }
+            }
+        }
+    }
+
+    private long oldestWaiter() {
+        long oldest = Long.MAX_VALUE;
+        for (Waiter waiter : waiters) {
+            oldest = Math.min(oldest, waiter.since);
+        }
+        return oldest;
+    }
+
+    /**
+     * 按顺序读出所有段中的有效记录
+     */
+    public void replay(RecordVisitor visitor) throws IOException {
+        for (long index : segments()) {
+            try (FileChannel ch = FileChannel.open(segmentPath(index), StandardOpenOption.READ)) {
+                scan(ch, visitor);
+            }
+        }
+    }
+
+    public Path getDirectory() {
+        return dir;
+    }
+
+    public synchronized long getAppendCount() {
+        return appends;
+    }
+
+    public synchronized long getBytesAppended() {
+        return bytesAppended;
+    }
+
+    public long getSyncCount() {
+        synchronized (sync) {
+            return syncs;
+        }
+    }
+
+    public long getDurableLsn() {
+        synchronized (sync) {
+            return durableLsn;
+        }
+    }
+
+    /**
+     * 每次force的耗时(纳秒)
+     */
+    public Histogram syncTime() {
+        return syncTime;
+    }
+
+    /**
+     * 每次force完成的确认个数，越大说明组提交合并得越多
+     */
+    public Histogram commitsPerSync() {
+        return commitsPerSync;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("appends=%d bytes=%d syncs=%d%n  sync time %s%n  commits/sync %s",
+                getAppendCount(), getBytesAppended(), getSyncCount(), syncTime.toMicros(), commitsPerSync);
+    }
+
+    /**
+     * 等待中的确认全部落盘后关闭
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (sync) {
+            closed = true;
+            sync.notifyAll();
+        }
+        try {
+            syncThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            for (FileChannel ch : retired) {
+                ch.close();
+            }
+            retired.clear();
+            segment.force(false);
+            segment.close();
+            //没用上的预分配段删掉，下次打开时仍从当前段的末尾继续追加
+            preallocator.shutdown();
+            try {
+                FileChannel next = nextSegment.get();
+                next.close();
+                Files.deleteIfExists(segmentPath(segmentIndex + 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ignored) {
+                //预分配失败时文件已经删掉了
+            }
+        }
+    }
+
+    private static final class Waiter implements Comparable<Waiter> {
+        final long lsn;
+        final long since;
+        final CompletableFuture<Void> future;
+
+        Waiter(long lsn, long since, CompletableFuture<Void> future) {
+            this.lsn = lsn;
+            this.since = since;
+            this.future = future;
+        }
+
+        @Override
+        public int compareTo(Waiter o) {
+            return Long.compare(lsn, o.lsn);
+        }
+    }
+
+    /**
+     * 一个上传：write()把数据切成不超过maxRecord的DATA记录追加到日志，close()追加COMMIT记录
+     * 实现了WritableByteChannel，接收路径上可以直接替换原来的输出FileChannel；确认前用durable(getCommitLsn())等待落盘
+     */
+    public final class Stream implements WritableByteChannel {
+        private final long id;
+        private final String name;
+        private long length;
+        private long commitLsn = -1;
+        private boolean open = true;
+
+        private Stream(long id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (!open) {
+                throw new IOException("stream closed");
+            }
+            int total = src.remaining();
+            while (src.hasRemaining()) {
+                ByteBuffer record = src.duplicate();
+                record.limit(record.position() + Math.min(record.remaining(), maxRecord));
+                src.position(record.limit());
+                append(TYPE_DATA, id, record);
+            }
+            length += total;
+            return total;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * COMMIT记录的LSN，close()之前为-1
+         */
+        public long getCommitLsn() {
+            return commitLsn;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        /**
+         * 追加COMMIT记录，还没有落盘，要确认时调用SegmentLog.durable(getCommitLsn())
+         */
+        @Override
+        public void close() throws IOException {
+            if (!open) {
+                return;
+            }
+            open = false;
+            commitLsn = append(TYPE_COMMIT, id, ByteBuffer.wrap(name.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        /**
+         * 放弃：不写COMMIT，已追加的DATA记录在replay时被忽略
+         */
+        public void abort() {
+            open = false;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.zy.nio.udp;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * 一批数据报：每个数据报是接收缓冲区中固定槽位的一个切片(读模式)，
+ * 槽位在批次交给消费者之后会被下一批覆盖，所以批次只在onBatch回调内有效，需要保留的数据要自己拷贝
+ */
+public class DatagramBatch {
+
+    private final ByteBuffer[] packets;
+    private final SocketAddress[] senders;
+    private final int channelIndex;
+    private int size;
+
+    DatagramBatch(ByteBuffer slab, int capacity, int maxDatagram, int channelIndex) {
+        this.packets = new ByteBuffer[capacity];
+        this.senders = new SocketAddress[capacity];
+        this.channelIndex = channelIndex;
+        //把一整块直接缓冲区切成capacity个槽位，之后一直复用
+        for (int i = 0; i < capacity; i++) {
+            slab.limit((i + 1) * maxDatagram).position(i * maxDatagram);
+            packets[i] = slab.slice();
+        }
+        slab.clear();
+    }
+
+    /**
+     * 下一个空闲槽位(已clear)，批次满了返回null
+     */
+    ByteBuffer nextSlot() {
+        if (size == packets.length) {
+            return null;
+        }
+        ByteBuffer slot = packets[size];
+        slot.clear();
+        return slot;
+    }
+
+    /**
+     * 槽位收到了数据报
+     */
+    void commit(SocketAddress sender) {
+        packets[size].flip();
+        senders[size] = sender;
+        size++;
+    }
+
+    void reset() {
+        for (int i = 0; i < size; i++) {
+            senders[i] = null;
+        }
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size == packets.length;
+    }
+
+    public ByteBuffer packet(int i) {
+        if (i >= size) {
+            throw new IndexOutOfBoundsException(i + " >= " + size);
+        }
+        return packets[i];
+    }
+
+    public SocketAddress sender(int i) {
+        if (i >= size) {
+            throw new IndexOutOfBoundsException(i + " >= " + size);
+        }
+        return senders[i];
+    }
+
+    /**
+     * 接收这一批数据报的通道下标(多个通道共用端口时区分来源)
+     */
+    public int channelIndex() {
+        return channelIndex;
+    }
+}
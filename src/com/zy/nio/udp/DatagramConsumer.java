@@ -0,0 +1,11 @@
+package com.zy.nio.udp;
+
+/**
+ * 数据报批次消费者：由接收线程回调，每个通道一个线程，同一通道的批次按到达顺序回调
+ * 回调里不要阻塞，处理得慢时内核接收缓冲区会被填满，多出来的数据报由内核丢弃(计入kernelDrops)
+ */
+@FunctionalInterface
+public interface DatagramConsumer {
+
+    void onBatch(DatagramBatch batch);
+}
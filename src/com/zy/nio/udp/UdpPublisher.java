@@ -0,0 +1,419 @@
+package com.zy.nio.udp;
+
+import com.zy.nio.buffer.BufferPool;
+import com.zy.nio.buffer.PooledBuffer;
+import com.zy.nio.metrics.Histogram;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * UDP扇出发布：同一份行情类的更新推送给大量订阅者，TestNonBlockingNIO.client2()只能一对一发送
+ * 1.目标可以是组播组(addGroup，一次send由网络/内核复制给所有加入了该组的接收端，见UdpReceiver.join())，
+ *   也可以是单播订阅者列表(addSubscriber)，两者可以混用
+ * 2.消息只编码一次：publish()把消息复制进当前数据报的直接缓冲区，发送时对所有目标使用同一个只读视图，不按订阅者复制
+ * 3.小消息合并：当前数据报放不下下一条消息(超过maxDatagram，默认按1500字节MTU)时立刻发出；
+ *   否则最早那条消息等满maxDelay也会发出，合并带来的延迟不超过这个预算
+ * 4.发送由单独的线程完成，publish()只是追加到缓冲区；发送跟不上时待发的数据报超过maxPending，publish()阻塞
+ * 数据报格式：seq(8B) count(2B) 之后count条消息，每条 length(2B) + length字节，
+ * seq按数据报递增，订阅者据此发现丢包；decode()按这个格式拆出消息
+ */
+public class UdpPublisher {
+
+    //IPv4最小头部20字节 + UDP头部8字节
+    public static final int DEFAULT_MAX_DATAGRAM = 1500 - 28;
+    public static final int HEADER = 10;
+
+    private final int maxDatagram;
+    private final long maxDelayNanos;
+    private final int maxPending;
+    private volatile InetSocketAddress[] targets = new InetSocketAddress[0];
+    private NetworkInterface multicastInterface;
+    private int timeToLive = 1;
+    private boolean multicastLoopback = true;
+
+    private final Object lock = new Object();
+    private final ArrayDeque<Datagram> ready = new ArrayDeque<>();
+    private Datagram current;
+    private long seq;
+    private boolean running;
+
+    private DatagramChannel channel;
+    private Thread sender;
+
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder datagrams = new LongAdder();
+    private final LongAdder sends = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder fullFlushes = new LongAdder();
+    private final LongAdder timeoutFlushes = new LongAdder();
+    private final LongAdder sendErrors = new LongAdder();
+    //第一条消息publish()到所在数据报开始发送的时间
+    private final Histogram delay = new Histogram();
+
+    public UdpPublisher() {
+        this(DEFAULT_MAX_DATAGRAM, 1, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param maxDatagram 每个数据报的最大字节数
+     * @param maxDelay    一条消息最多等待合并的时间，0表示不合并，每条消息单独发送
+     */
+    public UdpPublisher(int maxDatagram, long maxDelay, TimeUnit unit) {
+        this(maxDatagram, maxDelay, unit, 256);
+    }
+
+    /**
+     * @param maxPending 等待发送的数据报个数上限，超过时publish()阻塞
+     */
+    public UdpPublisher(int maxDatagram, long maxDelay, TimeUnit unit, int maxPending) {
+        if (maxDatagram <= HEADER + 2 || maxDatagram > 65507 || maxDelay < 0 || maxPending <= 0) {
+            throw new IllegalArgumentException("bad publisher: " + maxDatagram + ", " + maxDelay + ", " + maxPending);
+        }
+        this.maxDatagram = maxDatagram;
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * 单播订阅者，可以在运行中增删，对之后发出的数据报生效
+     */
+    public synchronized void addSubscriber(InetSocketAddress subscriber) {
+        InetSocketAddress[] old = targets;
+        InetSocketAddress[] next = Arrays.copyOf(old, old.length + 1);
+        next[old.length] = subscriber;
+        targets = next;
+    }
+
+    public synchronized boolean removeSubscriber(InetSocketAddress subscriber) {
+        InetSocketAddress[] old = targets;
+        for (int i = 0; i < old.length; i++) {
+            if (old[i].equals(subscriber)) {
+                InetSocketAddress[] next = new InetSocketAddress[old.length - 1];
+                System.arraycopy(old, 0, next, 0, i);
+                System.arraycopy(old, i + 1, next, i, old.length - i - 1);
+                targets = next;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 组播组(地址+端口)：每个数据报只发一次
+     */
+    public void addGroup(InetSocketAddress group) {
+        if (!group.getAddress().isMulticastAddress()) {
+            throw new IllegalArgumentException("not a multicast address: " + group);
+        }
+        addSubscriber(group);
+    }
+
+    public int getTargetCount() {
+        return targets.length;
+    }
+
+    /**
+     * 发送组播使用的网卡，需在start()之前设置，不设置时由路由表决定
+     */
+    public void setMulticastInterface(NetworkInterface multicastInterface) {
+        this.multicastInterface = multicastInterface;
+    }
+
+    /**
+     * 组播的TTL，默认1(不出本网段)
+     */
+    public void setTimeToLive(int timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * 本机加入了组的接收端是否也收到，默认true，本机测试需要
+     */
+    public void setMulticastLoopback(boolean multicastLoopback) {
+        this.multicastLoopback = multicastLoopback;
+    }
+
+    public void start() throws IOException {
+        channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_SNDBUF, 4 * 1024 * 1024);
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, timeToLive);
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, multicastLoopback);
+        if (multicastInterface != null) {
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, multicastInterface);
+        }
+        channel.bind(null);
+        synchronized (lock) {
+            running = true;
+            current = newDatagram();
+        }
+        sender = new Thread(this::sendLoop, "udp-publisher");
+        sender.start();
+    }
+
+    /**
+     * 发布一条消息(message的剩余部分)，消息被复制进当前数据报，返回后message可以重用
+     */
+    public void publish(ByteBuffer message) throws InterruptedException {
+        int len = message.remaining();
+        if (len > maxDatagram - HEADER - 2) {
+            throw new IllegalArgumentException("message too long: " + len + " > " + (maxDatagram - HEADER - 2));
+        }
+        synchronized (lock) {
+            if (!running) {
+                throw new IllegalStateException("publisher not running");
+            }
+            ByteBuffer buf = current.buf;
+            if (buf.remaining() < 2 + len) {
+                rotate();
+                fullFlushes.increment();
+                buf = current.buf;
+            }
+            if (current.count == 0) {
+                current.firstAt = System.nanoTime();
+                //发送线程可能在无限期等待，告诉它新的截止时间
+                lock.notifyAll();
+            }
+            buf.putShort((short) len).put(message);
+            current.count++;
+            messages.increment();
+            if (maxDelayNanos == 0) {
+                rotate();
+            }
+        }
+    }
+
+    /**
+     * 不等延迟预算，把当前数据报立即交给发送线程
+     */
+    public void flush() throws InterruptedException {
+        synchronized (lock) {
+            if (running && current.count > 0) {
+                rotate();
+            }
+        }
+    }
+
+    //当前数据报进入发送队列，换一个新的；队列满时等待(持有lock时调用)
+    private void rotate() throws InterruptedException {
+        while (ready.size() >= maxPending && running) {
+            lock.wait();
+        }
+        current.seq = seq++;
+        ready.add(current);
+        current = newDatagram();
+        lock.notifyAll();
+    }
+
+    private Datagram newDatagram() {
+        Datagram datagram = new Datagram(BufferPool.getDefault().acquire(maxDatagram));
+        datagram.buf.clear().limit(maxDatagram);
+        datagram.buf.position(HEADER);
+        return datagram;
+    }
+
+    private void sendLoop() {
+        while (true) {
+            Datagram next;
+            synchronized (lock) {
+                try {
+                    next = awaitReady();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (next == null) {
+                    return;
+                }
+                //腾出了队列空间
+                lock.notifyAll();
+            }
+            send(next);
+        }
+    }
+
+    //等到有数据报可发：队列非空，或者当前数据报的第一条消息等满了maxDelay；停止并且发完时返回null
+    private Datagram awaitReady() throws InterruptedException {
+        while (ready.isEmpty()) {
+            if (current.count > 0) {
+                long wait = current.firstAt + maxDelayNanos - System.nanoTime();
+                if (wait <= 0 || !running) {
+                    timeoutFlushes.increment();
+                    rotate();
+                    break;
+                }
+                TimeUnit.NANOSECONDS.timedWait(lock, wait);
+            } else if (!running) {
+                return null;
+            } else {
+                lock.wait();
+            }
+        }
+        return ready.poll();
+    }
+
+    /**
+     * 同一个只读视图依次发给所有目标，每次只重置position，不复制内容
+     */
+    private void send(Datagram datagram) {
+        ByteBuffer buf = datagram.buf;
+        buf.flip();
+        buf.putLong(0, datagram.seq).putShort(8, (short) datagram.count);
+        ByteBuffer shared = buf.asReadOnlyBuffer();
+        int length = shared.remaining();
+        delay.record(System.nanoTime() - datagram.firstAt);
+        InetSocketAddress[] snapshot = targets;
+        for (InetSocketAddress target : snapshot) {
+            shared.position(0);
+            try {
+                channel.send(shared, target);
+                sends.increment();
+                bytesSent.add(length);
+            } catch (IOException e) {
+                //一个订阅者不可达不影响其他订阅者
+                sendErrors.increment();
+            }
+        }
+        datagrams.increment();
+        datagram.pooled.release();
+    }
+
+    /**
+     * 发完已经发布的消息后停止
+     */
+    public void shutdown() throws InterruptedException, IOException {
+        synchronized (lock) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            lock.notifyAll();
+        }
+        sender.join();
+        synchronized (lock) {
+            current.pooled.release();
+            current = null;
+        }
+        channel.close();
+    }
+
+    /**
+     * 按数据报格式拆出每条消息，消息是datagram的切片，不复制
+     * 收到的数据报可能被截断或者根本不是本格式：先整个校验一遍(头部完整、每条消息不越界、正好到末尾)，
+     * 不合格的数据报不交出任何消息
+     *
+     * @return 数据报的seq，格式不对时返回-1
+     */
+    public static long decode(ByteBuffer datagram, Consumer<ByteBuffer> consumer) {
+        int start = datagram.position();
+        int limit = datagram.limit();
+        if (limit - start < HEADER) {
+            return -1;
+        }
+        long seq = datagram.getLong(start);
+        int count = datagram.getShort(start + 8) & 0xFFFF;
+        int p = start + HEADER;
+        for (int i = 0; i < count; i++) {
+            if (limit - p < 2) {
+                return -1;
+            }
+            int len = datagram.getShort(p) & 0xFFFF;
+            if (limit - p - 2 < len) {
+                return -1;
+            }
+            p += 2 + len;
+        }
+        if (p != limit || seq < 0) {
+            return -1;
+        }
+        p = start + HEADER;
+        for (int i = 0; i < count; i++) {
+            int len = datagram.getShort(p) & 0xFFFF;
+            ByteBuffer message = datagram.duplicate();
+            message.limit(p + 2 + len).position(p + 2);
+            consumer.accept(message.slice());
+            p += 2 + len;
+        }
+        return seq;
+    }
+
+    public long getMessages() {
+        return messages.sum();
+    }
+
+    /**
+     * 发出的数据报个数(每个数据报不论有多少目标只算一次)
+     */
+    public long getDatagrams() {
+        return datagrams.sum();
+    }
+
+    /**
+     * send()调用次数，等于数据报个数乘以目标个数
+     */
+    public long getSends() {
+        return sends.sum();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    /**
+     * 因为放不下下一条消息而发出的数据报个数
+     */
+    public long getFullFlushes() {
+        return fullFlushes.sum();
+    }
+
+    /**
+     * 因为等满maxDelay而发出的数据报个数
+     */
+    public long getTimeoutFlushes() {
+        return timeoutFlushes.sum();
+    }
+
+    public long getSendErrors() {
+        return sendErrors.sum();
+    }
+
+    public Histogram getDelay() {
+        return delay;
+    }
+
+    public double messagesPerDatagram() {
+        long n = getDatagrams();
+        return n == 0 ? 0 : (double) getMessages() / n;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("messages=%d datagrams=%d (%.1f msg/datagram, full=%d timeout=%d) sends=%d bytes=%d errors=%d delay %s",
+                getMessages(), getDatagrams(), messagesPerDatagram(), getFullFlushes(), getTimeoutFlushes(),
+                getSends(), getBytesSent(), getSendErrors(), delay.toMicros());
+    }
+
+    /**
+     * 一个正在攒或等待发送的数据报
+     */
+    private static final class Datagram {
+        private final PooledBuffer pooled;
+        private final ByteBuffer buf;
+        private long seq;
+        private int count;
+        private long firstAt;
+
+        private Datagram(PooledBuffer pooled) {
+            this.pooled = pooled;
+            this.buf = pooled.buffer();
+        }
+    }
+}
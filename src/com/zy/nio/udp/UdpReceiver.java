@@ -0,0 +1,327 @@
+package com.zy.nio.udp;
+
+import com.zy.nio.buffer.BufferPool;
+import com.zy.nio.buffer.PooledBuffer;
+import com.zy.nio.metrics.ServerMetrics;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 高速UDP接收：TestNonBlockingNIO.server2()的改进版本
+ * 1.每次select()醒来把通道里的数据报全部取完(receive返回null为止)，而不是每次唤醒只收一个
+ * 2.每个通道一块直接缓冲区切成固定槽位反复使用，收满一批(或取完)交给DatagramConsumer，没有逐包分配
+ * 3.多个DatagramChannel设置SO_REUSEPORT绑定同一端口，内核按来源把数据报分散到各个通道，每个通道一个线程
+ * 4.计数：收到的包数/字节数/批次数/唤醒次数，超长被截断的数据报(overruns)，以及内核因接收缓冲区满丢弃的包(kernelDrops)
+ * 5.选择器循环指标见getMetrics()：每个批次算一个事件，处理耗时即消费者回调的耗时，每个通道算一个连接
+ * 6.join()加入组播组，接收UdpPublisher发往该组的数据报
+ */
+public class UdpReceiver {
+
+    public static final int DEFAULT_BATCH = 64;
+    public static final int DEFAULT_MAX_DATAGRAM = 2048;
+
+    private final int port;
+    private final int channelCount;
+    private final int batchSize;
+    private final int maxDatagram;
+    private final DatagramConsumer consumer;
+    private int receiveBufferSize = 4 * 1024 * 1024;
+
+    private final LongAdder packets = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder wakeups = new LongAdder();
+    private final LongAdder overruns = new LongAdder();
+    private final ServerMetrics metrics = new ServerMetrics("udp");
+
+    private Worker[] workers;
+    private volatile boolean running;
+    private int localPort;
+    //关闭后套接字从/proc中消失，关闭前记下最后的内核丢包数
+    private volatile long closedKernelDrops = -1;
+
+    public UdpReceiver(int port, DatagramConsumer consumer) {
+        this(port, 1, DEFAULT_BATCH, DEFAULT_MAX_DATAGRAM, consumer);
+    }
+
+    /**
+     * @param channelCount 绑定同一端口的通道数，大于1时需要操作系统支持SO_REUSEPORT
+     * @param batchSize    每批最多的数据报个数
+     * @param maxDatagram  单个数据报的最大字节数，超过的计入overruns并丢弃
+     */
+    public UdpReceiver(int port, int channelCount, int batchSize, int maxDatagram, DatagramConsumer consumer) {
+        if (channelCount <= 0 || batchSize <= 0 || maxDatagram <= 0) {
+            throw new IllegalArgumentException("channelCount, batchSize and maxDatagram must be positive");
+        }
+        this.port = port;
+        this.channelCount = channelCount;
+        this.batchSize = batchSize;
+        this.maxDatagram = maxDatagram;
+        this.consumer = consumer;
+    }
+
+    /**
+     * 每个通道的内核接收缓冲区大小(SO_RCVBUF)，需在start()之前设置，实际大小受net.core.rmem_max限制
+     */
+    public void setReceiveBufferSize(int receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    public static boolean isReusePortSupported() {
+        try (DatagramChannel dc = DatagramChannel.open()) {
+            return dc.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 打开并绑定所有通道，启动接收线程，port为0时第一个通道由系统分配端口，其余通道绑定到同一端口
+     */
+    public void start() throws IOException {
+        if (channelCount > 1 && !isReusePortSupported()) {
+            throw new UnsupportedOperationException("SO_REUSEPORT is not supported, use a single channel");
+        }
+        workers = new Worker[channelCount];
+        int bindPort = port;
+        try {
+            for (int i = 0; i < channelCount; i++) {
+                DatagramChannel dc = DatagramChannel.open();
+                try {
+                    if (channelCount > 1) {
+                        dc.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                    }
+                    dc.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+                    dc.configureBlocking(false);
+                    dc.bind(new InetSocketAddress(bindPort));
+                    bindPort = ((InetSocketAddress) dc.getLocalAddress()).getPort();
+                    workers[i] = new Worker(i, dc);
+                } catch (IOException | RuntimeException e) {
+                    //还没交给Worker，下面的清理关不到它
+                    dc.close();
+                    throw e;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Worker worker : workers) {
+                if (worker != null) {
+                    worker.close();
+                }
+            }
+            throw e;
+        }
+        localPort = bindPort;
+        running = true;
+        for (Worker worker : workers) {
+            worker.thread.start();
+        }
+    }
+
+    /**
+     * 所有通道加入组播组，在start()之后调用；通道关闭时自动退出
+     *
+     * @param nif 接收组播的网卡，与发送端的IP_MULTICAST_IF一致
+     */
+    public void join(InetAddress group, NetworkInterface nif) throws IOException {
+        if (!running) {
+            throw new IllegalStateException("receiver not started");
+        }
+        for (Worker worker : workers) {
+            worker.channel.join(group, nif);
+        }
+    }
+
+    public void shutdown() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        closedKernelDrops = readKernelDrops();
+        running = false;
+        for (Worker worker : workers) {
+            worker.selector.wakeup();
+        }
+        for (Worker worker : workers) {
+            worker.thread.join(5000);
+        }
+    }
+
+    public int getLocalPort() {
+        return localPort;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public long getPackets() {
+        return packets.sum();
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    public long getWakeups() {
+        return wakeups.sum();
+    }
+
+    /**
+     * 超过maxDatagram被截断而丢弃的数据报个数
+     */
+    public long getOverruns() {
+        return overruns.sum();
+    }
+
+    /**
+     * 内核因接收缓冲区满而丢弃的数据报个数，来自/proc/net/udp与/proc/net/udp6中本端口所有套接字的drops列
+     * 不是Linux时返回-1
+     */
+    public long getKernelDrops() {
+        return running ? readKernelDrops() : closedKernelDrops;
+    }
+
+    private long readKernelDrops() {
+        long drops = -1;
+        String portHex = String.format(":%04X", localPort);
+        for (String file : new String[]{"/proc/net/udp", "/proc/net/udp6"}) {
+            Path path = Paths.get(file);
+            if (!Files.isReadable(path)) {
+                continue;
+            }
+            drops = Math.max(drops, 0);
+            try {
+                List<String> lines = Files.readAllLines(path);
+                for (int i = 1; i < lines.size(); i++) {
+                    //sl local_address rem_address st tx_queue:rx_queue tr:tm->when retrnsmt uid timeout inode ref pointer drops
+                    String[] cols = lines.get(i).trim().split("\\s+");
+                    if (cols.length >= 13 && cols[1].endsWith(portHex)) {
+                        drops += Long.parseLong(cols[12]);
+                    }
+                }
+            } catch (IOException | NumberFormatException ignored) {
+            }
+        }
+        return drops;
+    }
+
+    /**
+     * 一个通道的接收线程
+     */
+    private class Worker implements Runnable {
+        private final DatagramChannel channel;
+        private final Selector selector;
+        private final PooledBuffer pooled;
+        private final DatagramBatch batch;
+        private final Thread thread;
+        private long channelBytes;
+
+        Worker(int index, DatagramChannel channel) throws IOException {
+            this.channel = channel;
+            this.selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+            //每个槽位多留1个字节：收到的数据报填满了maxDatagram+1，说明原数据报超长被截断了
+            int slot = maxDatagram + 1;
+            this.pooled = BufferPool.getDefault().acquire(slot * batchSize);
+            this.batch = new DatagramBatch(pooled.buffer(), batchSize, slot, index);
+            this.thread = new Thread(this, "udp-receiver-" + index);
+        }
+
+        @Override
+        public void run() {
+            metrics.connectionOpened();
+            try {
+                while (running) {
+                    long selectStart = System.nanoTime();
+                    int selected = selector.select();
+                    long woke = System.nanoTime();
+                    metrics.selected(woke - selectStart, selected, woke);
+                    selector.selectedKeys().clear();
+                    wakeups.increment();
+                    drain();
+                    metrics.loop(System.nanoTime() - woke);
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+            } finally {
+                metrics.connectionClosed(channelBytes);
+                close();
+            }
+        }
+
+        /**
+         * 一直收到receive返回null(内核缓冲区已空)，批次满了就先交给消费者
+         */
+        private void drain() throws IOException {
+            while (running) {
+                ByteBuffer slot = batch.nextSlot();
+                if (slot == null) {
+                    deliver();
+                    continue;
+                }
+                SocketAddress sender = channel.receive(slot);
+                if (sender == null) {
+                    break;
+                }
+                if (slot.position() > maxDatagram) {
+                    //槽位不提交，下次继续使用
+                    overruns.increment();
+                    continue;
+                }
+                batch.commit(sender);
+            }
+            if (batch.size() > 0) {
+                deliver();
+            }
+        }
+
+        private void deliver() {
+            long len = 0;
+            for (int i = 0; i < batch.size(); i++) {
+                len += batch.packet(i).remaining();
+            }
+            packets.add(batch.size());
+            bytes.add(len);
+            batches.increment();
+            metrics.read(len);
+            channelBytes += len;
+            long start = System.nanoTime();
+            try {
+                consumer.onBatch(batch);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            metrics.event(System.nanoTime() - start);
+            batch.reset();
+        }
+
+        void close() {
+            try {
+                selector.close();
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            pooled.release();
+        }
+    }
+}